@@ -0,0 +1,268 @@
+/**
+ * BenchWorkloads builds the operations that the JMH benchmarks in bench/jmh time.
+ * The proxy's classes are in the default package, which a benchmark class (it must have a package) cannot import,
+ * so each benchmark asks this class for its workload by name and gets back a plain LongSupplier.
+ * Each call builds fresh state, so a benchmark that runs on several threads gives each thread its own.
+ * It also keeps the code paths the proxy replaced, as baselines to compare against.
+ * */
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.function.LongSupplier;
+
+public final class BenchWorkloads {
+
+    private static final String REQUEST_HEAD = "GET http://www.example.com/index.html?page=2 HTTP/1.1\r\n" +
+            "Host: www.example.com\r\n" +
+            "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:128.0) Gecko/20100101 Firefox/128.0\r\n" +
+            "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n" +
+            "Accept-Language: en-GB,en;q=0.5\r\n" +
+            "Accept-Encoding: gzip, deflate\r\n" +
+            "X-Forwarded-For: 203.0.113.7\r\n" +
+            "Cookie: session=0123456789abcdef; theme=dark\r\n" +
+            "Proxy-Connection: keep-alive\r\n" +
+            "\r\n";
+
+    private static Path logFile;
+
+    private BenchWorkloads() {
+    }
+
+    public static LongSupplier workload(String name) {
+        try {
+            return create(name);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Starts the logger on a temporary file, so that log workloads measure queueing rather than a console.
+    public static void startLogger(String overflowPolicy, int capacity) {
+        try {
+            logFile = Files.createTempFile("bench", ".log");
+            Logger.initializeLogger(logFile.toString(), overflowPolicy, capacity);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public static void stopLogger() {
+        Logger.shutdown();
+        try {
+            Files.deleteIfExists(logFile);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static LongSupplier create(String name) throws IOException {
+        byte[] head = REQUEST_HEAD.getBytes(StandardCharsets.ISO_8859_1);
+        switch (name) {
+            case "parse.requestHead": {
+                ByteBuffer buffer = ByteBuffer.wrap(head);
+                HTTPRequestParser parser = new HTTPRequestParser(16 * 1024, 100);
+                return unchecked(() -> {
+                    parser.reset(buffer, 0);
+                    parser.parse(head.length);
+                    return parser.headEnd() + parser.headerCount();
+                });
+            }
+            case "parse.keepAliveReader": {
+                ClientRequestReader reader = new ClientRequestReader(new RepeatingInputStream(head), 16 * 1024, 100);
+                return unchecked(() -> {
+                    HTTPRequestParser request = reader.readRequest();
+                    return request.headerCount() + (reader.isKeepAlive() ? 1 : 0);
+                });
+            }
+            case "parse.legacyReadFullRequest": {
+                InputStream input = new RepeatingInputStream(head);
+                return unchecked(() -> {
+                    ClientHandler.ParsedData target = legacyParseRequest(legacyReadFullRequest(input));
+                    return target.port() + target.host().length();
+                });
+            }
+            case "parse.requestTarget": {
+                ClientRequestReader reader = new ClientRequestReader(new RepeatingInputStream(head), 16 * 1024, 100);
+                return unchecked(() -> {
+                    HTTPRequestParser request = reader.readRequest();
+                    if (request.isMethod("CONNECT")) {
+                        throw new IllegalStateException("Not a CONNECT workload.");
+                    }
+                    ClientHandler.ParsedData target = ClientHandler.parseTarget(request.target());
+                    return target.port() + target.host().length();
+                });
+            }
+            case "rewrite.legacyConcealUserIP":
+                return () -> legacyConcealUserIP(REQUEST_HEAD).getBytes(StandardCharsets.UTF_8).length;
+            case "rewrite.pipeline": {
+                HeaderRewriter rewriter = new HeaderRewriter(List.of(new HeaderRewriter.HopByHop(),
+                        new HeaderRewriter.ClientForwarding("conceal")));
+                HTTPRequestParser parsed = new HTTPRequestParser(16 * 1024, 100);
+                parsed.reset(ByteBuffer.wrap(head), 0);
+                parsed.parse(head.length);
+                ByteBuffer rewritten = ByteBuffer.allocate(HeaderRewriter.capacityFor(parsed));
+                return unchecked(() -> {
+                    rewritten.clear();
+                    rewriter.rewrite(parsed, "198.51.100.4", rewritten);
+                    return rewritten.position();
+                });
+            }
+            case "hpack.decodeRequest": {
+                // RFC 7541 appendix C.4.1: a request with a Huffman-coded authority, which it adds to the dynamic table.
+                byte[] headerBlock = HexFormat.of().parseHex("828684418cf1e3c2e5f23a6ba0ab90f4ff");
+                HPACK.Decoder decoder = new HPACK.Decoder(HPACK.DEFAULT_TABLE_SIZE, 16 * 1024);
+                return unchecked(() -> decoder.decode(headerBlock, 0, headerBlock.length).size());
+            }
+            case "hpack.encodeResponse": {
+                HPACK.Encoder encoder = new HPACK.Encoder();
+                ByteArrayOutputStream encoded = new ByteArrayOutputStream(256);
+                return () -> {
+                    encoded.reset();
+                    encoder.encode(":status", "200", encoded);
+                    encoder.encode("content-type", "text/html; charset=utf-8", encoded);
+                    encoder.encode("content-length", "5120", encoded);
+                    encoder.encode("cache-control", "max-age=3600", encoded);
+                    return encoded.size();
+                };
+            }
+            case "filter.publicHost":
+                return filterWorkload(filter -> filter.isHostAllowed("www.example.com"));
+            case "filter.deniedDomain":
+                return filterWorkload(filter -> filter.isHostAllowed("tracker.ads.example.net"));
+            case "filter.publicAddress": {
+                InetAddress address = InetAddress.getByName("93.184.215.14");
+                return filterWorkload(filter -> filter.isAddressAllowed(address));
+            }
+            case "filter.privateAddress": {
+                InetAddress address = InetAddress.getByName("192.168.1.20");
+                return filterWorkload(filter -> filter.isAddressAllowed(address));
+            }
+            case "log.info":
+                return () -> {
+                    Logger.logInfo("Request received: GET http://www.example.com/index.html HTTP/1.1");
+                    return 1;
+                };
+            case "log.droppedCount":
+                return Logger::droppedCount;
+            default:
+                throw new IllegalArgumentException("Unknown workload: " + name);
+        }
+    }
+
+    private interface FilterCheck {
+        boolean allowed(DestinationFilter filter);
+    }
+
+    private static LongSupplier filterWorkload(FilterCheck check) {
+        DestinationFilter destinationFilter = new DestinationFilter(true);
+        destinationFilter.denyPrivate();
+        destinationFilter.addRule("deny ads.example.net");
+        return () -> check.allowed(destinationFilter) ? 1 : 0;
+    }
+
+    private interface Operation {
+        long run() throws Exception;
+    }
+
+    private static LongSupplier unchecked(Operation operation) {
+        return () -> {
+            try {
+                return operation.run();
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        };
+    }
+
+    // ClientHandler.readFullRequest as it was before HTTPRequestParser, kept as the baseline with legacyParseRequest.
+    private static String legacyReadFullRequest(InputStream input) {
+        // Dynamically allocates buffer.
+        // \r\n\r\n denotes the end of a http request
+        ByteArrayOutputStream requestStream = new ByteArrayOutputStream();
+        int length;
+        byte[] buffer = new byte[1024];
+        while (true) {
+            try {
+                if ((length = input.read(buffer)) != -1) {
+                    requestStream.write(buffer, 0, length);
+                    if (requestStream.toString(StandardCharsets.UTF_8).contains("\r\n\r\n")) {
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return requestStream.toString(StandardCharsets.UTF_8);
+    }
+
+    // ClientHandler's check for CONNECT and its parseRequest, splitting the head on spaces, before HTTPRequestParser.
+    private static ClientHandler.ParsedData legacyParseRequest(String fullRequest) throws URISyntaxException {
+        String[] requestParts = fullRequest.split(" ");
+        if (requestParts.length >= 3 && requestParts[0].equalsIgnoreCase("connect")) {
+            throw new IllegalStateException("Not a CONNECT workload.");
+        }
+        String[] parts = fullRequest.split(" ");
+        if (parts.length < 3) {
+            return null;
+        }
+        URI uri = new URI(parts[1]);
+        String host = uri.getHost();
+        int port = uri.getPort() != -1 ? uri.getPort() : 80;
+        return new ClientHandler.ParsedData(port, host);
+    }
+
+    // ConnectionHandler.concealUserIP as it was before HeaderRewriter, kept as the baseline.
+    private static String legacyConcealUserIP(String fullRequest) {
+        String[] lines = fullRequest.split("\r\n");
+        StringBuilder modifiedRequest = new StringBuilder();
+        for (String line : lines) {
+            if (line.startsWith("X-Forwarded-For:") || line.startsWith("X-Real-IP:")) {
+                continue;
+            }
+            modifiedRequest.append(line).append("\r\n");
+        }
+        modifiedRequest.append("X-Forwarded-For: 0.0.0.0\r\n");
+        modifiedRequest.append("\r\n").append(fullRequest.substring(fullRequest.indexOf("\r\n\r\n") + 4));
+        return modifiedRequest.toString();
+    }
+
+    // Serves the same bytes over and over, like a client pipelining one request forever.
+    private static final class RepeatingInputStream extends InputStream {
+
+        private final byte[] bytes;
+        private int position = 0;
+
+        private RepeatingInputStream(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public int read() {
+            int b = bytes[position] & 0xff;
+            position = (position + 1) % bytes.length;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            int count = Math.min(length, bytes.length - position);
+            System.arraycopy(bytes, position, buffer, offset, count);
+            position = (position + count) % bytes.length;
+            return count;
+        }
+    }
+}
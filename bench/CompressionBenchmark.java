@@ -0,0 +1,171 @@
+/**
+ * CompressionBenchmark weighs what ResponseCompressor saves against what it costs, at each compression level.
+ * Bodies of generated JSON, HTML and log text, like the uncompressed responses of internal origins, are sent
+ * through the same GzipChunkedStream the proxy uses, written in 16 KB pieces as a relay would.
+ * For each level it reports the share of bytes saved, the CPU time per MB of input on one thread,
+ * and the heap bytes allocated per response, with the Deflater taken from the pool and, for comparison,
+ * created for every response as GZIPOutputStream does. An unpooled Deflater also takes about 256 KB of
+ * native memory for zlib, which the heap counter does not see.
+ * Run from the repository root; the body size in KB and the number of timed rounds are optional:
+ *   javac -d out src/*.java bench/CompressionBenchmark.java
+ *   java -cp out CompressionBenchmark [bodyKB] [rounds]
+ * */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+public class CompressionBenchmark {
+
+    private static final int[] LEVELS = {1, 3, 6, 9};
+    private static final int WRITE_SIZE = 16 * 1024;
+    private static final int WARMUP_ROUNDS = 3;
+
+    // An origin that always has more to send, so the stream never flushes early.
+    private static final InputStream BUSY_SOURCE = new InputStream() {
+        @Override
+        public int read() {
+            return -1;
+        }
+
+        @Override
+        public int available() {
+            return 1;
+        }
+    };
+
+    private static long sink;
+
+    public static void main(String[] args) throws IOException {
+        int bodyBytes = (args.length > 0 ? Integer.parseInt(args[0]) : 256) * 1024;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        Map<String, byte[]> bodies = new LinkedHashMap<>();
+        bodies.put("json", json(bodyBytes));
+        bodies.put("html", html(bodyBytes));
+        bodies.put("log", log(bodyBytes));
+
+        System.out.printf("%-6s %5s %8s %10s %12s %14s%n", "Body", "Level", "Saved", "CPU ms/MB", "B/op pooled",
+                "B/op unpooled");
+        for (Map.Entry<String, byte[]> body : bodies.entrySet()) {
+            for (int level : LEVELS) {
+                ResponseCompressor compressor = new ResponseCompressor(true, level, 0, "text/", 4);
+                for (int i = 0; i < WARMUP_ROUNDS; i++) {
+                    compressPooled(compressor, body.getValue());
+                    compressUnpooled(level, body.getValue());
+                }
+                long compressedBytes = 0;
+                long cpuStart = cpuNanos();
+                long allocatedStart = allocatedBytes();
+                for (int i = 0; i < rounds; i++) {
+                    compressedBytes += compressPooled(compressor, body.getValue());
+                }
+                long cpu = cpuNanos() - cpuStart;
+                long pooledAllocated = (allocatedBytes() - allocatedStart) / rounds;
+                allocatedStart = allocatedBytes();
+                for (int i = 0; i < rounds; i++) {
+                    sink += compressUnpooled(level, body.getValue());
+                }
+                long unpooledAllocated = (allocatedBytes() - allocatedStart) / rounds;
+
+                double inputMB = (double) body.getValue().length * rounds / (1024 * 1024);
+                double saved = 1 - (double) compressedBytes / ((long) body.getValue().length * rounds);
+                System.out.printf("%-6s %5d %7.1f%% %10.2f %12d %14d%n", body.getKey(), level, saved * 100,
+                        cpu / 1e6 / inputMB, pooledAllocated, unpooledAllocated);
+                sink += compressedBytes;
+            }
+        }
+        System.out.println("(sink " + sink + ")");
+    }
+
+    // Returns the chunked bytes that would go to the client.
+    private static long compressPooled(ResponseCompressor compressor, byte[] body) throws IOException {
+        CountingOutputStream client = new CountingOutputStream();
+        try (ResponseCompressor.GzipChunkedStream gzip = compressor.compress(client, BUSY_SOURCE)) {
+            write(gzip, body);
+            gzip.finish();
+        }
+        return client.count;
+    }
+
+    private static long compressUnpooled(int level, byte[] body) throws IOException {
+        CountingOutputStream client = new CountingOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(client, WRITE_SIZE) {
+            {
+                def.setLevel(level);
+            }
+        }) {
+            write(gzip, body);
+        }
+        return client.count;
+    }
+
+    private static void write(OutputStream output, byte[] body) throws IOException {
+        for (int offset = 0; offset < body.length; offset += WRITE_SIZE) {
+            output.write(body, offset, Math.min(WRITE_SIZE, body.length - offset));
+        }
+    }
+
+    private static byte[] json(int size) {
+        StringBuilder out = new StringBuilder("[");
+        for (int i = 0; out.length() < size; i++) {
+            out.append("{\"id\":").append(i).append(",\"sku\":\"SKU-").append(i * 7919 % 100000)
+                    .append("\",\"name\":\"Item ").append(i % 311).append("\",\"price\":").append(i % 1000 / 10.0)
+                    .append(",\"tags\":[\"").append(i % 2 == 0 ? "new" : "sale").append("\"],\"stock\":")
+                    .append(i * 31 % 500).append("},");
+        }
+        return truncate(out, size);
+    }
+
+    private static byte[] html(int size) {
+        StringBuilder out = new StringBuilder("<!DOCTYPE html><html><head><title>Catalogue</title></head><body><ul>");
+        for (int i = 0; out.length() < size; i++) {
+            out.append("<li class=\"item\"><a href=\"/items/").append(i).append("\">Item ").append(i % 311)
+                    .append("</a> <span class=\"price\">").append(i % 1000 / 10.0).append("</span></li>\n");
+        }
+        return truncate(out, size);
+    }
+
+    private static byte[] log(int size) {
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; out.length() < size; i++) {
+            out.append("2024-05-0").append(i % 9 + 1).append("T12:").append(i % 60).append(":").append(i * 7 % 60)
+                    .append("Z INFO request id=").append(Long.toHexString(i * 0x9E3779B97F4A7C15L))
+                    .append(" path=/api/v1/items/").append(i % 4096).append(" status=200 ms=").append(i % 250)
+                    .append('\n');
+        }
+        return truncate(out, size);
+    }
+
+    private static byte[] truncate(StringBuilder out, int size) {
+        out.setLength(size);
+        return out.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static long cpuNanos() {
+        return ManagementFactory.getThreadMXBean().getCurrentThreadCpuTime();
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getCurrentThreadAllocatedBytes();
+    }
+
+    private static final class CountingOutputStream extends OutputStream {
+
+        private long count = 0;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            count += length;
+        }
+    }
+}
@@ -0,0 +1,365 @@
+/**
+ * HTTP2Benchmark compares loading a page of many small resources over HTTP/1.1 and over one HTTP/2 connection.
+ * It starts MainServer with bench/LoadTestConfig and a stub origin on port 80 that answers every request with
+ * RESPONSE_BYTES after a fixed delay, standing in for a real server's think time. Each page is a batch of
+ * parallel GETs. Over HTTP/1.1 they share a handful of keep-alive connections, as a browser would, each carrying
+ * one request at a time; over HTTP/2 they are all sent at once as streams of one prior-knowledge h2c connection.
+ * The client is minimal but real: it speaks HPACK through the proxy's own HPACK class and keeps both flow control
+ * windows open. Reported are page load percentiles and how many client connections the proxy had to accept.
+ * The proxy only forwards HTTP to port 80, so this needs permission to bind it. Run from the repository root:
+ *   javac -d out src/*.java bench/HTTP2Benchmark.java
+ *   java -cp out:bench HTTP2Benchmark [requestsPerPage] [http1Connections] [pages] [originDelayMillis]
+ * */
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntSupplier;
+
+public class HTTP2Benchmark {
+
+    private static final String ORIGIN_HOST = "origin.test";
+    private static final int RESPONSE_BYTES = 2048;
+    private static final int WARMUP_PAGES = 20;
+
+    public static void main(String[] args) throws Exception {
+        int requestsPerPage = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int http1Connections = args.length > 1 ? Integer.parseInt(args[1]) : 6;
+        int pages = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        int originDelayMillis = args.length > 3 ? Integer.parseInt(args[3]) : 2;
+        Logger.initializeLogger(Files.createTempFile("http2-benchmark", ".log").toString(), "drop", 8192);
+        ConfigurationManager config = ConfigurationManager.getInstance("LoadTestConfig");
+
+        int proxyPort = freePort();
+        MainServer server = new MainServer(proxyPort, config);
+        server.startServer();
+        if (!startOrigin(originDelayMillis)) {
+            System.out.println("Skipping: the proxy only forwards to port 80, which could not be bound.");
+            server.shutdown();
+            Logger.shutdown();
+            return;
+        }
+
+        System.out.printf(Locale.ROOT, "%d requests per page of %d bytes each, origin delay %d ms, %d pages%n",
+                requestsPerPage, RESPONSE_BYTES, originDelayMillis, pages);
+        Http1Client http1 = new Http1Client(proxyPort, http1Connections);
+        runPages("HTTP/1.1", pages, () -> http1.loadPage(requestsPerPage), http1::connections);
+        http1.close();
+        Http2Client http2 = new Http2Client(proxyPort);
+        runPages("HTTP/2", pages, () -> http2.loadPage(requestsPerPage), () -> 1);
+        http2.close();
+        System.out.println(Metrics.summary());
+        server.shutdown();
+        Logger.shutdown();
+        System.exit(0);
+    }
+
+    private interface Page {
+        void load() throws Exception;
+    }
+
+    private static void runPages(String name, int pages, Page page, IntSupplier connections)
+            throws Exception {
+        for (int i = 0; i < WARMUP_PAGES; i++) {
+            page.load();
+        }
+        Histogram latency = new Histogram(name, "");
+        long start = System.nanoTime();
+        for (int i = 0; i < pages; i++) {
+            long pageStart = System.nanoTime();
+            page.load();
+            latency.recordSince(pageStart);
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        Histogram.Snapshot snapshot = latency.snapshot();
+        System.out.printf(Locale.ROOT, "%-9s %3d client connections %8.1f pages/s  p50=%.3fms p99=%.3fms max=%.3fms%n",
+                name, connections.getAsInt(), pages / elapsed, snapshot.quantile(0.5) / 1e6,
+                snapshot.quantile(0.99) / 1e6, snapshot.quantile(1) / 1e6);
+    }
+
+    // Keep-alive connections that each carry one request at a time, as browsers use HTTP/1.1.
+    private static final class Http1Client {
+
+        private final int proxyPort;
+        private final List<Socket> sockets = new ArrayList<>();
+        private final AtomicInteger opened = new AtomicInteger();
+
+        Http1Client(int proxyPort, int connections) throws IOException {
+            this.proxyPort = proxyPort;
+            for (int i = 0; i < connections; i++) {
+                sockets.add(open());
+            }
+        }
+
+        private Socket open() throws IOException {
+            Socket socket = new Socket(InetAddress.getLoopbackAddress(), proxyPort);
+            socket.setTcpNoDelay(true);
+            opened.incrementAndGet();
+            return socket;
+        }
+
+        int connections() {
+            return opened.get();
+        }
+
+        void loadPage(int requests) throws Exception {
+            AtomicInteger next = new AtomicInteger();
+            List<CompletableFuture<Void>> workers = new ArrayList<>();
+            for (int i = 0; i < sockets.size(); i++) {
+                int index = i;
+                workers.add(CompletableFuture.runAsync(() -> {
+                    int request;
+                    while ((request = next.getAndIncrement()) < requests) {
+                        fetch(index, request);
+                    }
+                }));
+            }
+            CompletableFuture.allOf(workers.toArray(new CompletableFuture<?>[0])).get(30, TimeUnit.SECONDS);
+        }
+
+        private void fetch(int index, int request) {
+            try {
+                Socket socket = sockets.get(index);
+                byte[] head = ("GET http://" + ORIGIN_HOST + "/" + request + " HTTP/1.1\r\nHost: " + ORIGIN_HOST +
+                        "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+                socket.getOutputStream().write(head);
+                socket.getOutputStream().flush();
+                InputStream input = socket.getInputStream();
+                long contentLength = readContentLength(input);
+                if (input.readNBytes((int) contentLength).length != contentLength) {
+                    throw new IOException("Response cut short.");
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("HTTP/1.1 request failed: " + e.getMessage(), e);
+            }
+        }
+
+        void close() throws IOException {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+
+    // Reads a 200 response head one byte at a time and returns its Content-Length.
+    private static long readContentLength(InputStream input) throws IOException {
+        StringBuilder line = new StringBuilder();
+        String statusLine = null;
+        long contentLength = -1;
+        int b;
+        while ((b = input.read()) != -1) {
+            if (b != '\n') {
+                if (b != '\r') {
+                    line.append((char) b);
+                }
+                continue;
+            }
+            if (line.isEmpty()) {
+                if (statusLine == null || !statusLine.contains(" 200 ") || contentLength < 0) {
+                    throw new IOException("Unexpected response: " + statusLine);
+                }
+                return contentLength;
+            }
+            String header = line.toString();
+            if (statusLine == null) {
+                statusLine = header;
+            } else if (header.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+                contentLength = Long.parseLong(header.substring(15).trim());
+            }
+            line.setLength(0);
+        }
+        throw new IOException("Proxy closed mid-response.");
+    }
+
+    /**
+     * One h2c connection with prior knowledge. A reader thread collects each stream's status and body length,
+     * and returns every DATA byte to both windows at once, so flow control never holds the proxy back.
+     * */
+    private static final class Http2Client {
+
+        private final Socket socket;
+        private final OutputStream output;
+        private final DataInputStream input;
+        private final HPACK.Encoder encoder = new HPACK.Encoder();
+        private final HPACK.Decoder decoder = new HPACK.Decoder(HPACK.DEFAULT_TABLE_SIZE, 64 * 1024);
+        private final Map<Integer, Response> responses = new ConcurrentHashMap<>();
+        private int nextStreamId = 1;
+
+        private static final class Response {
+            final CompletableFuture<Response> done = new CompletableFuture<>();
+            String status;
+            long bodyBytes;
+        }
+
+        Http2Client(int proxyPort) throws IOException {
+            socket = new Socket(InetAddress.getLoopbackAddress(), proxyPort);
+            socket.setTcpNoDelay(true);
+            output = socket.getOutputStream();
+            input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            output.write("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            writeFrame(0x4, 0, 0, new byte[0]);
+            Thread.ofPlatform().daemon().start(this::readFrames);
+        }
+
+        void loadPage(int requests) throws Exception {
+            List<Response> page = new ArrayList<>();
+            for (int i = 0; i < requests; i++) {
+                ByteArrayOutputStream block = new ByteArrayOutputStream();
+                encoder.encode(":method", "GET", block);
+                encoder.encode(":scheme", "http", block);
+                encoder.encode(":authority", ORIGIN_HOST, block);
+                encoder.encode(":path", "/" + i, block);
+                Response response = new Response();
+                int streamId = nextStreamId;
+                nextStreamId += 2;
+                responses.put(streamId, response);
+                page.add(response);
+                // END_STREAM and END_HEADERS: a GET has no body.
+                writeFrame(0x1, 0x5, streamId, block.toByteArray());
+            }
+            output.flush();
+            for (Response response : page) {
+                response.done.get(30, TimeUnit.SECONDS);
+                if (!"200".equals(response.status) || response.bodyBytes != RESPONSE_BYTES) {
+                    throw new IOException("Unexpected response: " + response.status + ", " + response.bodyBytes +
+                            " bytes.");
+                }
+            }
+        }
+
+        private void readFrames() {
+            try {
+                byte[] header = new byte[9];
+                while (true) {
+                    input.readFully(header);
+                    int length = ((header[0] & 0xff) << 16) | ((header[1] & 0xff) << 8) | (header[2] & 0xff);
+                    int type = header[3];
+                    int flags = header[4];
+                    int streamId = ((header[5] & 0x7f) << 24) | ((header[6] & 0xff) << 16)
+                            | ((header[7] & 0xff) << 8) | (header[8] & 0xff);
+                    byte[] payload = new byte[length];
+                    input.readFully(payload);
+                    Response response = responses.get(streamId);
+                    if (type == 0x4 && (flags & 0x1) == 0) {
+                        writeFrame(0x4, 0x1, 0, new byte[0]);
+                        output.flush();
+                    } else if (type == 0x1 && response != null) {
+                        for (String[] field : decoder.decode(payload, 0, payload.length)) {
+                            if (field[0].equals(":status")) {
+                                response.status = field[1];
+                            }
+                        }
+                    } else if (type == 0x0 && response != null) {
+                        response.bodyBytes += length;
+                        if (length > 0) {
+                            writeFrame(0x8, 0, 0, intBytes(length));
+                            writeFrame(0x8, 0, streamId, intBytes(length));
+                            output.flush();
+                        }
+                    } else if (type == 0x3 && response != null) {
+                        response.done.completeExceptionally(new IOException("Stream " + streamId + " reset."));
+                    } else if (type == 0x7) {
+                        throw new IOException("GOAWAY from the proxy.");
+                    }
+                    if ((type == 0x0 || type == 0x1) && (flags & 0x1) != 0 && response != null) {
+                        responses.remove(streamId);
+                        response.done.complete(response);
+                    }
+                }
+            } catch (IOException e) {
+                for (Response response : responses.values()) {
+                    response.done.completeExceptionally(e);
+                }
+            }
+        }
+
+        private synchronized void writeFrame(int type, int flags, int streamId, byte[] payload) throws IOException {
+            byte[] frame = new byte[9 + payload.length];
+            frame[0] = (byte) (payload.length >> 16);
+            frame[1] = (byte) (payload.length >> 8);
+            frame[2] = (byte) payload.length;
+            frame[3] = (byte) type;
+            frame[4] = (byte) flags;
+            System.arraycopy(intBytes(streamId), 0, frame, 5, 4);
+            System.arraycopy(payload, 0, frame, 9, payload.length);
+            output.write(frame);
+        }
+
+        void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    private static byte[] intBytes(int value) {
+        return new byte[] {(byte) (value >> 24), (byte) (value >> 16), (byte) (value >> 8), (byte) value};
+    }
+
+    // Answers every request with RESPONSE_BYTES after delayMillis, one thread per connection.
+    private static boolean startOrigin(int delayMillis) {
+        ServerSocket origin;
+        try {
+            origin = new ServerSocket(80, 1024, InetAddress.getLoopbackAddress());
+        } catch (IOException e) {
+            return false;
+        }
+        byte[] response = ("HTTP/1.1 200 OK\r\nContent-Type: application/octet-stream\r\nContent-Length: " +
+                RESPONSE_BYTES + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        byte[] body = new byte[RESPONSE_BYTES];
+        Thread.ofPlatform().daemon().start(() -> {
+            while (true) {
+                try {
+                    Socket socket = origin.accept();
+                    Thread.ofPlatform().daemon().start(() -> serve(socket, response, body, delayMillis));
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        });
+        return true;
+    }
+
+    private static void serve(Socket socket, byte[] response, byte[] body, int delayMillis) {
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            InputStream input = new BufferedInputStream(socket.getInputStream());
+            OutputStream output = socket.getOutputStream();
+            int matched = 0;
+            int b;
+            while ((b = input.read()) != -1) {
+                // Requests have no bodies, so each blank line ends one.
+                matched = (b == '\r' && matched % 2 == 0) || (b == '\n' && matched % 2 == 1) ? matched + 1 : 0;
+                if (matched == 4) {
+                    Thread.sleep(delayMillis);
+                    output.write(response);
+                    output.write(body);
+                    output.flush();
+                    matched = 0;
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            // The proxy has closed the connection.
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
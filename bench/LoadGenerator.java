@@ -0,0 +1,364 @@
+/**
+ * LoadGenerator drives the whole proxy end to end and reports throughput, latency percentiles and allocation.
+ * It starts MainServer with bench/LoadTestConfig, a stub HTTP origin on port 80 and a TLS echo origin,
+ * all in this JVM. Then it runs concurrent keep-alive HTTP clients, each sending one GET after another
+ * and reconnecting when the proxy answers with Connection: close, as nio mode always does,
+ * and concurrent CONNECT tunnels, each doing TLS round trips of ROUND_TRIP_BYTES to the echo origin.
+ * After a warm-up, each workload's latencies are recorded in a Histogram for the measured window.
+ * The proxy's allocation rate is the JVM's allocation minus that of the client and origin threads,
+ * so it only covers platform threads: run with ServerMode thread or nio for it to be meaningful.
+ * The proxy only forwards HTTP to port 80, so without permission to bind it the HTTP clients are skipped,
+ * and without a keystore the tunnels are skipped. Run from the repository root:
+ *   keytool -genkeypair -alias bench -keyalg RSA -dname CN=localhost -storepass changeit -keystore bench.jks
+ *   javac -d out src/*.java bench/LoadGenerator.java
+ *   java -cp out:bench -Djavax.net.ssl.keyStore=bench.jks -Djavax.net.ssl.keyStorePassword=changeit
+ *        -Djavax.net.ssl.trustStore=bench.jks -Djavax.net.ssl.trustStorePassword=changeit
+ *        LoadGenerator [httpClients] [tunnels] [seconds]
+ * */
+
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+public class LoadGenerator {
+
+    private static final String ORIGIN_HOST = "origin.test";
+    private static final int RESPONSE_BYTES = 1024;
+    private static final int ROUND_TRIP_BYTES = 1024;
+    private static final int WARMUP_SECONDS = 3;
+
+    private static final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    // Client and origin threads, whose allocation is not the proxy's.
+    private static final Set<Thread> loadThreads = ConcurrentHashMap.newKeySet();
+    private static final LongAdder finishedLoadAllocation = new LongAdder();
+
+    private static volatile boolean isRunning = true;
+    private static volatile boolean isMeasuring = false;
+
+    private static final Histogram requestLatency = new Histogram("http_request", "");
+    private static final Histogram roundTripLatency = new Histogram("tunnel_round_trip", "");
+    private static final Histogram tunnelSetupLatency = new Histogram("tunnel_setup", "");
+    private static final LongAdder failures = new LongAdder();
+
+    public static void main(String[] args) throws Exception {
+        int httpClients = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int tunnels = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        Logger.initializeLogger(Files.createTempFile("load-generator", ".log").toString(), "drop", 8192);
+        ConfigurationManager config = ConfigurationManager.getInstance("LoadTestConfig");
+
+        int proxyPort = freePort();
+        MainServer server = new MainServer(proxyPort, config);
+        server.startServer();
+
+        boolean hasHttpOrigin = httpClients > 0 && startHttpOrigin();
+        int echoPort = tunnels > 0 ? startEchoOrigin() : -1;
+        for (int i = 0; hasHttpOrigin && i < httpClients; i++) {
+            startLoadThread(() -> httpClient(proxyPort));
+        }
+        for (int i = 0; echoPort > 0 && i < tunnels; i++) {
+            int port = echoPort;
+            startLoadThread(() -> tunnelClient(proxyPort, port));
+        }
+
+        Thread.sleep(WARMUP_SECONDS * 1000L);
+        isMeasuring = true;
+        long start = System.nanoTime();
+        long totalAllocationStart = threads.getTotalThreadAllocatedBytes();
+        long loadAllocationStart = loadAllocation();
+        Thread.sleep(seconds * 1000L);
+        long totalAllocation = threads.getTotalThreadAllocatedBytes() - totalAllocationStart;
+        long loadAllocation = loadAllocation() - loadAllocationStart;
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        isMeasuring = false;
+        isRunning = false;
+
+        Histogram.Snapshot requests = requestLatency.snapshot();
+        Histogram.Snapshot roundTrips = roundTripLatency.snapshot();
+        Histogram.Snapshot setups = tunnelSetupLatency.snapshot();
+        if (hasHttpOrigin) {
+            report(String.format("HTTP (%d clients)", httpClients), requests, elapsed, RESPONSE_BYTES);
+        }
+        if (echoPort > 0) {
+            report(String.format("Tunnel (%d tunnels)", tunnels), roundTrips, elapsed, 2L * ROUND_TRIP_BYTES);
+            report("Tunnel setup", setups, elapsed, 0);
+        }
+        long operations = requests.count() + roundTrips.count() + setups.count();
+        double proxyAllocation = Math.max(0, totalAllocation - loadAllocation);
+        System.out.printf(Locale.ROOT, "Proxy allocation: %.1f MB/s, %.0f B per request or round trip%n",
+                proxyAllocation / (1024 * 1024) / elapsed, operations == 0 ? 0 : proxyAllocation / operations);
+        System.out.println("Failures: " + failures.sum());
+        System.out.println(Metrics.summary());
+        server.shutdown();
+        Logger.shutdown();
+        System.exit(0);
+    }
+
+    private static void report(String name, Histogram.Snapshot latency, double seconds, long bytesPerOperation) {
+        System.out.printf(Locale.ROOT, "%-22s %10.1f op/s %8.1f MB/s  p50=%.3fms p99=%.3fms p999=%.3fms max=%.3fms%n",
+                name, latency.count() / seconds, latency.count() * bytesPerOperation / (1024.0 * 1024) / seconds,
+                latency.quantile(0.5) / 1e6, latency.quantile(0.99) / 1e6, latency.quantile(0.999) / 1e6,
+                latency.quantile(1) / 1e6);
+    }
+
+    // Sends GETs over one keep-alive connection, reconnecting whenever the proxy closes it.
+    private static void httpClient(int proxyPort) {
+        byte[] request = ("GET http://" + ORIGIN_HOST + "/ HTTP/1.1\r\nHost: " + ORIGIN_HOST + "\r\n\r\n")
+                .getBytes(StandardCharsets.ISO_8859_1);
+        byte[] body = new byte[RESPONSE_BYTES];
+        while (isRunning) {
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), proxyPort)) {
+                socket.setTcpNoDelay(true);
+                OutputStream output = socket.getOutputStream();
+                InputStream input = new BufferedInputStream(socket.getInputStream());
+                while (isRunning) {
+                    long sentAt = System.nanoTime();
+                    output.write(request);
+                    output.flush();
+                    Head head = readHead(input);
+                    if (head.contentLength() < 0) {
+                        throw new IOException("Response without Content-Length.");
+                    }
+                    input.readNBytes(body, 0, (int) head.contentLength());
+                    if (isMeasuring) {
+                        requestLatency.recordSince(sentAt);
+                    }
+                    if (head.isClosing()) {
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                if (isRunning) {
+                    failures.increment();
+                }
+            }
+        }
+    }
+
+    // Keeps one tunnel busy with TLS round trips, opening a new one whenever it fails.
+    private static void tunnelClient(int proxyPort, int echoPort) {
+        byte[] payload = new byte[ROUND_TRIP_BYTES];
+        byte[] echo = new byte[ROUND_TRIP_BYTES];
+        while (isRunning) {
+            long openedAt = System.nanoTime();
+            try (Socket socket = openTunnel(proxyPort, echoPort)) {
+                if (isMeasuring) {
+                    tunnelSetupLatency.recordSince(openedAt);
+                }
+                OutputStream output = socket.getOutputStream();
+                InputStream input = socket.getInputStream();
+                while (isRunning) {
+                    long sentAt = System.nanoTime();
+                    output.write(payload);
+                    output.flush();
+                    if (input.readNBytes(echo, 0, echo.length) < echo.length) {
+                        throw new IOException("Echo ended early.");
+                    }
+                    if (isMeasuring) {
+                        roundTripLatency.recordSince(sentAt);
+                    }
+                }
+            } catch (IOException e) {
+                if (isRunning) {
+                    failures.increment();
+                }
+            }
+        }
+    }
+
+    private static Socket openTunnel(int proxyPort, int echoPort) throws IOException {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), proxyPort);
+        socket.setTcpNoDelay(true);
+        OutputStream output = socket.getOutputStream();
+        output.write(("CONNECT " + ORIGIN_HOST + ":" + echoPort + " HTTP/1.1\r\nHost: " + ORIGIN_HOST + ":" +
+                echoPort + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        output.flush();
+        InputStream input = socket.getInputStream();
+        try {
+            readHead(input);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        SSLSocket tlsSocket = (SSLSocket) ((SSLSocketFactory) SSLSocketFactory.getDefault())
+                .createSocket(socket, ORIGIN_HOST, echoPort, true);
+        tlsSocket.startHandshake();
+        return tlsSocket;
+    }
+
+    // contentLength is -1 if the response has none, as for an established tunnel.
+    private record Head(long contentLength, boolean isClosing) {}
+
+    /**
+     * Reads a 200 response head one byte at a time, so nothing past it is consumed.
+     * Returns its Content-Length and whether the proxy will close the connection after it, as in nio mode.
+     * Any other status is an error.
+     * */
+    private static Head readHead(InputStream input) throws IOException {
+        StringBuilder line = new StringBuilder();
+        String statusLine = null;
+        long contentLength = -1;
+        boolean isClosing = false;
+        int b;
+        while ((b = input.read()) != -1) {
+            if (b != '\n') {
+                if (b != '\r') {
+                    line.append((char) b);
+                }
+                continue;
+            }
+            if (line.isEmpty()) {
+                if (statusLine == null || !statusLine.contains(" 200 ")) {
+                    throw new IOException("Unexpected response: " + statusLine);
+                }
+                return new Head(contentLength, isClosing);
+            }
+            String header = line.toString();
+            if (statusLine == null) {
+                statusLine = header;
+            } else if (header.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+                contentLength = Long.parseLong(header.substring(15).trim());
+            } else if (header.regionMatches(true, 0, "Connection:", 0, 11)) {
+                isClosing = header.substring(11).trim().equalsIgnoreCase("close");
+            }
+            line.setLength(0);
+        }
+        throw new IOException("Proxy closed mid-response.");
+    }
+
+    // Answers every request on a connection with the same RESPONSE_BYTES body.
+    private static boolean startHttpOrigin() {
+        ServerSocket origin;
+        try {
+            origin = new ServerSocket(80, 1024, InetAddress.getLoopbackAddress());
+        } catch (IOException e) {
+            System.out.println("Skipping HTTP clients: the proxy only forwards to port 80, which could not be bound.");
+            return false;
+        }
+        byte[] response = ("HTTP/1.1 200 OK\r\nContent-Type: application/octet-stream\r\nContent-Length: " +
+                RESPONSE_BYTES + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        byte[] body = new byte[RESPONSE_BYTES];
+        startLoadThread(() -> {
+            while (true) {
+                try {
+                    Socket socket = origin.accept();
+                    startLoadThread(() -> serveHttp(socket, response, body));
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        });
+        return true;
+    }
+
+    private static void serveHttp(Socket socket, byte[] response, byte[] body) {
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            InputStream input = new BufferedInputStream(socket.getInputStream());
+            OutputStream output = socket.getOutputStream();
+            int matched = 0;
+            int b;
+            while ((b = input.read()) != -1) {
+                // Requests have no bodies, so each blank line ends one.
+                matched = (b == '\r' && matched % 2 == 0) || (b == '\n' && matched % 2 == 1) ? matched + 1 : 0;
+                if (matched == 4) {
+                    output.write(response);
+                    output.write(body);
+                    output.flush();
+                    matched = 0;
+                }
+            }
+        } catch (IOException e) {
+            // The proxy has closed the connection.
+        }
+    }
+
+    private static int startEchoOrigin() {
+        if (System.getProperty("javax.net.ssl.keyStore") == null) {
+            System.out.println("Skipping tunnels: no javax.net.ssl.keyStore for the TLS origin.");
+            return -1;
+        }
+        SSLServerSocket origin;
+        try {
+            origin = (SSLServerSocket) SSLServerSocketFactory.getDefault()
+                    .createServerSocket(0, 1024, InetAddress.getLoopbackAddress());
+        } catch (IOException e) {
+            System.out.println("Skipping tunnels: the TLS origin could not start: " + e.getMessage());
+            return -1;
+        }
+        startLoadThread(() -> {
+            while (true) {
+                try {
+                    Socket socket = origin.accept();
+                    startLoadThread(() -> echo(socket));
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        });
+        return origin.getLocalPort();
+    }
+
+    private static void echo(Socket socket) {
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            InputStream input = socket.getInputStream();
+            OutputStream output = socket.getOutputStream();
+            byte[] buffer = new byte[16 * 1024];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+                output.flush();
+            }
+        } catch (IOException e) {
+            // The client has gone.
+        }
+    }
+
+    // Starts a client or origin thread, whose allocation is then left out of the proxy's.
+    private static void startLoadThread(Runnable task) {
+        Thread thread = Thread.ofPlatform().daemon().unstarted(() -> {
+            try {
+                task.run();
+            } finally {
+                finishedLoadAllocation.add(threads.getCurrentThreadAllocatedBytes());
+                loadThreads.remove(Thread.currentThread());
+            }
+        });
+        loadThreads.add(thread);
+        thread.start();
+    }
+
+    private static long loadAllocation() {
+        long total = finishedLoadAllocation.sum();
+        for (Thread thread : loadThreads) {
+            long allocated = threads.getThreadAllocatedBytes(thread.threadId());
+            if (allocated > 0) {
+                total += allocated;
+            }
+        }
+        return total;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,299 @@
+/**
+ * SocketOptionsBenchmark measures what SocketPolicy's options do for interactive and bulk traffic.
+ * Each variant of the options runs in its own JVM, as the proxy reads them into singletons, with MainServer
+ * started from bench/LoadTestConfig plus the variant's settings and a stub origin on port 80:
+ *   jvm-defaults  Nagle's algorithm and keepalive as the JVM leaves them, and a backlog of 50
+ *   policy        the shipped defaults: no Nagle delay, keepalive, buffers left to the OS
+ *   pinned        every class's buffers pinned to PINNED_KB, so bulk flows are held to them
+ *   adaptive      pinned as above, but flows past BULK_THRESHOLD_KB are promoted to BULK_BUFFER_KB
+ * The small-request workload runs keep-alive connections that each send one GET at a time for a small body,
+ * and reports latency percentiles and requests per second. The bulk workloads download a large body through
+ * plain HTTP and through a CONNECT tunnel, and report MB/s.
+ * The OS caps buffer sizes (net.core.rmem_max and wmem_max on Linux), and on loopback the round trip is so short
+ * that small windows cost little; the bulk numbers say more across a real network.
+ * The proxy only forwards HTTP to port 80, so this needs permission to bind it. Run from the repository root:
+ *   javac -d out src/*.java bench/SocketOptionsBenchmark.java
+ *   java -cp out:bench SocketOptionsBenchmark [connections] [requestsPerConnection] [bulkMB] [variant...]
+ * */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+public class SocketOptionsBenchmark {
+
+    private static final String ORIGIN_HOST = "origin.test";
+    private static final String CONFIG_NAME = "SocketOptionsConfig";
+    private static final int SMALL_BYTES = 512;
+    private static final int PINNED_KB = 32;
+    private static final int BULK_THRESHOLD_KB = 256;
+    private static final int BULK_BUFFER_KB = 4096;
+    private static final int BULK_ROUNDS = 3;
+    private static final int WARMUP_REQUESTS = 50;
+
+    private static final Map<String, Map<String, String>> VARIANTS = new LinkedHashMap<>();
+
+    static {
+        VARIANTS.put("jvm-defaults", Map.of("AcceptBacklog", "50", "ClientNoDelay", "0", "ClientKeepAlive", "0",
+                "OriginNoDelay", "0", "OriginKeepAlive", "0", "TunnelNoDelay", "0", "TunnelKeepAlive", "0"));
+        VARIANTS.put("policy", Map.of());
+        VARIANTS.put("pinned", Map.of("ClientBufferKB", "" + PINNED_KB, "OriginBufferKB", "" + PINNED_KB,
+                "TunnelBufferKB", "" + PINNED_KB, "BulkBufferKB", "0"));
+        VARIANTS.put("adaptive", Map.of("ClientBufferKB", "" + PINNED_KB, "OriginBufferKB", "" + PINNED_KB,
+                "TunnelBufferKB", "" + PINNED_KB, "BulkBufferKB", "" + BULK_BUFFER_KB,
+                "BulkThresholdKB", "" + BULK_THRESHOLD_KB));
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 1 && args[0].equals("--variant")) {
+            runVariant(args[1], Arrays.copyOfRange(args, 2, args.length));
+            return;
+        }
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int requests = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        int bulkMB = args.length > 2 ? Integer.parseInt(args[2]) : 256;
+        List<String> variants = args.length > 3 ? Arrays.asList(args).subList(3, args.length)
+                : new ArrayList<>(VARIANTS.keySet());
+        System.out.printf(Locale.ROOT, "%d connections x %d requests of %d bytes; bulk bodies of %d MB%n",
+                connections, requests, SMALL_BYTES, bulkMB);
+        String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        for (String variant : variants) {
+            if (!VARIANTS.containsKey(variant)) {
+                System.out.println("Unknown variant " + variant + ", expected one of " + VARIANTS.keySet());
+                continue;
+            }
+            // The config is looked up on the classpath, so each variant's goes in a directory ahead of the rest.
+            Path configDirectory = writeConfig(VARIANTS.get(variant));
+            Process process = new ProcessBuilder(java, "-cp",
+                    configDirectory + File.pathSeparator + System.getProperty("java.class.path"),
+                    SocketOptionsBenchmark.class.getName(), "--variant", variant, "" + connections, "" + requests,
+                    "" + bulkMB).inheritIO().start();
+            if (process.waitFor() != 0) {
+                System.out.println(variant + ": failed");
+            }
+            Files.delete(configDirectory.resolve(CONFIG_NAME));
+            Files.delete(configDirectory);
+        }
+    }
+
+    private static void runVariant(String variant, String[] args) throws Exception {
+        int connections = Integer.parseInt(args[0]);
+        int requests = Integer.parseInt(args[1]);
+        long bulkBytes = Long.parseLong(args[2]) * 1024 * 1024;
+        Logger.initializeLogger(Files.createTempFile("socket-benchmark", ".log").toString(), "drop", 8192);
+        ConfigurationManager config = ConfigurationManager.getInstance(CONFIG_NAME);
+
+        int proxyPort = freePort();
+        MainServer server = new MainServer(proxyPort, config);
+        server.startServer();
+        if (!startOrigin(bulkBytes)) {
+            System.out.println("Skipping: the proxy only forwards to port 80, which could not be bound.");
+            server.shutdown();
+            Logger.shutdown();
+            System.exit(0);
+        }
+
+        Histogram latency = smallRequests(proxyPort, connections, WARMUP_REQUESTS);
+        long start = System.nanoTime();
+        latency = smallRequests(proxyPort, connections, requests);
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        Histogram.Snapshot snapshot = latency.snapshot();
+        double httpMBps = 0;
+        double tunnelMBps = 0;
+        for (int i = 0; i < BULK_ROUNDS; i++) {
+            httpMBps = Math.max(httpMBps, bulk(proxyPort, false, bulkBytes));
+            tunnelMBps = Math.max(tunnelMBps, bulk(proxyPort, true, bulkBytes));
+        }
+        System.out.printf(Locale.ROOT, "%-13s small: %8.0f req/s p50=%.3fms p99=%.3fms max=%.3fms | "
+                        + "bulk: HTTP %7.1f MB/s tunnel %7.1f MB/s%n", variant,
+                (double) connections * requests / elapsed, snapshot.quantile(0.5) / 1e6,
+                snapshot.quantile(0.99) / 1e6, snapshot.quantile(1) / 1e6, httpMBps, tunnelMBps);
+        System.out.println("              " + SocketPolicy.getInstance(config).stats());
+        server.shutdown();
+        Logger.shutdown();
+        System.exit(0);
+    }
+
+    // LoadTestConfig with the variant's settings, in a directory of its own. Returns the directory.
+    private static Path writeConfig(Map<String, String> overrides) throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (String line : Files.readAllLines(Path.of("bench", "LoadTestConfig"), StandardCharsets.UTF_8)) {
+            String key = line.contains(": ") ? line.substring(0, line.indexOf(": ")) : "";
+            lines.add(overrides.containsKey(key) ? key + ": " + overrides.get(key) : line);
+        }
+        Path directory = Files.createTempDirectory("socket-benchmark");
+        Files.write(directory.resolve(CONFIG_NAME), lines, StandardCharsets.UTF_8);
+        return directory;
+    }
+
+    // Each connection sends its requests one after another, as an interactive client waits on each answer.
+    private static Histogram smallRequests(int proxyPort, int connections, int requests) throws Exception {
+        Histogram latency = new Histogram("small", "");
+        List<CompletableFuture<Void>> clients = new ArrayList<>();
+        for (int i = 0; i < connections; i++) {
+            clients.add(CompletableFuture.runAsync(() -> {
+                try (Socket socket = open(proxyPort)) {
+                    OutputStream output = socket.getOutputStream();
+                    InputStream input = socket.getInputStream();
+                    byte[] request = ("GET http://" + ORIGIN_HOST + "/small HTTP/1.1\r\nHost: " + ORIGIN_HOST
+                            + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+                    for (int r = 0; r < requests; r++) {
+                        long sentAt = System.nanoTime();
+                        output.write(request);
+                        output.flush();
+                        readBody(input, readContentLength(input));
+                        latency.recordSince(sentAt);
+                    }
+                } catch (IOException e) {
+                    throw new IllegalStateException("Small request failed: " + e.getMessage(), e);
+                }
+            }, Thread::startVirtualThread));
+        }
+        CompletableFuture.allOf(clients.toArray(new CompletableFuture<?>[0])).get(5, TimeUnit.MINUTES);
+        return latency;
+    }
+
+    // Downloads the bulk body once, straight through the proxy or through a tunnel, and returns MB/s.
+    private static double bulk(int proxyPort, boolean isTunnel, long bulkBytes) throws IOException {
+        try (Socket socket = open(proxyPort)) {
+            OutputStream output = socket.getOutputStream();
+            InputStream input = socket.getInputStream();
+            String target = "http://" + ORIGIN_HOST + "/bulk";
+            if (isTunnel) {
+                output.write(("CONNECT " + ORIGIN_HOST + ":80 HTTP/1.1\r\nHost: " + ORIGIN_HOST + ":80\r\n\r\n")
+                        .getBytes(StandardCharsets.ISO_8859_1));
+                output.flush();
+                readTunnelEstablished(input);
+                target = "/bulk";
+            }
+            long start = System.nanoTime();
+            output.write(("GET " + target + " HTTP/1.1\r\nHost: " + ORIGIN_HOST + "\r\n\r\n")
+                    .getBytes(StandardCharsets.ISO_8859_1));
+            output.flush();
+            long length = readContentLength(input);
+            if (length != bulkBytes) {
+                throw new IOException("Unexpected bulk length " + length);
+            }
+            readBody(input, length);
+            return length / 1024.0 / 1024.0 / ((System.nanoTime() - start) / 1e9);
+        }
+    }
+
+    private static Socket open(int proxyPort) throws IOException {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), proxyPort);
+        socket.setTcpNoDelay(true);
+        return socket;
+    }
+
+    private static void readBody(InputStream input, long length) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        long remaining = length;
+        while (remaining > 0) {
+            int read = input.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read == -1) {
+                throw new IOException("Response cut short.");
+            }
+            remaining -= read;
+        }
+    }
+
+    private static void readTunnelEstablished(InputStream input) throws IOException {
+        String head = readHead(input);
+        if (!head.startsWith("HTTP/1.1 200")) {
+            throw new IOException("Tunnel refused: " + head);
+        }
+    }
+
+    // Reads a 200 response head and returns its Content-Length.
+    private static long readContentLength(InputStream input) throws IOException {
+        String head = readHead(input);
+        if (!head.contains(" 200 ")) {
+            throw new IOException("Unexpected response: " + head);
+        }
+        for (String line : head.split("\r\n")) {
+            if (line.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+                return Long.parseLong(line.substring(15).trim());
+            }
+        }
+        throw new IOException("No Content-Length: " + head);
+    }
+
+    private static String readHead(InputStream input) throws IOException {
+        StringBuilder head = new StringBuilder();
+        int b;
+        while ((b = input.read()) != -1) {
+            head.append((char) b);
+            if (b == '\n' && head.length() >= 4 && head.lastIndexOf("\r\n\r\n") == head.length() - 4) {
+                return head.toString();
+            }
+        }
+        throw new IOException("Proxy closed mid-response.");
+    }
+
+    /**
+     * A keep-alive origin that answers /bulk with bulkBytes and anything else with SMALL_BYTES.
+     * Like most servers it turns Nagle's algorithm off, so any delay measured is the proxy's.
+     * */
+    private static boolean startOrigin(long bulkBytes) {
+        ServerSocket origin;
+        try {
+            origin = new ServerSocket(80, 1024, InetAddress.getLoopbackAddress());
+        } catch (IOException e) {
+            return false;
+        }
+        Thread.ofPlatform().daemon().start(() -> {
+            while (true) {
+                try {
+                    Socket socket = origin.accept();
+                    socket.setTcpNoDelay(true);
+                    Thread.ofPlatform().daemon().start(() -> serve(socket, bulkBytes));
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        });
+        return true;
+    }
+
+    private static void serve(Socket socket, long bulkBytes) {
+        byte[] chunk = new byte[64 * 1024];
+        try (socket) {
+            InputStream input = socket.getInputStream();
+            OutputStream output = socket.getOutputStream();
+            while (true) {
+                String head = readHead(input);
+                boolean isBulk = head.startsWith("GET /bulk") || head.startsWith("GET http://" + ORIGIN_HOST + "/bulk");
+                long length = isBulk ? bulkBytes : SMALL_BYTES;
+                output.write(("HTTP/1.1 200 OK\r\nContent-Type: application/octet-stream\r\nContent-Length: "
+                        + length + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+                for (long remaining = length; remaining > 0; remaining -= chunk.length) {
+                    output.write(chunk, 0, (int) Math.min(chunk.length, remaining));
+                }
+                output.flush();
+            }
+        } catch (IOException e) {
+            // The proxy closed the connection.
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
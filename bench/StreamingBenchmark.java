@@ -0,0 +1,193 @@
+/**
+ * StreamingBenchmark compares relaying large responses through ResponseRelay with the path it replaced,
+ * which read the whole response off the target into a ByteArrayOutputStream before writing any of it.
+ * A local origin sends each body at a set rate, as a real target on the network would, and a client reads it
+ * through a relay running on its own thread, all over loopback sockets.
+ * For each body size and path it reports the time to the client's first byte and to its last,
+ * the peak heap in use above what was in use before the response, sampled every millisecond,
+ * and the bytes the relay thread allocated.
+ * Run from the repository root, with heap to spare for the largest buffered body; the origin's rate in MB/s
+ * and the body sizes in MB are optional:
+ *   javac -d out src/*.java bench/StreamingBenchmark.java
+ *   java -Xmx1g -cp out StreamingBenchmark [originMBps] [sizeMB ...]
+ * */
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class StreamingBenchmark {
+
+    private static final int ORIGIN_WRITE_SIZE = 64 * 1024;
+    private static final int CLIENT_READ_SIZE = 64 * 1024;
+    private static final MemoryMXBean MEMORY = ManagementFactory.getMemoryMXBean();
+
+    private interface Relay {
+        void relay(InputStream targetInput, OutputStream clientOutput) throws IOException;
+    }
+
+    private record Result(double firstByteMillis, double lastByteMillis, long peakHeapBytes, long allocatedBytes) {
+    }
+
+    public static void main(String[] args) throws Exception {
+        double originMBps = args.length > 0 ? Double.parseDouble(args[0]) : 200;
+        int[] sizes = args.length > 1
+                ? Arrays.stream(args, 1, args.length).mapToInt(Integer::parseInt).toArray()
+                : new int[] {1, 16, 128};
+
+        try (ServerSocket origin = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+             ServerSocket clients = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            Thread.ofPlatform().daemon().start(() -> serveOrigin(origin, originMBps));
+            Relay streamed = (targetInput, clientOutput) -> new ResponseRelay(targetInput, clientOutput).relay(false);
+            Relay buffered = StreamingBenchmark::legacyRelay;
+
+            // Warms up both paths, so the JIT has compiled them before anything is timed.
+            for (int i = 0; i < 3; i++) {
+                run(origin, clients, streamed, 1);
+                run(origin, clients, buffered, 1);
+            }
+
+            System.out.printf("Origin sending at %.0f MB/s%n", originMBps);
+            System.out.printf("%-8s %-9s %10s %10s %12s %12s%n", "Body MB", "Path", "TTFB ms", "Total ms",
+                    "Peak heap MB", "Alloc MB");
+            for (int size : sizes) {
+                print(size, "streamed", run(origin, clients, streamed, size));
+                print(size, "buffered", run(origin, clients, buffered, size));
+            }
+        }
+    }
+
+    private static void print(int size, String path, Result result) {
+        System.out.printf(Locale.ROOT, "%-8d %-9s %10.1f %10.1f %12.1f %12.1f%n", size, path,
+                result.firstByteMillis(), result.lastByteMillis(), result.peakHeapBytes() / 1048576.0,
+                result.allocatedBytes() / 1048576.0);
+    }
+
+    // HTTPConnectionHandler's response handling before ResponseRelay, kept as the baseline.
+    private static void legacyRelay(InputStream targetInputStream, OutputStream clientOutput) throws IOException {
+        ByteArrayOutputStream responseStream = new ByteArrayOutputStream();
+        byte[] responseBuffer = new byte[1024];
+        int responseBytesRead;
+        while ((responseBytesRead = targetInputStream.read(responseBuffer)) != -1) {
+            responseStream.write(responseBuffer, 0, responseBytesRead);
+        }
+        clientOutput.write(responseStream.toByteArray());
+        clientOutput.flush();
+    }
+
+    private static Result run(ServerSocket origin, ServerSocket clients, Relay relay, int megabytes) throws Exception {
+        System.gc();
+        long heapBefore = MEMORY.getHeapMemoryUsage().getUsed();
+        AtomicLong peakHeap = new AtomicLong(heapBefore);
+        AtomicLong allocated = new AtomicLong();
+        long requestedAt = System.nanoTime();
+
+        try (Socket client = new Socket(clients.getInetAddress(), clients.getLocalPort());
+             Socket proxySide = clients.accept()) {
+            Thread relayThread = Thread.ofPlatform().start(() -> {
+                long allocatedBefore = allocatedBytes();
+                try (Socket target = new Socket(origin.getInetAddress(), origin.getLocalPort())) {
+                    OutputStream targetOutput = target.getOutputStream();
+                    targetOutput.write(("GET /" + megabytes + " HTTP/1.1\r\nHost: origin\r\n\r\n")
+                            .getBytes(StandardCharsets.ISO_8859_1));
+                    targetOutput.flush();
+                    relay.relay(target.getInputStream(), proxySide.getOutputStream());
+                    proxySide.shutdownOutput();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                allocated.set(allocatedBytes() - allocatedBefore);
+            });
+            Thread sampler = Thread.ofPlatform().daemon().start(() -> {
+                while (relayThread.isAlive()) {
+                    peakHeap.accumulateAndGet(MEMORY.getHeapMemoryUsage().getUsed(), Math::max);
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            });
+
+            InputStream input = client.getInputStream();
+            byte[] buffer = new byte[CLIENT_READ_SIZE];
+            long firstByteAt = 0;
+            long received = 0;
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                if (received == 0) {
+                    firstByteAt = System.nanoTime();
+                }
+                received += read;
+            }
+            long lastByteAt = System.nanoTime();
+            relayThread.join();
+            sampler.interrupt();
+            sampler.join();
+            if (received < (long) megabytes * 1024 * 1024) {
+                throw new IOException("Client received only " + received + " bytes.");
+            }
+            return new Result((firstByteAt - requestedAt) / 1e6, (lastByteAt - requestedAt) / 1e6,
+                    peakHeap.get() - heapBefore, allocated.get());
+        }
+    }
+
+    // Answers each request for /<megabytes> with a body of that size, paced to megabytesPerSecond, then closes.
+    private static void serveOrigin(ServerSocket origin, double megabytesPerSecond) {
+        byte[] chunk = new byte[ORIGIN_WRITE_SIZE];
+        Arrays.fill(chunk, (byte) 'x');
+        while (!origin.isClosed()) {
+            try (Socket socket = origin.accept()) {
+                long length = (long) readRequestedMegabytes(socket.getInputStream()) * 1024 * 1024;
+                OutputStream output = socket.getOutputStream();
+                output.write(("HTTP/1.1 200 OK\r\nContent-Type: application/octet-stream\r\nContent-Length: "
+                        + length + "\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+                long start = System.nanoTime();
+                long sent = 0;
+                while (sent < length) {
+                    int count = (int) Math.min(chunk.length, length - sent);
+                    output.write(chunk, 0, count);
+                    sent += count;
+                    long due = start + (long) (sent / (megabytesPerSecond * 1024 * 1024) * TimeUnit.SECONDS.toNanos(1));
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+                }
+                output.flush();
+            } catch (IOException | InterruptedException e) {
+                if (!origin.isClosed()) {
+                    System.out.println("Origin failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private static int readRequestedMegabytes(InputStream input) throws IOException {
+        StringBuilder head = new StringBuilder();
+        int b;
+        while ((b = input.read()) != -1) {
+            head.append((char) b);
+            if (head.length() >= 4 && head.lastIndexOf("\r\n\r\n") == head.length() - 4) {
+                break;
+            }
+        }
+        String path = head.substring(head.indexOf("/") + 1, head.indexOf(" HTTP/"));
+        return Integer.parseInt(path);
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getCurrentThreadAllocatedBytes();
+    }
+}
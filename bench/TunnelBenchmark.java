@@ -0,0 +1,206 @@
+/**
+ * TunnelBenchmark measures CONNECT tunnel throughput in MB/s and the proxy's CPU time per GB,
+ * then the TLS handshake latency and CPU time per tunnel.
+ * It starts a local TLS echo server and a proxy accept loop running ClientHandler in this JVM,
+ * then runs the same traffic over direct TLS connections and over TLS connections through the tunnel.
+ * Both runs do the same amount of TLS work, so the difference in CPU time is the proxy's own cost.
+ * Run from the repository root, with bench/LoadTestConfig on the classpath so that localhost may be tunnelled to:
+ *   keytool -genkeypair -alias bench -keyalg RSA -dname CN=localhost -storepass changeit -keystore bench.jks
+ *   javac -d out src/*.java bench/TunnelBenchmark.java
+ *   java -cp out:bench -Djavax.net.ssl.keyStore=bench.jks -Djavax.net.ssl.keyStorePassword=changeit
+ *        -Djavax.net.ssl.trustStore=bench.jks -Djavax.net.ssl.trustStorePassword=changeit
+ *        TunnelBenchmark [megabytes] [handshakes]
+ * */
+
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+public class TunnelBenchmark {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        long megabytes = args.length > 0 ? Long.parseLong(args[0]) : 1024;
+        int handshakes = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        Logger.initializeLogger(Files.createTempFile("tunnel-benchmark", ".log").toString());
+        ConfigurationManager config = ConfigurationManager.getInstance("LoadTestConfig");
+
+        int echoPort = startEchoServer();
+        int proxyPort = startProxy(config);
+        long bytes = megabytes * 1024 * 1024;
+
+        // Warm up both paths so the JIT has settled before anything is timed.
+        run("warm-up", () -> openDirect(echoPort), bytes / 8);
+        run("warm-up", () -> openTunnel(proxyPort, echoPort), bytes / 8);
+
+        Result direct = run("direct", () -> openDirect(echoPort), bytes);
+        Result tunnel = run("tunnel", () -> openTunnel(proxyPort, echoPort), bytes);
+        double gigabytes = bytes / (1024.0 * 1024 * 1024);
+        System.out.printf("Proxy overhead: %.3f CPU s/GB%n", (tunnel.cpuNanos - direct.cpuNanos) / 1e9 / gigabytes);
+
+        handshakes("warm-up", () -> openDirect(echoPort), handshakes / 4);
+        handshakes("warm-up", () -> openTunnel(proxyPort, echoPort), handshakes / 4);
+        Result directHandshakes = handshakes("direct", () -> openDirect(echoPort), handshakes);
+        Result tunnelHandshakes = handshakes("tunnel", () -> openTunnel(proxyPort, echoPort), handshakes);
+        System.out.printf("Proxy overhead: %.3f ms and %.3f CPU ms per tunnel%n",
+                (tunnelHandshakes.wallNanos - directHandshakes.wallNanos) / 1e6 / handshakes,
+                (tunnelHandshakes.cpuNanos - directHandshakes.cpuNanos) / 1e6 / handshakes);
+        Logger.shutdown();
+        System.exit(0);
+    }
+
+    private interface Connector {
+        Socket open() throws IOException;
+    }
+
+    private record Result(long wallNanos, long cpuNanos) {}
+
+    // Writes bytes through the connection while reading the echo back, and reports rate and CPU time.
+    private static Result run(String name, Connector connector, long bytes) throws Exception {
+        long cpuStart = processCpuNanos();
+        long wallStart = System.nanoTime();
+        try (Socket socket = connector.open()) {
+            OutputStream output = socket.getOutputStream();
+            Thread writer = new Thread(() -> {
+                byte[] chunk = new byte[CHUNK_SIZE];
+                try {
+                    for (long sent = 0; sent < bytes; sent += chunk.length) {
+                        output.write(chunk, 0, (int) Math.min(chunk.length, bytes - sent));
+                    }
+                    output.flush();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+            writer.start();
+            InputStream input = socket.getInputStream();
+            byte[] buffer = new byte[CHUNK_SIZE];
+            long received = 0;
+            while (received < bytes) {
+                int read = input.read(buffer);
+                if (read == -1) {
+                    throw new IOException("Echo ended after " + received + " bytes.");
+                }
+                received += read;
+            }
+            writer.join();
+        }
+        long wallNanos = System.nanoTime() - wallStart;
+        long cpuNanos = processCpuNanos() - cpuStart;
+        double gigabytes = bytes / (1024.0 * 1024 * 1024);
+        System.out.printf("%-8s %8.1f MB/s %8.3f CPU s/GB%n", name,
+                bytes / (1024.0 * 1024) / (wallNanos / 1e9), cpuNanos / 1e9 / gigabytes);
+        return new Result(wallNanos, cpuNanos);
+    }
+
+    // Opens connections one after another, each completing a TLS handshake and one small echo.
+    private static Result handshakes(String name, Connector connector, int count) throws IOException {
+        long cpuStart = processCpuNanos();
+        long wallStart = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            try (Socket socket = connector.open()) {
+                socket.getOutputStream().write('x');
+                socket.getOutputStream().flush();
+                if (socket.getInputStream().read() != 'x') {
+                    throw new IOException("Echo failed.");
+                }
+            }
+        }
+        long wallNanos = System.nanoTime() - wallStart;
+        long cpuNanos = processCpuNanos() - cpuStart;
+        System.out.printf("%-8s %8.3f ms %8.3f CPU ms per connection%n", name,
+                wallNanos / 1e6 / count, cpuNanos / 1e6 / count);
+        return new Result(wallNanos, cpuNanos);
+    }
+
+    private static Socket openDirect(int echoPort) throws IOException {
+        SSLSocket socket = (SSLSocket) SSLSocketFactory.getDefault().createSocket("localhost", echoPort);
+        socket.startHandshake();
+        return socket;
+    }
+
+    // The tunnel only carries bytes, so the client negotiates TLS with the echo server through it.
+    private static Socket openTunnel(int proxyPort, int echoPort) throws IOException {
+        Socket socket = new Socket("localhost", proxyPort);
+        OutputStream output = socket.getOutputStream();
+        output.write(("CONNECT localhost:" + echoPort + " HTTP/1.1\r\nHost: localhost:" + echoPort + "\r\n\r\n")
+                .getBytes(StandardCharsets.ISO_8859_1));
+        output.flush();
+        InputStream input = socket.getInputStream();
+        int matched = 0;
+        while (matched < 4) {
+            int b = input.read();
+            if (b == -1) {
+                throw new IOException("Proxy closed before establishing the tunnel.");
+            }
+            matched = (b == '\r' && matched % 2 == 0) || (b == '\n' && matched % 2 == 1) ? matched + 1 : 0;
+        }
+        SSLSocket tlsSocket = (SSLSocket) ((SSLSocketFactory) SSLSocketFactory.getDefault())
+                .createSocket(socket, "localhost", echoPort, true);
+        tlsSocket.startHandshake();
+        return tlsSocket;
+    }
+
+    private static int startEchoServer() throws IOException {
+        SSLServerSocket server = (SSLServerSocket) SSLServerSocketFactory.getDefault().createServerSocket(0);
+        Thread.ofPlatform().daemon().start(() -> {
+            while (true) {
+                try {
+                    Socket socket = server.accept();
+                    Thread.ofPlatform().daemon().start(() -> echo(socket));
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        });
+        return server.getLocalPort();
+    }
+
+    private static void echo(Socket socket) {
+        try (socket) {
+            InputStream input = socket.getInputStream();
+            OutputStream output = socket.getOutputStream();
+            byte[] buffer = new byte[CHUNK_SIZE];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+                output.flush();
+            }
+        } catch (IOException e) {
+            // The client has gone.
+        }
+    }
+
+    private static int startProxy(ConfigurationManager config) throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress("localhost", 0));
+        ConnectionTracker tracker = new ConnectionTracker();
+        Thread.ofPlatform().daemon().start(() -> {
+            while (true) {
+                try {
+                    Socket socket = server.accept().socket();
+                    MainServer.threadBuilder(config).start(new ClientHandler(socket, config, tracker));
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        });
+        return ((InetSocketAddress) server.getLocalAddress()).getPort();
+    }
+
+    private static long processCpuNanos() {
+        return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean())
+                .getProcessCpuTime();
+    }
+}
@@ -0,0 +1,309 @@
+/**
+ * TunnelCapacityBenchmark finds how many idle CONNECT tunnels the proxy holds open with ServerMode thread,
+ * where each tunnel takes three platform threads, and with ServerMode virtual, where they are virtual threads.
+ * For each mode it starts the proxy in a child JVM with bench/LoadTestConfig, ServerMode changed, then opens
+ * tunnels to a local echo origin one after another, checking each with a one-byte echo.
+ * Every step it prints the child's resident memory, heap in use after a GC, direct buffer memory and live
+ * platform threads. It stops at the requested count, or when a tunnel cannot be opened: the child may have run
+ * out of threads, file descriptors or memory. Finally it checks that every tunnel opened still echoes,
+ * and prints each mode's maximum side by side.
+ * Each tunnel also holds two TunnelBufferSize direct buffers, so the child may use directMB of direct memory.
+ * This process holds two sockets per tunnel and the child two, so raise ulimit -n above twice the count.
+ * Resident memory is read from /proc, so it is only reported on Linux.
+ * Run from the repository root; the tunnel count, step, and the child's heap and direct memory in MB are optional:
+ *   javac -d out src/*.java bench/TunnelCapacityBenchmark.java
+ *   java -cp out TunnelCapacityBenchmark [tunnels] [step] [heapMB] [directMB]
+ * */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+public class TunnelCapacityBenchmark {
+
+    private static final String[] MODES = {"thread", "virtual"};
+    private static final String CONFIG_NAME = "TunnelCapacityConfig";
+    private static final int TIMEOUT_MILLIS = 10_000;
+
+    // What the child proxy reports about itself.
+    private record Stats(long residentBytes, long heapBytes, long directBytes, int threads) {
+    }
+
+    private record Summary(String mode, int tunnels, int echoing, Stats baseline, Stats peak, String stoppedBy) {
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("proxy")) {
+            runProxy();
+            return;
+        }
+        int maxTunnels = args.length > 0 ? Integer.parseInt(args[0]) : 8000;
+        int step = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int heapMegabytes = args.length > 2 ? Integer.parseInt(args[2]) : 512;
+        int directMegabytes = args.length > 3 ? Integer.parseInt(args[3]) : 2048;
+
+        ServerSocket echoServer = startEchoServer();
+        Path configDir = Files.createTempDirectory("tunnel-capacity");
+        List<String> baseConfig = Files.readAllLines(Path.of("bench", "LoadTestConfig"));
+        List<Summary> summaries = new ArrayList<>();
+        System.out.printf("%-8s %8s %10s %9s %10s %8s %12s%n", "Mode", "Tunnels", "RSS MB", "Heap MB", "Direct MB",
+                "Threads", "ms/tunnel");
+        for (String mode : MODES) {
+            List<String> config = new ArrayList<>();
+            for (String line : baseConfig) {
+                config.add(line.startsWith("ServerMode:") ? "ServerMode: " + mode : line);
+            }
+            Files.write(configDir.resolve(CONFIG_NAME), config);
+            summaries.add(measure(mode, configDir, heapMegabytes, directMegabytes, echoServer.getLocalPort(), maxTunnels, step));
+        }
+        echoServer.close();
+
+        System.out.println();
+        System.out.printf("%-8s %8s %8s %10s %14s %8s  %s%n", "Mode", "Opened", "Echoing", "RSS MB",
+                "RSS KB/tunnel", "Threads", "Stopped by");
+        for (Summary summary : summaries) {
+            Stats peak = summary.peak();
+            double perTunnel = summary.tunnels() == 0 ? 0
+                    : (peak.residentBytes() - summary.baseline().residentBytes()) / 1024.0 / summary.tunnels();
+            System.out.printf(Locale.ROOT, "%-8s %8d %8d %10.1f %14.1f %8d  %s%n", summary.mode(), summary.tunnels(),
+                    summary.echoing(), peak.residentBytes() / 1048576.0, perTunnel, peak.threads(),
+                    summary.stoppedBy());
+        }
+        System.exit(0);
+    }
+
+    private static Summary measure(String mode, Path configDir, int heapMegabytes, int directMegabytes, int echoPort,
+                                   int maxTunnels, int step) throws Exception {
+        String java = ProcessHandle.current().info().command().orElse("java");
+        Process child = new ProcessBuilder(java, "-Xmx" + heapMegabytes + "m",
+                "-XX:MaxDirectMemorySize=" + directMegabytes + "m",
+                "-cp", System.getProperty("java.class.path") + File.pathSeparator + configDir,
+                "TunnelCapacityBenchmark", "proxy")
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        BufferedReader childOutput = new BufferedReader(
+                new InputStreamReader(child.getInputStream(), StandardCharsets.UTF_8));
+        PrintWriter childInput = new PrintWriter(child.getOutputStream(), true, StandardCharsets.UTF_8);
+        int proxyPort = Integer.parseInt(reply(childOutput, "port ")[1]);
+
+        List<Socket> tunnels = new ArrayList<>();
+        Stats baseline = stats(childInput, childOutput);
+        Stats peak = baseline;
+        print(mode, 0, baseline, 0);
+        String stoppedBy = "reached " + maxTunnels;
+        long stepStart = System.nanoTime();
+        try {
+            while (tunnels.size() < maxTunnels) {
+                try {
+                    tunnels.add(openTunnel(proxyPort, echoPort));
+                } catch (IOException e) {
+                    stoppedBy = e.toString();
+                    break;
+                }
+                if (tunnels.size() % step == 0) {
+                    peak = stats(childInput, childOutput);
+                    print(mode, tunnels.size(), peak, (System.nanoTime() - stepStart) / 1e6 / step);
+                    stepStart = System.nanoTime();
+                }
+            }
+            if (tunnels.size() % step != 0) {
+                peak = stats(childInput, childOutput);
+                print(mode, tunnels.size(), peak, Double.NaN);
+            }
+        } catch (IOException e) {
+            stoppedBy = e.getMessage();
+        }
+
+        int echoing = 0;
+        for (Socket tunnel : tunnels) {
+            if (echoes(tunnel)) {
+                echoing++;
+            }
+        }
+        for (Socket tunnel : tunnels) {
+            tunnel.close();
+        }
+        childInput.println("exit");
+        if (!child.waitFor(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+            child.destroyForcibly();
+        }
+        return new Summary(mode, tunnels.size(), echoing, baseline, peak, stoppedBy);
+    }
+
+    private static void print(String mode, int tunnels, Stats stats, double millisPerTunnel) {
+        System.out.printf(Locale.ROOT, "%-8s %8d %10.1f %9.1f %10.1f %8d %12.3f%n", mode, tunnels,
+                stats.residentBytes() / 1048576.0, stats.heapBytes() / 1048576.0, stats.directBytes() / 1048576.0,
+                stats.threads(), millisPerTunnel);
+    }
+
+    private static Stats stats(PrintWriter childInput, BufferedReader childOutput) throws IOException {
+        childInput.println("stats");
+        String[] fields = reply(childOutput, "stats ");
+        return new Stats(Long.parseLong(fields[1]), Long.parseLong(fields[2]), Long.parseLong(fields[3]),
+                Integer.parseInt(fields[4]));
+    }
+
+    // The child's next line starting with prefix, split into fields. Anything else it prints is passed through.
+    private static String[] reply(BufferedReader childOutput, String prefix) throws IOException {
+        String line;
+        while ((line = childOutput.readLine()) != null) {
+            if (line.startsWith(prefix)) {
+                return line.split(" ");
+            }
+            System.out.println(line);
+        }
+        throw new IOException("the proxy exited");
+    }
+
+    private static Socket openTunnel(int proxyPort, int echoPort) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), proxyPort), TIMEOUT_MILLIS);
+            socket.setSoTimeout(TIMEOUT_MILLIS);
+            OutputStream output = socket.getOutputStream();
+            output.write(("CONNECT localhost:" + echoPort + " HTTP/1.1\r\nHost: localhost:" + echoPort + "\r\n\r\n")
+                    .getBytes(StandardCharsets.ISO_8859_1));
+            output.flush();
+            InputStream input = socket.getInputStream();
+            StringBuilder head = new StringBuilder();
+            while (head.length() < 4 || head.lastIndexOf("\r\n\r\n") != head.length() - 4) {
+                int b = input.read();
+                if (b == -1) {
+                    throw new IOException("Proxy closed before establishing the tunnel.");
+                }
+                head.append((char) b);
+            }
+            if (!head.toString().startsWith("HTTP/1.1 200")) {
+                throw new IOException("Proxy answered " + head.substring(0, head.indexOf("\r\n")));
+            }
+            if (!echoes(socket)) {
+                throw new IOException("Tunnel did not echo.");
+            }
+            return socket;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    private static boolean echoes(Socket socket) {
+        try {
+            socket.getOutputStream().write('x');
+            socket.getOutputStream().flush();
+            return socket.getInputStream().read() == 'x';
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // Echo handlers are virtual threads, so that this process is never the one to run out of threads.
+    private static ServerSocket startEchoServer() throws IOException {
+        ServerSocket server = new ServerSocket(0, 1024, InetAddress.getLoopbackAddress());
+        Thread.ofPlatform().daemon().start(() -> {
+            while (true) {
+                try {
+                    Socket socket = server.accept();
+                    Thread.ofVirtual().start(() -> echo(socket));
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        });
+        return server;
+    }
+
+    private static void echo(Socket socket) {
+        try (socket) {
+            InputStream input = socket.getInputStream();
+            OutputStream output = socket.getOutputStream();
+            byte[] buffer = new byte[64];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+                output.flush();
+            }
+        } catch (IOException e) {
+            // The client has gone.
+        }
+    }
+
+    // The child: a proxy accept loop as MainServer runs it, answering "stats" and "exit" on stdin.
+    private static void runProxy() throws Exception {
+        Logger.initializeLogger(Files.createTempFile("tunnel-capacity", ".log").toString());
+        ConfigurationManager config = ConfigurationManager.getInstance(CONFIG_NAME);
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+        ConnectionTracker tracker = new ConnectionTracker();
+        Thread.ofPlatform().daemon().start(() -> {
+            while (true) {
+                Socket socket;
+                try {
+                    socket = server.accept().socket();
+                } catch (IOException e) {
+                    return;
+                }
+                try {
+                    MainServer.threadBuilder(config).start(new ClientHandler(socket, config, tracker));
+                } catch (OutOfMemoryError e) {
+                    // Out of threads: refuse this client, as the accept loop would otherwise die with it.
+                    System.err.println("proxy: " + e.getMessage());
+                    try {
+                        socket.close();
+                    } catch (IOException ignored) {
+                        // Closing anyway.
+                    }
+                }
+            }
+        });
+        System.out.println("port " + ((InetSocketAddress) server.getLocalAddress()).getPort());
+
+        BufferedReader commands = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        String command;
+        while ((command = commands.readLine()) != null && !command.equals("exit")) {
+            if (command.equals("stats")) {
+                System.gc();
+                long direct = 0;
+                for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+                    if (pool.getName().equals("direct")) {
+                        direct = pool.getMemoryUsed();
+                    }
+                }
+                System.out.println("stats " + residentBytes() + " "
+                        + ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed() + " " + direct + " "
+                        + ManagementFactory.getThreadMXBean().getThreadCount());
+            }
+        }
+        System.exit(0);
+    }
+
+    private static long residentBytes() {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                }
+            }
+        } catch (IOException e) {
+            // Not Linux.
+        }
+        return 0;
+    }
+}
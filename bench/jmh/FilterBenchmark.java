@@ -0,0 +1,64 @@
+/**
+ * FilterBenchmark times DestinationFilter checks of host names and addresses, allowed and denied.
+ * Every request makes them, so they run on four threads at once.
+ * */
+
+package jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(2)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+public class FilterBenchmark {
+
+    private LongSupplier publicHost;
+    private LongSupplier deniedDomain;
+    private LongSupplier publicAddress;
+    private LongSupplier privateAddress;
+
+    @Setup
+    public void setup() {
+        publicHost = Workloads.get("filter.publicHost");
+        deniedDomain = Workloads.get("filter.deniedDomain");
+        publicAddress = Workloads.get("filter.publicAddress");
+        privateAddress = Workloads.get("filter.privateAddress");
+    }
+
+    @Benchmark
+    public long publicHost() {
+        return publicHost.getAsLong();
+    }
+
+    @Benchmark
+    public long deniedDomain() {
+        return deniedDomain.getAsLong();
+    }
+
+    @Benchmark
+    public long publicAddress() {
+        return publicAddress.getAsLong();
+    }
+
+    @Benchmark
+    public long privateAddress() {
+        return privateAddress.getAsLong();
+    }
+}
@@ -0,0 +1,49 @@
+/**
+ * HPACKBenchmark times decoding an HTTP/2 request header block and encoding a typical response's headers.
+ * */
+
+package jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(2)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(1)
+public class HPACKBenchmark {
+
+    private LongSupplier decodeRequest;
+    private LongSupplier encodeResponse;
+
+    @Setup
+    public void setup() {
+        decodeRequest = Workloads.get("hpack.decodeRequest");
+        encodeResponse = Workloads.get("hpack.encodeResponse");
+    }
+
+    @Benchmark
+    public long decodeRequest() {
+        return decodeRequest.getAsLong();
+    }
+
+    @Benchmark
+    public long encodeResponse() {
+        return encodeResponse.getAsLong();
+    }
+}
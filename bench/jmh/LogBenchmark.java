@@ -0,0 +1,121 @@
+/**
+ * LogBenchmark measures how many Logger.logInfo calls per millisecond 1, 8 and 64 producer threads get through
+ * under each LogOverflowPolicy, with the default LogBufferSize of 8192.
+ * Alongside the throughput it reports how many entries the logger dropped, in total over the measured iterations:
+ * none under block, which makes producers wait for the flusher instead, and any that found the ring full
+ * (drop) or that were sampled away once the ring was three quarters full (sample).
+ * */
+
+package jmh;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Control;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(2)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class LogBenchmark {
+
+    @Param({"block", "drop", "sample"})
+    public String policy;
+
+    private LongSupplier info;
+    private LongSupplier droppedCount;
+
+    @Setup
+    public void setup() {
+        Workloads.startLogger(policy, 8192);
+        info = Workloads.get("log.info");
+        droppedCount = Workloads.get("log.droppedCount");
+    }
+
+    @TearDown
+    public void tearDown() {
+        Workloads.stopLogger();
+    }
+
+    /**
+     * The logger counts drops globally, so the first thread snapshots the count as it sees measurement start and
+     * stop, and reports the difference; the others report none, and JMH sums them.
+     * */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Dropped {
+
+        public long dropped;
+
+        private LongSupplier droppedCount;
+        private boolean isReporter;
+        private long droppedBefore;
+        private long droppedAfter;
+
+        @Setup(Level.Iteration)
+        public void start(LogBenchmark benchmark, ThreadParams threads) {
+            droppedCount = benchmark.droppedCount;
+            isReporter = threads.getThreadIndex() == 0;
+            droppedBefore = -1;
+            droppedAfter = -1;
+        }
+
+        void observe(Control control) {
+            if (isReporter) {
+                if (droppedBefore < 0 && control.startMeasurement) {
+                    droppedBefore = droppedCount.getAsLong();
+                }
+                if (droppedAfter < 0 && control.stopMeasurement) {
+                    droppedAfter = droppedCount.getAsLong();
+                }
+            }
+        }
+
+        @TearDown(Level.Iteration)
+        public void finish() {
+            if (droppedAfter < 0) {
+                droppedAfter = droppedCount.getAsLong();
+            }
+            dropped = isReporter && droppedBefore >= 0 ? droppedAfter - droppedBefore : 0;
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public long info1(Dropped dropped, Control control) {
+        dropped.observe(control);
+        return info.getAsLong();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public long info8(Dropped dropped, Control control) {
+        dropped.observe(control);
+        return info.getAsLong();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public long info64(Dropped dropped, Control control) {
+        dropped.observe(control);
+        return info.getAsLong();
+    }
+}
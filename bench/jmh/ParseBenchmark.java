@@ -0,0 +1,65 @@
+/**
+ * ParseBenchmark times parsing a browser's request head, on its own and read off a keep-alive connection
+ * that pipelines the same request forever. It also compares reading each request and finding its target host
+ * and port with HTTPRequestParser against the readFullRequest and String.split path that it replaced.
+ * */
+
+package jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(2)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(1)
+public class ParseBenchmark {
+
+    private LongSupplier requestHead;
+    private LongSupplier keepAliveReader;
+    private LongSupplier requestTarget;
+    private LongSupplier legacyReadFullRequest;
+
+    @Setup
+    public void setup() {
+        requestHead = Workloads.get("parse.requestHead");
+        keepAliveReader = Workloads.get("parse.keepAliveReader");
+        requestTarget = Workloads.get("parse.requestTarget");
+        legacyReadFullRequest = Workloads.get("parse.legacyReadFullRequest");
+    }
+
+    @Benchmark
+    public long requestHead() {
+        return requestHead.getAsLong();
+    }
+
+    @Benchmark
+    public long keepAliveReader() {
+        return keepAliveReader.getAsLong();
+    }
+
+    @Benchmark
+    public long requestTarget() {
+        return requestTarget.getAsLong();
+    }
+
+    @Benchmark
+    public long legacyReadFullRequest() {
+        return legacyReadFullRequest.getAsLong();
+    }
+}
@@ -0,0 +1,50 @@
+/**
+ * RewriteBenchmark compares the HeaderRewriter pipeline, which rewrites a parsed head into a buffer,
+ * with the String-based concealUserIP it replaced.
+ * */
+
+package jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(2)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(1)
+public class RewriteBenchmark {
+
+    private LongSupplier legacyConcealUserIP;
+    private LongSupplier pipeline;
+
+    @Setup
+    public void setup() {
+        legacyConcealUserIP = Workloads.get("rewrite.legacyConcealUserIP");
+        pipeline = Workloads.get("rewrite.pipeline");
+    }
+
+    @Benchmark
+    public long legacyConcealUserIP() {
+        return legacyConcealUserIP.getAsLong();
+    }
+
+    @Benchmark
+    public long pipeline() {
+        return pipeline.getAsLong();
+    }
+}
@@ -0,0 +1,40 @@
+/**
+ * Workloads hands the JMH benchmarks their operations from BenchWorkloads.
+ * BenchWorkloads is in the default package with the proxy's classes, so it is reached by reflection, once per setup.
+ * */
+
+package jmh;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.function.LongSupplier;
+
+final class Workloads {
+
+    private Workloads() {
+    }
+
+    static LongSupplier get(String name) {
+        return (LongSupplier) call("workload", new Class<?>[] {String.class}, name);
+    }
+
+    static void startLogger(String overflowPolicy, int capacity) {
+        call("startLogger", new Class<?>[] {String.class, int.class}, overflowPolicy, capacity);
+    }
+
+    static void stopLogger() {
+        call("stopLogger", new Class<?>[0]);
+    }
+
+    private static Object call(String method, Class<?>[] types, Object... args) {
+        try {
+            return Class.forName("BenchWorkloads").getMethod(method, types).invoke(null, args);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof RuntimeException runtime) {
+                throw runtime;
+            }
+            throw new IllegalStateException(e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("BenchWorkloads." + method + " is not on the classpath", e);
+        }
+    }
+}
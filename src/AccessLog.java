@@ -0,0 +1,330 @@
+/**
+ * AccessLog keeps one fixed-layout binary record per request and per tunnel (AccessLog: 1 in ServerConfig):
+ * when it started, the client, the method and target host, the status, the bytes each way, and how long parsing
+ * and the whole exchange took. AccessLogQuery reads the records back.
+ * Records go into segment files in AccessLogDir, each AccessLogSegmentMB in size and mapped into memory.
+ * Writers take no lock: each reserves the next record in the mapped segment with one atomic add and
+ * fills it in place, writing its first byte last so a reader can tell a finished record from one cut short.
+ * A full segment is replaced by a new one under a lock, and only the newest AccessLogSegments are kept.
+ * A segment starts with a header of the same size as a record:
+ *   0 magic "PXAL", 4 version, 6 record size, 8 creation time in epoch milliseconds.
+ * Each record is RECORD_SIZE bytes, big-endian:
+ *   0 1 once written, 1 kind, 2 method, 3 host length, 4 status, 8 start in epoch milliseconds,
+ *   16 client address (IPv4 as IPv4-mapped IPv6), 32 bytes from the client, 40 bytes to the client,
+ *   48 duration in microseconds, 56 parse time in microseconds, 64 target host in ASCII, truncated to 64 bytes.
+ * Meter counts a connection's bytes and picks out each response's status as it is written.
+ * */
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+public class AccessLog {
+
+    public enum Kind {HTTP1, HTTP2, TUNNEL}
+
+    static final int RECORD_SIZE = 128;
+    static final int MAGIC = 0x5058414c;
+    static final short VERSION = 1;
+    static final int HOST_OFFSET = 64;
+    static final int MAX_HOST = RECORD_SIZE - HOST_OFFSET;
+    // Method codes; anything else is recorded as 0.
+    static final String[] METHODS = {"OTHER", "GET", "HEAD", "POST", "PUT", "DELETE", "PATCH", "OPTIONS",
+            "CONNECT", "TRACE"};
+    static final String SEGMENT_GLOB = "access-*.seg";
+
+    private static volatile AccessLog instance;
+
+    private final boolean isEnabled;
+    private final Path directory;
+    private final int segmentBytes;
+    private final int maxSegments;
+    private volatile Segment current;
+    private long lastCreatedAt = 0;
+
+    private final LongAdder records = new LongAdder();
+    private final LongAdder segmentsOpened = new LongAdder();
+
+    private record Segment(Path path, MappedByteBuffer buffer, AtomicInteger position) {}
+
+    private AccessLog(boolean isEnabled, Path directory, int segmentBytes, int maxSegments) {
+        this.isEnabled = isEnabled;
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = maxSegments;
+    }
+
+    public static AccessLog getInstance(ConfigurationManager config) {
+        AccessLog accessLog = instance;
+        return accessLog != null ? accessLog : createInstance(config);
+    }
+
+    private static synchronized AccessLog createInstance(ConfigurationManager config) {
+        if (instance == null) {
+            boolean isEnabled = "1".equals(config.getConfig("AccessLog"));
+            String directory = config.getConfig("AccessLogDir");
+            // Whole records only, and a mapping can be at most 2GB.
+            int segmentMB = Math.min(1024, Math.max(1, config.getIntConfig("AccessLogSegmentMB", 64)));
+            AccessLog accessLog = new AccessLog(isEnabled, Path.of(directory != null ? directory : "access-log"),
+                    segmentMB * 1024 * 1024, Math.max(1, config.getIntConfig("AccessLogSegments", 16)));
+            if (isEnabled) {
+                try {
+                    Files.createDirectories(accessLog.directory);
+                    accessLog.current = accessLog.openSegment();
+                } catch (IOException e) {
+                    System.out.println("Access log could not be opened. Continuing without it.");
+                    Logger.logError("Access log could not be opened: " + e.getMessage());
+                }
+            }
+            Metrics.register("proxy_access_log_records_total", "counter", "Records written to the access log.",
+                    accessLog.records::sum);
+            instance = accessLog;
+        }
+        return instance;
+    }
+
+    public boolean isEnabled() {
+        return current != null;
+    }
+
+    // The 16-byte form of a client address that records carry, worked out once per connection.
+    public static byte[] addressBytes(InetAddress address) {
+        byte[] bytes = address.getAddress();
+        if (address instanceof Inet4Address) {
+            byte[] mapped = new byte[16];
+            mapped[10] = (byte) 0xff;
+            mapped[11] = (byte) 0xff;
+            System.arraycopy(bytes, 0, mapped, 12, 4);
+            return mapped;
+        }
+        return bytes;
+    }
+
+    // The host of an absolute-form request target, or the target itself when it has no scheme.
+    public static String hostOf(String target) {
+        int start = target.indexOf("://");
+        start = start >= 0 ? start + 3 : 0;
+        int end = start;
+        if (end < target.length() && target.charAt(end) == '[') {
+            end = target.indexOf(']', end) + 1;
+            if (end == 0) {
+                end = target.length();
+            }
+        }
+        while (end < target.length() && "/:?#".indexOf(target.charAt(end)) < 0) {
+            end++;
+        }
+        return target.substring(start, end);
+    }
+
+    /**
+     * Writes one record. startedAt is the System.nanoTime() at which the exchange began, and parseNanos is how
+     * long its request took to parse, 0 for tunnels. Does nothing when the log is off.
+     * */
+    public void record(Kind kind, byte[] client, String method, String host, int status, long bytesIn,
+                       long bytesOut, long startedAt, long parseNanos) {
+        Segment segment = current;
+        if (segment == null) {
+            return;
+        }
+        long durationNanos = System.nanoTime() - startedAt;
+        int offset;
+        while ((offset = segment.position.getAndAdd(RECORD_SIZE)) > segmentBytes - RECORD_SIZE) {
+            segment = rotate(segment);
+            if (segment == null) {
+                return;
+            }
+        }
+        MappedByteBuffer buffer = segment.buffer;
+        buffer.put(offset + 1, (byte) kind.ordinal());
+        buffer.put(offset + 2, (byte) methodCode(method));
+        int hostLength = host != null ? Math.min(host.length(), MAX_HOST) : 0;
+        buffer.put(offset + 3, (byte) hostLength);
+        buffer.putShort(offset + 4, (short) status);
+        buffer.putLong(offset + 8, System.currentTimeMillis() - durationNanos / 1_000_000);
+        buffer.put(offset + 16, client);
+        buffer.putLong(offset + 32, bytesIn);
+        buffer.putLong(offset + 40, bytesOut);
+        buffer.putLong(offset + 48, durationNanos / 1000);
+        buffer.putInt(offset + 56, (int) Math.min(Integer.MAX_VALUE, parseNanos / 1000));
+        for (int i = 0; i < hostLength; i++) {
+            char c = host.charAt(i);
+            buffer.put(offset + HOST_OFFSET + i, (byte) (c < 0x80 ? c : '?'));
+        }
+        buffer.put(offset, (byte) 1);
+        records.increment();
+    }
+
+    // Asks the OS to write the current segment out, so records survive the machine going down.
+    public void force() {
+        Segment segment = current;
+        if (segment != null) {
+            segment.buffer.force();
+        }
+    }
+
+    public String stats() {
+        Segment segment = current;
+        return String.format("Access log: records=%d segments=%d current=%s", records.sum(), segmentsOpened.sum(),
+                segment != null ? segment.path.getFileName() : "off");
+    }
+
+    static int methodCode(String method) {
+        for (int i = 1; i < METHODS.length; i++) {
+            if (METHODS[i].equals(method)) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    // Replaces a full segment, unless another writer already has. Returns the segment to write to next.
+    private synchronized Segment rotate(Segment full) {
+        if (current != full) {
+            return current;
+        }
+        try {
+            full.buffer.force();
+            current = openSegment();
+            deleteOldSegments();
+        } catch (IOException e) {
+            Logger.logError("Access log segment could not be opened, so the access log is off: " + e.getMessage());
+            current = null;
+        }
+        return current;
+    }
+
+    // Names carry the creation time, which is kept increasing so names sort in the order segments were made.
+    private Segment openSegment() throws IOException {
+        long createdAt = Math.max(System.currentTimeMillis(), lastCreatedAt + 1);
+        lastCreatedAt = createdAt;
+        Path path = directory.resolve(String.format("access-%013d.seg", createdAt));
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        }
+        buffer.putInt(0, MAGIC);
+        buffer.putShort(4, VERSION);
+        buffer.putShort(6, (short) RECORD_SIZE);
+        buffer.putLong(8, createdAt);
+        segmentsOpened.increment();
+        return new Segment(path, buffer, new AtomicInteger(RECORD_SIZE));
+    }
+
+    private void deleteOldSegments() throws IOException {
+        List<Path> segments = segments(directory);
+        for (int i = 0; i < segments.size() - maxSegments; i++) {
+            Files.deleteIfExists(segments.get(i));
+        }
+    }
+
+    // The segment files in a directory, oldest first.
+    static List<Path> segments(Path directory) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_GLOB)) {
+            for (Path path : stream) {
+                segments.add(path);
+            }
+        }
+        segments.sort(null);
+        return segments;
+    }
+
+    /**
+     * Counts one connection's bytes each way through the streams it wraps, and reads the status code from
+     * the start of each response written. begin marks where the next exchange starts.
+     * Used by one thread at a time, like the connection.
+     * */
+    public static final class Meter {
+
+        private long bytesIn = 0;
+        private long bytesOut = 0;
+        private long inAtBegin = 0;
+        private long outAtBegin = 0;
+        private int status = 0;
+
+        public InputStream count(InputStream input) {
+            return new FilterInputStream(input) {
+                @Override
+                public int read() throws IOException {
+                    int b = in.read();
+                    if (b != -1) {
+                        bytesIn++;
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] bytes, int offset, int length) throws IOException {
+                    int read = in.read(bytes, offset, length);
+                    if (read > 0) {
+                        bytesIn += read;
+                    }
+                    return read;
+                }
+            };
+        }
+
+        public OutputStream count(OutputStream output) {
+            return new FilterOutputStream(output) {
+                @Override
+                public void write(int b) throws IOException {
+                    see(new byte[]{(byte) b}, 0, 1);
+                    out.write(b);
+                }
+
+                @Override
+                public void write(byte[] bytes, int offset, int length) throws IOException {
+                    see(bytes, offset, length);
+                    out.write(bytes, offset, length);
+                }
+            };
+        }
+
+        public void begin() {
+            inAtBegin = bytesIn;
+            outAtBegin = bytesOut;
+            status = 0;
+        }
+
+        public long bytesIn() {
+            return bytesIn - inAtBegin;
+        }
+
+        public long bytesOut() {
+            return bytesOut - outAtBegin;
+        }
+
+        // The status of the response written since begin, or 0 if none has been.
+        public int status() {
+            return status;
+        }
+
+        // The status line starts "HTTP/1.1 ", so its code is the response's 10th to 12th bytes.
+        private void see(byte[] bytes, int offset, int length) {
+            long position = bytesOut - outAtBegin;
+            for (int i = 0; i < length && position + i < 12; i++) {
+                if (position + i >= 9) {
+                    int digit = bytes[offset + i] - '0';
+                    status = digit >= 0 && digit <= 9 ? status * 10 + digit : 0;
+                }
+            }
+            bytesOut += length;
+        }
+    }
+}
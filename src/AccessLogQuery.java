@@ -0,0 +1,219 @@
+/**
+ * AccessLogQuery reads the segments AccessLog wrote and summarises a time window, for capacity planning:
+ * the busiest target hosts by requests and by bytes, the bandwidth each client used, the spread of statuses,
+ * and latency percentiles for HTTP/1.1 requests, HTTP/2 streams and tunnels.
+ * It streams over the segments one record at a time, so memory grows with the number of hosts and clients,
+ * not of records. Segments made before the window starts are skipped without being read.
+ * Run it offline, or beside a running proxy, from the directory the proxy was started in:
+ *   java -cp out AccessLogQuery [dir] [--since time] [--until time] [--top n]
+ * A time is epoch milliseconds, an ISO instant such as 2024-05-01T12:00:00Z, or an age such as 90s, 15m, 2h or 1d.
+ * */
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class AccessLogQuery {
+
+    private static final String USAGE = "Usage: AccessLogQuery [dir] [--since time] [--until time] [--top n]";
+
+    // What the window holds for one host or client.
+    private static final class Totals {
+        private long requests = 0;
+        private long bytesIn = 0;
+        private long bytesOut = 0;
+    }
+
+    private final long since;
+    private final long until;
+    private final Map<String, Totals> hosts = new HashMap<>();
+    private final Map<String, Totals> clients = new HashMap<>();
+    private final Histogram[] latencies = new Histogram[AccessLog.Kind.values().length];
+    private final long[] statusClasses = new long[6];
+    private final byte[] address = new byte[16];
+    private final byte[] host = new byte[AccessLog.MAX_HOST];
+    private long records = 0;
+    private long unfinished = 0;
+    private long first = Long.MAX_VALUE;
+    private long last = Long.MIN_VALUE;
+
+    private AccessLogQuery(long since, long until) {
+        this.since = since;
+        this.until = until;
+        for (AccessLog.Kind kind : AccessLog.Kind.values()) {
+            latencies[kind.ordinal()] = new Histogram(kind.name(), "");
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        Path directory = Path.of("access-log");
+        long since = Long.MIN_VALUE;
+        long until = Long.MAX_VALUE;
+        int top = 10;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--since" -> since = parseTime(args[++i]);
+                    case "--until" -> until = parseTime(args[++i]);
+                    case "--top" -> top = Integer.parseInt(args[++i]);
+                    default -> directory = Path.of(args[i]);
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException | DateTimeParseException e) {
+            System.out.println(USAGE);
+            return;
+        }
+
+        AccessLogQuery query = new AccessLogQuery(since, until);
+        List<Path> segments = AccessLog.segments(directory);
+        for (int i = 0; i < segments.size(); i++) {
+            // Records finish before the next segment is made, so one made before the window began holds none of it.
+            if (i + 1 < segments.size() && createdAt(segments.get(i + 1)) < since) {
+                continue;
+            }
+            query.scan(segments.get(i));
+        }
+        query.print(top);
+    }
+
+    // Reads every finished record of one segment.
+    private void scan(Path segment) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.limit() < AccessLog.RECORD_SIZE || buffer.getInt(0) != AccessLog.MAGIC
+                || buffer.getShort(6) != AccessLog.RECORD_SIZE) {
+            System.out.println("Skipping " + segment.getFileName() + ": not an access log segment of this version.");
+            return;
+        }
+        for (int offset = AccessLog.RECORD_SIZE; offset + AccessLog.RECORD_SIZE <= buffer.limit();
+             offset += AccessLog.RECORD_SIZE) {
+            if (buffer.get(offset) != 1) {
+                // Either never reserved, or cut short; a reserved slot left empty counts as unfinished.
+                if (buffer.getLong(offset + 8) != 0) {
+                    unfinished++;
+                }
+                continue;
+            }
+            long startedAt = buffer.getLong(offset + 8);
+            if (startedAt < since || startedAt > until) {
+                continue;
+            }
+            add(buffer, offset, startedAt);
+        }
+    }
+
+    private void add(MappedByteBuffer buffer, int offset, long startedAt) {
+        records++;
+        first = Math.min(first, startedAt);
+        last = Math.max(last, startedAt);
+        int kind = buffer.get(offset + 1);
+        int status = buffer.getShort(offset + 4);
+        long bytesIn = buffer.getLong(offset + 32);
+        long bytesOut = buffer.getLong(offset + 40);
+        long durationMicros = buffer.getLong(offset + 48);
+        int hostLength = buffer.get(offset + 3) & 0xff;
+        buffer.get(offset + AccessLog.HOST_OFFSET, host, 0, hostLength);
+        buffer.get(offset + 16, address);
+
+        statusClasses[status >= 100 && status < 600 ? status / 100 : 0]++;
+        if (kind >= 0 && kind < latencies.length) {
+            latencies[kind].record(durationMicros * 1000);
+        }
+        add(hosts, new String(host, 0, hostLength, StandardCharsets.US_ASCII), bytesIn, bytesOut);
+        add(clients, clientName(address), bytesIn, bytesOut);
+    }
+
+    private static void add(Map<String, Totals> totals, String key, long bytesIn, long bytesOut) {
+        Totals entry = totals.computeIfAbsent(key, name -> new Totals());
+        entry.requests++;
+        entry.bytesIn += bytesIn;
+        entry.bytesOut += bytesOut;
+    }
+
+    private void print(int top) {
+        if (records == 0) {
+            System.out.println("No records in the window." + (unfinished > 0 ? " Unfinished: " + unfinished : ""));
+            return;
+        }
+        // Rates are over the window asked for, or the span of the records where it is open-ended.
+        long from = since != Long.MIN_VALUE ? since : first;
+        long to = until != Long.MAX_VALUE ? Math.min(until, System.currentTimeMillis()) : last;
+        double seconds = Math.max(1, to - from) / 1000.0;
+        System.out.printf("Records: %d from %s to %s (%.1f s). Unfinished: %d%n", records, Instant.ofEpochMilli(first),
+                Instant.ofEpochMilli(last), seconds, unfinished);
+        System.out.printf("Status: 1xx=%d 2xx=%d 3xx=%d 4xx=%d 5xx=%d none=%d%n", statusClasses[1], statusClasses[2],
+                statusClasses[3], statusClasses[4], statusClasses[5], statusClasses[0]);
+
+        System.out.println("Top hosts by requests:");
+        printTop(hosts, top, Comparator.comparingLong((Totals totals) -> totals.requests), seconds);
+        System.out.println("Top hosts by bytes to clients:");
+        printTop(hosts, top, Comparator.comparingLong((Totals totals) -> totals.bytesOut), seconds);
+        System.out.println("Bandwidth per client:");
+        printTop(clients, top, Comparator.comparingLong((Totals totals) -> totals.bytesIn + totals.bytesOut), seconds);
+
+        System.out.println("Latency:");
+        for (Histogram latency : latencies) {
+            Histogram.Snapshot snapshot = latency.snapshot();
+            if (snapshot.count() > 0) {
+                System.out.println("  " + snapshot.summary(latency.name()));
+            }
+        }
+    }
+
+    private static void printTop(Map<String, Totals> totals, int top, Comparator<Totals> order, double seconds) {
+        List<Map.Entry<String, Totals>> entries = new ArrayList<>(totals.entrySet());
+        entries.sort(Map.Entry.<String, Totals>comparingByValue(order).reversed());
+        System.out.printf("  %-40s %10s %12s %12s %10s%n", "", "requests", "KB in", "KB out", "KB/s out");
+        for (Map.Entry<String, Totals> entry : entries.subList(0, Math.min(top, entries.size()))) {
+            Totals value = entry.getValue();
+            System.out.printf("  %-40s %10d %12d %12d %10.1f%n", entry.getKey().isEmpty() ? "-" : entry.getKey(),
+                    value.requests, value.bytesIn / 1024, value.bytesOut / 1024, value.bytesOut / 1024.0 / seconds);
+        }
+    }
+
+    private static String clientName(byte[] address) {
+        try {
+            // IPv4-mapped addresses come back as IPv4.
+            return InetAddress.getByAddress(address).getHostAddress();
+        } catch (UnknownHostException e) {
+            return "?";
+        }
+    }
+
+    // Segment names carry their creation time in epoch milliseconds.
+    private static long createdAt(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring("access-".length(), name.length() - ".seg".length()));
+    }
+
+    private static long parseTime(String time) {
+        if (time.matches("\\d+[smhd]")) {
+            long amount = Long.parseLong(time.substring(0, time.length() - 1));
+            long unit = switch (time.charAt(time.length() - 1)) {
+                case 's' -> 1000L;
+                case 'm' -> 60_000L;
+                case 'h' -> 3_600_000L;
+                default -> 86_400_000L;
+            };
+            return System.currentTimeMillis() - amount * unit;
+        }
+        if (time.matches("\\d+")) {
+            return Long.parseLong(time);
+        }
+        return Instant.parse(time).toEpochMilli();
+    }
+}
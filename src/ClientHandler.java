@@ -2,93 +2,306 @@
  * Clienthandler generates the connections for the client.
  * Calls connection handlers to manage the connections and data output/input
  * Returns errors to the client for malformed or otherwise invalid requests
+ * HTTP connections are persistent, and connections that open with the HTTP/2 preface go to HTTP2Connection.
  * */
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.charset.StandardCharsets;
-import java.util.Set;
 
-public class ClientHandler implements Runnable {
+public class ClientHandler implements Runnable, ConnectionTracker.Tracked {
 
     private final Socket clientSocket;
     private final ConfigurationManager config;
-    private final Set<String> activeConnections;
+    private final ClientLimiter clientLimiter;
+    private final DestinationFilter destinationFilter;
+    private final TrafficShaper trafficShaper;
+    private final AccessLog accessLog;
+    private final SocketPolicy socketPolicy;
+    private final AccessLog.Meter meter = new AccessLog.Meter();
+    private final byte[] clientAddressBytes;
+    private final ConnectionTracker tracker;
+    // A new connection counts as busy until its first request has been served.
+    private volatile ConnectionTracker.Activity activity = ConnectionTracker.Activity.REQUEST;
+    private volatile HTTP2Connection http2Connection;
+    private TrafficShaper.Flow flow;
+    // Serves every HTTP/1.1 request on the connection; HTTP/2 streams each get their own.
+    private HTTPConnectionHandler httpConnectionHandler;
 
-    public ClientHandler(Socket clientSocket, ConfigurationManager config, Set<String> activeConnections) {
+    public ClientHandler(Socket clientSocket, ConfigurationManager config, ConnectionTracker tracker) {
         this.clientSocket = clientSocket;
         this.config = config;
-        this.activeConnections = activeConnections;
+        this.clientLimiter = ClientLimiter.getInstance(config);
+        this.destinationFilter = DestinationFilter.getInstance(config);
+        this.trafficShaper = TrafficShaper.getInstance(config);
+        this.accessLog = AccessLog.getInstance(config);
+        this.socketPolicy = SocketPolicy.getInstance(config);
+        this.clientAddressBytes = accessLog.isEnabled() ? AccessLog.addressBytes(clientSocket.getInetAddress()) : null;
+        this.tracker = tracker;
     }
 
     @Override
     public void run() {
-        try (InputStream input = clientSocket.getInputStream();
-             OutputStream output = clientSocket.getOutputStream()) {
+        tracker.add(this);
+        try {
+            serve();
+        } finally {
+            tracker.remove(this);
+        }
+    }
+
+    private void serve() {
+        String clientAddress = clientSocket.getInetAddress().getHostAddress();
+        try (TrafficShaper.Flow flow = trafficShaper.open(clientAddress);
+             InputStream input = metered(Metrics.countIn(clientSocket.getInputStream()));
+             OutputStream output = metered(TrafficShaper.shape(flow,
+                     Metrics.countOut(clientSocket.getOutputStream())))) {
+            this.flow = flow;
+            ClientRequestReader requestReader = new ClientRequestReader(input,
+                    config.getIntConfig("MaxHeaderSize", 16 * 1024), config.getIntConfig("MaxHeaderCount", 100));
+            int maxRequests = config.getIntConfig("MaxRequestsPerConnection", 100);
+            socketPolicy.options(SocketPolicy.ConnectionClass.CLIENT).apply(clientSocket);
+            int requestCount = 0;
             while (!clientSocket.isClosed()) {
-                String fullRequest = readFullRequest(input);
+                if (requestCount > 0) {
+                    // Set before checking, so a drain starting now either is seen here or sees the connection idle.
+                    activity = ConnectionTracker.Activity.IDLE;
+                    if (tracker.isDraining()) {
+                        return;
+                    }
+                }
+                HTTPRequestParser request;
+                meter.begin();
+                try {
+                    request = requestReader.readRequest();
+                } catch (HTTPRequestParser.ParseException e) {
+                    Metrics.error(Metrics.Error.MALFORMED_REQUEST);
+                    Logger.logError("Malformed request from: " + clientSocket.getInetAddress().getHostAddress() +
+                            ": " + e.getMessage());
+                    sendBadRequestResponse(output, e instanceof HTTPRequestParser.HeadTooLargeException
+                            ? headerTooLargeResponse() : badRequestResponse());
+                    return;
+                }
+                if (request == null) {
+                    return;
+                }
+                activity = ConnectionTracker.Activity.REQUEST;
+                long parseNanos = requestReader.parseNanos();
+                Metrics.PARSE.record(parseNanos);
+                long parsedAt = System.nanoTime();
+                if (request.isMethod("PRI") && request.isVersion("HTTP/2.0")) {
+                    // The HTTP/2 preface, sent by clients that know the proxy speaks it (RFC 9113 section 3.3).
+                    Logger.logInfo("Handling HTTP/2 connection from: " + clientAddress);
+                    http2Connection = new HTTP2Connection(this, clientSocket, config, requestReader.takeOver(), output);
+                    activity = ConnectionTracker.Activity.HTTP2;
+                    if (tracker.isDraining()) {
+                        http2Connection.drain();
+                    }
+                    http2Connection.serve();
+                    return;
+                }
+                String fullRequest = request.headString();
                 Logger.logInfo("Request received: " + fullRequest);
+                if (!admitRequest(output)) {
+                    logAccess(request.isMethod("CONNECT") ? AccessLog.Kind.TUNNEL : AccessLog.Kind.HTTP1, meter,
+                            request, parsedAt - parseNanos, parseNanos);
+                    return;
+                }
 
                 // Checking for HTTPS first
-                String[] requestParts = fullRequest.split(" ");
-                if (requestParts.length >= 3 && requestParts[0].equalsIgnoreCase("connect")) {
-                    String[] hostPort = requestParts[1].split(":");
-                    String host = hostPort[0];
-                    int port = Integer.parseInt(hostPort[1]);
-
-                    Logger.logInfo("Handling HTTPS request");
-                    HTTPSConnectionHandler httpsConnectionHandler = new HTTPSConnectionHandler(clientSocket, config);
-                    httpsConnectionHandler.establishTunnel(host, port);
-                }
-                else {
-                    ParsedData parsedData = parseRequest(fullRequest, output);
-                    // Invalid HTTP request
+                if (request.isMethod("CONNECT")) {
+                    ParsedData parsedData = parseConnectTarget(request.target());
                     if (parsedData == null || !DataVerification.isParseValid(parsedData)) {
+                        Metrics.error(Metrics.Error.MALFORMED_REQUEST);
+                        Logger.logError("Malformed CONNECT target from: " + clientAddress);
                         sendBadRequestResponse(output);
+                        logAccess(AccessLog.Kind.TUNNEL, meter, request, parsedAt - parseNanos, parseNanos);
                         return;
                     }
-                    // Now checking for HTTP
-                    else if (parsedData.port() == 80) {
-                        Logger.logInfo("Handling HTTP request for host: " + parsedData.host());
-                        HTTPConnectionHandler httpConnectionHandler = new HTTPConnectionHandler(clientSocket, config);
-                        httpConnectionHandler.handleConnection(fullRequest, output, parsedData);
-                    } else {
-                        sendBadRequestResponse(output);
-                        Logger.logError("Unsupported port: " + parsedData.port() + " from: " +
-                                clientSocket.getInetAddress().getHostAddress());
+                    String host = parsedData.host();
+                    int port = parsedData.port();
+                    if (!destinationFilter.isHostAllowed(host)) {
+                        sendForbiddenResponse(output, host);
+                        logAccess(AccessLog.Kind.TUNNEL, meter, request, parsedAt - parseNanos, parseNanos);
+                        return;
+                    }
+
+                    Logger.logInfo("Handling HTTPS request");
+                    // From here the connection is one end of a tunnel, which may sit quietly for a long time.
+                    socketPolicy.options(SocketPolicy.ConnectionClass.TUNNEL).apply(clientSocket);
+                    activity = ConnectionTracker.Activity.TUNNEL;
+                    flow.routeTo(host);
+                    HTTPSConnectionHandler httpsConnectionHandler = new HTTPSConnectionHandler(clientSocket, config,
+                            flow);
+                    try {
+                        httpsConnectionHandler.establishTunnel(host, port, requestReader.takeBuffered());
+                    } finally {
+                        if (accessLog.isEnabled()) {
+                            accessLog.record(AccessLog.Kind.TUNNEL, clientAddressBytes, "CONNECT", host,
+                                    httpsConnectionHandler.status(),
+                                    meter.bytesIn() + httpsConnectionHandler.bytesFromClient(),
+                                    meter.bytesOut() + httpsConnectionHandler.bytesToClient(),
+                                    parsedAt - parseNanos, parseNanos);
+                        }
                     }
+                    return;
+                }
+                boolean isReusable = serveHTTP(request, fullRequest, requestReader, output, parsedAt, true);
+                logAccess(AccessLog.Kind.HTTP1, meter, request, parsedAt - parseNanos, parseNanos);
+                // The client's Keep-Alive header can only shorten the idle wait and the number of requests.
+                if (requestReader.keepAliveMax() >= 0) {
+                    maxRequests = Math.min(maxRequests, requestCount + 1 + requestReader.keepAliveMax());
+                }
+                if (!isReusable || !requestReader.isKeepAlive() || ++requestCount >= maxRequests
+                        || requestReader.keepAliveTimeout() == 0) {
+                    return;
                 }
+                clientSocket.setSoTimeout(idleTimeoutMillis(requestReader.keepAliveTimeout()));
             }
         }
+        catch (SocketTimeoutException e) {
+            Logger.logInfo("Idle connection timed out for client " + clientSocket.getInetAddress().getHostAddress());
+        }
         catch (IOException e) {
+            if (tracker.isDraining() && clientSocket.isClosed()) {
+                Logger.logInfo("Connection to client " + clientAddress + " closed by drain.");
+                return;
+            }
+            Metrics.error(Metrics.Error.CLIENT_IO);
             Logger.logError("I/O error with client " + clientSocket.getInetAddress().getHostAddress() + ": " + e.getMessage());
         }
-        finally {
-            activeConnections.remove(clientSocket.getInetAddress().getHostAddress());
+    }
+
+    // ClientIdleTimeout, or the client's own Keep-Alive timeout where that is shorter.
+    private int idleTimeoutMillis(int keepAliveTimeoutSeconds) {
+        int configuredMillis = socketPolicy.options(SocketPolicy.ConnectionClass.CLIENT).readTimeoutMillis();
+        if (keepAliveTimeoutSeconds <= 0) {
+            return configuredMillis;
+        }
+        int keepAliveMillis = (int) Math.min(Integer.MAX_VALUE, keepAliveTimeoutSeconds * 1000L);
+        return configuredMillis > 0 ? Math.min(configuredMillis, keepAliveMillis) : keepAliveMillis;
+    }
+
+    @Override
+    public ConnectionTracker.Activity activity() {
+        return activity;
+    }
+
+    @Override
+    public void drain() {
+        // Requests and tunnels in progress are left to finish; the request loop stops after them.
+        if (activity == ConnectionTracker.Activity.IDLE) {
+            try {
+                clientSocket.shutdownInput();
+            } catch (IOException e) {
+                Logger.logError("Could not shut idle connection: " + e.getMessage());
+            }
+        } else if (activity == ConnectionTracker.Activity.HTTP2) {
+            http2Connection.drain();
+        }
+    }
+
+    @Override
+    public void forceClose() {
+        try {
+            clientSocket.close();
+        } catch (IOException e) {
+            Logger.logError("Could not close client connection: " + e.getMessage());
         }
+    }
 
+    // Counts a stream through meter when the AccessLog is on.
+    private InputStream metered(InputStream input) {
+        return accessLog.isEnabled() ? meter.count(input) : input;
     }
 
-    private ParsedData parseRequest(String request, OutputStream output) {
-        String[] parts = request.split(" ");
+    private OutputStream metered(OutputStream output) {
+        return accessLog.isEnabled() ? meter.count(output) : output;
+    }
+
+    /**
+     * Records a request in the AccessLog, with the bytes and status its meter saw since begin.
+     * startedAt is the System.nanoTime() at which reading the request began.
+     * */
+    void logAccess(AccessLog.Kind kind, AccessLog.Meter meter, HTTPRequestParser request, long startedAt,
+                   long parseNanos) {
+        if (accessLog.isEnabled()) {
+            accessLog.record(kind, clientAddressBytes, request.method(), AccessLog.hostOf(request.target()),
+                    meter.status(), meter.bytesIn(), meter.bytesOut(), startedAt, parseNanos);
+        }
+    }
+
+    boolean isAccessLogged() {
+        return accessLog.isEnabled();
+    }
 
-        if (parts.length < 3) {
-            Logger.logError("Malformed request from: " + clientSocket.getInetAddress().getHostAddress());
+    // Takes a token from the client's request bucket, or answers 429 and returns false when it is empty.
+    boolean admitRequest(OutputStream output) throws IOException {
+        String clientAddress = clientSocket.getInetAddress().getHostAddress();
+        if (clientLimiter.tryRequest(clientAddress)) {
+            return true;
+        }
+        Logger.logError("Request rate limit reached for client: " + clientAddress);
+        Metrics.error(Metrics.Error.RATE_LIMITED);
+        output.write(MainServer.limitResponse(ClientLimiter.Admission.CLIENT_LIMIT).getBytes(StandardCharsets.UTF_8));
+        output.flush();
+        return false;
+    }
+
+    /**
+     * Checks the target of a plain HTTP request and forwards it, recording its time from parsedAt.
+     * Returns whether the connection can carry another request; errors are answered and return false.
+     * isSocketOutput is false for HTTP/2 streams, whose output is not the socket's own, so cache hits are
+     * never written to the socket channel directly.
+     * */
+    boolean serveHTTP(HTTPRequestParser request, String fullRequest, ClientRequestReader requestReader,
+                      OutputStream output, long parsedAt, boolean isSocketOutput) {
+        ParsedData parsedData = parseRequest(request.target(), output);
+        // Invalid HTTP request
+        if (parsedData == null || !DataVerification.isParseValid(parsedData)) {
+            Metrics.error(Metrics.Error.MALFORMED_REQUEST);
             sendBadRequestResponse(output);
-            return null;
+            return false;
+        }
+        else if (!destinationFilter.isHostAllowed(parsedData.host())) {
+            sendForbiddenResponse(output, parsedData.host());
+            return false;
+        }
+        // Now checking for HTTP
+        else if (parsedData.port() == 80) {
+            Logger.logInfo("Handling HTTP request for host: " + parsedData.host());
+            if (isSocketOutput) {
+                // HTTP/2 streams share the connection's flow, so only its global and client buckets apply to them.
+                flow.routeTo(parsedData.host());
+            }
+            HTTPConnectionHandler httpConnectionHandler = this.httpConnectionHandler;
+            if (!isSocketOutput) {
+                httpConnectionHandler = new HTTPConnectionHandler(clientSocket, config, false);
+            } else if (httpConnectionHandler == null) {
+                httpConnectionHandler = new HTTPConnectionHandler(clientSocket, config, true);
+                this.httpConnectionHandler = httpConnectionHandler;
+            }
+            boolean isReusable = httpConnectionHandler.handleConnection(request, fullRequest, requestReader,
+                    output, parsedData);
+            Metrics.HTTP_TOTAL.recordSince(parsedAt);
+            return isReusable;
+        } else {
+            Metrics.error(Metrics.Error.MALFORMED_REQUEST);
+            sendBadRequestResponse(output);
+            Logger.logError("Unsupported port: " + parsedData.port() + " from: " +
+                    clientSocket.getInetAddress().getHostAddress());
+            return false;
         }
+    }
 
+    private ParsedData parseRequest(String target, OutputStream output) {
         try {
-            URI uri = new URI(parts[1]);
-            String host = uri.getHost();
-            int port = uri.getPort() != -1 ? uri.getPort() : 80;
-
-            return new ParsedData(port, host);
+            return parseTarget(target);
         } catch (URISyntaxException e) {
             Logger.logError("URL syntax error from client " + clientSocket.getInetAddress().getHostAddress() + ": " +
                     e.getMessage());
@@ -97,40 +310,82 @@ public class ClientHandler implements Runnable {
         }
     }
 
-    private void sendBadRequestResponse(OutputStream output) {
+    static ParsedData parseTarget(String target) throws URISyntaxException {
+        URI uri = new URI(target);
+        String host = uri.getHost();
+        int port = uri.getPort() != -1 ? uri.getPort() : 80;
+
+        return new ParsedData(port, host);
+    }
+
+    // Splits a CONNECT target at its last colon, so bracketed IPv6 addresses keep theirs. Returns null if malformed.
+    static ParsedData parseConnectTarget(String target) {
+        int colon = target.lastIndexOf(':');
+        if (colon <= 0) {
+            return null;
+        }
+        String host = target.substring(0, colon);
+        if (host.startsWith("[") && host.endsWith("]")) {
+            host = host.substring(1, host.length() - 1);
+        }
+        try {
+            return new ParsedData(Integer.parseInt(target.substring(colon + 1)), host);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    static String badRequestResponse() {
         String responseBody = "Bad Request: The request could not be parsed.";
-        String response = "HTTP/1.1 400 Bad Request\r\n" +
+        return "HTTP/1.1 400 Bad Request\r\n" +
+                "Content-Type: text/plain\r\n" +
+                "Content-Length: " + responseBody.length() + "\r\n" +
+                "\r\n" +
+                responseBody;
+    }
+
+    static String headerTooLargeResponse() {
+        String responseBody = "Request Header Fields Too Large: The request head exceeds the limit.";
+        return "HTTP/1.1 431 Request Header Fields Too Large\r\n" +
                 "Content-Type: text/plain\r\n" +
                 "Content-Length: " + responseBody.length() + "\r\n" +
                 "\r\n" +
                 responseBody;
+    }
+
+    private void sendBadRequestResponse(OutputStream output) {
+        sendBadRequestResponse(output, badRequestResponse());
+    }
+
+    // Sends a 4xx response for a request that is not handled.
+    private void sendBadRequestResponse(OutputStream output, String response) {
         try {
             output.write(response.getBytes());
             output.flush();
         } catch (IOException e) {
-            Logger.logError("Failed to send 400 response: " + e.getMessage());
+            Logger.logError("Failed to send " + response.substring(9, 12) + " response: " + e.getMessage());
         }
     }
 
-    private String readFullRequest(InputStream input) {
-        // Dynamically allocates buffer.
-        // \r\n\r\n denotes the end of a http request
-        ByteArrayOutputStream requestStream = new ByteArrayOutputStream();
-        int length;
-        byte[] buffer = new byte[1024];
-        while (true) {
-            try {
-                if ((length = input.read(buffer)) != -1) {
-                    requestStream.write(buffer, 0, length);
-                    if (requestStream.toString(StandardCharsets.UTF_8).contains("\r\n\r\n")) {
-                        break;
-                    }
-                }
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
+    static String forbiddenResponse() {
+        String responseBody = "Forbidden: The destination is not allowed.";
+        return "HTTP/1.1 403 Forbidden\r\n" +
+                "Content-Type: text/plain\r\n" +
+                "Content-Length: " + responseBody.length() + "\r\n" +
+                "\r\n" +
+                responseBody;
+    }
+
+    private void sendForbiddenResponse(OutputStream output, String host) {
+        Metrics.error(Metrics.Error.DENIED);
+        Logger.logError("Denied destination " + host + " for client " +
+                clientSocket.getInetAddress().getHostAddress());
+        try {
+            output.write(forbiddenResponse().getBytes());
+            output.flush();
+        } catch (IOException e) {
+            Logger.logError("Failed to send 403 response: " + e.getMessage());
         }
-        return requestStream.toString(StandardCharsets.UTF_8);
     }
 
     public record ParsedData(int port, String host) {}
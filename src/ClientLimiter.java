@@ -0,0 +1,152 @@
+/**
+ * ClientLimiter keeps per-client accounting for admission and rate limits, keyed by client IP.
+ * It counts open connections per client, capped by MaxConnectionsPerClient, and in total, capped by MaxConnections.
+ * Requests per client are limited to ClientRequestRate per second with bursts of ClientRequestBurst.
+ * A rate of 0 turns that limit off. Bytes sent to each client are shaped by TrafficShaper.
+ * Nothing here takes a lock: counters are atomics in per-client state, and each rate limit is a token bucket
+ * kept as a single theoretical arrival time (GCRA) advanced with compare-and-set.
+ * Idle clients whose buckets have refilled are swept away, since forgetting them loses nothing.
+ * */
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+public class ClientLimiter {
+
+    public enum Admission {ACCEPTED, CLIENT_LIMIT, GLOBAL_LIMIT}
+
+    private static final long SWEEP_SECONDS = 30;
+
+    private static volatile ClientLimiter instance;
+
+    private final Map<String, ClientState> clients = new ConcurrentHashMap<>();
+    private final AtomicInteger openConnections = new AtomicInteger();
+    private final int maxConnections;
+    private final int maxConnectionsPerClient;
+    // Nanoseconds each request advances a bucket, and how far ahead a bucket may run.
+    private final double requestCostNanos;
+    private final long requestToleranceNanos;
+
+    private final LongAdder clientRejections = new LongAdder();
+    private final LongAdder globalRejections = new LongAdder();
+    private final LongAdder rateLimitedRequests = new LongAdder();
+
+    private static final class ClientState {
+        // -1 once the sweeper has retired this state; it is then replaced rather than reused.
+        private final AtomicInteger open = new AtomicInteger();
+        private final AtomicLong requestArrival = new AtomicLong(System.nanoTime());
+    }
+
+    private ClientLimiter(int maxConnections, int maxConnectionsPerClient, int requestRate, int requestBurst) {
+        this.maxConnections = maxConnections;
+        this.maxConnectionsPerClient = maxConnectionsPerClient;
+        this.requestCostNanos = requestRate > 0 ? 1e9 / requestRate : 0;
+        this.requestToleranceNanos = (long) (requestCostNanos * Math.max(0, requestBurst - 1));
+
+        ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "client-limiter-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleWithFixedDelay(this::sweep, SWEEP_SECONDS, SWEEP_SECONDS, TimeUnit.SECONDS);
+    }
+
+    public static ClientLimiter getInstance(ConfigurationManager config) {
+        ClientLimiter limiter = instance;
+        return limiter != null ? limiter : createInstance(config);
+    }
+
+    private static synchronized ClientLimiter createInstance(ConfigurationManager config) {
+        if (instance == null) {
+            ClientLimiter limiter = new ClientLimiter(
+                    config.getIntConfig("MaxConnections", 0),
+                    config.getIntConfig("MaxConnectionsPerClient", 64),
+                    config.getIntConfig("ClientRequestRate", 0),
+                    config.getIntConfig("ClientRequestBurst", 50));
+            Metrics.register("proxy_client_connections", "gauge", "Open client connections.",
+                    limiter.openConnections::get);
+            Metrics.register("proxy_client_rejections_total", "counter", "Connections refused at a connection limit.",
+                    () -> limiter.clientRejections.sum() + limiter.globalRejections.sum());
+            Metrics.register("proxy_client_rate_limited_total", "counter", "Requests refused at the request rate.",
+                    limiter.rateLimitedRequests::sum);
+            instance = limiter;
+        }
+        return instance;
+    }
+
+    // Counts a new connection from client, unless a cap is reached. Every ACCEPTED needs a matching release.
+    public Admission admit(String client) {
+        int open = openConnections.incrementAndGet();
+        if (maxConnections > 0 && open > maxConnections) {
+            openConnections.decrementAndGet();
+            globalRejections.increment();
+            return Admission.GLOBAL_LIMIT;
+        }
+        while (true) {
+            ClientState state = clients.computeIfAbsent(client, address -> new ClientState());
+            int clientOpen = state.open.get();
+            if (clientOpen < 0) {
+                clients.remove(client, state);
+                continue;
+            }
+            if (maxConnectionsPerClient > 0 && clientOpen >= maxConnectionsPerClient) {
+                openConnections.decrementAndGet();
+                clientRejections.increment();
+                return Admission.CLIENT_LIMIT;
+            }
+            if (state.open.compareAndSet(clientOpen, clientOpen + 1)) {
+                return Admission.ACCEPTED;
+            }
+        }
+    }
+
+    public void release(String client) {
+        ClientState state = clients.get(client);
+        if (state != null) {
+            state.open.decrementAndGet();
+        }
+        openConnections.decrementAndGet();
+    }
+
+    // Takes a token for one request from an admitted client. Returns false if the client is over its rate.
+    public boolean tryRequest(String client) {
+        ClientState state = clients.get(client);
+        if (requestCostNanos == 0 || state == null) {
+            return true;
+        }
+        AtomicLong arrival = state.requestArrival;
+        while (true) {
+            long now = System.nanoTime();
+            long current = arrival.get();
+            long next = Math.max(current, now) + (long) requestCostNanos;
+            if (next - now > requestToleranceNanos + (long) requestCostNanos) {
+                rateLimitedRequests.increment();
+                return false;
+            }
+            if (arrival.compareAndSet(current, next)) {
+                return true;
+            }
+        }
+    }
+
+    public String stats() {
+        return String.format("Clients: open=%d tracked=%d rejectedPerClient=%d rejectedGlobal=%d " +
+                        "rateLimitedRequests=%d", openConnections.get(), clients.size(),
+                clientRejections.sum(), globalRejections.sum(), rateLimitedRequests.sum());
+    }
+
+    private void sweep() {
+        long now = System.nanoTime();
+        clients.forEach((client, state) -> {
+            if (state.requestArrival.get() <= now && state.open.compareAndSet(0, -1)) {
+                clients.remove(client, state);
+            }
+        });
+    }
+}
@@ -0,0 +1,169 @@
+/**
+ * ClientRequestReader reads the requests arriving on one persistent client connection.
+ * readRequest parses the next request head in place with an HTTPRequestParser, and relayBody
+ * forwards that request's body, framed by Content-Length or chunked Transfer-Encoding, to the target.
+ * Bodies whose framing could be read two ways, as RFC 9112 section 6 describes, are rejected with ParseException.
+ * Pipelined requests simply wait in the buffer until the previous one has been handled,
+ * so responses go back to the client in request order.
+ * */
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class ClientRequestReader extends HTTPMessageStream {
+
+    private final HTTPRequestParser parser;
+    private final ByteBuffer bufferView;
+
+    private long contentLength = 0;
+    private boolean isChunked = false;
+    private boolean isKeepAlive = false;
+    // From the request's Keep-Alive header, or -1 where it gives none.
+    private int keepAliveTimeout = -1;
+    private int keepAliveMax = -1;
+    private long parseNanos = 0;
+
+    public ClientRequestReader(InputStream clientInput, int maxHeadSize, int maxHeaderCount) {
+        super(clientInput, "client", Math.max(BUFFER_SIZE, maxHeadSize + 1));
+        this.parser = new HTTPRequestParser(maxHeadSize, maxHeaderCount);
+        this.bufferView = ByteBuffer.wrap(buffer);
+    }
+
+    /**
+     * Returns the parser holding the next request head, or null if the client closed
+     * the connection between requests. The parsed head is only valid until relayBody is called.
+     * */
+    public HTTPRequestParser readRequest() throws IOException {
+        // Move any pipelined bytes to the front so the whole head fits in the buffer.
+        if (bufferStart > 0) {
+            System.arraycopy(buffer, bufferStart, buffer, 0, bufferEnd - bufferStart);
+            bufferEnd -= bufferStart;
+            bufferStart = 0;
+        }
+        parser.reset(bufferView, 0);
+        // Parse time starts with the first byte of the head, not with the wait for it.
+        boolean hasBytes = bufferEnd > 0;
+        long startedAt = System.nanoTime();
+        while (parser.parse(bufferEnd) == HTTPRequestParser.Result.INCOMPLETE) {
+            if (bufferEnd == buffer.length) {
+                throw new HTTPRequestParser.HeadTooLargeException("Request header too large.");
+            }
+            int read = input.read(buffer, bufferEnd, buffer.length - bufferEnd);
+            if (read == -1) {
+                if (!parser.hasStarted()) {
+                    return null;
+                }
+                throw new IOException("Client closed mid-request.");
+            }
+            if (!hasBytes) {
+                hasBytes = true;
+                startedAt = System.nanoTime();
+            }
+            bufferEnd += read;
+        }
+        parseNanos = System.nanoTime() - startedAt;
+        bufferStart = parser.headEnd();
+        applyFraming();
+        return parser;
+    }
+
+    // Forwards the body of the request last returned by readRequest, if it has one.
+    public void relayBody(OutputStream targetOutput) throws IOException {
+        if (isChunked) {
+            relayChunkedBody(targetOutput);
+        } else if (contentLength > 0) {
+            relayFixedBody(contentLength, targetOutput);
+        }
+    }
+
+    /**
+     * Hands the rest of the connection to another protocol: the bytes buffered past the last request head,
+     * then whatever the client sends next. The reader must not be used afterwards.
+     * */
+    public InputStream takeOver() {
+        return new SequenceInputStream(new ByteArrayInputStream(buffer, bufferStart, bufferEnd - bufferStart), input);
+    }
+
+    /**
+     * Returns the bytes buffered past the last request head, such as the first tunnel bytes a client sends
+     * straight after CONNECT. The reader must not be used afterwards.
+     * */
+    public byte[] takeBuffered() {
+        byte[] buffered = Arrays.copyOfRange(buffer, bufferStart, bufferEnd);
+        bufferStart = bufferEnd;
+        return buffered;
+    }
+
+    // How long the request last returned by readRequest took to arrive and parse, from its first byte.
+    public long parseNanos() {
+        return parseNanos;
+    }
+
+    // Whether the client wants to keep the connection open after the current request.
+    public boolean isKeepAlive() {
+        return isKeepAlive;
+    }
+
+    // The timeout, in seconds, the client's Keep-Alive header gave for the current request, or -1.
+    public int keepAliveTimeout() {
+        return keepAliveTimeout;
+    }
+
+    // How many more requests the client's Keep-Alive header said it would send after the current one, or -1.
+    public int keepAliveMax() {
+        return keepAliveMax;
+    }
+
+    private void applyFraming() throws IOException {
+        long bodyLength = parser.bodyLength();
+        isChunked = bodyLength == HTTPRequestParser.CHUNKED;
+        contentLength = isChunked ? 0 : bodyLength;
+        // HTTP/1.1 connections persist unless told otherwise, HTTP/1.0 ones only when asked.
+        isKeepAlive = parser.isVersion("HTTP/1.1");
+        for (int i = 0; i < parser.headerCount(); i++) {
+            if (parser.headerNameEquals(i, "Connection") || parser.headerNameEquals(i, "Proxy-Connection")) {
+                if (parser.hasToken(i, "close")) {
+                    isKeepAlive = false;
+                } else if (parser.hasToken(i, "keep-alive")) {
+                    isKeepAlive = true;
+                }
+            }
+        }
+        keepAliveTimeout = -1;
+        keepAliveMax = -1;
+        int keepAlive = parser.findHeader("Keep-Alive");
+        if (keepAlive >= 0) {
+            applyKeepAliveHeader(parser.headerValue(keepAlive));
+        }
+    }
+
+    // Reads the timeout and max parameters of a Keep-Alive header (RFC 2068 section 19.7.1.1). Others are ignored.
+    private void applyKeepAliveHeader(String value) {
+        for (String parameter : value.split(",")) {
+            int equals = parameter.indexOf('=');
+            if (equals < 0) {
+                continue;
+            }
+            String name = parameter.substring(0, equals).trim();
+            int number;
+            try {
+                number = Integer.parseInt(parameter.substring(equals + 1).trim());
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            if (number < 0) {
+                continue;
+            }
+            if (name.equalsIgnoreCase("timeout")) {
+                keepAliveTimeout = number;
+            } else if (name.equalsIgnoreCase("max")) {
+                keepAliveMax = number;
+            }
+        }
+    }
+}
@@ -1,21 +1,116 @@
 /**
  * Reads ServerConfig and returns the settings. Allows for default log location of desktop.
- * loadConfig is called on instantiation to fill map with data.
- * When changes are made to the settings with setConfig, they are saved to the file with
- * saveconfig.
- * getConfig returns the setting values.
+ * The settings are held in an immutable Snapshot published through one volatile reference,
+ * so getConfig and getIntConfig are lock-free reads that always see one consistent version.
+ * setConfig builds a new snapshot and saves it atomically, by writing a temp file and renaming it over the old one.
+ * The file is watched, and edits to it are loaded without a restart. An edit that does not validate,
+ * such as a number that does not parse, an unknown ServerMode or a missing setting, is rejected
+ * and the previous snapshot is kept. A file half way through being rewritten fails the same checks.
+ * Settings read per request, like MaskIP or ClientIdleTimeout, follow reloads; components that read their
+ * settings once at startup, like the pools and caches, keep them until the server is restarted.
  * */
 
 import java.io.*;
 import java.net.URL;
-import java.util.HashMap;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 public class ConfigurationManager {
 
+    private static final String DEFAULT_CONTENT = "ServerPort: 0\nLogFilePath: %DESKTOP%/server_log.txt\nMaskIP: 0\nForwardedHeaders: pass\nStripHopByHop: 1\nViaHeader: 0\nServerMode: thread\nEventLoopThreads: 0\nMaxConnections: 0\nMaxConnectionsPerClient: 64\nClientRequestRate: 0\nClientRequestBurst: 50\nClientByteRateKB: 0\nClientByteBurstKB: 1024\nGlobalByteRateKB: 0\nGlobalByteBurstKB: 1024\nDestinationByteRateKB: 0\nDestinationByteBurstKB: 1024\nUpstreamPoolMaxIdlePerHost: 8\nUpstreamPoolMaxIdle: 256\nUpstreamPoolIdleTimeout: 30\nUpstreamConnectTimeout: 10\nDNSResolver: system\nDNSHostsFile: hosts.txt\nDNSCacheTTL: 60\nDNSNegativeTTL: 5\nDNSStaleTTL: 30\nDNSConnectAttemptDelay: 250\nTunnelConnectTimeout: 10\nTunnelBufferSize: 65536\nTunnelBufferPoolMax: 256\nClientIdleTimeout: 15\nMaxRequestsPerConnection: 100\nMaxHeaderSize: 16384\nMaxHeaderCount: 100\nHttp2MaxStreams: 100\nDrainTimeout: 30\nReusePort: 0\nFilterBlockPrivate: 1\nFilterDefault: allow\nFilterRulesFile: filter-rules.txt\nMetricsPort: 0\nMetricsBindAddress: 127.0.0.1\nLogOverflowPolicy: block\nLogBufferSize: 8192\nResponseCache: 0\nResponseCacheSizeMB: 64\nResponseCacheMaxEntryKB: 1024\nDiskCache: 0\nDiskCacheDir: cache\nDiskCacheSizeMB: 10240\nDiskCacheMaxEntryMB: 4096\nRequestCoalescing: 0\nCoalesceBufferKB: 1024\nResponseCompression: 0\nCompressionLevel: 6\nCompressionMinBytes: 1024\nCompressionTypes: text/html,text/plain,text/css,text/javascript,text/xml,application/json,application/javascript,application/xml,image/svg+xml\nCompressionPoolMax: 64\nAccessLog: 0\nAccessLogDir: access-log\nAccessLogSegmentMB: 64\nAccessLogSegments: 16\nAcceptBacklog: 1024\nClientNoDelay: 1\nClientKeepAlive: 1\nClientBufferKB: 0\nOriginNoDelay: 1\nOriginKeepAlive: 1\nOriginBufferKB: 0\nOriginReadTimeout: 120\nTunnelNoDelay: 1\nTunnelKeepAlive: 1\nTunnelBufferKB: 0\nBulkThresholdKB: 1024\nBulkBufferKB: 4096";
+    // Settings with a fixed set of values. Any setting whose default is a number must be a whole number.
+    private static final Map<String, Set<String>> ALLOWED_VALUES = Map.ofEntries(
+            Map.entry("MaskIP", Set.of("0", "1")),
+            Map.entry("ForwardedHeaders", Set.of("pass", "strip", "conceal", "add")),
+            Map.entry("StripHopByHop", Set.of("0", "1")),
+            Map.entry("ViaHeader", Set.of("0", "1")),
+            Map.entry("ServerMode", Set.of("thread", "virtual", "nio")),
+            Map.entry("DNSResolver", Set.of("system", "stub")),
+            Map.entry("ReusePort", Set.of("0", "1")),
+            Map.entry("FilterBlockPrivate", Set.of("0", "1")),
+            Map.entry("FilterDefault", Set.of("allow", "deny")),
+            Map.entry("LogOverflowPolicy", Set.of("block", "drop", "sample")),
+            Map.entry("ResponseCache", Set.of("0", "1")),
+            Map.entry("DiskCache", Set.of("0", "1")),
+            Map.entry("RequestCoalescing", Set.of("0", "1")),
+            Map.entry("ResponseCompression", Set.of("0", "1")),
+            Map.entry("AccessLog", Set.of("0", "1")),
+            Map.entry("ClientNoDelay", Set.of("0", "1")),
+            Map.entry("ClientKeepAlive", Set.of("0", "1")),
+            Map.entry("OriginNoDelay", Set.of("0", "1")),
+            Map.entry("OriginKeepAlive", Set.of("0", "1")),
+            Map.entry("TunnelNoDelay", Set.of("0", "1")),
+            Map.entry("TunnelKeepAlive", Set.of("0", "1")),
+            Map.entry("CompressionLevel", Set.of("1", "2", "3", "4", "5", "6", "7", "8", "9")));
+    // Editors often save in several writes, so a reload waits for the file to be quiet this long.
+    private static final long RELOAD_QUIET_MILLIS = 200;
+    private static final Map<String, String> DEFAULTS = parseLines(DEFAULT_CONTENT.lines().toList(), new ArrayList<>());
+
     private static ConfigurationManager instance;
-    private final Map<String, String> configMap = new HashMap<>();
     private final File configFilePath;
+    private volatile Snapshot snapshot;
+
+    /**
+     * One immutable version of the settings, in file order. Values are the strings from the file;
+     * numbers are parsed once when the snapshot is built, and MaskIP, which is read on every request, is typed.
+     * */
+    public static final class Snapshot {
+
+        private final Map<String, String> values;
+        private final Map<String, Integer> intValues;
+        private final boolean isMaskIP;
+
+        private Snapshot(Map<String, String> values) {
+            this.values = Collections.unmodifiableMap(new LinkedHashMap<>(values));
+            Map<String, Integer> ints = new LinkedHashMap<>();
+            values.forEach((key, value) -> {
+                try {
+                    ints.put(key, Integer.parseInt(value.trim()));
+                } catch (NumberFormatException e) {
+                    // Not a number, so only available as a string.
+                }
+            });
+            this.intValues = Collections.unmodifiableMap(ints);
+            this.isMaskIP = "1".equals(values.get("MaskIP"));
+        }
+
+        public String get(String key) {
+            return values.get(key);
+        }
+
+        public int getInt(String key, int defaultValue) {
+            Integer value = intValues.get(key);
+            if (value != null) {
+                return value;
+            }
+            if (values.containsKey(key)) {
+                System.err.println("Invalid number for config " + key + ": " + values.get(key));
+            }
+            return defaultValue;
+        }
+
+        public boolean isMaskIP() {
+            return isMaskIP;
+        }
+
+        public Map<String, String> values() {
+            return values;
+        }
+    }
 
     private ConfigurationManager(String configFile) throws Exception{
         URL path = ClassLoader.getSystemResource(configFile);
@@ -24,9 +119,10 @@ public class ConfigurationManager {
         }
         this.configFilePath = new File(path.toURI());
         loadConfig();
+        startWatcher();
     }
 
-    public static ConfigurationManager getInstance(String configFilePath) throws Exception{
+    public static synchronized ConfigurationManager getInstance(String configFilePath) throws Exception{
         if (instance == null) {
             try {
                 instance = new ConfigurationManager(configFilePath);
@@ -37,47 +133,185 @@ public class ConfigurationManager {
         return instance;
     }
 
+    // At startup bad lines are skipped, as there is no previous snapshot to fall back on.
     private void loadConfig() {
-        try (BufferedReader reader = new BufferedReader(new FileReader(configFilePath))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                processConfigLine(line);
-            }
+        List<String> errors = new ArrayList<>();
+        Map<String, String> values = new LinkedHashMap<>();
+        try {
+            values = parseLines(Files.readAllLines(configFilePath.toPath(), StandardCharsets.UTF_8), errors);
         } catch (IOException e) {
             System.err.println("Failed to load config: " + e.getMessage());
         }
+        for (String error : errors) {
+            System.err.println(error);
+        }
+        snapshot = new Snapshot(values);
+    }
+
+    /**
+     * Loads the file again and publishes it if every line is valid. Returns whether it was published.
+     * Otherwise the reasons are logged and the current snapshot stays.
+     * */
+    public boolean reload() {
+        List<String> errors = new ArrayList<>();
+        Map<String, String> values;
+        try {
+            values = parseLines(Files.readAllLines(configFilePath.toPath(), StandardCharsets.UTF_8), errors);
+        } catch (IOException e) {
+            errors.add("Could not read config file: " + e.getMessage());
+            values = null;
+        }
+        if (values != null) {
+            for (String key : snapshot.values().keySet()) {
+                if (!values.containsKey(key)) {
+                    errors.add("Missing config " + key);
+                }
+            }
+        }
+        if (!errors.isEmpty()) {
+            Logger.logError("Config reload rejected, keeping the previous settings: " + String.join("; ", errors));
+            return false;
+        }
+        synchronized (this) {
+            if (values.equals(snapshot.values())) {
+                return false;
+            }
+            snapshot = new Snapshot(values);
+        }
+        Logger.logInfo("Config reloaded from " + configFilePath);
+        return true;
+    }
+
+    public Snapshot snapshot() {
+        return snapshot;
     }
 
     public String getConfig(String key) {
-        return configMap.get(key);
+        return snapshot.get(key);
+    }
+
+    public int getIntConfig(String key, int defaultValue) {
+        return snapshot.getInt(key, defaultValue);
     }
 
-    public void setConfig(String key, String value) {
-        configMap.put(key, value);
-        saveConfig();
+    // Writers are serialised with each other; readers never wait for them.
+    public synchronized void setConfig(String key, String value) {
+        Map<String, String> values = new LinkedHashMap<>(snapshot.values());
+        values.put(key, value);
+        snapshot = new Snapshot(values);
+        saveConfig(values);
     }
 
-    private void saveConfig() {
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(configFilePath))) {
-            for (Map.Entry<String, String> entry : configMap.entrySet()) {
-                writer.write(entry.getKey() + ": " + entry.getValue());
-                writer.newLine();
+    // Writes beside the config file, then renames over it, so a reader or a crash never sees half a file.
+    private void saveConfig(Map<String, String> values) {
+        Path target = configFilePath.toPath();
+        Path temp = null;
+        try {
+            temp = Files.createTempFile(target.toAbsolutePath().getParent(), target.getFileName().toString(), ".tmp");
+            try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, String> entry : values.entrySet()) {
+                    writer.write(entry.getKey() + ": " + entry.getValue());
+                    writer.newLine();
+                }
             }
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
         } catch (IOException e) {
             System.err.println("Failed to save config: " + e.getMessage());
+            if (temp != null) {
+                temp.toFile().delete();
+            }
         }
     }
 
-    private void processConfigLine(String line) {
-        String[] parts = line.split(": ");
-        if (parts.length != 2) {
-            System.err.println("Skipping invalid config line: " + line);
+    // Watches the config file's directory, as a rename over the file is not a change to the old file.
+    private void startWatcher() {
+        Path directory = configFilePath.toPath().toAbsolutePath().getParent();
+        Path fileName = configFilePath.toPath().getFileName();
+        WatchService watcher;
+        try {
+            watcher = FileSystems.getDefault().newWatchService();
+            directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException e) {
+            System.err.println("Config file cannot be watched; changes need a restart: " + e.getMessage());
             return;
         }
-        configMap.put(parts[0].trim(), resolvePlaceholders(parts[0].trim(), parts[1].trim()));
+        Thread thread = new Thread(() -> {
+            while (true) {
+                WatchKey key;
+                try {
+                    key = watcher.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                boolean isChanged = false;
+                try {
+                    while (key != null) {
+                        for (WatchEvent<?> event : key.pollEvents()) {
+                            isChanged |= event.kind() == StandardWatchEventKinds.OVERFLOW
+                                    || fileName.equals(event.context());
+                        }
+                        if (!key.reset()) {
+                            Logger.logError("Config directory is no longer watched: " + directory);
+                            return;
+                        }
+                        key = isChanged ? watcher.poll(RELOAD_QUIET_MILLIS, TimeUnit.MILLISECONDS) : null;
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (isChanged) {
+                    reload();
+                }
+            }
+        }, "config-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Parses "key: value" lines, adding a message to errors for each line or value that is not valid.
+    private static Map<String, String> parseLines(List<String> lines, List<String> errors) {
+        Map<String, String> values = new LinkedHashMap<>();
+        for (String line : lines) {
+            if (line.isBlank()) {
+                continue;
+            }
+            String[] parts = line.split(": ");
+            if (parts.length != 2) {
+                errors.add("Skipping invalid config line: " + line);
+                continue;
+            }
+            String key = parts[0].trim();
+            String value = resolvePlaceholders(key, parts[1].trim());
+            String error = validate(key, value);
+            if (error != null) {
+                errors.add(error);
+                continue;
+            }
+            values.put(key, value);
+        }
+        return values;
+    }
+
+    private static String validate(String key, String value) {
+        Set<String> allowed = ALLOWED_VALUES.get(key);
+        if (allowed != null && !allowed.contains(value.toLowerCase())) {
+            return "Invalid value for config " + key + ": " + value + " (expected one of " + allowed + ")";
+        }
+        // DEFAULTS is still null while it is itself being parsed.
+        String defaultValue = DEFAULTS != null ? DEFAULTS.get(key) : null;
+        if (defaultValue != null && defaultValue.chars().allMatch(Character::isDigit)) {
+            try {
+                if (Integer.parseInt(value) < 0) {
+                    return "Negative number for config " + key + ": " + value;
+                }
+            } catch (NumberFormatException e) {
+                return "Invalid number for config " + key + ": " + value;
+            }
+        }
+        return null;
     }
 
-    private String resolvePlaceholders(String key, String value) {
+    private static String resolvePlaceholders(String key, String value) {
         if ("LogFilePath".equals(key) && value.contains("%DESKTOP%")) {
             String desktopPath = System.getProperty("user.home") + File.separator + "Desktop" + File.separator;
             return value.replace("%DESKTOP%", desktopPath);
@@ -87,13 +321,12 @@ public class ConfigurationManager {
 
     public static boolean generateDefaultConfigFile() {
         String fileName = "ServerConfig";
-        String defaultContent = "ServerPort: 0\nLogFilePath: %DESKTOP%/server_log.txt\nMaskIP: 0";
 
         File configFile = new File(System.getProperty("user.dir") + "\\src", fileName);
         System.out.println("Generating default config file at: " + configFile.getAbsolutePath());
 
         try (BufferedWriter writer = new BufferedWriter(new FileWriter(configFile))) {
-            writer.write(defaultContent);
+            writer.write(DEFAULT_CONTENT);
         } catch (IOException e) {
             System.err.println("Failed to create default config file: " + e.getMessage());
             return false;
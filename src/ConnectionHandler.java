@@ -1,8 +1,8 @@
 /**
  * Abstract class used to define all connection handlers.
  * Handle connection is to be modified by all children to handle various connection types.
- * Finds server IP and uses that in headers to conceal user IP.
- * Method modifies the header of the request to hold the new IP.
+ * It returns whether the client connection can be used for another request.
+ * The request is passed both parsed, for HeaderRewriter to rewrite from, and as a String for the response cache.
  * NOTE: NOT USED BY HTTPS. HTTPS is encrypted, can't read/modify.
  * */
 import java.io.OutputStream;
@@ -19,24 +19,7 @@ public abstract class ConnectionHandler {
         this.config = config;
     }
 
-    protected abstract void handleConnection(String fullRequest, OutputStream clientOutput, ClientHandler.ParsedData parsedData);
-
-    protected String concealUserIP(String fullRequest) {
-
-        String[] lines = fullRequest.split("\r\n");
-        StringBuilder modifiedRequest = new StringBuilder();
-        for (String line : lines) {
-            if (line.startsWith("X-Forwarded-For:") || line.startsWith("X-Real-IP:")) {
-                continue;
-            }
-            modifiedRequest.append(line).append("\r\n");
-        }
-
-        modifiedRequest.append("X-Forwarded-For: 0.0.0.0\r\n");
-
-        modifiedRequest.append("\r\n").append(fullRequest.substring(fullRequest.indexOf("\r\n\r\n") + 4));
-        return modifiedRequest.toString();
-    }
-
-
+    protected abstract boolean handleConnection(HTTPRequestParser request, String fullRequest,
+                                                ClientRequestReader requestReader, OutputStream clientOutput,
+                                                ClientHandler.ParsedData parsedData);
 }
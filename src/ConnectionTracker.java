@@ -0,0 +1,95 @@
+/**
+ * ConnectionTracker knows which client connections a server has open and what each is doing, so that
+ * shutdown can drain them instead of abandoning them. Handlers add themselves when they start and
+ * remove themselves when they close, reporting their Activity as it changes.
+ * Draining asks every connection to finish what it is doing and take nothing new: idle keep-alive connections
+ * are closed at once, requests in flight complete before their connection closes, HTTP/2 connections get GOAWAY
+ * and close after their open streams. Whatever is still open at the deadline, tunnels included, is closed,
+ * and drain reports how much of each kind was cut off.
+ * */
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class ConnectionTracker {
+
+    public enum Activity {IDLE, REQUEST, TUNNEL, HTTP2}
+
+    // A client connection as the tracker sees it. drain and forceClose may be called from any thread.
+    public interface Tracked {
+
+        Activity activity();
+
+        // Called once when draining starts, or on being added during a drain.
+        void drain();
+
+        // Called at the deadline for connections still open.
+        void forceClose();
+    }
+
+    private final Set<Tracked> connections = ConcurrentHashMap.newKeySet();
+    private volatile boolean isDraining = false;
+
+    public void add(Tracked connection) {
+        connections.add(connection);
+        if (isDraining) {
+            connection.drain();
+        }
+    }
+
+    public void remove(Tracked connection) {
+        connections.remove(connection);
+        if (isDraining) {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    // Handlers check this before waiting for another request on a keep-alive connection.
+    public boolean isDraining() {
+        return isDraining;
+    }
+
+    public int size() {
+        return connections.size();
+    }
+
+    /**
+     * Drains every connection, waiting up to timeoutMillis for them to close by themselves,
+     * then closes the rest. Returns a line saying how long it took and what was cut off.
+     * */
+    public String drain(long timeoutMillis) {
+        long startedAt = System.currentTimeMillis();
+        int open = connections.size();
+        isDraining = true;
+        for (Tracked connection : connections) {
+            connection.drain();
+        }
+        long deadline = startedAt + timeoutMillis;
+        synchronized (this) {
+            long remaining;
+            while (!connections.isEmpty() && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        Map<Activity, Integer> cutOff = new EnumMap<>(Activity.class);
+        for (Activity activity : Activity.values()) {
+            cutOff.put(activity, 0);
+        }
+        for (Tracked connection : connections) {
+            cutOff.merge(connection.activity(), 1, Integer::sum);
+            connection.forceClose();
+        }
+        return String.format("Drained %d connections in %d ms. Cut off: requests=%d tunnels=%d http2=%d idle=%d",
+                open, System.currentTimeMillis() - startedAt, cutOff.get(Activity.REQUEST),
+                cutOff.get(Activity.TUNNEL), cutOff.get(Activity.HTTP2), cutOff.get(Activity.IDLE));
+    }
+}
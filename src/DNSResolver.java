@@ -0,0 +1,368 @@
+/**
+ * DNSResolver resolves target host names off the request path and caches the answers.
+ * Lookups go through a pluggable Lookup: the JVM resolver by default (DNSResolver: system), or a
+ * stub that answers from a hosts-style file (DNSResolver: stub, DNSHostsFile) for tests and overrides.
+ * Answers are cached for their own TTL, or DNSCacheTTL seconds when the lookup does not give one.
+ * Failures are cached for DNSNegativeTTL seconds so a dead name is not looked up on every request.
+ * For DNSStaleTTL seconds after expiring, an answer is still served while a refresh runs in the background.
+ * Concurrent lookups of the same name share one query.
+ * connect tries the resolved addresses happy-eyeballs style (RFC 8305): address families alternate,
+ * and a new attempt starts every DNSConnectAttemptDelay milliseconds until one connects.
+ * Addresses the DestinationFilter denies are dropped before connecting, so a name cannot be used to reach them.
+ * */
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+public class DNSResolver {
+
+    // Resolves one name. ttlSeconds is -1 when the source does not say how long the answer is valid.
+    public interface Lookup {
+        Answer lookup(String host) throws UnknownHostException;
+    }
+
+    public record Answer(InetAddress[] addresses, long ttlSeconds) {}
+
+    private static final int MAX_ENTRIES = 10_000;
+
+    private static volatile DNSResolver instance;
+
+    private final Lookup lookup;
+    private final long defaultTtlMillis;
+    private final long negativeTtlMillis;
+    private final long staleMillis;
+    private final long attemptDelayMillis;
+    private final DestinationFilter filter;
+    private final Map<String, CacheEntry> cache = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<CacheEntry>> inFlight = new ConcurrentHashMap<>();
+    private final ExecutorService lookupThreads = Executors.newThreadPerTaskExecutor(
+            Thread.ofVirtual().name("dns-lookup-", 0).factory());
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder staleHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder negativeHits = new LongAdder();
+    private final LongAdder shared = new LongAdder();
+
+    // A cached answer, or a cached failure when addresses is null.
+    private record CacheEntry(InetAddress[] addresses, long expiresAt, long staleUntil) {}
+
+    public DNSResolver(Lookup lookup, int defaultTtlSeconds, int negativeTtlSeconds, int staleSeconds,
+                       int attemptDelayMillis, DestinationFilter filter) {
+        this.lookup = lookup;
+        this.defaultTtlMillis = TimeUnit.SECONDS.toMillis(defaultTtlSeconds);
+        this.negativeTtlMillis = TimeUnit.SECONDS.toMillis(negativeTtlSeconds);
+        this.staleMillis = TimeUnit.SECONDS.toMillis(staleSeconds);
+        this.attemptDelayMillis = attemptDelayMillis;
+        this.filter = filter;
+    }
+
+    public static DNSResolver getInstance(ConfigurationManager config) {
+        DNSResolver resolver = instance;
+        return resolver != null ? resolver : createInstance(config);
+    }
+
+    private static synchronized DNSResolver createInstance(ConfigurationManager config) {
+        if (instance == null) {
+            Lookup lookup = DNSResolver::systemLookup;
+            if ("stub".equalsIgnoreCase(config.getConfig("DNSResolver"))) {
+                String hostsFile = config.getConfig("DNSHostsFile");
+                try {
+                    lookup = new StubLookup(Path.of(hostsFile != null ? hostsFile : "hosts.txt"));
+                } catch (IOException e) {
+                    System.out.println("DNS hosts file could not be read. Using the system resolver.");
+                    Logger.logError("Could not read DNS hosts file " + hostsFile + ": " + e.getMessage());
+                }
+            }
+            DNSResolver resolver = new DNSResolver(lookup,
+                    config.getIntConfig("DNSCacheTTL", 60),
+                    config.getIntConfig("DNSNegativeTTL", 5),
+                    config.getIntConfig("DNSStaleTTL", 30),
+                    config.getIntConfig("DNSConnectAttemptDelay", 250),
+                    DestinationFilter.getInstance(config));
+            Metrics.register("proxy_dns_cache_hits_total", "counter", "Lookups answered from the DNS cache.",
+                    () -> resolver.hits.sum() + resolver.staleHits.sum() + resolver.negativeHits.sum());
+            Metrics.register("proxy_dns_cache_misses_total", "counter", "Lookups that went to the resolver.",
+                    resolver.misses::sum);
+            instance = resolver;
+        }
+        return instance;
+    }
+
+    // Resolves host without blocking. Completes exceptionally with UnknownHostException.
+    public CompletableFuture<InetAddress[]> resolveAsync(String host) {
+        String key = host.toLowerCase(Locale.ROOT);
+        long now = System.currentTimeMillis();
+        CacheEntry entry = cache.get(key);
+        if (entry != null && now < entry.expiresAt()) {
+            if (entry.addresses() == null) {
+                negativeHits.increment();
+            } else {
+                hits.increment();
+            }
+            return CompletableFuture.completedFuture(entry).thenApply(cached -> addressesOf(key, cached));
+        }
+        if (entry != null && entry.addresses() != null && now < entry.staleUntil()) {
+            staleHits.increment();
+            query(key);
+            return CompletableFuture.completedFuture(entry.addresses());
+        }
+        return query(key).thenApply(answer -> addressesOf(key, answer));
+    }
+
+    public InetAddress[] resolve(String host) throws UnknownHostException {
+        try {
+            return resolveAsync(host).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UnknownHostException unknownHost) {
+                throw unknownHost;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Resolves host and connects to it, racing the addresses happy-eyeballs style, with each attempt's socket
+     * configured by options first. Returns a connected channel in blocking mode. Throws SocketTimeoutException if
+     * no address connects within the options' connect timeout, or the last connect error if all of them fail.
+     * Throws DestinationFilter.DeniedException if the filter allows none of the addresses.
+     * */
+    public SocketChannel connect(String host, int port, SocketPolicy.Options options) throws IOException {
+        long startedAt = System.nanoTime();
+        List<InetAddress> addresses;
+        SocketChannel channel;
+        try {
+            addresses = interleaveFamilies(resolve(host));
+            if (filter != null) {
+                addresses = filter.permitted(host, addresses);
+            }
+            long resolvedAt = System.nanoTime();
+            Metrics.DNS.record(resolvedAt - startedAt);
+            try (Selector selector = Selector.open()) {
+                channel = race(selector, addresses, host, port, options);
+            }
+            Metrics.CONNECT.recordSince(resolvedAt);
+        } catch (IOException e) {
+            Metrics.connectFailed(e);
+            throw e;
+        }
+        // Closing the selector deregistered the channel, so it can go back to blocking mode.
+        channel.configureBlocking(true);
+        return channel;
+    }
+
+    public String stats() {
+        return String.format("DNS cache: hits=%d staleHits=%d negativeHits=%d misses=%d shared=%d entries=%d",
+                hits.sum(), staleHits.sum(), negativeHits.sum(), misses.sum(), shared.sum(), cache.size());
+    }
+
+    private SocketChannel race(Selector selector, List<InetAddress> addresses, String host, int port,
+                               SocketPolicy.Options options) throws IOException {
+        int timeoutMillis = options.connectTimeoutMillis();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis > 0 ? timeoutMillis : 75_000);
+        List<SocketChannel> attempts = new ArrayList<>();
+        IOException lastError = null;
+        int next = 0;
+        long nextAttemptAt = System.nanoTime();
+        try {
+            while (true) {
+                long now = System.nanoTime();
+                if (next < addresses.size() && (now >= nextAttemptAt || attempts.isEmpty())) {
+                    SocketChannel channel = SocketChannel.open();
+                    try {
+                        channel.configureBlocking(false);
+                        options.configure(channel);
+                        if (channel.connect(new InetSocketAddress(addresses.get(next), port))) {
+                            return channel;
+                        }
+                        channel.register(selector, SelectionKey.OP_CONNECT);
+                        attempts.add(channel);
+                    } catch (IOException e) {
+                        channel.close();
+                        lastError = e;
+                    }
+                    next++;
+                    nextAttemptAt = now + TimeUnit.MILLISECONDS.toNanos(attemptDelayMillis);
+                    continue;
+                }
+                if (attempts.isEmpty()) {
+                    throw lastError != null ? lastError : new UnknownHostException(host);
+                }
+                if (now >= deadline) {
+                    throw new SocketTimeoutException("Connect to " + host + ":" + port + " timed out.");
+                }
+
+                long waitUntil = next < addresses.size() ? Math.min(nextAttemptAt, deadline) : deadline;
+                selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitUntil - now)));
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    SocketChannel channel = (SocketChannel) key.channel();
+                    try {
+                        if (channel.finishConnect()) {
+                            attempts.remove(channel);
+                            return channel;
+                        }
+                    } catch (IOException e) {
+                        attempts.remove(channel);
+                        channel.close();
+                        lastError = e;
+                        // A failed attempt lets the next address start straight away.
+                        nextAttemptAt = System.nanoTime();
+                    }
+                }
+            }
+        } finally {
+            for (SocketChannel attempt : attempts) {
+                attempt.close();
+            }
+        }
+    }
+
+    // Starts a lookup for key, or joins the one already running.
+    private CompletableFuture<CacheEntry> query(String key) {
+        CompletableFuture<CacheEntry> query = new CompletableFuture<>();
+        CompletableFuture<CacheEntry> running = inFlight.putIfAbsent(key, query);
+        if (running != null) {
+            shared.increment();
+            return running;
+        }
+        misses.increment();
+        lookupThreads.execute(() -> {
+            CacheEntry entry;
+            long now = System.currentTimeMillis();
+            try {
+                Answer answer = lookup.lookup(key);
+                long ttl = answer.ttlSeconds() >= 0 ? TimeUnit.SECONDS.toMillis(answer.ttlSeconds()) : defaultTtlMillis;
+                entry = new CacheEntry(answer.addresses(), now + ttl, now + ttl + staleMillis);
+            } catch (UnknownHostException e) {
+                entry = new CacheEntry(null, now + negativeTtlMillis, now + negativeTtlMillis);
+            } catch (RuntimeException e) {
+                Logger.logError("DNS lookup of " + key + " failed: " + e.getMessage());
+                entry = new CacheEntry(null, now, now);
+            }
+            store(key, entry);
+            inFlight.remove(key);
+            query.complete(entry);
+        });
+        return query;
+    }
+
+    private void store(String key, CacheEntry entry) {
+        if (cache.size() >= MAX_ENTRIES) {
+            long now = System.currentTimeMillis();
+            cache.values().removeIf(cached -> now >= cached.staleUntil());
+            if (cache.size() >= MAX_ENTRIES) {
+                cache.clear();
+            }
+        }
+        cache.put(key, entry);
+    }
+
+    private static InetAddress[] addressesOf(String host, CacheEntry entry) {
+        if (entry.addresses() == null) {
+            throw new CompletionException(new UnknownHostException(host));
+        }
+        return entry.addresses();
+    }
+
+    private static Answer systemLookup(String host) throws UnknownHostException {
+        return new Answer(InetAddress.getAllByName(host), -1);
+    }
+
+    // Alternates address families, starting with the family of the first address, as RFC 8305 suggests.
+    static List<InetAddress> interleaveFamilies(InetAddress[] addresses) {
+        List<InetAddress> first = new ArrayList<>();
+        List<InetAddress> second = new ArrayList<>();
+        boolean firstIsV6 = addresses.length > 0 && addresses[0] instanceof Inet6Address;
+        for (InetAddress address : addresses) {
+            ((address instanceof Inet6Address) == firstIsV6 ? first : second).add(address);
+        }
+        List<InetAddress> ordered = new ArrayList<>(addresses.length);
+        for (int i = 0; i < Math.max(first.size(), second.size()); i++) {
+            if (i < first.size()) {
+                ordered.add(first.get(i));
+            }
+            if (i < second.size()) {
+                ordered.add(second.get(i));
+            }
+        }
+        return ordered;
+    }
+
+    /**
+     * Answers from a hosts-style file instead of the network. Each line is an address, a name,
+     * and optionally a TTL in seconds; a name on several lines gets all of their addresses.
+     * Lines starting with # are ignored, as are lines whose TTL is not a number.
+     * Names not in the file do not resolve.
+     * */
+    public static final class StubLookup implements Lookup {
+
+        private final Map<String, List<InetAddress>> addresses = new HashMap<>();
+        private final Map<String, Long> ttls = new HashMap<>();
+
+        public StubLookup(Path hostsFile) throws IOException {
+            try (BufferedReader reader = Files.newBufferedReader(hostsFile)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] parts = line.trim().split("\\s+");
+                    if (parts.length < 2 || parts[0].startsWith("#")) {
+                        continue;
+                    }
+                    long ttlSeconds;
+                    try {
+                        ttlSeconds = parts.length > 2 ? Long.parseLong(parts[2]) : -1;
+                    } catch (NumberFormatException e) {
+                        Logger.logError("Skipping hosts file line with a malformed TTL: " + line);
+                        continue;
+                    }
+                    add(parts[1], InetAddress.getByName(parts[0]), ttlSeconds);
+                }
+            }
+        }
+
+        public StubLookup() {
+        }
+
+        // Addresses must be literals, so adding them never does a real lookup.
+        public synchronized StubLookup add(String host, InetAddress address, long ttlSeconds) {
+            String key = host.toLowerCase(Locale.ROOT);
+            addresses.computeIfAbsent(key, name -> new ArrayList<>()).add(address);
+            ttls.put(key, ttlSeconds);
+            return this;
+        }
+
+        @Override
+        public synchronized Answer lookup(String host) throws UnknownHostException {
+            List<InetAddress> found = addresses.get(host.toLowerCase(Locale.ROOT));
+            if (found == null) {
+                throw new UnknownHostException(host);
+            }
+            return new Answer(found.toArray(new InetAddress[0]), ttls.get(host.toLowerCase(Locale.ROOT)));
+        }
+    }
+}
@@ -1,5 +1,6 @@
 /**
  * Various methods to verify the parsed data is valid for a connection.
+ * Whether the target may be reached at all is for the DestinationFilter to decide.
  * */
 
 public class DataVerification {
@@ -13,20 +14,7 @@ public class DataVerification {
     }
 
     private static boolean isValidHost (String host) {
-        return host != null && !host.isEmpty() && !isLocalHost(host);
-    }
-
-    private static boolean isLocalHost (String host) {
-        String[] localConnections = {"localhost", "127.0.0.1", "::1",
-                "10.", "192.168.", "172.16.", "172.17.", "172.18.", "172.19.",
-                "172.20.", "172.21.", "172.22.", "172.23.", "172.24.", "172.25.",
-                "172.26.", "172.27.", "172.28.", "172.29.", "172.30.", "172.31.", "fd00:/8"};
-
-        for (String connection : localConnections) {
-            if (host.toLowerCase().startsWith(connection)) return true;
-        }
-
-        return false;
+        return host != null && !host.isEmpty();
     }
 
 
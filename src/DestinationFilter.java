@@ -0,0 +1,564 @@
+/**
+ * DestinationFilter decides which targets clients may reach, by domain name and by address.
+ * Address rules are CIDR ranges in one path-compressed binary trie keyed by 128 bits, with IPv4
+ * kept as IPv4-mapped IPv6, so a lookup walks at most one node per prefix bit and the longest matching range wins.
+ * Domain rules sit in a trie of labels read from the right, so "example.com" covers its subdomains too,
+ * and the most specific matching domain wins. Neither trie walk allocates or depends on the number of rules.
+ * A name with a domain rule is decided by it. Any other name is checked again once resolved, and each of its
+ * addresses must pass the address rules, so a public name pointing at a private address is still refused.
+ * With FilterBlockPrivate on, loopback, private, link-local and unique-local ranges and localhost are denied.
+ * FilterRulesFile adds rules, one per line: "allow" or "deny" then a CIDR range, address or domain.
+ * A line with just a range or domain, or in hosts-file form ("0.0.0.0 ads.example.com"), is a deny,
+ * so published blocklists can be used as they are. Lines starting with # are ignored.
+ * Targets that no rule covers get FilterDefault, allow or deny.
+ * */
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+public class DestinationFilter {
+
+    private static final byte NONE = 0;
+    private static final byte ALLOW = 1;
+    private static final byte DENY = 2;
+
+    private static final String[] PRIVATE_RANGES = {"0.0.0.0/8", "10.0.0.0/8", "100.64.0.0/10", "127.0.0.0/8",
+            "169.254.0.0/16", "172.16.0.0/12", "192.168.0.0/16", "::/128", "::1/128", "fc00::/7", "fe80::/10"};
+    private static final String[] PRIVATE_DOMAINS = {"localhost"};
+
+    private static volatile DestinationFilter instance;
+
+    private final CidrTrie addressRules = new CidrTrie();
+    private final DomainTrie domainRules = new DomainTrie();
+    private final boolean isDefaultAllow;
+    private int ruleCount = 0;
+    private final LongAdder denied = new LongAdder();
+
+    // Thrown when a target, or every address it resolves to, is denied.
+    public static class DeniedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public DeniedException(String message) {
+            super(message);
+        }
+    }
+
+    public DestinationFilter(boolean isDefaultAllow) {
+        this.isDefaultAllow = isDefaultAllow;
+    }
+
+    public static DestinationFilter getInstance(ConfigurationManager config) {
+        DestinationFilter filter = instance;
+        return filter != null ? filter : createInstance(config);
+    }
+
+    private static synchronized DestinationFilter createInstance(ConfigurationManager config) {
+        if (instance == null) {
+            DestinationFilter filter = new DestinationFilter(!"deny".equalsIgnoreCase(config.getConfig("FilterDefault")));
+            if (config.getIntConfig("FilterBlockPrivate", 1) == 1) {
+                filter.denyPrivate();
+            }
+            String rulesFile = config.getConfig("FilterRulesFile");
+            if (rulesFile != null && !rulesFile.isBlank()) {
+                try {
+                    long started = System.nanoTime();
+                    int loaded = filter.load(Path.of(rulesFile));
+                    Logger.logInfo("Loaded " + loaded + " destination rules from " + rulesFile + " in " +
+                            (System.nanoTime() - started) / 1_000_000 + "ms");
+                } catch (NoSuchFileException e) {
+                    Logger.logInfo("No destination rules file at " + rulesFile);
+                } catch (IOException e) {
+                    System.out.println("Destination rules could not be read. Continuing without them.");
+                    Logger.logError("Could not read destination rules " + rulesFile + ": " + e.getMessage());
+                }
+            }
+            instance = filter;
+        }
+        return instance;
+    }
+
+    public void denyPrivate() {
+        for (String range : PRIVATE_RANGES) {
+            addRule(DENY, range);
+        }
+        for (String domain : PRIVATE_DOMAINS) {
+            addRule(DENY, domain);
+        }
+    }
+
+    // Adds one rule line. Returns false, adding nothing, if it cannot be understood.
+    public boolean addRule(String line) {
+        String rule = line.trim();
+        int space = 0;
+        while (space < rule.length() && !Character.isWhitespace(rule.charAt(space))) {
+            space++;
+        }
+        if (space == rule.length()) {
+            return addRule(DENY, rule);
+        }
+        String verb = rule.substring(0, space);
+        String target = rule.substring(space).trim();
+        if (target.isEmpty() || target.chars().anyMatch(Character::isWhitespace)) {
+            return false;
+        }
+        return switch (verb.toLowerCase(Locale.ROOT)) {
+            case "allow" -> addRule(ALLOW, target);
+            case "deny" -> addRule(DENY, target);
+            // Hosts-file blocklists send the name to an unroutable address.
+            case "0.0.0.0", "127.0.0.1", "::", "::1" -> addRule(DENY, target);
+            default -> false;
+        };
+    }
+
+    // Returns the number of rules read. Unreadable lines are counted in the log, not fatal.
+    public int load(Path rulesFile) throws IOException {
+        int loaded = 0;
+        int skipped = 0;
+        try (BufferedReader reader = Files.newBufferedReader(rulesFile)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank() || line.trim().startsWith("#")) {
+                    continue;
+                }
+                if (addRule(line)) {
+                    loaded++;
+                } else {
+                    skipped++;
+                }
+            }
+        }
+        if (skipped > 0) {
+            Logger.logError("Skipped " + skipped + " unreadable lines in " + rulesFile);
+        }
+        return loaded;
+    }
+
+    /**
+     * Checks a target before it is resolved. Domain rules decide names they cover, and address literals
+     * are checked against the address rules. Returns true for names left to the check on their addresses.
+     * */
+    public boolean isHostAllowed(String host) {
+        byte action = decideName(host);
+        if (action == NONE) {
+            return true;
+        }
+        if (action == DENY) {
+            denied.increment();
+        }
+        return action == ALLOW;
+    }
+
+    /**
+     * Returns the addresses host may be connected on, in their original order.
+     * Throws DeniedException if the name is denied or none of its addresses are allowed.
+     * */
+    public List<InetAddress> permitted(String host, List<InetAddress> addresses) throws DeniedException {
+        byte action = decideName(host);
+        if (action == ALLOW) {
+            return addresses;
+        }
+        List<InetAddress> permitted = new ArrayList<>(addresses.size());
+        if (action == NONE) {
+            for (InetAddress address : addresses) {
+                if (isAddressAllowed(address)) {
+                    permitted.add(address);
+                }
+            }
+        }
+        if (permitted.isEmpty()) {
+            denied.increment();
+            throw new DeniedException("Destination " + host + " is not allowed.");
+        }
+        return permitted;
+    }
+
+    public boolean isAddressAllowed(InetAddress address) {
+        long high;
+        long low;
+        if (address instanceof Inet4Address) {
+            // An IPv4 address's hash code is the address itself, and unlike getAddress it does not copy.
+            high = 0;
+            low = 0xffff00000000L | (address.hashCode() & 0xffffffffL);
+        } else {
+            byte[] bytes = address.getAddress();
+            high = toLong(bytes, 0, 8);
+            low = toLong(bytes, 8, 16);
+        }
+        byte action = addressRules.lookup(high, low);
+        return action == NONE ? isDefaultAllow : action == ALLOW;
+    }
+
+    public String stats() {
+        return String.format("Destination filter: rules=%d trieNodes=%d denied=%d default=%s", ruleCount,
+                addressRules.size, denied.sum(), isDefaultAllow ? "allow" : "deny");
+    }
+
+    // The domain rule for a name, or for an address literal its address rule.
+    private byte decideName(String host) {
+        if (isAddressLiteral(host)) {
+            try {
+                return isAddressAllowed(InetAddress.getByName(stripBrackets(host))) ? ALLOW : DENY;
+            } catch (UnknownHostException e) {
+                return DENY;
+            }
+        }
+        return domainRules.lookup(host);
+    }
+
+    private boolean addRule(byte action, String rule) {
+        boolean isAdded = isAddressLiteral(rule.contains("/") ? rule.substring(0, rule.indexOf('/')) : rule)
+                ? addAddressRule(action, rule) : addDomainRule(action, rule);
+        if (isAdded) {
+            ruleCount++;
+        }
+        return isAdded;
+    }
+
+    private boolean addAddressRule(byte action, String rule) {
+        int slash = rule.indexOf('/');
+        String literal = stripBrackets(slash >= 0 ? rule.substring(0, slash) : rule);
+        try {
+            byte[] bytes = isIPv4Literal(literal) ? parseIPv4(literal) : InetAddress.getByName(literal).getAddress();
+            if (bytes == null) {
+                return false;
+            }
+            int bits = bytes.length * 8;
+            int length = slash >= 0 ? Integer.parseInt(rule.substring(slash + 1)) : bits;
+            if (length < 0 || length > bits) {
+                return false;
+            }
+            long high;
+            long low;
+            if (bytes.length == 4) {
+                high = 0;
+                low = 0xffff00000000L | (toLong(bytes, 0, 4) & 0xffffffffL);
+                length += 96;
+            } else {
+                high = toLong(bytes, 0, 8);
+                low = toLong(bytes, 8, 16);
+            }
+            addressRules.insert(high, low, length, action);
+            return true;
+        } catch (UnknownHostException | NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private boolean addDomainRule(byte action, String rule) {
+        String domain = rule.toLowerCase(Locale.ROOT);
+        if (domain.startsWith("*.")) {
+            domain = domain.substring(2);
+        }
+        if (domain.endsWith(".")) {
+            domain = domain.substring(0, domain.length() - 1);
+        }
+        if (domain.isEmpty() || domain.startsWith(".") || domain.contains("..")) {
+            return false;
+        }
+        for (int i = 0; i < domain.length(); i++) {
+            char c = domain.charAt(i);
+            if (!(c >= 'a' && c <= 'z' || c >= '0' && c <= '9' || c == '-' || c == '_' || c == '.')) {
+                return false;
+            }
+        }
+        domainRules.insert(domain, action);
+        return true;
+    }
+
+    // Only literals are passed to InetAddress.getByName, so parsing rules never does a DNS lookup.
+    private static boolean isAddressLiteral(String host) {
+        return host.indexOf(':') >= 0 || isIPv4Literal(host);
+    }
+
+    private static boolean isIPv4Literal(String host) {
+        return parseIPv4(host) != null;
+    }
+
+    private static byte[] parseIPv4(String host) {
+        byte[] bytes = new byte[4];
+        int octet = 0;
+        int value = -1;
+        for (int i = 0; i <= host.length(); i++) {
+            char c = i < host.length() ? host.charAt(i) : '.';
+            if (c == '.') {
+                if (value < 0 || octet == 4) {
+                    return null;
+                }
+                bytes[octet++] = (byte) value;
+                value = -1;
+            } else if (c >= '0' && c <= '9') {
+                value = (value < 0 ? 0 : value * 10) + (c - '0');
+                if (value > 255) {
+                    return null;
+                }
+            } else {
+                return null;
+            }
+        }
+        return octet == 4 ? bytes : null;
+    }
+
+    private static String stripBrackets(String host) {
+        return host.startsWith("[") && host.endsWith("]") ? host.substring(1, host.length() - 1) : host;
+    }
+
+    private static long toLong(byte[] bytes, int from, int to) {
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            value = (value << 8) | (bytes[i] & 0xff);
+        }
+        return value;
+    }
+
+    /**
+     * A path-compressed binary trie over 128-bit keys. Nodes are packed four longs apiece into one array
+     * rather than being objects, so each node visited is a single cache line and a million ranges fit in tens of megabytes.
+     * Each node holds a prefix and its length; a child's prefix always extends its parent's,
+     * and single-child chains are collapsed into one node.
+     * */
+    private static final class CidrTrie {
+
+        // Per node: prefix high bits, prefix low bits, length << 8 | action, zero child << 32 | one child.
+        private static final int STRIDE = 4;
+        private static final long NO_CHILD = 0xffffffffL;
+
+        private long[] nodes = new long[64 * STRIDE];
+        private int size = 0;
+
+        private CidrTrie() {
+            newNode(0, 0, 0, NONE);
+        }
+
+        private void insert(long keyHigh, long keyLow, int keyLength, byte keyAction) {
+            keyHigh = mask(keyHigh, keyLength);
+            keyLow = mask(keyLow, keyLength - 64);
+            int node = 0;
+            while (true) {
+                int nodeLength = length(node);
+                if (nodeLength == keyLength) {
+                    setAction(node, keyAction);
+                    return;
+                }
+                boolean isOne = bit(keyHigh, keyLow, nodeLength);
+                int child = child(node, isOne);
+                if (child < 0) {
+                    setChild(node, isOne, newNode(keyHigh, keyLow, keyLength, keyAction));
+                    return;
+                }
+                int childLength = length(child);
+                int common = commonPrefix(keyHigh, keyLow, nodes[child * STRIDE], nodes[child * STRIDE + 1],
+                        Math.min(keyLength, childLength));
+                if (common == childLength) {
+                    node = child;
+                    continue;
+                }
+                // The key leaves the child's path part way along it, so that part becomes a node of its own.
+                int split = newNode(mask(keyHigh, common), mask(keyLow, common - 64), common, NONE);
+                setChild(node, isOne, split);
+                setChild(split, bit(nodes[child * STRIDE], nodes[child * STRIDE + 1], common), child);
+                if (common == keyLength) {
+                    setAction(split, keyAction);
+                } else {
+                    setChild(split, bit(keyHigh, keyLow, common), newNode(keyHigh, keyLow, keyLength, keyAction));
+                }
+                return;
+            }
+        }
+
+        // The action of the longest prefix covering the key, or NONE.
+        private byte lookup(long keyHigh, long keyLow) {
+            byte best = NONE;
+            int node = 0;
+            while (node >= 0) {
+                int base = node * STRIDE;
+                long meta = nodes[base + 2];
+                int nodeLength = (int) (meta >>> 8);
+                if (commonPrefix(keyHigh, keyLow, nodes[base], nodes[base + 1], nodeLength) < nodeLength) {
+                    break;
+                }
+                byte action = (byte) meta;
+                if (action != NONE) {
+                    best = action;
+                }
+                if (nodeLength == 128) {
+                    break;
+                }
+                long children = nodes[base + 3];
+                long next = bit(keyHigh, keyLow, nodeLength) ? children & NO_CHILD : children >>> 32;
+                node = next == NO_CHILD ? -1 : (int) next;
+            }
+            return best;
+        }
+
+        private int newNode(long nodeHigh, long nodeLow, int nodeLength, byte nodeAction) {
+            if ((size + 1) * STRIDE > nodes.length) {
+                nodes = Arrays.copyOf(nodes, nodes.length * 2);
+            }
+            int base = size * STRIDE;
+            nodes[base] = nodeHigh;
+            nodes[base + 1] = nodeLow;
+            nodes[base + 2] = (long) nodeLength << 8 | (nodeAction & 0xff);
+            nodes[base + 3] = NO_CHILD << 32 | NO_CHILD;
+            return size++;
+        }
+
+        private int length(int node) {
+            return (int) (nodes[node * STRIDE + 2] >>> 8);
+        }
+
+        private void setAction(int node, byte action) {
+            int base = node * STRIDE + 2;
+            nodes[base] = (nodes[base] & ~0xffL) | (action & 0xff);
+        }
+
+        private int child(int node, boolean isOne) {
+            long children = nodes[node * STRIDE + 3];
+            long child = isOne ? children & NO_CHILD : children >>> 32;
+            return child == NO_CHILD ? -1 : (int) child;
+        }
+
+        private void setChild(int node, boolean isOne, int child) {
+            int base = node * STRIDE + 3;
+            nodes[base] = isOne ? (nodes[base] & ~NO_CHILD) | child : (nodes[base] & NO_CHILD) | (long) child << 32;
+        }
+
+        private static boolean bit(long keyHigh, long keyLow, int index) {
+            return index < 64 ? (keyHigh >>> (63 - index) & 1) != 0 : (keyLow >>> (127 - index) & 1) != 0;
+        }
+
+        // Keeps the top bits of a 64-bit half, clearing the rest.
+        private static long mask(long half, int bits) {
+            if (bits <= 0) {
+                return 0;
+            }
+            return bits >= 64 ? half : half & (-1L << (64 - bits));
+        }
+
+        // The number of leading bits two keys share, at most limit.
+        private static int commonPrefix(long aHigh, long aLow, long bHigh, long bLow, int limit) {
+            long difference = aHigh ^ bHigh;
+            int common = difference != 0 ? Long.numberOfLeadingZeros(difference)
+                    : 64 + Long.numberOfLeadingZeros(aLow ^ bLow);
+            return Math.min(common, limit);
+        }
+    }
+
+    /**
+     * A trie of domain labels read from the right. Each node's children are in a small open-addressing table
+     * probed with a hash of the label's characters, so looking up a host compares regions of it in place
+     * instead of splitting it into strings.
+     * */
+    private static final class DomainTrie {
+
+        private static final class Node {
+            private String[] labels;
+            private Node[] children;
+            private int count;
+            private byte action = NONE;
+
+            private Node find(String host, int start, int end) {
+                if (labels == null) {
+                    return null;
+                }
+                int mask = labels.length - 1;
+                for (int slot = hash(host, start, end) & mask; labels[slot] != null; slot = (slot + 1) & mask) {
+                    String label = labels[slot];
+                    if (label.length() == end - start && host.regionMatches(true, start, label, 0, label.length())) {
+                        return children[slot];
+                    }
+                }
+                return null;
+            }
+
+            private Node findOrAdd(String label) {
+                Node existing = find(label, 0, label.length());
+                if (existing != null) {
+                    return existing;
+                }
+                if (labels == null || (count + 1) * 4 > labels.length * 3) {
+                    resize();
+                }
+                Node child = new Node();
+                put(label, child);
+                count++;
+                return child;
+            }
+
+            private void put(String label, Node child) {
+                int mask = labels.length - 1;
+                int slot = hash(label, 0, label.length()) & mask;
+                while (labels[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                labels[slot] = label;
+                children[slot] = child;
+            }
+
+            private void resize() {
+                String[] oldLabels = labels;
+                Node[] oldChildren = children;
+                int capacity = oldLabels == null ? 2 : oldLabels.length * 2;
+                labels = new String[capacity];
+                children = new Node[capacity];
+                if (oldLabels != null) {
+                    for (int i = 0; i < oldLabels.length; i++) {
+                        if (oldLabels[i] != null) {
+                            put(oldLabels[i], oldChildren[i]);
+                        }
+                    }
+                }
+            }
+
+            private static int hash(String text, int start, int end) {
+                int hash = 0;
+                for (int i = start; i < end; i++) {
+                    hash = 31 * hash + Character.toLowerCase(text.charAt(i));
+                }
+                return hash ^ (hash >>> 16);
+            }
+        }
+
+        private final Node root = new Node();
+
+        private void insert(String domain, byte domainAction) {
+            Node node = root;
+            int end = domain.length();
+            while (end > 0) {
+                int start = domain.lastIndexOf('.', end - 1) + 1;
+                node = node.findOrAdd(domain.substring(start, end));
+                end = start - 1;
+            }
+            node.action = domainAction;
+        }
+
+        // The action of the most specific rule covering host, or NONE.
+        private byte lookup(String host) {
+            byte best = NONE;
+            Node node = root;
+            int end = host.endsWith(".") ? host.length() - 1 : host.length();
+            while (end > 0) {
+                int start = host.lastIndexOf('.', end - 1) + 1;
+                node = node.find(host, start, end);
+                if (node == null) {
+                    break;
+                }
+                if (node.action != NONE) {
+                    best = node.action;
+                }
+                end = start - 1;
+            }
+            return best;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/**
+ * DirectBufferPool hands out direct ByteBuffers of TunnelBufferSize bytes for tunnel relays.
+ * Direct buffers let a SocketChannel read and write without the JDK copying through a temporary
+ * native buffer, but they are slow to allocate and only freed by the garbage collector,
+ * so they are kept and reused instead of being allocated per tunnel.
+ * At most TunnelBufferPoolMax idle buffers are kept; extra buffers are left to the garbage collector.
+ * */
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+public class DirectBufferPool {
+
+    private static volatile DirectBufferPool instance;
+
+    private final Queue<ByteBuffer> idleBuffers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private final int bufferSize;
+    private final int maxIdle;
+
+    private final LongAdder reused = new LongAdder();
+    private final LongAdder allocated = new LongAdder();
+
+    private DirectBufferPool(int bufferSize, int maxIdle) {
+        this.bufferSize = bufferSize;
+        this.maxIdle = maxIdle;
+    }
+
+    public static DirectBufferPool getInstance(ConfigurationManager config) {
+        DirectBufferPool pool = instance;
+        return pool != null ? pool : createInstance(config);
+    }
+
+    private static synchronized DirectBufferPool createInstance(ConfigurationManager config) {
+        if (instance == null) {
+            instance = new DirectBufferPool(config.getIntConfig("TunnelBufferSize", 64 * 1024),
+                    config.getIntConfig("TunnelBufferPoolMax", 256));
+        }
+        return instance;
+    }
+
+    // Returns a cleared buffer, reused if one is idle.
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = idleBuffers.poll();
+        if (buffer != null) {
+            idleCount.decrementAndGet();
+            reused.increment();
+            return buffer;
+        }
+        allocated.increment();
+        return ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (idleCount.incrementAndGet() > maxIdle) {
+            idleCount.decrementAndGet();
+            return;
+        }
+        buffer.clear();
+        idleBuffers.offer(buffer);
+    }
+
+    public String stats() {
+        return String.format("Tunnel buffers: idle=%d reused=%d allocated=%d bufferSize=%d",
+                idleCount.get(), reused.sum(), allocated.sum(), bufferSize);
+    }
+}
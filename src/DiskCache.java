@@ -0,0 +1,318 @@
+/**
+ * DiskCache is the on-disk tier of ResponseCache, for responses too large to keep on the heap.
+ * Bodies are appended to segment files in DiskCacheDir. Each record starts with a small header
+ * (key, metadata and body length), so the segments are their own index: on startup the headers
+ * are scanned and the bodies skipped, which rebuilds the in-memory index without reading any body.
+ * A record cut short by a crash is truncated away during that scan.
+ * Removals and metadata updates are appended as records of their own, without a body, which the scan
+ * applies in order, so they survive a restart too.
+ * Writers first spill a body to a temp file, then append it to the active segment under a lock,
+ * so concurrent downloads never interleave. Hits are sent with FileChannel.transferTo.
+ * When the segments exceed DiskCacheSizeMB the oldest one is dropped with all its entries.
+ * A segment is only closed and deleted once no hit is still reading from it.
+ * */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class DiskCache {
+
+    private static final int MAGIC = 0x46504331;
+    // Records that change an earlier entry: a tombstone removes the key, the other replaces its metadata.
+    private static final int TOMBSTONE_MAGIC = 0x46504332;
+    private static final int METADATA_MAGIC = 0x46504333;
+    private static final int RECORD_HEADER_SIZE = 20;
+    private static final long SEGMENT_BYTES = 256L * 1024 * 1024;
+
+    // Where one body lives. metadata is opaque to the disk tier and owned by ResponseCache.
+    public record Entry(String key, byte[] metadata, Segment segment, long bodyPosition, long bodyLength) {}
+
+    private final Path directory;
+    private final Path tempDirectory;
+    private final long maxBytes;
+    private final Map<String, Entry> index = new ConcurrentHashMap<>();
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private final Object appendLock = new Object();
+    private long totalBytes = 0;
+    private long nextSegmentId = 0;
+
+    public DiskCache(Path directory, long maxBytes) throws IOException {
+        this.directory = directory;
+        this.tempDirectory = directory.resolve("tmp");
+        this.maxBytes = maxBytes;
+        Files.createDirectories(tempDirectory);
+        clearTempFiles();
+        rebuild();
+    }
+
+    public Entry get(String key) {
+        return index.get(key);
+    }
+
+    public int entryCount() {
+        return index.size();
+    }
+
+    public long sizeBytes() {
+        synchronized (appendLock) {
+            return totalBytes;
+        }
+    }
+
+    // A temp file to spill a body into while it is still downloading.
+    public Path createTempFile() throws IOException {
+        return Files.createTempFile(tempDirectory, "body-", ".tmp");
+    }
+
+    // Appends the body in tempFile to the active segment and indexes it under key. Deletes tempFile.
+    public Entry put(String key, byte[] metadata, Path tempFile, long bodyLength) throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE + keyBytes.length + metadata.length);
+        header.putInt(MAGIC).putInt(keyBytes.length).putInt(metadata.length).putLong(bodyLength)
+                .put(keyBytes).put(metadata).flip();
+        long recordLength = header.remaining() + bodyLength;
+
+        try (FileChannel body = FileChannel.open(tempFile, StandardOpenOption.READ)) {
+            Entry entry;
+            synchronized (appendLock) {
+                Segment segment = activeSegment(recordLength);
+                long position = segment.size;
+                while (header.hasRemaining()) {
+                    position += segment.channel.write(header, position);
+                }
+                long bodyPosition = position;
+                long copied = 0;
+                while (copied < bodyLength) {
+                    long transferred = segment.channel.transferFrom(body, bodyPosition + copied, bodyLength - copied);
+                    if (transferred <= 0) {
+                        throw new IOException("Cached body is shorter than expected.");
+                    }
+                    copied += transferred;
+                }
+                segment.size = bodyPosition + bodyLength;
+                totalBytes += recordLength;
+                entry = new Entry(key, metadata, segment, bodyPosition, bodyLength);
+                index.put(key, entry);
+                evictOverflow();
+            }
+            return entry;
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    // Replaces the metadata of an entry, for example after a revalidation.
+    public void updateMetadata(Entry entry, byte[] metadata) {
+        if (Arrays.equals(entry.metadata(), metadata)) {
+            return;
+        }
+        synchronized (appendLock) {
+            if (index.replace(entry.key(), entry,
+                    new Entry(entry.key(), metadata, entry.segment(), entry.bodyPosition(), entry.bodyLength()))) {
+                appendChange(METADATA_MAGIC, entry.key(), metadata);
+            }
+        }
+    }
+
+    public void remove(String key) {
+        synchronized (appendLock) {
+            if (index.remove(key) != null) {
+                appendChange(TOMBSTONE_MAGIC, key, new byte[0]);
+            }
+        }
+    }
+
+    /**
+     * Keeps the entry's segment open until release is called.
+     * Returns false if the segment has already been evicted.
+     * */
+    public boolean retain(Entry entry) {
+        return entry.segment().retain();
+    }
+
+    public void release(Entry entry) {
+        entry.segment().release();
+    }
+
+    // Sends the body of a retained entry to target without copying it through the heap.
+    public void transferBody(Entry entry, WritableByteChannel target) throws IOException {
+        long position = entry.bodyPosition();
+        long end = position + entry.bodyLength();
+        while (position < end) {
+            position += entry.segment().channel.transferTo(position, end - position, target);
+        }
+    }
+
+    /**
+     * Appends a record without a body that changes the entry for key when the segments are scanned.
+     * Called with appendLock held. If it cannot be written the change is only kept until restart.
+     * */
+    private void appendChange(int magic, String key, byte[] metadata) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + keyBytes.length + metadata.length);
+        record.putInt(magic).putInt(keyBytes.length).putInt(metadata.length).putLong(0)
+                .put(keyBytes).put(metadata).flip();
+        long recordLength = record.remaining();
+        try {
+            Segment segment = activeSegment(recordLength);
+            long position = segment.size;
+            while (record.hasRemaining()) {
+                position += segment.channel.write(record, position);
+            }
+            segment.size = position;
+            totalBytes += recordLength;
+            evictOverflow();
+        } catch (IOException e) {
+            Logger.logError("Disk cache change for " + key + " could not be written: " + e.getMessage());
+        }
+    }
+
+    private Segment activeSegment(long recordLength) throws IOException {
+        Segment active = segments.peekLast();
+        if (active == null || (active.size > 0 && active.size + recordLength > SEGMENT_BYTES)) {
+            active = openSegment(nextSegmentId++);
+            segments.addLast(active);
+        }
+        return active;
+    }
+
+    private Segment openSegment(long id) throws IOException {
+        Path path = directory.resolve(String.format("segment-%08d.dat", id));
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        return new Segment(path, channel);
+    }
+
+    // Drops whole segments, oldest first, until the cache fits. Called with appendLock held.
+    private void evictOverflow() {
+        while (totalBytes > maxBytes && segments.size() > 1) {
+            Segment oldest = segments.removeFirst();
+            totalBytes -= oldest.size;
+            index.values().removeIf(entry -> entry.segment() == oldest);
+            oldest.release();
+        }
+    }
+
+    private void rebuild() throws IOException {
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "segment-*.dat")) {
+            stream.forEach(paths::add);
+        }
+        paths.sort(null);
+        for (Path path : paths) {
+            String name = path.getFileName().toString();
+            long id = Long.parseLong(name.substring("segment-".length(), name.length() - ".dat".length()));
+            Segment segment = openSegment(id);
+            scanSegment(segment);
+            segments.addLast(segment);
+            totalBytes += segment.size;
+            nextSegmentId = id + 1;
+        }
+        synchronized (appendLock) {
+            evictOverflow();
+        }
+        Logger.logInfo("Disk cache loaded " + index.size() + " entries from " + segments.size() + " segments.");
+    }
+
+    private void scanSegment(Segment segment) throws IOException {
+        FileChannel channel = segment.channel;
+        long fileSize = channel.size();
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        while (position + RECORD_HEADER_SIZE <= fileSize) {
+            header.clear();
+            channel.read(header, position);
+            header.flip();
+            int magic = header.getInt();
+            int keyLength = header.getInt();
+            int metadataLength = header.getInt();
+            long bodyLength = header.getLong();
+            long bodyPosition = position + RECORD_HEADER_SIZE + keyLength + metadataLength;
+            boolean isChange = magic == TOMBSTONE_MAGIC || magic == METADATA_MAGIC;
+            if ((magic != MAGIC && !isChange) || keyLength < 0 || metadataLength < 0 || bodyLength < 0
+                    || (isChange && bodyLength != 0) || bodyPosition + bodyLength > fileSize) {
+                break;
+            }
+            ByteBuffer keyAndMetadata = ByteBuffer.allocate(keyLength + metadataLength);
+            channel.read(keyAndMetadata, position + RECORD_HEADER_SIZE);
+            byte[] bytes = keyAndMetadata.array();
+            String key = new String(bytes, 0, keyLength, StandardCharsets.UTF_8);
+            byte[] metadata = new byte[metadataLength];
+            System.arraycopy(bytes, keyLength, metadata, 0, metadataLength);
+            if (magic == TOMBSTONE_MAGIC) {
+                index.remove(key);
+            } else if (magic == METADATA_MAGIC) {
+                index.computeIfPresent(key, (k, entry) -> new Entry(k, metadata, entry.segment(),
+                        entry.bodyPosition(), entry.bodyLength()));
+            } else {
+                index.put(key, new Entry(key, metadata, segment, bodyPosition, bodyLength));
+            }
+            position = bodyPosition + bodyLength;
+        }
+        if (position < fileSize) {
+            Logger.logError("Truncating incomplete disk cache record in " + segment.path.getFileName());
+            channel.truncate(position);
+        }
+        segment.size = position;
+    }
+
+    private void clearTempFiles() throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(tempDirectory)) {
+            for (Path path : stream) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    public static class Segment {
+
+        private final Path path;
+        private final FileChannel channel;
+        // Guarded by appendLock.
+        private long size = 0;
+        // The cache holds one reference for as long as the segment is live; hits hold the others.
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        private Segment(Path path, FileChannel channel) {
+            this.path = path;
+            this.channel = channel;
+        }
+
+        private boolean retain() {
+            int count;
+            do {
+                count = references.get();
+                if (count == 0) {
+                    return false;
+                }
+            } while (!references.compareAndSet(count, count + 1));
+            return true;
+        }
+
+        private void release() {
+            if (references.decrementAndGet() == 0) {
+                try {
+                    channel.close();
+                    Files.deleteIfExists(path);
+                } catch (IOException e) {
+                    Logger.logError("Disk cache segment could not be deleted: " + e.getMessage());
+                }
+            }
+        }
+    }
+}
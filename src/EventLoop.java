@@ -0,0 +1,155 @@
+/**
+ * EventLoop owns a single selector and the thread that runs it.
+ * Every channel registered with a loop is only read, written and closed from that thread.
+ * Other threads hand work to the loop with execute, which queues the task and wakes the selector.
+ * Handlers may set a deadline; the loop wakes at least every DEADLINE_CHECK_MILLIS and expires those past it.
+ * */
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+public final class EventLoop implements Runnable {
+
+    // Attached to every selection key registered with the loop.
+    interface Handler {
+        void handle(SelectionKey key) throws IOException;
+
+        void close();
+
+        // The System.nanoTime() by which the handler must have made progress.
+        default long deadline() {
+            return Long.MAX_VALUE;
+        }
+
+        // Called on the loop's thread once the deadline has passed.
+        default void expire() {
+            close();
+        }
+    }
+
+    private static final long DEADLINE_CHECK_MILLIS = 250;
+
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Thread loopThread;
+    private volatile boolean isRunning = false;
+    private long nextDeadlineCheck = 0;
+
+    public EventLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        this.loopThread = new Thread(this, name);
+    }
+
+    public void start() {
+        isRunning = true;
+        loopThread.start();
+    }
+
+    public void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    public Selector selector() {
+        return selector;
+    }
+
+    @Override
+    public void run() {
+        while (isRunning) {
+            try {
+                selector.select(DEADLINE_CHECK_MILLIS);
+                runTasks();
+                Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+                while (selectedKeys.hasNext()) {
+                    SelectionKey key = selectedKeys.next();
+                    selectedKeys.remove();
+                    dispatch(key);
+                }
+                expireOverdue();
+            } catch (IOException e) {
+                Logger.logError("Event loop " + loopThread.getName() + " failed: " + e.getMessage());
+                isRunning = false;
+            }
+        }
+        closeAll();
+    }
+
+    public void shutdown() {
+        isRunning = false;
+        selector.wakeup();
+        try {
+            loopThread.join();
+        } catch (InterruptedException e) {
+            Logger.logError("Event loop shutdown interrupted: " + e.getMessage());
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void dispatch(SelectionKey key) {
+        Handler handler = (Handler) key.attachment();
+        try {
+            if (key.isValid()) {
+                handler.handle(key);
+            }
+        } catch (IOException | CancelledKeyException e) {
+            Logger.logError("Connection closed on event loop: " + e.getMessage());
+            handler.close();
+        }
+    }
+
+    // Looks at every handler's deadline, at most once per DEADLINE_CHECK_MILLIS however busy the loop is.
+    private void expireOverdue() {
+        long now = System.nanoTime();
+        if (now - nextDeadlineCheck < 0) {
+            return;
+        }
+        nextDeadlineCheck = now + TimeUnit.MILLISECONDS.toNanos(DEADLINE_CHECK_MILLIS);
+        // Expiring may register or cancel keys, so the key set is copied first.
+        for (SelectionKey key : selector.keys().toArray(new SelectionKey[0])) {
+            if (key.isValid() && key.attachment() instanceof Handler handler && isPast(handler.deadline(), now)) {
+                try {
+                    handler.expire();
+                } catch (RuntimeException e) {
+                    Logger.logError("Event loop deadline failed: " + e);
+                    handler.close();
+                }
+            }
+        }
+    }
+
+    // Long.MAX_VALUE is no deadline; otherwise nanoTime values are compared by difference, as they may wrap.
+    static boolean isPast(long deadline, long now) {
+        return deadline != Long.MAX_VALUE && now - deadline >= 0;
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Logger.logError("Event loop task failed: " + e);
+            }
+        }
+    }
+
+    private void closeAll() {
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Handler handler) {
+                handler.close();
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            Logger.logError("Selector could not be closed: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/**
+ * EventLoopGroup runs the NIO server mode (ServerMode: nio in ServerConfig).
+ * The first loop also accepts new clients, which are then spread round-robin across all loops.
+ * Each accepted client is admitted through ClientLimiter, then driven by an NIOConnection state machine on its loop.
+ * stopAccepting takes whatever is left in the accept queue and stops accepting, while the loops keep
+ * serving the connections they have until shutdown.
+ * */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+
+public class EventLoopGroup {
+
+    private final EventLoop[] loops;
+    private final ConfigurationManager config;
+    private final ClientLimiter clientLimiter;
+    private final ConnectionTracker tracker;
+    private int nextLoop = 0;
+    private SelectionKey acceptKey;
+
+    public EventLoopGroup(int threads, ConfigurationManager config, ConnectionTracker tracker) throws IOException {
+        this.loops = new EventLoop[threads > 0 ? threads : Runtime.getRuntime().availableProcessors()];
+        this.config = config;
+        this.clientLimiter = ClientLimiter.getInstance(config);
+        this.tracker = tracker;
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop("event-loop-" + i);
+        }
+    }
+
+    public void start(ServerSocketChannel serverChannel) throws IOException {
+        serverChannel.configureBlocking(false);
+        for (EventLoop loop : loops) {
+            loop.start();
+        }
+
+        EventLoop acceptLoop = loops[0];
+        acceptLoop.execute(() -> {
+            try {
+                acceptKey = serverChannel.register(acceptLoop.selector(), SelectionKey.OP_ACCEPT,
+                        new Acceptor(serverChannel));
+            } catch (IOException e) {
+                Logger.logError("Could not register server channel: " + e.getMessage());
+            }
+        });
+        Logger.logInfo("NIO server started with " + loops.length + " event loops.");
+    }
+
+    // Accepts the clients already queued, then stops accepting. Returns once the accept loop has done so.
+    public void stopAccepting() throws InterruptedException {
+        CountDownLatch stopped = new CountDownLatch(1);
+        loops[0].execute(() -> {
+            try {
+                if (acceptKey != null && acceptKey.isValid()) {
+                    ((Acceptor) acceptKey.attachment()).handle(acceptKey);
+                    acceptKey.cancel();
+                }
+            } catch (IOException e) {
+                Logger.logError("Unexpected IO exception during accept: " + e.getMessage());
+            } finally {
+                stopped.countDown();
+            }
+        });
+        stopped.await();
+    }
+
+    public void shutdown() {
+        for (EventLoop loop : loops) {
+            loop.shutdown();
+        }
+    }
+
+    private void dispatch(SocketChannel clientChannel) throws IOException {
+        long acceptedAt = System.nanoTime();
+        String clientAddress = clientChannel.socket().getInetAddress().getHostAddress();
+        ClientLimiter.Admission admission = clientLimiter.admit(clientAddress);
+        if (admission != ClientLimiter.Admission.ACCEPTED) {
+            Logger.logError("Connection limit reached. Rejected client: " + clientAddress);
+            // A fresh socket's send buffer takes the short response without blocking the loop.
+            try (clientChannel) {
+                clientChannel.write(ByteBuffer.wrap(
+                        MainServer.limitResponse(admission).getBytes(StandardCharsets.UTF_8)));
+            }
+            return;
+        }
+        System.out.println("\nClient connected from " + clientAddress);
+        System.out.print("> ");
+        Logger.logInfo("New client connection accepted from: " + clientAddress);
+
+        EventLoop loop = loops[nextLoop];
+        nextLoop = (nextLoop + 1) % loops.length;
+        loop.execute(() -> {
+            Metrics.ACCEPT.recordSince(acceptedAt);
+            NIOConnection.register(loop, clientChannel, clientAddress, config, clientLimiter, tracker);
+        });
+    }
+
+    private class Acceptor implements EventLoop.Handler {
+
+        private final ServerSocketChannel serverChannel;
+
+        private Acceptor(ServerSocketChannel serverChannel) {
+            this.serverChannel = serverChannel;
+        }
+
+        @Override
+        public void handle(SelectionKey key) throws IOException {
+            SocketChannel clientChannel;
+            while ((clientChannel = serverChannel.accept()) != null) {
+                dispatch(clientChannel);
+            }
+        }
+
+        @Override
+        public void close() {
+            // The server channel belongs to MainServer, which closes it on shutdown.
+        }
+    }
+}
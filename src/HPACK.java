@@ -0,0 +1,349 @@
+/**
+ * HPACK is the header compression of HTTP/2 (RFC 7541), as far as HTTP2Connection needs it.
+ * A Decoder reads the header blocks of one client connection, keeping the dynamic table the client indexes into,
+ * and decodes Huffman-coded strings. An Encoder writes response headers as literals that are never added to
+ * the client's dynamic table, naming them by static table index where it can, so it needs no state of its own.
+ * Header names and values are ISO-8859-1 Strings, so that their lengths are their sizes in octets.
+ * */
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class HPACK {
+
+    // Every entry in the dynamic table is charged this much on top of its name and value (RFC 7541 section 4.1).
+    private static final int ENTRY_OVERHEAD = 32;
+    public static final int DEFAULT_TABLE_SIZE = 4096;
+
+    // RFC 7541 appendix A. Index 1 is the first entry.
+    private static final String[][] STATIC_TABLE = {
+            {":authority", ""}, {":method", "GET"}, {":method", "POST"}, {":path", "/"},
+            {":path", "/index.html"}, {":scheme", "http"}, {":scheme", "https"}, {":status", "200"},
+            {":status", "204"}, {":status", "206"}, {":status", "304"}, {":status", "400"},
+            {":status", "404"}, {":status", "500"}, {"accept-charset", ""}, {"accept-encoding", "gzip, deflate"},
+            {"accept-language", ""}, {"accept-ranges", ""}, {"accept", ""}, {"access-control-allow-origin", ""},
+            {"age", ""}, {"allow", ""}, {"authorization", ""}, {"cache-control", ""},
+            {"content-disposition", ""}, {"content-encoding", ""}, {"content-language", ""}, {"content-length", ""},
+            {"content-location", ""}, {"content-range", ""}, {"content-type", ""}, {"cookie", ""},
+            {"date", ""}, {"etag", ""}, {"expect", ""}, {"expires", ""},
+            {"from", ""}, {"host", ""}, {"if-match", ""}, {"if-modified-since", ""},
+            {"if-none-match", ""}, {"if-range", ""}, {"if-unmodified-since", ""}, {"last-modified", ""},
+            {"link", ""}, {"location", ""}, {"max-forwards", ""}, {"proxy-authenticate", ""},
+            {"proxy-authorization", ""}, {"range", ""}, {"referer", ""}, {"refresh", ""},
+            {"retry-after", ""}, {"server", ""}, {"set-cookie", ""}, {"strict-transport-security", ""},
+            {"transfer-encoding", ""}, {"user-agent", ""}, {"vary", ""}, {"via", ""},
+            {"www-authenticate", ""}};
+
+    // The first static index of each name.
+    private static final Map<String, Integer> STATIC_NAMES = new HashMap<>();
+
+    /**
+     * Code length in bits of each symbol of the Huffman code in RFC 7541 appendix B, with 256 for end of string.
+     * The code is canonical, so the codes themselves follow from the lengths.
+     * */
+    private static final byte[] HUFFMAN_LENGTHS = {
+            13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 30, 28, 28, 28,
+            28, 28, 28, 28, 28, 28, 6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6, 5, 5, 5, 6, 6, 6, 6, 6,
+            6, 6, 7, 8, 15, 6, 12, 10, 13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 8, 7,
+            8, 13, 19, 13, 14, 6, 15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5, 6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7,
+            15, 11, 14, 13, 28, 20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23, 24, 24, 22, 23, 24,
+            23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24, 22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23,
+            23, 21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23, 26, 26, 20, 19, 22, 23, 22, 25, 26,
+            26, 26, 27, 27, 26, 24, 25, 19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27, 20, 24, 20,
+            21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23, 26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27,
+            27, 27, 26, 30};
+    private static final int MAX_CODE_LENGTH = 30;
+    private static final int END_OF_STRING = 256;
+
+    // Canonical decoding: the codes of each length are consecutive, starting at firstCode and at firstSymbol in symbols.
+    private static final int[] symbols = new int[HUFFMAN_LENGTHS.length];
+    private static final int[] firstCode = new int[MAX_CODE_LENGTH + 1];
+    private static final int[] firstSymbol = new int[MAX_CODE_LENGTH + 1];
+    private static final int[] codeCount = new int[MAX_CODE_LENGTH + 1];
+
+    static {
+        for (int i = STATIC_TABLE.length; i > 0; i--) {
+            STATIC_NAMES.put(STATIC_TABLE[i - 1][0], i);
+        }
+        for (byte length : HUFFMAN_LENGTHS) {
+            codeCount[length]++;
+        }
+        int code = 0;
+        int index = 0;
+        for (int length = 1; length <= MAX_CODE_LENGTH; length++) {
+            code = (code + codeCount[length - 1]) << 1;
+            firstCode[length] = code;
+            firstSymbol[length] = index;
+            index += codeCount[length];
+        }
+        int[] next = firstSymbol.clone();
+        for (int symbol = 0; symbol < HUFFMAN_LENGTHS.length; symbol++) {
+            symbols[next[HUFFMAN_LENGTHS[symbol]]++] = symbol;
+        }
+    }
+
+    // A header block that breaks RFC 7541, which is a connection error of type COMPRESSION_ERROR.
+    public static class DecodingException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public DecodingException(String message) {
+            super(message);
+        }
+    }
+
+    private HPACK() {}
+
+    /**
+     * Decodes the header blocks of one connection, in the order they arrive.
+     * maxTableSize is the SETTINGS_HEADER_TABLE_SIZE this side advertised;
+     * maxListSize bounds the decoded size of one block, counted as the dynamic table counts entries.
+     * */
+    public static class Decoder {
+
+        private final int maxTableSize;
+        private final int maxListSize;
+        // Newest entry first, which is dynamic index 62.
+        private final ArrayDeque<String[]> dynamicTable = new ArrayDeque<>();
+        private int tableSize = 0;
+        private int tableCapacity;
+
+        public Decoder(int maxTableSize, int maxListSize) {
+            this.maxTableSize = maxTableSize;
+            this.maxListSize = maxListSize;
+            this.tableCapacity = maxTableSize;
+        }
+
+        // Returns the block's headers in order, each as {name, value}.
+        public List<String[]> decode(byte[] block, int offset, int length) throws DecodingException {
+            List<String[]> headers = new ArrayList<>();
+            Reader reader = new Reader(block, offset, offset + length);
+            int listSize = 0;
+            boolean hasHeaders = false;
+            while (reader.hasMore()) {
+                int b = reader.peek();
+                String[] header;
+                if ((b & 0x80) != 0) {
+                    int index = reader.readInteger(7);
+                    if (index == 0) {
+                        throw new DecodingException("Index 0 in header block.");
+                    }
+                    header = entry(index);
+                } else if ((b & 0x40) != 0) {
+                    header = readLiteral(reader, 6);
+                    add(header);
+                } else if ((b & 0x20) != 0) {
+                    // Size updates are only allowed at the start of a block (RFC 7541 section 4.2).
+                    if (hasHeaders) {
+                        throw new DecodingException("Table size update after a header.");
+                    }
+                    int size = reader.readInteger(5);
+                    if (size > maxTableSize) {
+                        throw new DecodingException("Table size update beyond " + maxTableSize + ".");
+                    }
+                    tableCapacity = size;
+                    evict(0);
+                    continue;
+                } else {
+                    // Without indexing (0000) and never indexed (0001) only differ for intermediaries re-encoding.
+                    header = readLiteral(reader, 4);
+                }
+                hasHeaders = true;
+                listSize += header[0].length() + header[1].length() + ENTRY_OVERHEAD;
+                if (listSize > maxListSize) {
+                    throw new DecodingException("Header list larger than " + maxListSize + " bytes.");
+                }
+                headers.add(header);
+            }
+            return headers;
+        }
+
+        private String[] readLiteral(Reader reader, int prefixBits) throws DecodingException {
+            int index = reader.readInteger(prefixBits);
+            String name = index == 0 ? reader.readString() : entry(index)[0];
+            return new String[] {name, reader.readString()};
+        }
+
+        private String[] entry(int index) throws DecodingException {
+            if (index <= STATIC_TABLE.length) {
+                return STATIC_TABLE[index - 1];
+            }
+            int dynamicIndex = index - STATIC_TABLE.length - 1;
+            if (dynamicIndex >= dynamicTable.size()) {
+                throw new DecodingException("Header index " + index + " out of range.");
+            }
+            int i = 0;
+            for (String[] entry : dynamicTable) {
+                if (i++ == dynamicIndex) {
+                    return entry;
+                }
+            }
+            throw new DecodingException("Header index " + index + " out of range.");
+        }
+
+        // An entry larger than the whole table empties it and is not added (RFC 7541 section 4.4).
+        private void add(String[] header) {
+            int size = header[0].length() + header[1].length() + ENTRY_OVERHEAD;
+            evict(size);
+            if (size <= tableCapacity) {
+                dynamicTable.addFirst(header);
+                tableSize += size;
+            }
+        }
+
+        // Drops the oldest entries until there is room for this many more bytes.
+        private void evict(int room) {
+            while (!dynamicTable.isEmpty() && tableSize + room > tableCapacity) {
+                String[] oldest = dynamicTable.removeLast();
+                tableSize -= oldest[0].length() + oldest[1].length() + ENTRY_OVERHEAD;
+            }
+        }
+    }
+
+    /**
+     * Encodes header fields as literals never added to the dynamic table, so the client's table stays empty
+     * and no size update is ever needed. Static table entries that match exactly are sent as an index.
+     * Names are expected in lower case, as HTTP/2 requires.
+     * */
+    public static class Encoder {
+
+        public void encode(String name, String value, ByteArrayOutputStream out) {
+            int nameIndex = STATIC_NAMES.getOrDefault(name, 0);
+            // Entries with the same name are next to each other.
+            for (int i = nameIndex; i > 0 && i <= STATIC_TABLE.length && STATIC_TABLE[i - 1][0].equals(name); i++) {
+                if (STATIC_TABLE[i - 1][1].equals(value)) {
+                    writeInteger(out, 0x80, 7, i);
+                    return;
+                }
+            }
+            // Literal header field without indexing.
+            writeInteger(out, 0x00, 4, nameIndex);
+            if (nameIndex == 0) {
+                writeString(out, name);
+            }
+            writeString(out, value);
+        }
+
+        // Strings go out as raw octets. Huffman coding would save about a fifth of them for more CPU per response.
+        private static void writeString(ByteArrayOutputStream out, String text) {
+            byte[] bytes = text.getBytes(StandardCharsets.ISO_8859_1);
+            writeInteger(out, 0x00, 7, bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+    }
+
+    // Writes an integer with an N-bit prefix, the rest of the first byte being flags (RFC 7541 section 5.1).
+    static void writeInteger(ByteArrayOutputStream out, int flags, int prefixBits, int value) {
+        int max = (1 << prefixBits) - 1;
+        if (value < max) {
+            out.write(flags | value);
+            return;
+        }
+        out.write(flags | max);
+        value -= max;
+        while (value >= 0x80) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    // Decodes Huffman-coded octets. Padding must be the most significant bits of end of string, at most 7 of them.
+    static String decodeHuffman(byte[] data, int offset, int length) throws DecodingException {
+        StringBuilder out = new StringBuilder(length * 8 / 5);
+        int code = 0;
+        int codeLength = 0;
+        boolean isAllOnes = true;
+        for (int i = offset; i < offset + length; i++) {
+            for (int bit = 7; bit >= 0; bit--) {
+                int value = (data[i] >> bit) & 1;
+                code = (code << 1) | value;
+                codeLength++;
+                isAllOnes &= value == 1;
+                int index = code - firstCode[codeLength];
+                if (index >= 0 && index < codeCount[codeLength]) {
+                    int symbol = symbols[firstSymbol[codeLength] + index];
+                    if (symbol == END_OF_STRING) {
+                        throw new DecodingException("End of string symbol in Huffman data.");
+                    }
+                    out.append((char) symbol);
+                    code = 0;
+                    codeLength = 0;
+                    isAllOnes = true;
+                } else if (codeLength == MAX_CODE_LENGTH) {
+                    throw new DecodingException("Invalid Huffman code.");
+                }
+            }
+        }
+        if (codeLength > 7 || !isAllOnes) {
+            throw new DecodingException("Invalid Huffman padding.");
+        }
+        return out.toString();
+    }
+
+    private static final class Reader {
+
+        private final byte[] data;
+        private final int end;
+        private int position;
+
+        Reader(byte[] data, int position, int end) {
+            this.data = data;
+            this.position = position;
+            this.end = end;
+        }
+
+        boolean hasMore() {
+            return position < end;
+        }
+
+        int peek() {
+            return data[position] & 0xff;
+        }
+
+        int readInteger(int prefixBits) throws DecodingException {
+            if (position >= end) {
+                throw new DecodingException("Truncated header block.");
+            }
+            int max = (1 << prefixBits) - 1;
+            int value = data[position++] & max;
+            if (value < max) {
+                return value;
+            }
+            for (int shift = 0; ; shift += 7) {
+                if (position >= end) {
+                    throw new DecodingException("Truncated integer.");
+                }
+                int b = data[position++] & 0xff;
+                // Anything that does not fit in an int is far beyond any size limit.
+                if (shift > 21) {
+                    throw new DecodingException("Integer too large.");
+                }
+                value += (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+        }
+
+        String readString() throws DecodingException {
+            if (position >= end) {
+                throw new DecodingException("Truncated header block.");
+            }
+            boolean isHuffman = (data[position] & 0x80) != 0;
+            int length = readInteger(7);
+            if (length > end - position) {
+                throw new DecodingException("String longer than header block.");
+            }
+            String text = isHuffman ? decodeHuffman(data, position, length)
+                    : new String(data, position, length, StandardCharsets.ISO_8859_1);
+            position += length;
+            return text;
+        }
+    }
+}
@@ -0,0 +1,1144 @@
+/**
+ * HTTP2Connection serves one client connection that speaks HTTP/2 in cleartext, known as h2c (RFC 9113).
+ * ClientHandler hands over connections that open with the HTTP/2 preface, which clients send when they know
+ * beforehand that the proxy speaks it. Any number of requests then share the connection as streams, up to
+ * Http2MaxStreams at once: this thread reads frames, and each stream's request runs on a thread of its own.
+ * A stream's headers are turned into an HTTP/1.1 request head and go through ClientHandler.serveHTTP,
+ * so they are rate limited, filtered, cached and forwarded over the upstream pool like any other request.
+ * The HTTP/1.1 response is turned back into HEADERS and DATA frames as it arrives.
+ * Both directions are flow controlled: request bodies are acknowledged with WINDOW_UPDATE as the target takes them,
+ * and response bodies wait for room in the client's windows. Each frame is written whole, so streams interleave.
+ * Only http targets can be requested. CONNECT over HTTP/2 and server push are not supported.
+ * Draining sends GOAWAY naming the last stream taken, refuses any newer one, and closes the connection
+ * once the streams in progress have finished.
+ * */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class HTTP2Connection {
+
+    // What follows "PRI * HTTP/2.0\r\n\r\n" in the client preface, which ClientHandler has already read as a request.
+    private static final byte[] PREFACE_END = "SM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final int FRAME_HEADER_SIZE = 9;
+    private static final int DEFAULT_WINDOW = 65535;
+    private static final int MAX_WINDOW = Integer.MAX_VALUE;
+    // The largest frame either side may send until told otherwise. The proxy never asks for more.
+    private static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+    private static final int MAX_FRAME_SIZE_LIMIT = 16777215;
+    // Consumed body bytes are acknowledged once this many have added up.
+    private static final int WINDOW_UPDATE_THRESHOLD = DEFAULT_WINDOW / 2;
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int PRIORITY = 0x2;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int PUSH_PROMISE = 0x5;
+    private static final int PING = 0x6;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int CONTINUATION = 0x9;
+
+    private static final int FLAG_END_STREAM = 0x1;
+    private static final int FLAG_ACK = 0x1;
+    private static final int FLAG_END_HEADERS = 0x4;
+    private static final int FLAG_PADDED = 0x8;
+    private static final int FLAG_PRIORITY = 0x20;
+
+    private static final int NO_ERROR = 0x0;
+    private static final int PROTOCOL_ERROR = 0x1;
+    private static final int INTERNAL_ERROR = 0x2;
+    private static final int FLOW_CONTROL_ERROR = 0x3;
+    private static final int FRAME_SIZE_ERROR = 0x6;
+    private static final int REFUSED_STREAM = 0x7;
+    private static final int COMPRESSION_ERROR = 0x9;
+
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+    private static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+    private final ClientHandler clientHandler;
+    private final Socket clientSocket;
+    private final InputStream input;
+    private final OutputStream output;
+    private final String clientAddress;
+    private final int maxStreams;
+    private final int maxHeaderSize;
+    private final int maxHeaderCount;
+    private final int idleTimeoutMillis;
+    private final Thread.Builder streamThreads;
+    private final HPACK.Decoder decoder;
+    private final HPACK.Encoder encoder = new HPACK.Encoder();
+    private final Map<Integer, Stream> streams = new ConcurrentHashMap<>();
+    private final Object writeLock = new Object();
+
+    // Guarded by this: room in the client's windows, and the client's settings that shape what is sent.
+    private long connectionSendWindow = DEFAULT_WINDOW;
+    private int initialSendWindow = DEFAULT_WINDOW;
+    private int maxSendFrameSize = DEFAULT_MAX_FRAME_SIZE;
+    private boolean isClosed = false;
+
+    // Guarded by this: whether the connection is draining, and the newest stream handed to a thread.
+    private boolean isDraining = false;
+    private boolean isPrefaceSent = false;
+    private int acceptedStreamId = 0;
+
+    // What the client may still send on the connection, and what stream threads have consumed but not acknowledged.
+    private final AtomicLong connectionReceiveWindow = new AtomicLong(DEFAULT_WINDOW);
+    private final AtomicInteger unacknowledged = new AtomicInteger();
+
+    // Only used by the thread reading frames.
+    private int lastStreamId = 0;
+    private boolean isGoingAway = false;
+    private int continuedStreamId = 0;
+    private int continuedFlags = 0;
+    private final ByteArrayOutputStream continuedBlock = new ByteArrayOutputStream();
+
+    // A violation that ends the whole connection with GOAWAY.
+    private static class ConnectionError extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final int code;
+
+        ConnectionError(int code, String message) {
+            super(message);
+            this.code = code;
+        }
+    }
+
+    public HTTP2Connection(ClientHandler clientHandler, Socket clientSocket, ConfigurationManager config,
+                           InputStream input, OutputStream output) {
+        this.clientHandler = clientHandler;
+        this.clientSocket = clientSocket;
+        this.input = input;
+        this.output = output;
+        this.clientAddress = clientSocket.getInetAddress().getHostAddress();
+        this.maxStreams = config.getIntConfig("Http2MaxStreams", 100);
+        this.maxHeaderSize = config.getIntConfig("MaxHeaderSize", 16 * 1024);
+        this.maxHeaderCount = config.getIntConfig("MaxHeaderCount", 100);
+        this.idleTimeoutMillis = config.getIntConfig("ClientIdleTimeout", 15) * 1000;
+        this.streamThreads = MainServer.threadBuilder(config);
+        this.decoder = new HPACK.Decoder(HPACK.DEFAULT_TABLE_SIZE, maxHeaderSize);
+    }
+
+    // Reads frames until the client closes the connection, it idles out or breaks the protocol.
+    public void serve() throws IOException {
+        Metrics.http2Opened();
+        try {
+            if (!Arrays.equals(input.readNBytes(PREFACE_END.length), PREFACE_END)) {
+                Metrics.error(Metrics.Error.MALFORMED_REQUEST);
+                Logger.logError("Invalid HTTP/2 preface from: " + clientAddress);
+                return;
+            }
+            // Small frames from many streams go out one at a time, and Nagle's algorithm would hold each one
+            // back until the previous was acknowledged.
+            clientSocket.setTcpNoDelay(true);
+            writeSettings();
+            boolean isDrainPending;
+            synchronized (this) {
+                // GOAWAY may not come before the server's SETTINGS, so a drain asked for earlier is sent now.
+                isPrefaceSent = true;
+                isDrainPending = isDraining;
+            }
+            if (isDrainPending) {
+                goAway();
+            }
+            readFrames();
+        } catch (ConnectionError e) {
+            Metrics.error(Metrics.Error.MALFORMED_REQUEST);
+            Logger.logError("HTTP/2 protocol error from " + clientAddress + ": " + e.getMessage());
+            writeGoAway(lastStreamId, e.code);
+        } catch (SocketTimeoutException e) {
+            writeGoAway(lastStreamId, NO_ERROR);
+            throw e;
+        } finally {
+            close();
+            Metrics.http2Closed();
+        }
+    }
+
+    // Stops taking streams and closes the connection once those in progress are done. Safe from any thread.
+    public void drain() {
+        synchronized (this) {
+            if (isDraining) {
+                return;
+            }
+            isDraining = true;
+            if (!isPrefaceSent) {
+                return;
+            }
+        }
+        goAway();
+    }
+
+    private void goAway() {
+        int lastAcceptedId;
+        synchronized (this) {
+            lastAcceptedId = acceptedStreamId;
+        }
+        writeGoAway(lastAcceptedId, NO_ERROR);
+        closeIfDrained();
+    }
+
+    // Ends the read loop when a draining connection has no streams left; the client sees the connection close.
+    private void closeIfDrained() {
+        synchronized (this) {
+            if (!isDraining || !streams.isEmpty()) {
+                return;
+            }
+        }
+        try {
+            clientSocket.shutdownInput();
+        } catch (IOException e) {
+            Logger.logError("Could not shut drained HTTP/2 connection: " + e.getMessage());
+        }
+    }
+
+    private void readFrames() throws IOException {
+        byte[] header = new byte[FRAME_HEADER_SIZE];
+        while (readFrameHeader(header)) {
+            int length = ((header[0] & 0xff) << 16) | ((header[1] & 0xff) << 8) | (header[2] & 0xff);
+            int type = header[3] & 0xff;
+            int flags = header[4] & 0xff;
+            int streamId = readInt(header, 5) & 0x7fffffff;
+            if (length > DEFAULT_MAX_FRAME_SIZE) {
+                throw new ConnectionError(FRAME_SIZE_ERROR, "Frame of " + length + " bytes.");
+            }
+            byte[] payload = input.readNBytes(length);
+            if (payload.length < length) {
+                throw new EOFException("Client closed mid-frame.");
+            }
+            // A header block may only be continued by CONTINUATION frames (RFC 9113 section 6.10).
+            if (continuedStreamId != 0 && type != CONTINUATION) {
+                throw new ConnectionError(PROTOCOL_ERROR, "Header block interrupted by frame type " + type + ".");
+            }
+            switch (type) {
+                case DATA -> onData(streamId, flags, payload);
+                case HEADERS -> onHeaders(streamId, flags, payload);
+                case CONTINUATION -> onContinuation(streamId, flags, payload);
+                case PRIORITY -> {
+                    // Streams are served as they come, so priorities are not used.
+                    if (streamId == 0) {
+                        throw new ConnectionError(PROTOCOL_ERROR, "PRIORITY on stream 0.");
+                    }
+                }
+                case RST_STREAM -> {
+                    if (streamId == 0 || length != 4) {
+                        throw new ConnectionError(PROTOCOL_ERROR, "Malformed RST_STREAM.");
+                    }
+                    Stream stream = streams.get(streamId);
+                    if (stream != null) {
+                        stream.reset();
+                    }
+                }
+                case SETTINGS -> onSettings(streamId, flags, payload);
+                case PING -> {
+                    if (streamId != 0 || length != 8) {
+                        throw new ConnectionError(PROTOCOL_ERROR, "Malformed PING.");
+                    }
+                    if ((flags & FLAG_ACK) == 0) {
+                        writeFrame(PING, FLAG_ACK, 0, payload, 0, payload.length);
+                    }
+                }
+                // The client's streams still finish; it closes the connection once they have.
+                case GOAWAY -> isGoingAway = true;
+                case WINDOW_UPDATE -> onWindowUpdate(streamId, payload);
+                case PUSH_PROMISE -> throw new ConnectionError(PROTOCOL_ERROR, "PUSH_PROMISE from a client.");
+                default -> {
+                    // Unknown frame types are ignored (RFC 9113 section 4.1).
+                }
+            }
+        }
+    }
+
+    // Waits for the next frame. Returns false if the client has closed; times out only when no stream is open.
+    private boolean readFrameHeader(byte[] header) throws IOException {
+        int read = 0;
+        while (read < header.length) {
+            try {
+                int n = input.read(header, read, header.length - read);
+                if (n == -1) {
+                    if (read == 0) {
+                        return false;
+                    }
+                    throw new EOFException("Client closed mid-frame.");
+                }
+                read += n;
+            } catch (SocketTimeoutException e) {
+                if (read > 0 || streams.isEmpty()) {
+                    throw e;
+                }
+            }
+        }
+        return true;
+    }
+
+    private void onData(int streamId, int flags, byte[] payload) throws IOException {
+        if (streamId == 0) {
+            throw new ConnectionError(PROTOCOL_ERROR, "DATA on stream 0.");
+        }
+        if (connectionReceiveWindow.addAndGet(-payload.length) < 0) {
+            throw new ConnectionError(FLOW_CONTROL_ERROR, "DATA beyond the connection window.");
+        }
+        Stream stream = streams.get(streamId);
+        if (stream == null || stream.body.isEnded()) {
+            if (streamId > lastStreamId) {
+                throw new ConnectionError(PROTOCOL_ERROR, "DATA on idle stream " + streamId + ".");
+            }
+            // The stream has finished or been reset, and what is still in flight is dropped.
+            acknowledge(null, payload.length);
+            return;
+        }
+        if (stream.receiveWindow.addAndGet(-payload.length) < 0) {
+            resetStream(stream, FLOW_CONTROL_ERROR);
+            acknowledge(null, payload.length);
+            return;
+        }
+        int start = 0;
+        int end = payload.length;
+        if ((flags & FLAG_PADDED) != 0) {
+            start = 1;
+            end = unpaddedEnd(payload);
+        }
+        if (end > start) {
+            stream.body.offer(Arrays.copyOfRange(payload, start, end));
+        }
+        // Padding counts against the windows but is never consumed, so it is acknowledged at once.
+        if (end - start < payload.length) {
+            acknowledge(stream, payload.length - (end - start));
+        }
+        if ((flags & FLAG_END_STREAM) != 0) {
+            stream.body.end();
+        }
+    }
+
+    private void onHeaders(int streamId, int flags, byte[] payload) throws IOException {
+        if (streamId == 0 || (streamId & 1) == 0) {
+            throw new ConnectionError(PROTOCOL_ERROR, "HEADERS on stream " + streamId + ".");
+        }
+        int start = 0;
+        int end = payload.length;
+        if ((flags & FLAG_PADDED) != 0) {
+            start = 1;
+            end = unpaddedEnd(payload);
+        }
+        if ((flags & FLAG_PRIORITY) != 0) {
+            start += 5;
+        }
+        if (start > end) {
+            throw new ConnectionError(FRAME_SIZE_ERROR, "HEADERS too short.");
+        }
+        if ((flags & FLAG_END_HEADERS) != 0) {
+            onHeaderBlock(streamId, flags, payload, start, end - start);
+        } else {
+            continuedStreamId = streamId;
+            continuedFlags = flags;
+            continuedBlock.reset();
+            continuedBlock.write(payload, start, end - start);
+        }
+    }
+
+    private void onContinuation(int streamId, int flags, byte[] payload) throws IOException {
+        if (streamId == 0 || streamId != continuedStreamId) {
+            throw new ConnectionError(PROTOCOL_ERROR, "Unexpected CONTINUATION on stream " + streamId + ".");
+        }
+        continuedBlock.write(payload, 0, payload.length);
+        // A block can be no larger than what it decodes to, which is limited to MaxHeaderSize.
+        if (continuedBlock.size() > maxHeaderSize) {
+            throw new ConnectionError(COMPRESSION_ERROR, "Header block larger than " + maxHeaderSize + " bytes.");
+        }
+        if ((flags & FLAG_END_HEADERS) != 0) {
+            continuedStreamId = 0;
+            byte[] block = continuedBlock.toByteArray();
+            onHeaderBlock(streamId, continuedFlags, block, 0, block.length);
+        }
+    }
+
+    // Starts a stream for a complete header block, or ends a request body with trailers.
+    private void onHeaderBlock(int streamId, int flags, byte[] block, int offset, int length) throws IOException {
+        List<String[]> headers;
+        try {
+            // Every block is decoded, even for refused streams, to keep the dynamic table in step with the client.
+            headers = decoder.decode(block, offset, length);
+        } catch (HPACK.DecodingException e) {
+            throw new ConnectionError(COMPRESSION_ERROR, e.getMessage());
+        }
+        boolean isEndStream = (flags & FLAG_END_STREAM) != 0;
+        if (streamId <= lastStreamId) {
+            // Trailers, which an HTTP/1.1 target is not sent.
+            Stream stream = streams.get(streamId);
+            if (stream != null && isEndStream) {
+                stream.body.end();
+            }
+            return;
+        }
+        lastStreamId = streamId;
+        if (isGoingAway) {
+            return;
+        }
+        Stream stream = null;
+        synchronized (this) {
+            // Streams newer than the GOAWAY of a drain were never taken, so the client may retry them elsewhere.
+            if (!isDraining && streams.size() < maxStreams) {
+                stream = new Stream(streamId, initialSendWindow);
+                streams.put(streamId, stream);
+                acceptedStreamId = streamId;
+            }
+        }
+        if (stream == null) {
+            writeFrame(RST_STREAM, 0, streamId, intBytes(REFUSED_STREAM), 0, 4);
+            return;
+        }
+        if (isEndStream) {
+            stream.body.end();
+        }
+        Metrics.http2Stream();
+        Stream accepted = stream;
+        streamThreads.start(() -> handleStream(accepted, headers, isEndStream));
+    }
+
+    private void onSettings(int streamId, int flags, byte[] payload) throws IOException {
+        if (streamId != 0) {
+            throw new ConnectionError(PROTOCOL_ERROR, "SETTINGS on stream " + streamId + ".");
+        }
+        if ((flags & FLAG_ACK) != 0) {
+            return;
+        }
+        if (payload.length % 6 != 0) {
+            throw new ConnectionError(FRAME_SIZE_ERROR, "SETTINGS of " + payload.length + " bytes.");
+        }
+        for (int i = 0; i < payload.length; i += 6) {
+            int id = ((payload[i] & 0xff) << 8) | (payload[i + 1] & 0xff);
+            long value = readInt(payload, i + 2) & 0xffffffffL;
+            if (id == SETTINGS_INITIAL_WINDOW_SIZE) {
+                if (value > MAX_WINDOW) {
+                    throw new ConnectionError(FLOW_CONTROL_ERROR, "Initial window of " + value + ".");
+                }
+                synchronized (this) {
+                    int delta = (int) value - initialSendWindow;
+                    initialSendWindow = (int) value;
+                    for (Stream stream : streams.values()) {
+                        stream.sendWindow += delta;
+                    }
+                    notifyAll();
+                }
+            } else if (id == SETTINGS_MAX_FRAME_SIZE) {
+                if (value < DEFAULT_MAX_FRAME_SIZE || value > MAX_FRAME_SIZE_LIMIT) {
+                    throw new ConnectionError(PROTOCOL_ERROR, "Maximum frame size of " + value + ".");
+                }
+                synchronized (this) {
+                    maxSendFrameSize = (int) value;
+                }
+            }
+            // The encoder never indexes, so the client's table size does not matter, and push is never used.
+        }
+        writeFrame(SETTINGS, FLAG_ACK, 0, payload, 0, 0);
+    }
+
+    private void onWindowUpdate(int streamId, byte[] payload) throws IOException {
+        if (payload.length != 4) {
+            throw new ConnectionError(FRAME_SIZE_ERROR, "WINDOW_UPDATE of " + payload.length + " bytes.");
+        }
+        int increment = readInt(payload, 0) & 0x7fffffff;
+        Stream stream = streamId == 0 ? null : streams.get(streamId);
+        if (increment == 0) {
+            if (streamId == 0) {
+                throw new ConnectionError(PROTOCOL_ERROR, "WINDOW_UPDATE of 0.");
+            }
+            if (stream != null) {
+                resetStream(stream, PROTOCOL_ERROR);
+            }
+            return;
+        }
+        synchronized (this) {
+            if (streamId == 0) {
+                connectionSendWindow += increment;
+                if (connectionSendWindow > MAX_WINDOW) {
+                    throw new ConnectionError(FLOW_CONTROL_ERROR, "Connection window beyond 2^31-1.");
+                }
+            } else if (stream != null) {
+                stream.sendWindow += increment;
+            }
+            notifyAll();
+        }
+        if (stream != null && stream.sendWindow > MAX_WINDOW) {
+            resetStream(stream, FLOW_CONTROL_ERROR);
+        }
+    }
+
+    // Serves one stream's request on its own thread.
+    private void handleStream(Stream stream, List<String[]> headers, boolean isEndStream) {
+        long startedAt = System.nanoTime();
+        ResponseFrames response = new ResponseFrames(stream);
+        AccessLog.Meter meter = new AccessLog.Meter();
+        // Counts the response before it is framed, and the request body as the client sent it.
+        OutputStream metered = clientHandler.isAccessLogged() ? meter.count(response) : response;
+        try {
+            byte[] head = requestHead(stream, headers, isEndStream);
+            if (head == null) {
+                Metrics.error(Metrics.Error.MALFORMED_REQUEST);
+                Logger.logError("Malformed HTTP/2 request on stream " + stream.id + " from: " + clientAddress);
+                metered.write(ClientHandler.badRequestResponse().getBytes(StandardCharsets.UTF_8));
+            } else {
+                InputStream body = stream.isChunked ? new ChunkedBody(stream.body) : stream.body;
+                if (clientHandler.isAccessLogged()) {
+                    body = meter.count(body);
+                }
+                ClientRequestReader requestReader = new ClientRequestReader(
+                        new SequenceInputStream(new ByteArrayInputStream(head), body), head.length, maxHeaderCount + 2);
+                HTTPRequestParser request = requestReader.readRequest();
+                Metrics.PARSE.record(requestReader.parseNanos());
+                String fullRequest = request.headString();
+                Logger.logInfo("Request received on HTTP/2 stream " + stream.id + ": " + fullRequest);
+                if (clientHandler.admitRequest(metered)) {
+                    clientHandler.serveHTTP(request, fullRequest, requestReader, metered, startedAt, false);
+                }
+                clientHandler.logAccess(AccessLog.Kind.HTTP2, meter, request, startedAt, requestReader.parseNanos());
+            }
+            response.finish();
+            // The response is complete, so whatever is left of the request body is not needed (RFC 9113 section 8.1).
+            if (!stream.body.isEnded()) {
+                resetStream(stream, NO_ERROR);
+            }
+        } catch (IOException e) {
+            if (!stream.isReset) {
+                Logger.logError("HTTP/2 stream " + stream.id + " from " + clientAddress + " failed: " + e.getMessage());
+                resetStream(stream, INTERNAL_ERROR);
+            }
+        } finally {
+            streams.remove(stream.id);
+            closeIfDrained();
+        }
+    }
+
+    /**
+     * Builds the HTTP/1.1 request head for a stream's headers (RFC 9113 section 8.3.1), or returns null if they
+     * are malformed. A body without a Content-Length is sent to the target chunked.
+     * */
+    private byte[] requestHead(Stream stream, List<String[]> headers, boolean isEndStream) {
+        String method = null;
+        String scheme = null;
+        String authority = null;
+        String path = null;
+        String host = null;
+        StringBuilder fields = new StringBuilder();
+        StringBuilder cookies = null;
+        boolean hasContentLength = false;
+        boolean hasRegularHeader = false;
+        for (String[] header : headers) {
+            String name = header[0];
+            String value = header[1];
+            if (!isValidValue(value)) {
+                return null;
+            }
+            if (name.startsWith(":")) {
+                // Pseudo-headers come first, each once.
+                if (hasRegularHeader) {
+                    return null;
+                }
+                switch (name) {
+                    case ":method" -> method = method == null ? value : null;
+                    case ":scheme" -> scheme = scheme == null ? value : null;
+                    case ":authority" -> authority = authority == null ? value : null;
+                    case ":path" -> path = path == null ? value : null;
+                    default -> {
+                        return null;
+                    }
+                }
+                continue;
+            }
+            hasRegularHeader = true;
+            if (!isValidName(name)) {
+                return null;
+            }
+            switch (name) {
+                // Connection-specific headers make a request malformed (RFC 9113 section 8.2.2).
+                case "connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade" -> {
+                    return null;
+                }
+                case "te" -> {
+                    if (!value.equals("trailers")) {
+                        return null;
+                    }
+                }
+                // Cookies may be split across fields for compression, and HTTP/1.1 wants them in one.
+                case "cookie" -> cookies = cookies == null ? new StringBuilder(value) : cookies.append("; ").append(value);
+                case "host" -> host = value;
+                default -> {
+                    hasContentLength |= name.equals("content-length");
+                    fields.append(name).append(": ").append(value).append("\r\n");
+                }
+            }
+        }
+        if (authority == null || authority.isEmpty()) {
+            authority = host;
+        }
+        if (method == null || !"http".equals(scheme) || path == null || !path.startsWith("/")
+                || authority == null || authority.isEmpty() || method.equals("CONNECT")
+                || !isValidToken(method) || !isValidToken(authority) || !isValidToken(path)) {
+            return null;
+        }
+        stream.isHeadRequest = method.equals("HEAD");
+        StringBuilder head = new StringBuilder(256 + fields.length());
+        head.append(method).append(" http://").append(authority).append(path).append(" HTTP/1.1\r\n");
+        head.append("host: ").append(authority).append("\r\n").append(fields);
+        if (cookies != null) {
+            head.append("cookie: ").append(cookies).append("\r\n");
+        }
+        if (!isEndStream && !hasContentLength) {
+            stream.isChunked = true;
+            head.append("transfer-encoding: chunked\r\n");
+        }
+        return head.append("\r\n").toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static boolean isValidName(String name) {
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c <= ' ' || c == ':' || c >= 0x7f || (c >= 'A' && c <= 'Z')) {
+                return false;
+            }
+        }
+        return !name.isEmpty();
+    }
+
+    // Field values may not hold line breaks or NUL (RFC 9113 section 8.2.1), which could split the HTTP/1.1 head.
+    private static boolean isValidValue(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\r' || c == '\n' || c == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // The method, authority and path end up in the request line, so they may not hold spaces either.
+    private static boolean isValidToken(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) <= ' ') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Returns the end of the data in a padded frame, whose first byte is the padding length.
+    private static int unpaddedEnd(byte[] payload) throws ConnectionError {
+        if (payload.length == 0 || (payload[0] & 0xff) >= payload.length) {
+            throw new ConnectionError(PROTOCOL_ERROR, "Padding longer than frame.");
+        }
+        return payload.length - (payload[0] & 0xff);
+    }
+
+    // Gives consumed body bytes back to the client's windows, in WINDOW_UPDATEs of at least half a window.
+    private void acknowledge(Stream stream, int bytes) throws IOException {
+        if (stream != null && !stream.body.isEnded()) {
+            int pending = stream.unacknowledged.addAndGet(bytes);
+            if (pending >= WINDOW_UPDATE_THRESHOLD && stream.unacknowledged.compareAndSet(pending, 0)) {
+                stream.receiveWindow.addAndGet(pending);
+                writeFrame(WINDOW_UPDATE, 0, stream.id, intBytes(pending), 0, 4);
+            }
+        }
+        int pending = unacknowledged.addAndGet(bytes);
+        if (pending >= WINDOW_UPDATE_THRESHOLD && unacknowledged.compareAndSet(pending, 0)) {
+            connectionReceiveWindow.addAndGet(pending);
+            writeFrame(WINDOW_UPDATE, 0, 0, intBytes(pending), 0, 4);
+        }
+    }
+
+    private void writeSettings() throws IOException {
+        byte[] settings = new byte[18];
+        putSetting(settings, 0, SETTINGS_MAX_CONCURRENT_STREAMS, maxStreams);
+        putSetting(settings, 6, SETTINGS_MAX_HEADER_LIST_SIZE, maxHeaderSize);
+        putSetting(settings, 12, SETTINGS_HEADER_TABLE_SIZE, HPACK.DEFAULT_TABLE_SIZE);
+        writeFrame(SETTINGS, 0, 0, settings, 0, settings.length);
+    }
+
+    private static void putSetting(byte[] settings, int offset, int id, int value) {
+        settings[offset] = (byte) (id >> 8);
+        settings[offset + 1] = (byte) id;
+        System.arraycopy(intBytes(value), 0, settings, offset + 2, 4);
+    }
+
+    /**
+     * Sends a response header block, split into CONTINUATION frames if the client's frame size calls for it.
+     * The frames go out back to back, as nothing may come between them.
+     * */
+    private void writeHeaders(Stream stream, byte[] block, boolean isEndStream) throws IOException {
+        int maxFrame;
+        synchronized (this) {
+            maxFrame = maxSendFrameSize;
+        }
+        synchronized (writeLock) {
+            if (stream.isReset) {
+                throw new IOException("HTTP/2 stream " + stream.id + " was reset.");
+            }
+            int length = Math.min(block.length, maxFrame);
+            int flags = (isEndStream ? FLAG_END_STREAM : 0) | (length == block.length ? FLAG_END_HEADERS : 0);
+            writeFrame(HEADERS, flags, stream.id, block, 0, length);
+            for (int offset = length; offset < block.length; offset += length) {
+                length = Math.min(block.length - offset, maxFrame);
+                writeFrame(CONTINUATION, offset + length == block.length ? FLAG_END_HEADERS : 0, stream.id, block,
+                        offset, length);
+            }
+        }
+    }
+
+    /**
+     * Sends body bytes as DATA frames, each as large as the client's frame size and windows allow,
+     * waiting for WINDOW_UPDATE while there is no room. Waiting longer than ClientIdleTimeout fails the stream.
+     * */
+    private void writeData(Stream stream, byte[] data, int offset, int length, boolean isEndStream)
+            throws IOException {
+        do {
+            int frameLength = 0;
+            synchronized (this) {
+                long deadline = System.currentTimeMillis() + idleTimeoutMillis;
+                while (length > 0 && !isClosed && !stream.isReset
+                        && (connectionSendWindow <= 0 || stream.sendWindow <= 0)) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        throw new SocketTimeoutException("No flow control window for HTTP/2 stream " + stream.id);
+                    }
+                    try {
+                        wait(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                }
+                if (isClosed || stream.isReset) {
+                    throw new IOException("HTTP/2 stream " + stream.id + " was reset.");
+                }
+                if (length > 0) {
+                    frameLength = (int) Math.min(Math.min(length, maxSendFrameSize),
+                            Math.min(connectionSendWindow, stream.sendWindow));
+                    connectionSendWindow -= frameLength;
+                    stream.sendWindow -= frameLength;
+                }
+            }
+            boolean isLast = isEndStream && frameLength == length;
+            writeFrame(DATA, isLast ? FLAG_END_STREAM : 0, stream.id, data, offset, frameLength);
+            offset += frameLength;
+            length -= frameLength;
+        } while (length > 0);
+    }
+
+    private void resetStream(Stream stream, int code) {
+        stream.reset();
+        try {
+            writeFrame(RST_STREAM, 0, stream.id, intBytes(code), 0, 4);
+        } catch (IOException e) {
+            // The connection is gone, which ends the stream anyway.
+        }
+    }
+
+    private void writeGoAway(int lastId, int code) {
+        byte[] payload = new byte[8];
+        System.arraycopy(intBytes(lastId), 0, payload, 0, 4);
+        System.arraycopy(intBytes(code), 0, payload, 4, 4);
+        try {
+            writeFrame(GOAWAY, 0, 0, payload, 0, payload.length);
+        } catch (IOException e) {
+            Logger.logError("Failed to send GOAWAY to " + clientAddress + ": " + e.getMessage());
+        }
+    }
+
+    // Writes one frame in a single write, so frames of different streams never mix.
+    private void writeFrame(int type, int flags, int streamId, byte[] payload, int offset, int length)
+            throws IOException {
+        byte[] frame = new byte[FRAME_HEADER_SIZE + length];
+        frame[0] = (byte) (length >> 16);
+        frame[1] = (byte) (length >> 8);
+        frame[2] = (byte) length;
+        frame[3] = (byte) type;
+        frame[4] = (byte) flags;
+        System.arraycopy(intBytes(streamId), 0, frame, 5, 4);
+        System.arraycopy(payload, offset, frame, FRAME_HEADER_SIZE, length);
+        synchronized (writeLock) {
+            output.write(frame);
+            output.flush();
+        }
+    }
+
+    // Fails every open stream and wakes any thread waiting for a window.
+    private void close() {
+        synchronized (this) {
+            isClosed = true;
+            notifyAll();
+        }
+        for (Stream stream : streams.values()) {
+            stream.reset();
+        }
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xff) << 24) | ((bytes[offset + 1] & 0xff) << 16)
+                | ((bytes[offset + 2] & 0xff) << 8) | (bytes[offset + 3] & 0xff);
+    }
+
+    private static byte[] intBytes(int value) {
+        return new byte[] {(byte) (value >> 24), (byte) (value >> 16), (byte) (value >> 8), (byte) value};
+    }
+
+    private final class Stream {
+
+        final int id;
+        final RequestBody body = new RequestBody(this);
+        // What the client may still send on this stream, and what has been consumed but not acknowledged.
+        final AtomicInteger receiveWindow = new AtomicInteger(DEFAULT_WINDOW);
+        final AtomicInteger unacknowledged = new AtomicInteger();
+        // Guarded by HTTP2Connection.this.
+        long sendWindow;
+        volatile boolean isReset = false;
+        boolean isHeadRequest = false;
+        boolean isChunked = false;
+
+        Stream(int id, int sendWindow) {
+            this.id = id;
+            this.sendWindow = sendWindow;
+        }
+
+        void reset() {
+            isReset = true;
+            body.fail();
+            synchronized (HTTP2Connection.this) {
+                HTTP2Connection.this.notifyAll();
+            }
+        }
+    }
+
+    // A stream's request body as DATA frames deliver it. Reading acknowledges the bytes to the client.
+    private final class RequestBody extends InputStream {
+
+        private final Stream stream;
+        private final ArrayDeque<byte[]> chunks = new ArrayDeque<>();
+        private int position = 0;
+        private boolean isEnded = false;
+        private boolean isFailed = false;
+
+        RequestBody(Stream stream) {
+            this.stream = stream;
+        }
+
+        synchronized void offer(byte[] data) {
+            chunks.add(data);
+            notifyAll();
+        }
+
+        synchronized void end() {
+            isEnded = true;
+            notifyAll();
+        }
+
+        synchronized void fail() {
+            isFailed = true;
+            notifyAll();
+        }
+
+        synchronized boolean isEnded() {
+            return isEnded;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            int read;
+            synchronized (this) {
+                long deadline = System.currentTimeMillis() + idleTimeoutMillis;
+                while (chunks.isEmpty() && !isEnded && !isFailed) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        throw new SocketTimeoutException("Request body of HTTP/2 stream " + stream.id + " stalled.");
+                    }
+                    try {
+                        wait(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                }
+                if (isFailed) {
+                    throw new IOException("HTTP/2 stream " + stream.id + " was reset.");
+                }
+                if (chunks.isEmpty()) {
+                    return -1;
+                }
+                byte[] chunk = chunks.peek();
+                read = Math.min(length, chunk.length - position);
+                System.arraycopy(chunk, position, bytes, offset, read);
+                position += read;
+                if (position == chunk.length) {
+                    chunks.poll();
+                    position = 0;
+                }
+            }
+            acknowledge(stream, read);
+            return read;
+        }
+    }
+
+    // Frames a request body of unknown length as chunked, for the HTTP/1.1 target.
+    private static final class ChunkedBody extends InputStream {
+
+        // Room for the largest chunk size line in front of the data.
+        private static final int PREFIX = 10;
+
+        private final InputStream body;
+        private final byte[] chunk = new byte[PREFIX + 16 * 1024 + 2];
+        private int position = 0;
+        private int limit = 0;
+        private boolean isEnded = false;
+
+        ChunkedBody(InputStream body) {
+            this.body = body;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (position == limit && !fill()) {
+                return -1;
+            }
+            int read = Math.min(length, limit - position);
+            System.arraycopy(chunk, position, bytes, offset, read);
+            position += read;
+            return read;
+        }
+
+        private boolean fill() throws IOException {
+            if (isEnded) {
+                return false;
+            }
+            int read = body.read(chunk, PREFIX, chunk.length - PREFIX - 2);
+            if (read == -1) {
+                isEnded = true;
+                byte[] last = "0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+                System.arraycopy(last, 0, chunk, 0, last.length);
+                position = 0;
+                limit = last.length;
+                return true;
+            }
+            byte[] size = (Integer.toHexString(read) + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+            position = PREFIX - size.length;
+            System.arraycopy(size, 0, chunk, position, size.length);
+            limit = PREFIX + read;
+            chunk[limit++] = '\r';
+            chunk[limit++] = '\n';
+            return true;
+        }
+    }
+
+    /**
+     * Takes the HTTP/1.1 response written for a stream and sends it on as HEADERS and DATA frames.
+     * Interim 1xx responses are skipped, connection-specific headers are dropped and chunked bodies are unframed,
+     * their trailers with them.
+     * */
+    private final class ResponseFrames extends OutputStream {
+
+        private static final int HEAD = 0;
+        private static final int FIXED_BODY = 1;
+        private static final int CHUNK_SIZE = 2;
+        private static final int CHUNK_DATA = 3;
+        private static final int CHUNK_END = 4;
+        private static final int TRAILERS = 5;
+        private static final int BODY_UNTIL_CLOSE = 6;
+        private static final int DONE = 7;
+
+        private final Stream stream;
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        private final List<String> headLines = new ArrayList<>();
+        private int state = HEAD;
+        private int status = -1;
+        private long remaining = 0;
+        private boolean hasHeaders = false;
+
+        ResponseFrames(Stream stream) {
+            this.stream = stream;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            while (length > 0 && state != DONE) {
+                if (state == FIXED_BODY || state == CHUNK_DATA || state == BODY_UNTIL_CLOSE) {
+                    int n = state == BODY_UNTIL_CLOSE ? length : (int) Math.min(length, remaining);
+                    remaining -= n;
+                    boolean isLast = state == FIXED_BODY && remaining == 0;
+                    writeData(stream, bytes, offset, n, isLast);
+                    if (isLast) {
+                        state = DONE;
+                    } else if (state == CHUNK_DATA && remaining == 0) {
+                        state = CHUNK_END;
+                    }
+                    offset += n;
+                    length -= n;
+                    continue;
+                }
+                byte b = bytes[offset++];
+                length--;
+                if (b != '\n') {
+                    if (line.size() == MAX_LINE_LENGTH) {
+                        throw new IOException("Response line longer than " + MAX_LINE_LENGTH + " bytes.");
+                    }
+                    line.write(b);
+                    continue;
+                }
+                String text = line.toString(StandardCharsets.ISO_8859_1);
+                line.reset();
+                onLine(text.endsWith("\r") ? text.substring(0, text.length() - 1) : text);
+            }
+        }
+
+        private void onLine(String text) throws IOException {
+            switch (state) {
+                case HEAD -> {
+                    if (status == -1) {
+                        status = parseStatus(text);
+                    } else if (text.isEmpty()) {
+                        onHeadEnd();
+                    } else {
+                        headLines.add(text);
+                    }
+                }
+                case CHUNK_SIZE -> {
+                    int extension = text.indexOf(';');
+                    try {
+                        remaining = Long.parseLong((extension < 0 ? text : text.substring(0, extension)).trim(), 16);
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Invalid chunk size from target.");
+                    }
+                    state = remaining == 0 ? TRAILERS : CHUNK_DATA;
+                }
+                case CHUNK_END -> state = CHUNK_SIZE;
+                case TRAILERS -> {
+                    if (text.isEmpty()) {
+                        writeData(stream, new byte[0], 0, 0, true);
+                        state = DONE;
+                    }
+                }
+                default -> {
+                }
+            }
+        }
+
+        private int parseStatus(String statusLine) throws IOException {
+            if (statusLine.length() < 12 || !statusLine.startsWith("HTTP/")) {
+                throw new IOException("Invalid status line from target: " + statusLine);
+            }
+            try {
+                return Integer.parseInt(statusLine.substring(9, 12));
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid status line from target: " + statusLine);
+            }
+        }
+
+        private void onHeadEnd() throws IOException {
+            if (status < 200) {
+                // Interim responses such as 100 Continue are not passed on.
+                status = -1;
+                headLines.clear();
+                return;
+            }
+            ByteArrayOutputStream block = new ByteArrayOutputStream(256);
+            encoder.encode(":status", Integer.toString(status), block);
+            long contentLength = -1;
+            boolean isChunked = false;
+            for (String header : headLines) {
+                int colon = header.indexOf(':');
+                if (colon <= 0) {
+                    continue;
+                }
+                String name = header.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+                String value = header.substring(colon + 1).trim();
+                switch (name) {
+                    case "connection", "keep-alive", "proxy-connection", "upgrade" -> {
+                    }
+                    case "transfer-encoding" -> isChunked = value.toLowerCase(Locale.ROOT).contains("chunked");
+                    default -> {
+                        if (name.equals("content-length")) {
+                            try {
+                                contentLength = Long.parseLong(value);
+                            } catch (NumberFormatException e) {
+                                throw new IOException("Invalid Content-Length from target.");
+                            }
+                        }
+                        encoder.encode(name, value, block);
+                    }
+                }
+            }
+            boolean hasBody = !stream.isHeadRequest && status != 204 && status != 304
+                    && (isChunked || contentLength != 0);
+            writeHeaders(stream, block.toByteArray(), !hasBody);
+            hasHeaders = true;
+            if (!hasBody) {
+                state = DONE;
+            } else if (isChunked) {
+                state = CHUNK_SIZE;
+            } else if (contentLength > 0) {
+                remaining = contentLength;
+                state = FIXED_BODY;
+            } else {
+                state = BODY_UNTIL_CLOSE;
+            }
+        }
+
+        /**
+         * Ends the stream once the handler is done. Without a response it is answered 502,
+         * and a body cut short by the target is reset rather than passed off as complete.
+         * */
+        void finish() throws IOException {
+            if (!hasHeaders) {
+                ByteArrayOutputStream block = new ByteArrayOutputStream();
+                encoder.encode(":status", "502", block);
+                encoder.encode("content-length", "0", block);
+                writeHeaders(stream, block.toByteArray(), true);
+            } else if (state == BODY_UNTIL_CLOSE) {
+                writeData(stream, new byte[0], 0, 0, true);
+            } else if (state != DONE) {
+                throw new IOException("Response from target ended early.");
+            }
+            state = DONE;
+        }
+    }
+}
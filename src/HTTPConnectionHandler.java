@@ -1,49 +1,186 @@
 /**
  * Handles HTTP connections. Sends a stream to the target, which then responds.
- * Response stream is then forwarded to the client.
- * Method allows for the modification of the HTTP header to conceal the originating IP.
- * WARNING: If get IP fails, IP will not be concealed.
+ * Response stream is then forwarded to the client as it arrives, using ResponseRelay.
+ * Request bodies are streamed to the target by the ClientRequestReader.
+ * Target connections are leased from UpstreamConnectionPool and returned when the response allows reuse.
+ * A pooled connection that fails before the response starts most likely went stale while idle; an idempotent
+ * request without a body is then sent once more on a new connection.
+ * Cacheable GETs go through ResponseCache when it is enabled. Other GETs and HEADs go through RequestCoalescer
+ * when it is enabled, so identical requests in flight at once share one fetch.
+ * With ResponseCompression on, responses to clients that accept gzip may be compressed by ResponseCompressor.
+ * A target that only resolves to addresses the DestinationFilter denies is answered 403, and a response head
+ * ResponseRelay refuses to relay is answered 502.
+ * The head is rewritten by HeaderRewriter straight from the parsed request into one buffer, written in one go,
+ * and the body follows it untouched. Conditional requests the cache makes are parsed again to be rewritten.
  * */
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
 
 public class HTTPConnectionHandler extends ConnectionHandler {
 
-    public HTTPConnectionHandler(Socket clientSocket, ConfigurationManager config) {
+    private static final String BAD_GATEWAY = "HTTP/1.1 502 Bad Gateway\r\nContent-Length: 0\r\n\r\n";
+
+    private final boolean isSocketOutput;
+    private final ResponseCache cache;
+    private final RequestCoalescer coalescer;
+    private final UpstreamConnectionPool pool;
+    private final SocketPolicy socketPolicy;
+    private final ResponseCompressor compressor;
+    private final boolean isDirectOutput;
+
+    // isSocketOutput is false when the client output is not the socket's, as for an HTTP/2 stream.
+    public HTTPConnectionHandler(Socket clientSocket, ConfigurationManager config, boolean isSocketOutput) {
         super(clientSocket, config);
+        this.isSocketOutput = isSocketOutput;
+        this.cache = ResponseCache.getInstance(config);
+        this.coalescer = RequestCoalescer.getInstance(config);
+        this.pool = UpstreamConnectionPool.getInstance(config);
+        this.socketPolicy = SocketPolicy.getInstance(config);
+        this.compressor = ResponseCompressor.getInstance(config);
+        // Writing to the channel directly would bypass traffic shaping, the access log's byte counts,
+        // or an HTTP/2 stream's framing.
+        this.isDirectOutput = isSocketOutput && !TrafficShaper.getInstance(config).isActive()
+                && !AccessLog.getInstance(config).isEnabled();
     }
 
     @Override
-    public void handleConnection(String fullRequest, OutputStream clientOutput, ClientHandler.ParsedData parsedData) {
+    public boolean handleConnection(HTTPRequestParser request, String fullRequest, ClientRequestReader requestReader,
+                                    OutputStream clientOutput, ClientHandler.ParsedData parsedData) {
         try {
-            if (config.getConfig("MaskIP").equals("1")) {
-                fullRequest = concealUserIP(fullRequest);
+            if (cache.isEnabled() && ResponseCache.isCacheableRequest(fullRequest)) {
+                WritableByteChannel clientChannel = isDirectOutput ? clientSocket.getChannel() : null;
+                return cache.serve(fullRequest, clientOutput, clientChannel,
+                        (head, output) -> forward(head.equals(fullRequest) ? request : reparse(head), requestReader,
+                                output, parsedData));
+            }
+            if (coalescer.isEnabled() && RequestCoalescer.isCoalescable(request)) {
+                return coalescer.serve(request, clientOutput,
+                        output -> forward(request, requestReader, output, parsedData));
+            }
+            return forward(request, requestReader, clientOutput, parsedData);
+        } catch (DestinationFilter.DeniedException e) {
+            // Raised before the target is connected, so nothing has been sent to the client yet.
+            Logger.logError(e.getMessage());
+            try {
+                clientOutput.write(ClientHandler.forbiddenResponse().getBytes(StandardCharsets.UTF_8));
+                clientOutput.flush();
+            } catch (IOException writeError) {
+                Logger.logError("Failed to send 403 response: " + writeError.getMessage());
             }
-            try (Socket targetSocket = new Socket(parsedData.host(), parsedData.port())) {
+            return false;
+        } catch (ResponseRelay.MalformedResponseException e) {
+            // The target's head was held back, so the client has not been sent any of this response.
+            Logger.logError("Malformed response from target: " + e.getMessage());
+            try {
+                clientOutput.write(BAD_GATEWAY.getBytes(StandardCharsets.UTF_8));
+                clientOutput.flush();
+            } catch (IOException writeError) {
+                Logger.logError("Failed to send 502 response: " + writeError.getMessage());
+            }
+            return false;
+        } catch (IOException e) {
+            Logger.logError("Connection to target failed: " + e.getMessage());
+            return false;
+        }
+    }
 
-                OutputStream targetOutputStream = targetSocket.getOutputStream();
-                InputStream targetInputStream = targetSocket.getInputStream();
+    private boolean forward(HTTPRequestParser request, ClientRequestReader requestReader, OutputStream clientOutput,
+                            ClientHandler.ParsedData parsedData) throws IOException {
+        ByteBuffer head = ByteBuffer.allocate(HeaderRewriter.capacityFor(request));
+        HeaderRewriter.forConfig(config).rewrite(request, clientSocket.getInetAddress().getHostAddress(), head);
+        Socket targetSocket = pool.acquireIdle(parsedData.host(), parsedData.port());
+        if (targetSocket != null) {
+            try {
+                return exchange(targetSocket, head, request, requestReader, clientOutput, parsedData);
+            } catch (StaleConnectionException e) {
+                if (!isReplayable(request)) {
+                    Metrics.error(Metrics.Error.HTTP_RELAY);
+                    throw e;
+                }
+                Logger.logInfo("Pooled connection to " + parsedData.host() + " failed before responding ("
+                        + e.getMessage() + "). Retrying on a new connection.");
+            }
+        }
+        try {
+            return exchange(pool.connect(parsedData.host(), parsedData.port()), head, request, requestReader,
+                    clientOutput, parsedData);
+        } catch (StaleConnectionException e) {
+            Metrics.error(Metrics.Error.HTTP_RELAY);
+            throw e;
+        }
+    }
 
-                targetOutputStream.write(fullRequest.getBytes(StandardCharsets.UTF_8));
-                targetOutputStream.flush();
+    /**
+     * Sends the request on targetSocket and relays the response. Throws StaleConnectionException if the exchange
+     * failed, other than by timing out, before any of the response arrived, so nothing has reached the client.
+     * */
+    private boolean exchange(Socket targetSocket, ByteBuffer head, HTTPRequestParser request,
+                             ClientRequestReader requestReader, OutputStream clientOutput,
+                             ClientHandler.ParsedData parsedData) throws IOException {
+        boolean isReusable = false;
+        ResponseRelay responseRelay = null;
+        try {
+            OutputStream targetOutputStream = targetSocket.getOutputStream();
+            // A large response gets larger buffers on the way from the target, and to the client where it is direct.
+            InputStream targetInputStream = socketPolicy.watch(targetSocket,
+                    SocketPolicy.ConnectionClass.ORIGIN, isSocketOutput ? clientSocket : null,
+                    SocketPolicy.ConnectionClass.CLIENT).count(targetSocket.getInputStream());
+            responseRelay = new ResponseRelay(targetInputStream, clientOutput,
+                    compressor.accepts(request) ? compressor : null);
 
-                ByteArrayOutputStream responseStream = new ByteArrayOutputStream();
-                byte[] responseBuffer = new byte[1024];
-                int responseBytesRead;
-                while ((responseBytesRead = targetInputStream.read(responseBuffer)) != -1) {
-                    responseStream.write(responseBuffer, 0, responseBytesRead);
-                }
+            targetOutputStream.write(head.array(), 0, head.position());
+            requestReader.relayBody(targetOutputStream);
+            targetOutputStream.flush();
 
-                clientOutput.write(responseStream.toByteArray());
-                clientOutput.flush();
-            }
+            isReusable = responseRelay.relay(request.isMethod("HEAD"));
         } catch (IOException e) {
-            Logger.logError("Connection to target failed: " + e.getMessage());
+            if (!(e instanceof SocketTimeoutException) && (responseRelay == null || !responseRelay.hasResponded())) {
+                throw new StaleConnectionException(e);
+            }
+            Metrics.error(Metrics.Error.HTTP_RELAY);
+            throw e;
+        } finally {
+            if (isReusable) {
+                pool.release(parsedData.host(), parsedData.port(), targetSocket);
+            } else {
+                targetSocket.close();
+            }
+        }
+        return isReusable;
+    }
+
+    // Whether the request can be sent again: idempotent (RFC 9110 section 9.2.2) and without a body to replay.
+    private static boolean isReplayable(HTTPRequestParser request) throws IOException {
+        return (request.isMethod("GET") || request.isMethod("HEAD") || request.isMethod("OPTIONS")
+                || request.isMethod("TRACE") || request.isMethod("PUT") || request.isMethod("DELETE"))
+                && request.bodyLength() == 0;
+    }
+
+    // The target failed before any of its response arrived.
+    private static class StaleConnectionException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        StaleConnectionException(IOException cause) {
+            super(cause.getMessage(), cause);
+        }
+    }
+
+    // Parses a head ResponseCache made itself, such as a conditional request, so that it can be rewritten.
+    private HTTPRequestParser reparse(String head) throws IOException {
+        byte[] bytes = head.getBytes(StandardCharsets.UTF_8);
+        int lines = (int) head.chars().filter(c -> c == '\n').count();
+        HTTPRequestParser parser = new HTTPRequestParser(bytes.length, lines);
+        parser.reset(ByteBuffer.wrap(bytes), 0);
+        if (parser.parse(bytes.length) != HTTPRequestParser.Result.COMPLETE) {
+            throw new HTTPRequestParser.ParseException("Incomplete request head.");
         }
+        return parser;
     }
 }
@@ -0,0 +1,158 @@
+/**
+ * HTTPMessageStream is the shared base of ResponseRelay and ClientRequestReader.
+ * It reads HTTP/1.1 messages from one peer through a single fixed buffer and copies
+ * lines and bodies to an output as they arrive, without holding whole messages in memory.
+ * Bytes read past the end of one message stay in the buffer for the next one.
+ * */
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+public abstract class HTTPMessageStream {
+
+    protected static final int BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+
+    protected final InputStream input;
+    // Named in error messages, e.g. "target" or "client".
+    private final String peer;
+    protected final byte[] buffer;
+    protected int bufferStart = 0;
+    protected int bufferEnd = 0;
+
+    protected HTTPMessageStream(InputStream input, String peer) {
+        this(input, peer, BUFFER_SIZE);
+    }
+
+    protected HTTPMessageStream(InputStream input, String peer, int bufferSize) {
+        this.input = input;
+        this.peer = peer;
+        this.buffer = new byte[bufferSize];
+    }
+
+    protected void relayChunkedBody(OutputStream output) throws IOException {
+        relayChunkedBody(output, output);
+    }
+
+    // Relays a chunked body with its chunk framing and trailers going to framing, and the data itself to data.
+    protected void relayChunkedBody(OutputStream framing, OutputStream data) throws IOException {
+        while (true) {
+            String sizeLine = relayLine(framing);
+            int extension = sizeLine.indexOf(';');
+            String size = (extension >= 0 ? sizeLine.substring(0, extension) : sizeLine).trim();
+            long chunkSize;
+            try {
+                chunkSize = Long.parseLong(size, 16);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid chunk size from " + peer + ": " + sizeLine);
+            }
+            if (chunkSize == 0) {
+                // Trailer section, ended by an empty line.
+                while (!relayLine(framing).isEmpty()) {
+                    // Trailers are forwarded unchanged.
+                }
+                framing.flush();
+                data.flush();
+                return;
+            }
+            relayFixedBody(chunkSize, data);
+            if (!relayLine(framing).isEmpty()) {
+                throw new IOException("Malformed chunk from " + peer + ".");
+            }
+        }
+    }
+
+    protected void relayFixedBody(long length, OutputStream output) throws IOException {
+        long remaining = length;
+        while (remaining > 0) {
+            if (bufferStart == bufferEnd && !fill()) {
+                throw new EOFException(peer + " closed with " + remaining + " body bytes outstanding.");
+            }
+            int count = (int) Math.min(remaining, bufferEnd - bufferStart);
+            output.write(buffer, bufferStart, count);
+            bufferStart += count;
+            remaining -= count;
+        }
+        output.flush();
+    }
+
+    protected void relayUntilClose(OutputStream output) throws IOException {
+        if (bufferStart < bufferEnd) {
+            output.write(buffer, bufferStart, bufferEnd - bufferStart);
+            bufferStart = bufferEnd;
+        }
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            output.write(buffer, 0, read);
+        }
+        output.flush();
+    }
+
+    // Forwards one CRLF terminated line and returns it without the line ending.
+    protected String relayLine(OutputStream output) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        while (true) {
+            if (bufferStart == bufferEnd && !fill()) {
+                throw new EOFException(peer + " closed mid-line.");
+            }
+            int lineStart = bufferStart;
+            while (bufferStart < bufferEnd) {
+                if (buffer[bufferStart++] == '\n') {
+                    output.write(buffer, lineStart, bufferStart - lineStart);
+                    line.write(buffer, lineStart, bufferStart - lineStart);
+                    String text = line.toString(StandardCharsets.ISO_8859_1);
+                    return text.endsWith("\r\n") ? text.substring(0, text.length() - 2) : text.trim();
+                }
+            }
+            output.write(buffer, lineStart, bufferStart - lineStart);
+            line.write(buffer, lineStart, bufferStart - lineStart);
+            if (line.size() > MAX_LINE_LENGTH) {
+                throw new IOException("Line from " + peer + " is too long.");
+            }
+        }
+    }
+
+    // Only called once the buffer has been fully consumed.
+    protected boolean fill() throws IOException {
+        int read = input.read(buffer);
+        if (read == -1) {
+            return false;
+        }
+        bufferStart = 0;
+        bufferEnd = read;
+        return true;
+    }
+
+    /**
+     * Applies a Connection (or Proxy-Connection) header value to the current keep-alive decision.
+     * HTTP/1.1 connections persist unless told otherwise, HTTP/1.0 ones only when asked.
+     * Options are matched as whole comma-separated tokens, ignoring case, as HTTPRequestParser.hasToken does.
+     * */
+    protected static boolean applyConnectionHeader(boolean isKeepAlive, String value) {
+        boolean asksKeepAlive = false;
+        for (String option : value.split(",")) {
+            String token = option.trim();
+            if (token.equalsIgnoreCase("close")) {
+                return false;
+            }
+            asksKeepAlive |= token.equalsIgnoreCase("keep-alive");
+        }
+        return asksKeepAlive || isKeepAlive;
+    }
+
+    protected long parseContentLength(String value) throws IOException {
+        try {
+            long contentLength = Long.parseLong(value.trim());
+            if (contentLength < 0) {
+                throw new NumberFormatException();
+            }
+            return contentLength;
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid Content-Length from " + peer + ": " + value);
+        }
+    }
+}
@@ -0,0 +1,443 @@
+/**
+ * HTTPRequestParser finds and indexes an HTTP/1.1 request head in a single pass over a ByteBuffer.
+ * parse can be called again each time more bytes arrive; scanning resumes where it stopped,
+ * so a head that arrives in many reads is still only looked at once.
+ * The method, target, version and headers are kept as offsets into the buffer rather than copied,
+ * and stay valid until the caller reuses that part of the buffer.
+ * Heads over maxHeadSize bytes or with more than maxHeaderCount headers are rejected.
+ * The write methods copy parts of the head as raw bytes into another buffer, for HeaderRewriter.
+ * */
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+public class HTTPRequestParser {
+
+    public enum Result {INCOMPLETE, COMPLETE}
+
+    // What bodyLength returns for a chunked body.
+    public static final long CHUNKED = -1;
+
+    // Thrown for requests that should be answered with 400 Bad Request.
+    public static class ParseException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public ParseException(String message) {
+            super(message);
+        }
+    }
+
+    // Thrown for heads too large or with too many headers, which are answered with 431.
+    public static class HeadTooLargeException extends ParseException {
+        private static final long serialVersionUID = 1L;
+
+        public HeadTooLargeException(String message) {
+            super(message);
+        }
+    }
+
+    private final int maxHeadSize;
+    private final int maxHeaderCount;
+    // nameStart, nameEnd, valueStart, valueEnd for each header.
+    private final int[] headerOffsets;
+
+    private ByteBuffer buffer;
+    private int headStart;
+    private int scanned;
+    private int lineStart;
+    private boolean hasRequestLine;
+    private int headerCount;
+    private int headEnd;
+    private int methodStart, methodEnd, targetStart, targetEnd, versionStart, versionEnd;
+
+    public HTTPRequestParser(int maxHeadSize, int maxHeaderCount) {
+        this.maxHeadSize = maxHeadSize;
+        this.maxHeaderCount = maxHeaderCount;
+        this.headerOffsets = new int[maxHeaderCount * 4];
+    }
+
+    // Starts a new request whose head begins at index from of the buffer.
+    public void reset(ByteBuffer buffer, int from) {
+        this.buffer = buffer;
+        this.headStart = from;
+        this.scanned = from;
+        this.lineStart = from;
+        this.hasRequestLine = false;
+        this.headerCount = 0;
+        this.headEnd = -1;
+    }
+
+    // Scans the bytes up to limit that have not been scanned yet.
+    public Result parse(int limit) throws ParseException {
+        for (int i = scanned; i < limit; i++) {
+            if (buffer.get(i) != '\n') {
+                continue;
+            }
+            int lineEnd = i > lineStart && buffer.get(i - 1) == '\r' ? i - 1 : i;
+            int nextLine = i + 1;
+            if (lineEnd == lineStart) {
+                if (hasRequestLine) {
+                    scanned = nextLine;
+                    headEnd = nextLine;
+                    return Result.COMPLETE;
+                }
+                // Blank lines before a request are allowed and ignored.
+                headStart = nextLine;
+            } else if (!hasRequestLine) {
+                parseRequestLine(lineStart, lineEnd);
+                hasRequestLine = true;
+            } else {
+                parseHeader(lineStart, lineEnd);
+            }
+            lineStart = nextLine;
+        }
+        scanned = limit;
+        if (limit - headStart > maxHeadSize) {
+            throw new HeadTooLargeException("Request header too large.");
+        }
+        return Result.INCOMPLETE;
+    }
+
+    // Whether anything other than blank lines has been seen for this request.
+    public boolean hasStarted() {
+        return hasRequestLine || scanned > lineStart;
+    }
+
+    public int headStart() {
+        return headStart;
+    }
+
+    // Index just past the blank line ending the head, where any body starts.
+    public int headEnd() {
+        return headEnd;
+    }
+
+    public String headString() {
+        return decode(headStart, headEnd, StandardCharsets.UTF_8);
+    }
+
+    public boolean isMethod(String method) {
+        return equalsIgnoreCase(methodStart, methodEnd, method);
+    }
+
+    public String method() {
+        return decode(methodStart, methodEnd, StandardCharsets.ISO_8859_1);
+    }
+
+    public String target() {
+        return decode(targetStart, targetEnd, StandardCharsets.UTF_8);
+    }
+
+    public String version() {
+        return decode(versionStart, versionEnd, StandardCharsets.ISO_8859_1);
+    }
+
+    public boolean isVersion(String version) {
+        return equalsIgnoreCase(versionStart, versionEnd, version);
+    }
+
+    public int headerCount() {
+        return headerCount;
+    }
+
+    public boolean headerNameEquals(int header, String name) {
+        return equalsIgnoreCase(headerOffsets[header * 4], headerOffsets[header * 4 + 1], name);
+    }
+
+    public String headerName(int header) {
+        return decode(headerOffsets[header * 4], headerOffsets[header * 4 + 1], StandardCharsets.ISO_8859_1);
+    }
+
+    public String headerValue(int header) {
+        return decode(headerOffsets[header * 4 + 2], headerOffsets[header * 4 + 3], StandardCharsets.ISO_8859_1);
+    }
+
+    // Returns the index of the first header with this name, or -1.
+    public int findHeader(String name) {
+        for (int i = 0; i < headerCount; i++) {
+            if (headerNameEquals(i, name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * How many of the comma-separated elements of the header's value are token, ignoring case and the
+     * whitespace around each element. "close" is one element of "keep-alive, close" but not of "enclosed".
+     * */
+    public int countToken(int header, String token) {
+        int count = 0;
+        int end = headerOffsets[header * 4 + 3];
+        for (int from = headerOffsets[header * 4 + 2]; from <= end; from = nextElement(from, end) + 1) {
+            if (isElement(from, nextElement(from, end), token)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public boolean hasToken(int header, String token) {
+        return countToken(header, token) > 0;
+    }
+
+    // Whether the last comma-separated element of the header's value is token, ignoring case.
+    public boolean endsWithToken(int header, String token) {
+        int start = headerOffsets[header * 4 + 2];
+        int end = headerOffsets[header * 4 + 3];
+        int last = start;
+        for (int i = start; i < end; i++) {
+            if (buffer.get(i) == ',') {
+                last = i + 1;
+            }
+        }
+        return isElement(last, end, token);
+    }
+
+    /**
+     * How the request's body is framed (RFC 9112 section 6.3): CHUNKED for a chunked Transfer-Encoding,
+     * otherwise the Content-Length, or 0 when there is none. Framing that a proxy and a target could read
+     * two ways is rejected: Transfer-Encoding together with Content-Length, a Transfer-Encoding whose final
+     * coding is not chunked or that applies chunked twice, and Content-Length values that differ.
+     * */
+    public long bodyLength() throws ParseException {
+        boolean hasTransferEncoding = false;
+        boolean isChunked = false;
+        int chunkedCount = 0;
+        long contentLength = -1;
+        for (int i = 0; i < headerCount; i++) {
+            if (headerNameEquals(i, "Transfer-Encoding")) {
+                // Codings listed over several headers apply in order, so the last header holds the final one.
+                hasTransferEncoding = true;
+                chunkedCount += countToken(i, "chunked");
+                isChunked = endsWithToken(i, "chunked");
+            } else if (headerNameEquals(i, "Content-Length")) {
+                long length = contentLengthOf(i);
+                if (contentLength >= 0 && length != contentLength) {
+                    throw new ParseException("Conflicting Content-Length values.");
+                }
+                contentLength = length;
+            }
+        }
+        if (!hasTransferEncoding) {
+            return Math.max(0, contentLength);
+        }
+        if (contentLength >= 0) {
+            throw new ParseException("Both Transfer-Encoding and Content-Length.");
+        }
+        if (!isChunked || chunkedCount != 1) {
+            throw new ParseException("Transfer-Encoding must end with chunked, once.");
+        }
+        return CHUNKED;
+    }
+
+    public long headerValueAsLong(int header) throws ParseException {
+        int start = headerOffsets[header * 4 + 2];
+        int end = headerOffsets[header * 4 + 3];
+        if (start == end || end - start > 18) {
+            throw new ParseException("Invalid number in header " + headerName(header));
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw new ParseException("Invalid number in header " + headerName(header));
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    /**
+     * Whether the header's name is one of the comma-separated tokens in listHeader's value, ignoring case.
+     * Used for the header names a Connection header lists.
+     * */
+    public boolean isListedIn(int header, int listHeader) {
+        int nameStart = headerOffsets[header * 4];
+        int nameLength = headerOffsets[header * 4 + 1] - nameStart;
+        int end = headerOffsets[listHeader * 4 + 3];
+        int tokenStart = headerOffsets[listHeader * 4 + 2];
+        while (tokenStart < end) {
+            int tokenEnd = indexOf(',', tokenStart, end);
+            if (tokenEnd == -1) {
+                tokenEnd = end;
+            }
+            int from = tokenStart;
+            int to = tokenEnd;
+            while (from < to && isWhitespace(buffer.get(from))) {
+                from++;
+            }
+            while (to > from && isWhitespace(buffer.get(to - 1))) {
+                to--;
+            }
+            if (to - from == nameLength && regionEqualsIgnoreCase(from, nameStart, nameLength)) {
+                return true;
+            }
+            tokenStart = tokenEnd + 1;
+        }
+        return false;
+    }
+
+    // Copies the request line and its CRLF. Throws BufferOverflowException if out is too small.
+    public void writeRequestLine(ByteBuffer out) {
+        copy(methodStart, versionEnd, out);
+        putCRLF(out);
+    }
+
+    // Copies one header line as it arrived, less any trailing whitespace, and its CRLF.
+    public void writeHeader(int header, ByteBuffer out) {
+        copy(headerOffsets[header * 4], headerOffsets[header * 4 + 3], out);
+        putCRLF(out);
+    }
+
+    public void writeHeaderValue(int header, ByteBuffer out) {
+        copy(headerOffsets[header * 4 + 2], headerOffsets[header * 4 + 3], out);
+    }
+
+    private void copy(int start, int end, ByteBuffer out) {
+        int length = end - start;
+        if (out.remaining() < length) {
+            throw new BufferOverflowException();
+        }
+        out.put(out.position(), buffer, start, length);
+        out.position(out.position() + length);
+    }
+
+    private static void putCRLF(ByteBuffer out) {
+        out.put((byte) '\r').put((byte) '\n');
+    }
+
+    private void parseRequestLine(int start, int end) throws ParseException {
+        int firstSpace = indexOf(' ', start, end);
+        int secondSpace = firstSpace == -1 ? -1 : indexOf(' ', firstSpace + 1, end);
+        if (firstSpace <= start || secondSpace <= firstSpace + 1 || secondSpace == end - 1
+                || indexOf(' ', secondSpace + 1, end) != -1) {
+            throw new ParseException("Malformed request line.");
+        }
+        methodStart = start;
+        methodEnd = firstSpace;
+        targetStart = firstSpace + 1;
+        targetEnd = secondSpace;
+        versionStart = secondSpace + 1;
+        versionEnd = end;
+    }
+
+    private void parseHeader(int start, int end) throws ParseException {
+        byte first = buffer.get(start);
+        if (first == ' ' || first == '\t') {
+            throw new ParseException("Folded header lines are not supported.");
+        }
+        int colon = indexOf(':', start, end);
+        if (colon <= start) {
+            throw new ParseException("Malformed header line.");
+        }
+        if (headerCount == maxHeaderCount) {
+            throw new HeadTooLargeException("Too many request headers.");
+        }
+        int valueStart = colon + 1;
+        int valueEnd = end;
+        while (valueStart < valueEnd && isWhitespace(buffer.get(valueStart))) {
+            valueStart++;
+        }
+        while (valueEnd > valueStart && isWhitespace(buffer.get(valueEnd - 1))) {
+            valueEnd--;
+        }
+        int offset = headerCount * 4;
+        headerOffsets[offset] = start;
+        headerOffsets[offset + 1] = colon;
+        headerOffsets[offset + 2] = valueStart;
+        headerOffsets[offset + 3] = valueEnd;
+        headerCount++;
+    }
+
+    // A Content-Length value, which may repeat one number as a list, such as "42, 42".
+    private long contentLengthOf(int header) throws ParseException {
+        int start = headerOffsets[header * 4 + 2];
+        int end = headerOffsets[header * 4 + 3];
+        if (indexOf(',', start, end) == -1) {
+            return headerValueAsLong(header);
+        }
+        long length = -1;
+        for (String element : headerValue(header).split(",", -1)) {
+            long value;
+            try {
+                value = Long.parseLong(element.trim());
+            } catch (NumberFormatException e) {
+                throw new ParseException("Invalid number in header " + headerName(header));
+            }
+            if (value < 0 || (length >= 0 && value != length)) {
+                throw new ParseException("Conflicting Content-Length values.");
+            }
+            length = value;
+        }
+        return length;
+    }
+
+    // The end of the list element starting at from: the next comma, or end.
+    private int nextElement(int from, int end) {
+        int comma = indexOf(',', from, end);
+        return comma == -1 ? end : comma;
+    }
+
+    // Whether the bytes from start to end are token, once the whitespace around them is trimmed.
+    private boolean isElement(int start, int end, String token) {
+        while (start < end && isWhitespace(buffer.get(start))) {
+            start++;
+        }
+        while (end > start && isWhitespace(buffer.get(end - 1))) {
+            end--;
+        }
+        return equalsIgnoreCase(start, end, token);
+    }
+
+    private int indexOf(char c, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (buffer.get(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean equalsIgnoreCase(int start, int end, String text) {
+        if (end - start != text.length()) {
+            return false;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            int b = buffer.get(start + i);
+            int c = text.charAt(i);
+            if (b == c) {
+                continue;
+            }
+            int lower = c | 0x20;
+            if (lower < 'a' || lower > 'z' || (b | 0x20) != lower) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean regionEqualsIgnoreCase(int first, int second, int length) {
+        for (int i = 0; i < length; i++) {
+            int a = buffer.get(first + i);
+            int b = buffer.get(second + i);
+            if (a != b && ((a | 0x20) != (b | 0x20) || (a | 0x20) < 'a' || (a | 0x20) > 'z')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String decode(int start, int end, Charset charset) {
+        byte[] bytes = new byte[end - start];
+        buffer.get(start, bytes);
+        return new String(bytes, charset);
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+}
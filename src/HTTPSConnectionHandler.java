@@ -1,45 +1,119 @@
 /**
  * HTTPSConnectionHandler initiates a tunnel with the target, and
  * utilizes two threads to pass the packets back and forth.
+ * The tunnel is a plain TCP connection: the client's TLS bytes are passed through untouched,
+ * so the client negotiates TLS with the target itself and the proxy never decrypts anything.
+ * Connecting gives up after TunnelConnectTimeout seconds and answers 504, other failures 502.
+ * A target that only resolves to addresses the DestinationFilter denies is answered 403.
+ * The relay threads are virtual when ServerMode is virtual.
+ * Each direction copies through a pooled direct buffer from DirectBufferPool using the sockets' channels.
+ * The target is connected with SocketPolicy's TUNNEL options, and each direction is watched so that
+ * a bulk transfer gets larger socket buffers.
+ * Bytes the client sent straight after its CONNECT head reach the target before anything else it sends.
+ * When one direction ends, the other side's output is shut down and the other direction carries on.
+ * When either direction fails, both sockets are closed so the other relay stops too.
+ * Bytes going to the client are sent through the connection's TrafficShaper flow.
+ * Tunnel lifetimes, the target's first byte and the bytes each way are recorded in Metrics.
+ * Once establishTunnel returns, status and the byte counts describe the tunnel for the AccessLog.
  * */
-import javax.net.ssl.SSLSocketFactory;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
 
 public class HTTPSConnectionHandler {
 
     private final Socket clientSocket;
     private final ConfigurationManager config;
+    private final TrafficShaper.Flow flow;
+    private int status = 0;
+    // Each is written by its relay thread alone, and read once both have been joined.
+    private long bytesFromClient = 0;
+    private long bytesToClient = 0;
 
-    public HTTPSConnectionHandler(Socket clientSocket, ConfigurationManager config) {
+    public HTTPSConnectionHandler(Socket clientSocket, ConfigurationManager config, TrafficShaper.Flow flow) {
         this.clientSocket = clientSocket;
         this.config = config;
+        this.flow = flow;
     }
 
-    public void establishTunnel(String targetHost, int targetPort) throws IOException {
-        try (Socket serverSocket = initializeSSLToTarget(targetHost, targetPort)) {
+    // clientBytes are what the client sent after the CONNECT head, already counted in its byte totals.
+    public void establishTunnel(String targetHost, int targetPort, byte[] clientBytes) throws IOException {
+        long startedAt = System.nanoTime();
+        Socket targetSocket;
+        try {
+            targetSocket = connectToTarget(targetHost, targetPort);
+        } catch (IOException e) {
+            Logger.logError("Could not connect tunnel to " + targetHost + ":" + targetPort + ": " + e.getMessage());
+            String status = e instanceof DestinationFilter.DeniedException ? "403 Forbidden"
+                    : e instanceof SocketTimeoutException ? "504 Gateway Timeout" : "502 Bad Gateway";
+            this.status = Integer.parseInt(status.substring(0, 3));
+            sendTunnelFailedResponse(clientSocket.getOutputStream(), status);
+            return;
+        }
+
+        try (Socket serverSocket = targetSocket) {
+            status = 200;
             sendTunnelEstablishedResponse(clientSocket.getOutputStream());
+            if (clientBytes.length > 0) {
+                serverSocket.getOutputStream().write(clientBytes);
+            }
 
-            relayTraffic(clientSocket, serverSocket);
+            Metrics.tunnelOpened();
+            try {
+                relayTraffic(clientSocket, serverSocket);
+            } finally {
+                Metrics.tunnelClosed();
+                Metrics.TUNNEL_TOTAL.recordSince(startedAt);
+            }
         } catch (IOException e) {
             Logger.logError("Error establishing HTTPS tunnel: " + e.getMessage());
             throw e;
         }
     }
 
+    // The status the client was answered with, or 0 if it was never answered.
+    public int status() {
+        return status;
+    }
+
+    public long bytesFromClient() {
+        return bytesFromClient;
+    }
+
+    public long bytesToClient() {
+        return bytesToClient;
+    }
+
     private void sendTunnelEstablishedResponse(OutputStream clientOutput) throws IOException {
         String response = "HTTP/1.1 200 Connection Established\r\n\r\n";
         clientOutput.write(response.getBytes(StandardCharsets.UTF_8));
         clientOutput.flush();
     }
 
+    private void sendTunnelFailedResponse(OutputStream clientOutput, String status) throws IOException {
+        String response = "HTTP/1.1 " + status + "\r\n" +
+                "Content-Length: 0\r\n" +
+                "Connection: close\r\n" +
+                "\r\n";
+        clientOutput.write(response.getBytes(StandardCharsets.UTF_8));
+        clientOutput.flush();
+    }
+
     private void relayTraffic(Socket clientSocket, Socket serverSocket) {
         try {
-            Thread clientToServer = generateRelayThread(clientSocket.getInputStream(), serverSocket.getOutputStream());
-            Thread serverToClient = generateRelayThread(serverSocket.getInputStream(), clientSocket.getOutputStream());
+            Thread.Builder relayThreads = MainServer.threadBuilder(config);
+            DirectBufferPool bufferPool = DirectBufferPool.getInstance(config);
+            long establishedAt = System.nanoTime();
+            Thread clientToServer = generateRelayThread(relayThreads, bufferPool, clientSocket, serverSocket,
+                    establishedAt);
+            Thread serverToClient = generateRelayThread(relayThreads, bufferPool, serverSocket, clientSocket,
+                    establishedAt);
 
             clientToServer.start();
             serverToClient.start();
@@ -57,21 +131,85 @@ public class HTTPSConnectionHandler {
         }
     }
 
-    private Thread generateRelayThread(InputStream input, OutputStream output) {
-        return  new Thread(() -> {
+    /**
+     * Copies one direction of the tunnel until its source ends, then half-closes the destination
+     * so the peer sees the end of stream while the other direction keeps flowing.
+     * Each write is a single syscall straight from the direct buffer, so nothing needs flushing.
+     * */
+    private Thread generateRelayThread(Thread.Builder relayThreads, DirectBufferPool bufferPool,
+                                       Socket source, Socket destination, long establishedAt) throws IOException {
+        ReadableByteChannel input = readChannel(source);
+        WritableByteChannel output = writeChannel(destination);
+        boolean isToClient = destination == clientSocket;
+        SocketPolicy.BulkWatch bulk = SocketPolicy.getInstance(config).watch(source,
+                SocketPolicy.ConnectionClass.TUNNEL, destination, SocketPolicy.ConnectionClass.TUNNEL);
+        return relayThreads.unstarted(() -> {
+            ByteBuffer buffer = bufferPool.acquire();
+            boolean isFirstRead = true;
+            long relayed = 0;
             try {
-                byte[] buffer = new byte[4096];
                 int read;
                 while ((read = input.read(buffer)) != -1) {
-                    output.write(buffer, 0, read);
-                    output.flush();
+                    if (isToClient && isFirstRead) {
+                        Metrics.TUNNEL_FIRST_BYTE.recordSince(establishedAt);
+                        isFirstRead = false;
+                    }
+                    if (isToClient) {
+                        flow.send(read);
+                    }
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        output.write(buffer);
+                    }
+                    buffer.clear();
+                    relayed += read;
+                    bulk.carried(read);
+                    if (isToClient) {
+                        Metrics.bytesOut(read);
+                    } else {
+                        Metrics.bytesIn(read);
+                    }
                 }
+                shutdownOutput(destination);
             } catch (IOException e) {
-                Logger.logError("Could not pass data from client to target: " + e);
+                // Expected for the second relay once the first has closed both sockets.
+                if (!source.isClosed() && !destination.isClosed()) {
+                    Metrics.error(Metrics.Error.TUNNEL_RELAY);
+                    Logger.logError("Could not relay tunnel data: " + e);
+                }
+                closeQuietly(source);
+                closeQuietly(destination);
+            } finally {
+                bufferPool.release(buffer);
+                if (isToClient) {
+                    bytesToClient = relayed;
+                } else {
+                    bytesFromClient = relayed;
+                }
             }
         });
     }
 
+    // Sockets accepted or opened through NIO are used directly, any others through stream adapters.
+    private static ReadableByteChannel readChannel(Socket socket) throws IOException {
+        return socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(socket.getInputStream());
+    }
+
+    private static WritableByteChannel writeChannel(Socket socket) throws IOException {
+        return socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(socket.getOutputStream());
+    }
+
+    // Passes an end of stream on to the peer. Sockets that cannot half-close are closed instead.
+    private static void shutdownOutput(Socket socket) {
+        try {
+            if (!socket.isClosed() && !socket.isOutputShutdown()) {
+                socket.shutdownOutput();
+            }
+        } catch (UnsupportedOperationException | IOException e) {
+            closeQuietly(socket);
+        }
+    }
+
     private static void closeQuietly(Socket socket) {
         if (socket != null && !socket.isClosed()) {
             try {
@@ -82,8 +220,8 @@ public class HTTPSConnectionHandler {
         }
     }
 
-    private Socket initializeSSLToTarget(String targetHost, int targetPort) throws IOException {
-        SSLSocketFactory factory = (SSLSocketFactory) SSLSocketFactory.getDefault();
-        return factory.createSocket(targetHost, targetPort);
+    private Socket connectToTarget(String targetHost, int targetPort) throws IOException {
+        SocketPolicy.Options options = SocketPolicy.getInstance(config).options(SocketPolicy.ConnectionClass.TUNNEL);
+        return DNSResolver.getInstance(config).connect(targetHost, targetPort, options).socket();
     }
 }
@@ -0,0 +1,244 @@
+/**
+ * HeaderRewriter rewrites a request head on its way to the target as a pipeline of HeaderTransforms.
+ * It works on the offsets HTTPRequestParser found, copying the request line and every header the transforms
+ * keep straight from the client's buffer into the outgoing one, then lets each transform append its own headers.
+ * No header is decoded into a String, names are matched ignoring case, and the body is left to be relayed as is.
+ * The pipeline follows the config and is rebuilt when it is reloaded:
+ * StripHopByHop drops Connection, Keep-Alive, Proxy-Connection, TE, Trailer, Upgrade, the proxy authentication
+ * headers and any header named in Connection. Transfer-Encoding stays, as the body is relayed with its framing.
+ * ForwardedHeaders decides what the target learns about the client: pass leaves the headers alone,
+ * strip removes X-Forwarded-For, X-Real-IP and Forwarded, conceal strips them and sends X-Forwarded-For: 0.0.0.0,
+ * and add appends the client's address to X-Forwarded-For and Forwarded. MaskIP turns on conceal.
+ * ViaHeader adds a Via header naming the proxy.
+ * closing gives the same pipeline for a target connection that carries one request: Connection and Keep-Alive are
+ * replaced by Connection: close whatever StripHopByHop says.
+ * */
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class HeaderRewriter {
+
+    // Headers added by transforms fit in this much room beyond the original head.
+    private static final int APPENDED_HEADER_ROOM = 1024;
+    private static final String VIA_PSEUDONYM = "forward-proxy";
+
+    private static volatile HeaderRewriter current;
+
+    /**
+     * One step of the pipeline. keep is asked about each header in order;
+     * append then writes any headers of the transform's own, each ending in CRLF.
+     * */
+    public interface HeaderTransform {
+
+        default boolean keep(HTTPRequestParser request, int header) {
+            return true;
+        }
+
+        default void append(HTTPRequestParser request, String clientAddress, ByteBuffer out) {
+        }
+    }
+
+    private final HeaderTransform[] transforms;
+    private final ConfigurationManager.Snapshot snapshot;
+    // Built when first asked for; a race only builds it twice.
+    private HeaderRewriter closing;
+
+    public HeaderRewriter(List<HeaderTransform> transforms) {
+        this(transforms, null);
+    }
+
+    private HeaderRewriter(List<HeaderTransform> transforms, ConfigurationManager.Snapshot snapshot) {
+        this.transforms = transforms.toArray(new HeaderTransform[0]);
+        this.snapshot = snapshot;
+    }
+
+    // The pipeline for the current config. Rebuilt only when the config has been reloaded.
+    public static HeaderRewriter forConfig(ConfigurationManager config) {
+        ConfigurationManager.Snapshot snapshot = config.snapshot();
+        HeaderRewriter rewriter = current;
+        if (rewriter == null || rewriter.snapshot != snapshot) {
+            rewriter = new HeaderRewriter(transformsFor(snapshot), snapshot);
+            current = rewriter;
+        }
+        return rewriter;
+    }
+
+    private static List<HeaderTransform> transformsFor(ConfigurationManager.Snapshot snapshot) {
+        List<HeaderTransform> transforms = new ArrayList<>();
+        if (snapshot.getInt("StripHopByHop", 1) == 1) {
+            transforms.add(new HopByHop());
+        }
+        String forwarded = snapshot.isMaskIP() ? "conceal" : snapshot.get("ForwardedHeaders");
+        if (forwarded != null && !forwarded.equalsIgnoreCase("pass")) {
+            transforms.add(new ClientForwarding(forwarded.toLowerCase()));
+        }
+        if (snapshot.getInt("ViaHeader", 0) == 1) {
+            transforms.add(new Via());
+        }
+        return transforms;
+    }
+
+    // This pipeline followed by CloseConnection.
+    public HeaderRewriter closing() {
+        HeaderRewriter rewriter = closing;
+        if (rewriter == null) {
+            List<HeaderTransform> closingTransforms = new ArrayList<>(Arrays.asList(transforms));
+            closingTransforms.add(new CloseConnection());
+            rewriter = new HeaderRewriter(closingTransforms, snapshot);
+            closing = rewriter;
+        }
+        return rewriter;
+    }
+
+    // How large a buffer rewrite needs for this request's head.
+    public static int capacityFor(HTTPRequestParser request) {
+        return request.headEnd() - request.headStart() + APPENDED_HEADER_ROOM;
+    }
+
+    /**
+     * Writes the rewritten head, ending with its blank line, into out.
+     * Throws ParseException if it does not fit, which capacityFor leaves room to avoid.
+     * */
+    public void rewrite(HTTPRequestParser request, String clientAddress, ByteBuffer out)
+            throws HTTPRequestParser.ParseException {
+        try {
+            request.writeRequestLine(out);
+            for (int i = 0; i < request.headerCount(); i++) {
+                if (isKept(request, i)) {
+                    request.writeHeader(i, out);
+                }
+            }
+            for (HeaderTransform transform : transforms) {
+                transform.append(request, clientAddress, out);
+            }
+            out.put((byte) '\r').put((byte) '\n');
+        } catch (BufferOverflowException e) {
+            throw new HTTPRequestParser.ParseException("Request header too large.");
+        }
+    }
+
+    private boolean isKept(HTTPRequestParser request, int header) {
+        for (HeaderTransform transform : transforms) {
+            if (!transform.keep(request, header)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Writes ASCII text, such as a header name or an address, without encoding it to a byte array first.
+    static void putAscii(ByteBuffer out, String text) {
+        if (out.remaining() < text.length()) {
+            throw new BufferOverflowException();
+        }
+        for (int i = 0; i < text.length(); i++) {
+            out.put((byte) text.charAt(i));
+        }
+    }
+
+    // Headers that only describe the client's connection to the proxy (RFC 9110 section 7.6.1).
+    static final class HopByHop implements HeaderTransform {
+
+        private static final String[] NAMES = {"Connection", "Proxy-Connection", "Keep-Alive", "TE", "Trailer",
+                "Upgrade", "Proxy-Authorization", "Proxy-Authenticate"};
+
+        @Override
+        public boolean keep(HTTPRequestParser request, int header) {
+            for (String name : NAMES) {
+                if (request.headerNameEquals(header, name)) {
+                    return false;
+                }
+            }
+            if (request.headerNameEquals(header, "Transfer-Encoding")) {
+                return true;
+            }
+            for (int i = 0; i < request.headerCount(); i++) {
+                if (request.headerNameEquals(i, "Connection") && request.isListedIn(header, i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    // X-Forwarded-For, X-Real-IP and Forwarded, in the ForwardedHeaders mode strip, conceal or add.
+    static final class ClientForwarding implements HeaderTransform {
+
+        private final String mode;
+
+        ClientForwarding(String mode) {
+            this.mode = mode;
+        }
+
+        @Override
+        public boolean keep(HTTPRequestParser request, int header) {
+            boolean isForwarding = request.headerNameEquals(header, "X-Forwarded-For")
+                    || request.headerNameEquals(header, "Forwarded");
+            // add rewrites the forwarding headers with the client appended, and leaves X-Real-IP to the client.
+            if (mode.equals("add")) {
+                return !isForwarding;
+            }
+            return !isForwarding && !request.headerNameEquals(header, "X-Real-IP");
+        }
+
+        @Override
+        public void append(HTTPRequestParser request, String clientAddress, ByteBuffer out) {
+            if (mode.equals("conceal")) {
+                putAscii(out, "X-Forwarded-For: 0.0.0.0\r\n");
+            } else if (mode.equals("add")) {
+                putAscii(out, "X-Forwarded-For: ");
+                appendValues(request, "X-Forwarded-For", out);
+                putAscii(out, clientAddress);
+                putAscii(out, "\r\nForwarded: ");
+                appendValues(request, "Forwarded", out);
+                // IPv6 addresses are quoted and bracketed in Forwarded (RFC 7239 section 6).
+                boolean isIPv6 = clientAddress.indexOf(':') >= 0;
+                putAscii(out, isIPv6 ? "for=\"[" : "for=");
+                putAscii(out, clientAddress);
+                putAscii(out, isIPv6 ? "]\"\r\n" : "\r\n");
+            }
+        }
+
+        // Writes the values of every header with this name, each followed by ", ". Empty values are left out.
+        private static void appendValues(HTTPRequestParser request, String name, ByteBuffer out) {
+            for (int i = 0; i < request.headerCount(); i++) {
+                if (request.headerNameEquals(i, name)) {
+                    int before = out.position();
+                    request.writeHeaderValue(i, out);
+                    if (out.position() > before) {
+                        putAscii(out, ", ");
+                    }
+                }
+            }
+        }
+    }
+
+    // Replaces the client's Connection and Keep-Alive headers, so the target closes after this request.
+    static final class CloseConnection implements HeaderTransform {
+
+        @Override
+        public boolean keep(HTTPRequestParser request, int header) {
+            return !request.headerNameEquals(header, "Connection") && !request.headerNameEquals(header, "Keep-Alive");
+        }
+
+        @Override
+        public void append(HTTPRequestParser request, String clientAddress, ByteBuffer out) {
+            putAscii(out, "Connection: close\r\n");
+        }
+    }
+
+    // Names the proxy in Via. A field line of its own is the same as appending to an existing Via.
+    static final class Via implements HeaderTransform {
+
+        @Override
+        public void append(HTTPRequestParser request, String clientAddress, ByteBuffer out) {
+            putAscii(out, request.isVersion("HTTP/1.0") ? "Via: 1.0 " : "Via: 1.1 ");
+            putAscii(out, VIA_PSEUDONYM);
+            putAscii(out, "\r\n");
+        }
+    }
+}
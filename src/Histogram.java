@@ -0,0 +1,124 @@
+/**
+ * Histogram counts durations in nanoseconds in log-linear buckets, in the style of HdrHistogram.
+ * Each power of two is split into 16 linear sub-buckets, so any recorded value is kept to within 1/16
+ * of itself, from 1ns up to Long.MAX_VALUE, in a fixed array of 960 counters.
+ * Recording is a bucket index computation and two atomic adds: it takes no lock and allocates nothing,
+ * so it can stay on for every request.
+ * Readers work from a snapshot of the counters, which may miss records still in progress.
+ * */
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+public class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = SUB_BUCKETS * (64 - SUB_BUCKET_BITS);
+    // Prometheus bucket bounds are the powers of two from 2^10ns (about 1us) to 2^42ns (about 73 minutes),
+    // which fall exactly on bucket edges.
+    private static final int FIRST_EXPORTED_POWER = 10;
+    private static final int LAST_EXPORTED_POWER = 42;
+
+    private final String name;
+    private final String help;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder totalNanos = new LongAdder();
+
+    public Histogram(String name, String help) {
+        this.name = name;
+        this.help = help;
+    }
+
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(bucketIndex(value));
+        totalNanos.add(value);
+    }
+
+    // Records the time since startNanos, a System.nanoTime() reading.
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+            count += copy[i];
+        }
+        return new Snapshot(copy, count, totalNanos.sum());
+    }
+
+    // Appends this histogram in the Prometheus text exposition format, in seconds.
+    public void writePrometheus(StringBuilder out) {
+        Snapshot snapshot = snapshot();
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" histogram\n");
+        long cumulative = 0;
+        int bucket = 0;
+        for (int power = FIRST_EXPORTED_POWER; power <= LAST_EXPORTED_POWER; power++) {
+            long bound = 1L << power;
+            while (bucket < BUCKETS && upperBound(bucket) <= bound) {
+                cumulative += snapshot.counts[bucket++];
+            }
+            out.append(name).append("_bucket{le=\"").append(bound / 1e9).append("\"} ").append(cumulative).append('\n');
+        }
+        out.append(name).append("_bucket{le=\"+Inf\"} ").append(snapshot.count).append('\n');
+        out.append(name).append("_sum ").append(snapshot.totalNanos / 1e9).append('\n');
+        out.append(name).append("_count ").append(snapshot.count).append('\n');
+    }
+
+    public record Snapshot(long[] counts, long count, long totalNanos) {
+
+        // The upper edge of the bucket holding the given quantile, so the true value is at most this.
+        public long quantile(double quantile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(quantile * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return upperBound(i) - 1;
+                }
+            }
+            return upperBound(counts.length - 1) - 1;
+        }
+
+        public String summary(String name) {
+            return String.format(Locale.ROOT, "%s: count=%d mean=%.3fms p50=%.3fms p90=%.3fms p99=%.3fms max=%.3fms",
+                    name, count, count == 0 ? 0 : totalNanos / 1e6 / count, quantile(0.5) / 1e6,
+                    quantile(0.9) / 1e6, quantile(0.99) / 1e6, quantile(1) / 1e6);
+        }
+    }
+
+    // Values below 16 have a bucket each. Above that, the top four bits after the leading one pick the sub-bucket.
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return SUB_BUCKETS + shift * SUB_BUCKETS + subBucket;
+    }
+
+    // The smallest value above the given bucket.
+    static long upperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index + 1;
+        }
+        int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+        int subBucket = (index - SUB_BUCKETS) % SUB_BUCKETS;
+        long bound = (long) (SUB_BUCKETS + subBucket + 1) << shift;
+        return bound > 0 ? bound : Long.MAX_VALUE;
+    }
+}
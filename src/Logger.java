@@ -2,38 +2,122 @@
  * Logger generates a log file (Called server_log.txt by default in config).
  * Logs can be either INFO, ERROR, or DEBUG.
  * Call necessary method for those messages.
- * Hopefully thread safe.
+ * Logging is asynchronous: callers put entries into a bounded lock-free ring buffer and return,
+ * and one background thread formats them in batches and appends them through a single FileChannel.
+ * When the ring is full, LogOverflowPolicy decides what happens:
+ * block waits for space, drop discards the entry, and sample keeps errors
+ * and one in SAMPLE_RATE other entries once the ring is three quarters full.
+ * Dropped entries are counted and reported in the log.
+ * If the log file cannot be opened or written, the flusher stops and later entries are dropped rather than
+ * waited on. Entries still queued when the JVM exits are lost unless shutdown is called first.
  * */
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
 public class Logger {
 
-    private static String logFilePath;
-    private static final Lock lock = new ReentrantLock();
+    private static final int DEFAULT_CAPACITY = 8192;
+    private static final int SAMPLE_RATE = 16;
+    private static final int BATCH_BYTES = 64 * 1024;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+    private static final DateTimeFormatter TIMESTAMP_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+
     private enum LogLevel {INFO, ERROR, DEBUG}
+    private enum OverflowPolicy {BLOCK, DROP, SAMPLE}
+
+    private record LogEntry(long time, LogLevel level, String message) {}
+
+    private static String logFilePath;
+    private static volatile OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+
+    // Bounded multi-producer ring. Each slot's sequence says whether it is free for a producer
+    // at that position or holds an entry for the consumer.
+    private static volatile LogEntry[] entries;
+    private static volatile AtomicLongArray sequences;
+    private static volatile int mask;
+    private static final AtomicLong tail = new AtomicLong();
+    // Only advanced by the flusher. Producers read it to judge how full the ring is.
+    private static volatile long head = 0;
+
+    private static final LongAdder dropped = new LongAdder();
+    private static final AtomicLong sampleCounter = new AtomicLong();
+    private static volatile Thread flusherThread;
+    private static volatile boolean isRunning = false;
+
+    static {
+        allocateRing(DEFAULT_CAPACITY);
+    }
 
     public static void initializeLogger (String logFilePath) {
+        initializeLogger(logFilePath, null, DEFAULT_CAPACITY);
+    }
+
+    public static synchronized void initializeLogger (String logFilePath, String overflowPolicy, int capacity) {
         Logger.logFilePath = logFilePath;
+        if (overflowPolicy != null) {
+            try {
+                Logger.overflowPolicy = OverflowPolicy.valueOf(overflowPolicy.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                System.out.println("Unknown log overflow policy " + overflowPolicy + ". Using block.");
+            }
+        }
+        if (flusherThread == null && capacity != entries.length) {
+            allocateRing(capacity);
+        }
 
         File logFile = new File(logFilePath);
+        boolean isNewFile = false;
         if (!logFile.exists()) {
             try {
-                if (logFile.createNewFile()) {
-                    logInfo("Log file created");
-                }
+                isNewFile = logFile.createNewFile();
             } catch (IOException e) {
                 e.printStackTrace();
                 System.out.println("Failed to generate log file.");
             }
         }
+
+        if (flusherThread == null) {
+            isRunning = true;
+            flusherThread = new Thread(Logger::flushLoop, "logger-flusher");
+            flusherThread.setDaemon(true);
+            flusherThread.start();
+        }
+        if (isNewFile) {
+            logInfo("Log file created");
+        }
+    }
+
+    // Writes out everything still queued and stops the background thread.
+    public static void shutdown() {
+        Thread flusher = flusherThread;
+        if (flusher == null) {
+            return;
+        }
+        isRunning = false;
+        LockSupport.unpark(flusher);
+        try {
+            flusher.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     public static void logInfo (String message) {
@@ -48,22 +132,169 @@ public class Logger {
         log (LogLevel.DEBUG, message);
     }
 
+    public static long droppedCount() {
+        return dropped.sum();
+    }
+
     private static void log(LogLevel level, String message) {
-        lock.lock();
-        try {
-            SimpleDateFormat currTime = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-            String timestamp = currTime.format(new Date());
+        LogEntry entry = new LogEntry(System.currentTimeMillis(), level, message);
+        switch (overflowPolicy) {
+            case BLOCK -> {
+                while (!offer(entry)) {
+                    Thread flusher = flusherThread;
+                    if (!isRunning || flusher == null) {
+                        dropped.increment();
+                        return;
+                    }
+                    LockSupport.unpark(flusher);
+                    LockSupport.parkNanos(50_000);
+                }
+            }
+            case DROP -> {
+                if (!offer(entry)) {
+                    dropped.increment();
+                }
+            }
+            case SAMPLE -> {
+                boolean isUnderPressure = tail.get() - head > (mask + 1) * 3L / 4;
+                if (isUnderPressure && level != LogLevel.ERROR
+                        && sampleCounter.incrementAndGet() % SAMPLE_RATE != 0) {
+                    dropped.increment();
+                } else if (!offer(entry)) {
+                    dropped.increment();
+                }
+            }
+        }
+    }
 
-            String logEntry = String.format("[%s] [%s] %s%n", timestamp, level, message);
+    private static boolean offer(LogEntry entry) {
+        AtomicLongArray sequences = Logger.sequences;
+        long position = tail.get();
+        while (true) {
+            int index = (int) (position & mask);
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    entries[index] = entry;
+                    // Publishes the entry to the flusher.
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
 
-            try (BufferedWriter writer = new BufferedWriter(new FileWriter(logFilePath, true))) {
-                writer.write(logEntry);
-            } catch (IOException e) {
-                e.printStackTrace();
+    // Only called from the flusher thread.
+    private static LogEntry poll() {
+        int index = (int) (head & mask);
+        if (sequences.get(index) != head + 1) {
+            return null;
+        }
+        LogEntry entry = entries[index];
+        entries[index] = null;
+        sequences.set(index, head + mask + 1);
+        head++;
+        return entry;
+    }
+
+    /**
+     * Replaces the ring with one of at least capacity slots. Entries already queued move to the front of the new
+     * ring, as many as fit, and head and tail restart from there. Only called before the flusher starts, while
+     * nothing else logs, so neither end moves meanwhile.
+     * */
+    private static void allocateRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        LogEntry[] newEntries = new LogEntry[size];
+        AtomicLongArray newSequences = new AtomicLongArray(size);
+        int queued = 0;
+        if (entries != null) {
+            for (long position = head; position < tail.get(); position++) {
+                int index = (int) (position & mask);
+                if (queued == size) {
+                    dropped.increment();
+                } else if (sequences.get(index) == position + 1) {
+                    newEntries[queued] = entries[index];
+                    newSequences.set(queued, queued + 1);
+                    queued++;
+                }
             }
+        }
+        for (int i = queued; i < size; i++) {
+            newSequences.set(i, i);
+        }
+        entries = newEntries;
+        mask = size - 1;
+        sequences = newSequences;
+        head = 0;
+        tail.set(queued);
+    }
+
+    private static void flushLoop() {
+        StringBuilder batch = new StringBuilder(BATCH_BYTES);
+        ByteBuffer output = ByteBuffer.allocateDirect(BATCH_BYTES);
+        CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+        long cachedSecond = -1;
+        String cachedTimestamp = "";
+        long reportedDrops = 0;
+
+        try (FileChannel channel = FileChannel.open(Path.of(logFilePath),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            while (true) {
+                boolean isStopping = !isRunning;
+                LogEntry entry;
+                while (batch.length() < BATCH_BYTES && (entry = poll()) != null) {
+                    long second = entry.time() / 1000;
+                    if (second != cachedSecond) {
+                        cachedSecond = second;
+                        cachedTimestamp = TIMESTAMP_FORMAT.format(Instant.ofEpochMilli(entry.time()));
+                    }
+                    batch.append('[').append(cachedTimestamp).append("] [").append(entry.level()).append("] ")
+                            .append(entry.message()).append(System.lineSeparator());
+                }
+                long drops = dropped.sum();
+                if (drops != reportedDrops) {
+                    batch.append('[').append(cachedTimestamp).append("] [").append(LogLevel.ERROR).append("] ")
+                            .append(drops - reportedDrops).append(" log entries dropped.")
+                            .append(System.lineSeparator());
+                    reportedDrops = drops;
+                }
 
+                if (batch.length() > 0) {
+                    write(channel, encoder, batch, output);
+                    batch.setLength(0);
+                } else if (isStopping) {
+                    return;
+                } else {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("Failed to write to log file.");
         } finally {
-            lock.unlock();
+            // Nothing drains the ring any more, so producers must not wait for space in it.
+            isRunning = false;
+            flusherThread = null;
         }
     }
+
+    private static void write(FileChannel channel, CharsetEncoder encoder, StringBuilder batch, ByteBuffer output)
+            throws IOException {
+        CharBuffer input = CharBuffer.wrap(batch);
+        encoder.reset();
+        CoderResult result;
+        do {
+            result = encoder.encode(input, output, true);
+            output.flip();
+            while (output.hasRemaining()) {
+                channel.write(output);
+            }
+            output.clear();
+        } while (result.isOverflow());
+    }
 }
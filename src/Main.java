@@ -2,7 +2,12 @@
  * Main. Starts cli menu to initialize server.
  * start [port] starts the server.
  * Settings may be applied in the form of '-[setting]'.
- * stop stops the server.
+ * stop stops the server, draining its connections first. SIGTERM does the same.
+ * shape [tier] [KB/s] [burst KB] changes a TrafficShaper limit while running; 0 KB/s lifts it.
+ * -p prints the upstream connection pool, tunnel buffer pool and DNS cache counters, and the socket options.
+ * -c prints the response cache, request coalescing and compression counters.
+ * -l prints the client connection, rate limit, traffic shaping and destination filter counters.
+ * -s prints latency percentiles for each proxy stage, traffic and error counters, and the access log's.
  * */
 
 import java.net.InetAddress;
@@ -18,7 +23,16 @@ public class Main {
         Scanner scanner = new Scanner(System.in);
 
         if (!initializeConfigManager(scanner)) return;
-        Logger.initializeLogger(config.getConfig("LogFilePath"));
+        Logger.initializeLogger(config.getConfig("LogFilePath"), config.getConfig("LogOverflowPolicy"),
+                config.getIntConfig("LogBufferSize", 8192));
+
+        // On SIGTERM, drain connections as the stop command would instead of dropping them.
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            if (server != null) {
+                server.shutdown();
+            }
+            Logger.shutdown();
+        }, "shutdown-drain"));
 
         System.out.print("> ");
 
@@ -38,13 +52,37 @@ public class Main {
                         String portNumber = parts[i];
                         handleStartCommand(portNumber);
                     }
+                    case "shape" -> {
+                        i = handleShapeCommand(parts, i);
+                    }
                     case "stop" -> {
                         handleStopCommand();
+                        Logger.shutdown();
                         run = false;
                     }
                     case "-h" -> System.out.println(help);
+                    case "-p" -> {
+                        System.out.println(UpstreamConnectionPool.getInstance(config).stats());
+                        System.out.println(DirectBufferPool.getInstance(config).stats());
+                        System.out.println(DNSResolver.getInstance(config).stats());
+                        System.out.println(SocketPolicy.getInstance(config).stats());
+                    }
+                    case "-c" -> {
+                        System.out.println(ResponseCache.getInstance(config).stats());
+                        System.out.println(RequestCoalescer.getInstance(config).stats());
+                        System.out.println(ResponseCompressor.getInstance(config).stats());
+                    }
+                    case "-l" -> {
+                        System.out.println(ClientLimiter.getInstance(config).stats());
+                        System.out.println(TrafficShaper.getInstance(config).stats());
+                        System.out.println(DestinationFilter.getInstance(config).stats());
+                    }
+                    case "-s" -> {
+                        System.out.println(Metrics.summary());
+                        System.out.println(AccessLog.getInstance(config).stats());
+                    }
                     case "-m" -> {
-                        if (config.getConfig("MaskIP").equals("0")) {
+                        if (!config.snapshot().isMaskIP()) {
                             config.setConfig("MaskIP", "1");
                             System.out.println("Concealment enabled.");
                         } else {
@@ -81,6 +119,35 @@ public class Main {
         }
     }
 
+    /**
+     * shape <global|client|destination> <KB/s> [burst KB]. The burst stays as configured when it is left out.
+     * Returns the index of the last part the command used.
+     * */
+    private static int handleShapeCommand(String[] parts, int i) {
+        TrafficShaper shaper = TrafficShaper.getInstance(config);
+        TrafficShaper.Tier tier = i + 2 < parts.length ? TrafficShaper.parseTier(parts[i + 1]) : null;
+        if (tier == null) {
+            System.out.println("Usage: shape <global|client|destination> <KB/s> [burst KB]");
+            return parts.length - 1;
+        }
+        String burstKey = switch (tier) {
+            case GLOBAL -> "GlobalByteBurstKB";
+            case CLIENT -> "ClientByteBurstKB";
+            case DESTINATION -> "DestinationByteBurstKB";
+        };
+        try {
+            long rateKB = Long.parseLong(parts[i + 2]);
+            boolean hasBurst = i + 3 < parts.length && parts[i + 3].matches("\\d+");
+            long burstKB = hasBurst ? Long.parseLong(parts[i + 3]) : config.getIntConfig(burstKey, 1024);
+            shaper.setLimit(tier, rateKB, burstKB);
+            System.out.println(shaper.stats());
+            return hasBurst ? i + 3 : i + 2;
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid rate. Rates are whole KB per second, 0 for unlimited.");
+            return parts.length - 1;
+        }
+    }
+
     private static void handleStopCommand() {
         if (server != null) {
             server.shutdown();
@@ -119,7 +186,12 @@ public class Main {
     private static final String help = """
             ALL COMMANDS:
             start [port] : start server with specified port
-            stop : stop the server
+            stop : stop the server after draining its connections
+            shape [global|client|destination] [KB/s] [burst KB] : change a bandwidth limit, 0 for unlimited
             -h : display this help message
-            -m : conceal IP""";
+            -m : conceal IP
+            -p : show upstream connection, tunnel buffer, DNS cache and socket option stats
+            -c : show response cache, request coalescing and compression stats
+            -l : show client connection, rate limit, traffic shaping and destination filter stats
+            -s : show latency percentiles, traffic, error and access log counts""";
 }
@@ -2,28 +2,51 @@
  * Initializes server socket and then attempts to start a client thread.
  * Currently, closes completely with any errors.
  * Implements runnable so that the server CLI can still be interacted with.
+ * Clients run on platform threads, virtual threads or an EventLoopGroup, as ServerMode says.
  * */
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.Collections;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 
 public class MainServer implements Runnable{
+    // How often the accept loop looks up from accept to see whether the server is stopping.
+    private static final int ACCEPT_POLL_MILLIS = 250;
+
+    private final ServerSocketChannel serverChannel;
     private final ServerSocket serverSocket;
     private volatile boolean isRunning = false;
     private final int port;
     private final ConfigurationManager config;
     private Thread serverThread;
-    private final Set<String> activeConnections = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private EventLoopGroup eventLoopGroup;
+    private final ClientLimiter clientLimiter;
+    private MetricsServer metricsServer;
+    private final ConnectionTracker connections = new ConnectionTracker();
+    private boolean isShutDown = false;
 
     public MainServer(int port, ConfigurationManager config) {
         this.port = port;
         this.config = config;
+        this.clientLimiter = ClientLimiter.getInstance(config);
         try {
-            this.serverSocket = new ServerSocket(this.port);
+            this.serverChannel = ServerSocketChannel.open();
+            if (config.getIntConfig("ReusePort", 0) == 1) {
+                if (serverChannel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                    serverChannel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                } else {
+                    Logger.logError("ReusePort is set, but SO_REUSEPORT is not supported on this platform.");
+                }
+            }
+            int backlog = SocketPolicy.getInstance(config).configureListener(serverChannel);
+            this.serverChannel.bind(new InetSocketAddress(this.port), backlog);
+            this.serverSocket = serverChannel.socket();
             Logger.logInfo("Server socket created and started listening on port: " + this.port);
         } catch (IOException e) {
             System.err.println("Error: Server failed to start on port: " + this.port);
@@ -37,6 +60,22 @@ public class MainServer implements Runnable{
             System.err.println("Server is already running.");
             return;
         }
+        startMetricsServer();
+        DestinationFilter.getInstance(config);
+
+        if ("nio".equalsIgnoreCase(config.getConfig("ServerMode"))) {
+            try {
+                eventLoopGroup = new EventLoopGroup(config.getIntConfig("EventLoopThreads", 0), config, connections);
+                eventLoopGroup.start(serverChannel);
+            } catch (IOException e) {
+                System.err.println("Error: Event loops failed to start.");
+                Logger.logError("Could not start event loops: " + e.getMessage());
+                return;
+            }
+            isRunning = true;
+            System.out.println("Server is now running on port: " + port);
+            return;
+        }
 
         isRunning = true;
         serverThread = new Thread(this);
@@ -47,34 +86,132 @@ public class MainServer implements Runnable{
     public void run() {
         System.out.println("Server is now running on port: " + port);
         Logger.logInfo("Server execution started on port: " + port);
+        Thread.Builder clientThreads = threadBuilder(config);
 
+        try {
+            serverSocket.setSoTimeout(ACCEPT_POLL_MILLIS);
+        } catch (IOException e) {
+            Logger.logError("Could not set accept timeout: " + e.getMessage());
+        }
         while (isRunning && !serverSocket.isClosed()) {
             try {
-                Socket clientSocket = serverSocket.accept();
-                if (!activeConnections.contains(clientSocket.getInetAddress().getHostAddress())) {
-                    System.out.println("\nClient connected from " + clientSocket.getInetAddress().getHostAddress());
-                    System.out.print("> ");
-                    Logger.logInfo("New client connection accepted from: " + clientSocket.getInetAddress().getHostAddress());
-
-                    ClientHandler newClient = new ClientHandler(clientSocket, config, activeConnections);
-                    new Thread(newClient).start();
-
-                    activeConnections.add(clientSocket.getInetAddress().getHostAddress());
-                }
+                handleClient(serverSocket.accept(), clientThreads);
+            } catch (SocketTimeoutException e) {
+                // Time to check isRunning.
             } catch (IOException e) {
                 if (isRunning) {
                     Logger.logError("Unexpected IO exception during accept: " + e.getMessage());
                 }
             }
         }
+        // Clients already queued by the kernel would be reset when the socket closes, so they are served too.
+        try {
+            serverChannel.configureBlocking(false);
+            SocketChannel clientChannel;
+            while ((clientChannel = serverChannel.accept()) != null) {
+                clientChannel.configureBlocking(true);
+                handleClient(clientChannel.socket(), clientThreads);
+            }
+        } catch (IOException e) {
+            Logger.logError("Unexpected IO exception during accept: " + e.getMessage());
+        }
         Logger.logInfo("Server has stopped accepting new connections.");
     }
 
-    public void shutdown() {
+    private void handleClient(Socket clientSocket, Thread.Builder clientThreads) {
+        long acceptedAt = System.nanoTime();
+        String clientAddress = clientSocket.getInetAddress().getHostAddress();
+        ClientLimiter.Admission admission = clientLimiter.admit(clientAddress);
+        if (admission != ClientLimiter.Admission.ACCEPTED) {
+            shedConnection(clientSocket, admission);
+            return;
+        }
+        System.out.println("\nClient connected from " + clientAddress);
+        System.out.print("> ");
+        Logger.logInfo("New client connection accepted from: " + clientAddress);
+
+        ClientHandler newClient = new ClientHandler(clientSocket, config, connections);
+        clientThreads.start(() -> {
+            Metrics.ACCEPT.recordSince(acceptedAt);
+            try {
+                newClient.run();
+            } finally {
+                clientLimiter.release(clientAddress);
+            }
+        });
+    }
+
+    private void startMetricsServer() {
+        int metricsPort = config.getIntConfig("MetricsPort", 0);
+        if (metricsPort <= 0) {
+            return;
+        }
+        String bindAddress = config.getConfig("MetricsBindAddress");
+        try {
+            metricsServer = new MetricsServer(bindAddress != null ? bindAddress : "127.0.0.1", metricsPort);
+            metricsServer.start();
+        } catch (IOException e) {
+            System.err.println("Error: Metrics server failed to start on port: " + metricsPort);
+            Logger.logError("Could not start metrics server on port " + metricsPort + ": " + e.getMessage());
+        }
+    }
+
+    // Thread factory for client handlers and tunnel relays, depending on ServerMode.
+    static Thread.Builder threadBuilder(ConfigurationManager config) {
+        if ("virtual".equalsIgnoreCase(config.getConfig("ServerMode"))) {
+            return Thread.ofVirtual();
+        }
+        return Thread.ofPlatform();
+    }
+
+    private void shedConnection(Socket clientSocket, ClientLimiter.Admission admission) {
+        Logger.logError("Connection limit reached. Rejected client: " + clientSocket.getInetAddress().getHostAddress());
+        try (clientSocket) {
+            clientSocket.getOutputStream().write(limitResponse(admission).getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            Logger.logError("Failed to send 503 response: " + e.getMessage());
+        }
+    }
+
+    // The response sent to a client refused by ClientLimiter, before closing its connection.
+    static String limitResponse(ClientLimiter.Admission admission) {
+        boolean isGlobal = admission == ClientLimiter.Admission.GLOBAL_LIMIT;
+        String responseBody = isGlobal ? "Service Unavailable: The proxy is at its connection limit."
+                : "Too Many Requests: Client connection or request limit reached.";
+        return "HTTP/1.1 " + (isGlobal ? "503 Service Unavailable" : "429 Too Many Requests") + "\r\n" +
+                "Content-Type: text/plain\r\n" +
+                "Content-Length: " + responseBody.length() + "\r\n" +
+                "Connection: close\r\n" +
+                "\r\n" +
+                responseBody;
+    }
+
+    // Safe to call more than once, as both the stop command and the JVM's shutdown hook call it.
+    public synchronized void shutdown() {
+        if (isShutDown) {
+            return;
+        }
+        isShutDown = true;
         isRunning = false;
         try {
-            serverSocket.close();
-            serverThread.join();
+            if (eventLoopGroup != null) {
+                eventLoopGroup.stopAccepting();
+            }
+            if (serverThread != null) {
+                serverThread.join();
+            }
+            serverChannel.close();
+            System.out.println("Draining " + connections.size() + " connections...");
+            String report = connections.drain(config.getIntConfig("DrainTimeout", 30) * 1000L);
+            System.out.println(report);
+            Logger.logInfo(report);
+            if (eventLoopGroup != null) {
+                eventLoopGroup.shutdown();
+            }
+            if (metricsServer != null) {
+                metricsServer.stop();
+            }
+            AccessLog.getInstance(config).force();
             System.out.println("Server has been stopped.");
             Logger.logInfo("Server socket closed. Server shutdown successfully.");
         } catch (IOException e) {
@@ -0,0 +1,214 @@
+/**
+ * Metrics holds the proxy's latency histograms and counters, shared by every connection.
+ * Each stage of a request has its own Histogram: accepting the connection, parsing the request head,
+ * resolving and connecting to the target, the target's first byte, and the whole exchange,
+ * with the last three kept separately for HTTP requests and CONNECT tunnels.
+ * Counters cover bytes from and to clients, active tunnels, HTTP/2 connections and streams, and errors by type.
+ * Other components register gauges for their own counters, read only when metrics are exported.
+ * Recording never locks or allocates; exporting builds the Prometheus text format served by MetricsServer.
+ * */
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+public class Metrics {
+
+    public enum Error {MALFORMED_REQUEST, RATE_LIMITED, DNS, CONNECT_TIMEOUT, CONNECT, HTTP_RELAY, TUNNEL_RELAY, CLIENT_IO, DENIED}
+
+    public static final Histogram ACCEPT = new Histogram("proxy_accept_seconds",
+            "Time from accepting a connection to its handler starting.");
+    public static final Histogram PARSE = new Histogram("proxy_parse_seconds",
+            "Time from the first byte of a request head arriving to the head being parsed.");
+    public static final Histogram DNS = new Histogram("proxy_dns_seconds",
+            "Time to resolve a target host, including cache hits.");
+    public static final Histogram CONNECT = new Histogram("proxy_upstream_connect_seconds",
+            "Time to open a new connection to a resolved target.");
+    public static final Histogram HTTP_FIRST_BYTE = new Histogram("proxy_http_first_byte_seconds",
+            "Time from forwarding an HTTP request to the first byte of the target's response.");
+    public static final Histogram HTTP_TOTAL = new Histogram("proxy_http_request_seconds",
+            "Time from parsing an HTTP request to the last byte of its response being sent.");
+    public static final Histogram TUNNEL_FIRST_BYTE = new Histogram("proxy_tunnel_first_byte_seconds",
+            "Time from establishing a CONNECT tunnel to the first byte from the target.");
+    public static final Histogram TUNNEL_TOTAL = new Histogram("proxy_tunnel_seconds",
+            "Time from parsing a CONNECT request to its tunnel closing.");
+
+    private static final Histogram[] HISTOGRAMS =
+            {ACCEPT, PARSE, DNS, CONNECT, HTTP_FIRST_BYTE, HTTP_TOTAL, TUNNEL_FIRST_BYTE, TUNNEL_TOTAL};
+
+    private static final LongAdder bytesIn = new LongAdder();
+    private static final LongAdder bytesOut = new LongAdder();
+    private static final LongAdder tunnelsOpened = new LongAdder();
+    private static final AtomicLong activeTunnels = new AtomicLong();
+    private static final LongAdder http2Opened = new LongAdder();
+    private static final AtomicLong activeHttp2 = new AtomicLong();
+    private static final LongAdder http2Streams = new LongAdder();
+    private static final LongAdder[] errors = new LongAdder[Error.values().length];
+    private static final List<Gauge> gauges = new CopyOnWriteArrayList<>();
+
+    static {
+        for (int i = 0; i < errors.length; i++) {
+            errors[i] = new LongAdder();
+        }
+    }
+
+    private record Gauge(String name, String type, String help, LongSupplier value) {}
+
+    private Metrics() {}
+
+    // Bytes read from clients.
+    public static void bytesIn(long bytes) {
+        bytesIn.add(bytes);
+    }
+
+    // Bytes written to clients.
+    public static void bytesOut(long bytes) {
+        bytesOut.add(bytes);
+    }
+
+    public static void tunnelOpened() {
+        tunnelsOpened.increment();
+        activeTunnels.incrementAndGet();
+    }
+
+    public static void tunnelClosed() {
+        activeTunnels.decrementAndGet();
+    }
+
+    public static void http2Opened() {
+        http2Opened.increment();
+        activeHttp2.incrementAndGet();
+    }
+
+    public static void http2Closed() {
+        activeHttp2.decrementAndGet();
+    }
+
+    public static void http2Stream() {
+        http2Streams.increment();
+    }
+
+    public static void error(Error type) {
+        errors[type.ordinal()].increment();
+    }
+
+    // Counts a failure to reach a target by its cause.
+    public static void connectFailed(IOException e) {
+        if (e instanceof DestinationFilter.DeniedException) {
+            error(Error.DENIED);
+        } else if (e instanceof UnknownHostException) {
+            error(Error.DNS);
+        } else if (e instanceof SocketTimeoutException) {
+            error(Error.CONNECT_TIMEOUT);
+        } else {
+            error(Error.CONNECT);
+        }
+    }
+
+    /**
+     * Exports a value owned by another component. type is "counter" or "gauge".
+     * The supplier is only called while exporting, so it may be as slow as a stats() call.
+     * */
+    public static void register(String name, String type, String help, LongSupplier value) {
+        gauges.add(new Gauge(name, type, help, value));
+    }
+
+    // Wraps a client's input stream so that everything read through it counts as bytes in.
+    public static InputStream countIn(InputStream input) {
+        return new FilterInputStream(input) {
+            @Override
+            public int read() throws IOException {
+                int b = in.read();
+                if (b != -1) {
+                    bytesIn.increment();
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int length) throws IOException {
+                int read = in.read(bytes, offset, length);
+                if (read > 0) {
+                    bytesIn.add(read);
+                }
+                return read;
+            }
+        };
+    }
+
+    // Wraps a client's output stream so that everything written through it counts as bytes out.
+    public static OutputStream countOut(OutputStream output) {
+        return new FilterOutputStream(output) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                bytesOut.increment();
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                out.write(bytes, offset, length);
+                bytesOut.add(length);
+            }
+        };
+    }
+
+    public static String prometheus() {
+        StringBuilder out = new StringBuilder(16 * 1024);
+        for (Histogram histogram : HISTOGRAMS) {
+            histogram.writePrometheus(out);
+        }
+        writeValue(out, "proxy_client_bytes_received_total", "counter", "Bytes read from clients.", bytesIn.sum());
+        writeValue(out, "proxy_client_bytes_sent_total", "counter", "Bytes written to clients.", bytesOut.sum());
+        writeValue(out, "proxy_tunnels_total", "counter", "CONNECT tunnels established.", tunnelsOpened.sum());
+        writeValue(out, "proxy_tunnels_active", "gauge", "CONNECT tunnels currently open.", activeTunnels.get());
+        writeValue(out, "proxy_http2_connections_total", "counter", "HTTP/2 client connections.", http2Opened.sum());
+        writeValue(out, "proxy_http2_connections_active", "gauge", "HTTP/2 client connections currently open.",
+                activeHttp2.get());
+        writeValue(out, "proxy_http2_streams_total", "counter", "Requests received as HTTP/2 streams.",
+                http2Streams.sum());
+        out.append("# HELP proxy_errors_total Failed requests and connections by cause.\n");
+        out.append("# TYPE proxy_errors_total counter\n");
+        for (Error type : Error.values()) {
+            out.append("proxy_errors_total{type=\"").append(type.name().toLowerCase(Locale.ROOT)).append("\"} ")
+                    .append(errors[type.ordinal()].sum()).append('\n');
+        }
+        for (Gauge gauge : gauges) {
+            writeValue(out, gauge.name(), gauge.type(), gauge.help(), gauge.value().getAsLong());
+        }
+        return out.toString();
+    }
+
+    // One line per stage with its percentiles, for the CLI.
+    public static String summary() {
+        StringBuilder out = new StringBuilder();
+        for (Histogram histogram : HISTOGRAMS) {
+            out.append(histogram.snapshot().summary(histogram.name())).append('\n');
+        }
+        out.append(String.format("Traffic: bytesIn=%d bytesOut=%d tunnels=%d activeTunnels=%d",
+                bytesIn.sum(), bytesOut.sum(), tunnelsOpened.sum(), activeTunnels.get()));
+        out.append(String.format("%nHTTP/2: connections=%d activeConnections=%d streams=%d",
+                http2Opened.sum(), activeHttp2.get(), http2Streams.sum()));
+        out.append("\nErrors:");
+        for (Error type : Error.values()) {
+            out.append(' ').append(type.name().toLowerCase(Locale.ROOT)).append('=').append(errors[type.ordinal()].sum());
+        }
+        return out.toString();
+    }
+
+    private static void writeValue(StringBuilder out, String name, String type, String help, long value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        out.append(name).append(' ').append(value).append('\n');
+    }
+}
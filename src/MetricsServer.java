@@ -0,0 +1,64 @@
+/**
+ * MetricsServer is the admin endpoint: it serves Metrics at /metrics in the Prometheus text format.
+ * It listens on MetricsPort, bound to MetricsBindAddress, which defaults to localhost so that
+ * the numbers are not published to the clients of the proxy. A MetricsPort of 0 leaves it off.
+ * Scrapes are answered on one thread of their own, away from the client connections.
+ * */
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class MetricsServer {
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    public MetricsServer(String bindAddress, int port) throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress(bindAddress, port), 0);
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-server");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.createContext("/metrics", this::serveMetrics);
+        server.setExecutor(executor);
+    }
+
+    public void start() {
+        server.start();
+        Logger.logInfo("Metrics available on " + server.getAddress() + "/metrics");
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdown();
+    }
+
+    private void serveMetrics(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            String method = exchange.getRequestMethod();
+            if (!method.equals("GET") && !method.equals("HEAD")) {
+                exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = Metrics.prometheus().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            if (method.equals("HEAD")) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream output = exchange.getResponseBody()) {
+                output.write(body);
+            }
+        }
+    }
+}
@@ -0,0 +1,991 @@
+/**
+ * NIOConnection is the non-blocking version of ClientHandler and the connection handlers.
+ * It is driven by its EventLoop as a state machine: read the request head, connect to the target,
+ * then relay bytes both ways until each side has finished.
+ * Each connection carries one HTTP request, sent to the target with Connection: close, or one CONNECT tunnel.
+ * */
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+public class NIOConnection implements EventLoop.Handler, ConnectionTracker.Tracked {
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+    // What DNSResolver allows a connect when no timeout is configured.
+    private static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 75_000;
+    private static final byte[] TUNNEL_ESTABLISHED =
+            "HTTP/1.1 200 Connection Established\r\n\r\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] BAD_GATEWAY =
+            "HTTP/1.1 502 Bad Gateway\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] CONNECTION_CLOSE = "Connection: close\r\n".getBytes(StandardCharsets.UTF_8);
+
+    private enum State {READING_REQUEST, CONNECTING, RELAYING, CLOSING, CLOSED}
+
+    private final EventLoop loop;
+    private final SocketChannel clientChannel;
+    private final String clientAddress;
+    private final ConfigurationManager config;
+    private final ClientLimiter clientLimiter;
+    private final ConnectionTracker tracker;
+    private final UpstreamHandler upstreamHandler = new UpstreamHandler();
+    private final int clientTimeoutMillis;
+    private final int originTimeoutMillis;
+
+    // Both buffers are kept in fill mode between events.
+    private ByteBuffer toUpstream = ByteBuffer.allocate(BUFFER_SIZE);
+    private final ByteBuffer toClient = ByteBuffer.allocate(BUFFER_SIZE);
+
+    private State state = State.READING_REQUEST;
+    private SelectionKey clientKey;
+    private SocketChannel upstreamChannel;
+    private SelectionKey upstreamKey;
+    private boolean isTunnel = false;
+    private boolean clientFinished = false;
+    private boolean upstreamFinished = false;
+    private boolean upstreamOutputShut = false;
+    private boolean clientOutputShut = false;
+    private HTTPRequestParser parser;
+    // The HTTP request body still to come from the client: bytes of a Content-Length body, or a chunked one.
+    private long bodyRemaining = 0;
+    private ChunkedFraming chunkedBody;
+    private boolean isRequestSent = false;
+    // Where the response head not yet complete starts in toClient, and where the search for its end resumes.
+    // Bytes before heldFrom may go to the client; heldFrom is -1 once the final head has gained Connection: close.
+    private int heldFrom = -1;
+    private int scanFrom = 0;
+    private boolean isHeadRequest = false;
+    // The response body still to come from the target: bytes of a Content-Length body, -1 for one that ends
+    // with the connection, or a chunked one.
+    private long responseRemaining = -1;
+    private ChunkedFraming chunkedResponse;
+    // System.nanoTime() readings for Metrics.
+    private long requestStartedAt;
+    private long parsedAt;
+    private long stageStartedAt;
+    private boolean isConnected = false;
+    private boolean hasFirstByte = false;
+    // When the connection times out: idleDeadline moves on with every event, connectDeadline is fixed.
+    private long idleDeadline;
+    private long connectDeadline = Long.MAX_VALUE;
+    // The addresses of the target, raced as DNSResolver does: the next attempt starts at nextAttemptAt, or as soon
+    // as one fails, and the first to connect wins.
+    private List<InetAddress> targetAddresses;
+    private int targetPort;
+    private int nextTarget = 0;
+    private long nextAttemptAt = Long.MAX_VALUE;
+    private final List<ConnectAttempt> attempts = new ArrayList<>();
+    private IOException lastConnectError;
+    // Set once the target is connected.
+    private SocketPolicy.BulkWatch toClientBulk;
+    private SocketPolicy.BulkWatch toUpstreamBulk;
+    // Read by the draining thread. Idle until the first byte of the request arrives.
+    private volatile ConnectionTracker.Activity activity = ConnectionTracker.Activity.IDLE;
+
+    private NIOConnection(EventLoop loop, SocketChannel clientChannel, String clientAddress,
+                          ConfigurationManager config, ClientLimiter clientLimiter, ConnectionTracker tracker) {
+        this.loop = loop;
+        this.clientChannel = clientChannel;
+        this.clientAddress = clientAddress;
+        this.config = config;
+        this.clientLimiter = clientLimiter;
+        this.tracker = tracker;
+        SocketPolicy socketPolicy = SocketPolicy.getInstance(config);
+        this.clientTimeoutMillis = socketPolicy.options(SocketPolicy.ConnectionClass.CLIENT).readTimeoutMillis();
+        this.originTimeoutMillis = socketPolicy.options(SocketPolicy.ConnectionClass.ORIGIN).readTimeoutMillis();
+        this.idleDeadline = deadlineAfter(clientTimeoutMillis);
+        this.parser = new HTTPRequestParser(config.getIntConfig("MaxHeaderSize", 16 * 1024),
+                config.getIntConfig("MaxHeaderCount", 100));
+        parser.reset(toUpstream, 0);
+    }
+
+    // Must be called on the loop's thread.
+    public static void register(EventLoop loop, SocketChannel clientChannel, String clientAddress,
+                                ConfigurationManager config, ClientLimiter clientLimiter,
+                                ConnectionTracker tracker) {
+        NIOConnection connection = new NIOConnection(loop, clientChannel, clientAddress, config, clientLimiter,
+                tracker);
+        tracker.add(connection);
+        try {
+            clientChannel.configureBlocking(false);
+            SocketPolicy.getInstance(config).options(SocketPolicy.ConnectionClass.CLIENT).configure(clientChannel);
+            connection.clientKey = clientChannel.register(loop.selector(), SelectionKey.OP_READ, connection);
+        } catch (IOException e) {
+            Logger.logError("I/O error with client " + clientAddress + ": " + e.getMessage());
+            connection.close();
+        }
+    }
+
+    @Override
+    public void handle(SelectionKey key) throws IOException {
+        if (key.isWritable()) {
+            int written = writeTo(clientChannel, toClient, heldFrom >= 0 ? heldFrom : toClient.position());
+            Metrics.bytesOut(written);
+            if (heldFrom >= 0) {
+                heldFrom -= written;
+                scanFrom -= written;
+            }
+        }
+        if (key.isValid() && key.isReadable()) {
+            if (state == State.READING_REQUEST) {
+                readRequest();
+            } else {
+                int before = toUpstream.position();
+                int read = clientChannel.read(toUpstream);
+                if (read == -1) {
+                    clientFinished = true;
+                } else {
+                    Metrics.bytesIn(read);
+                    if (toUpstreamBulk != null) {
+                        toUpstreamBulk.carried(read);
+                    }
+                    if (!isTunnel && !endBody(before)) {
+                        return;
+                    }
+                }
+            }
+        }
+        progress();
+    }
+
+    @Override
+    public void close() {
+        if (state == State.CLOSED) {
+            return;
+        }
+        state = State.CLOSED;
+        if (isConnected) {
+            if (isTunnel) {
+                Metrics.tunnelClosed();
+                Metrics.TUNNEL_TOTAL.recordSince(parsedAt);
+            } else {
+                Metrics.HTTP_TOTAL.recordSince(parsedAt);
+            }
+        }
+        closeQuietly(clientChannel);
+        closeQuietly(upstreamChannel);
+        abandonAttempts();
+        clientLimiter.release(clientAddress);
+        tracker.remove(this);
+    }
+
+    @Override
+    public ConnectionTracker.Activity activity() {
+        return activity;
+    }
+
+    // A connection that has not started a request has nothing to finish; any other closes once it is served.
+    @Override
+    public void drain() {
+        loop.execute(() -> {
+            if (state == State.READING_REQUEST && toUpstream.position() == 0) {
+                close();
+            }
+        });
+    }
+
+    @Override
+    public long deadline() {
+        if (state != State.CONNECTING) {
+            return idleDeadline;
+        }
+        return nextAttemptAt != Long.MAX_VALUE && nextAttemptAt - connectDeadline < 0 ? nextAttemptAt
+                : connectDeadline;
+    }
+
+    // A target that could not be reached in time is answered 502; otherwise the connection is dropped.
+    @Override
+    public void expire() {
+        if (state == State.CONNECTING) {
+            if (!EventLoop.isPast(connectDeadline, System.nanoTime())) {
+                // It is the next address's turn.
+                try {
+                    startNextAttempt();
+                    progress();
+                } catch (IOException e) {
+                    close();
+                }
+                return;
+            }
+            Metrics.error(Metrics.Error.CONNECT_TIMEOUT);
+            Logger.logError((isTunnel ? "Error establishing HTTPS tunnel: " : "Connection to target failed: ")
+                    + "timed out");
+            badGateway();
+            try {
+                progress();
+            } catch (IOException e) {
+                close();
+            }
+            return;
+        }
+        Logger.logError("Connection with client " + clientAddress + " timed out.");
+        close();
+    }
+
+    @Override
+    public void forceClose() {
+        loop.execute(this::close);
+    }
+
+    private void readRequest() throws IOException {
+        boolean wasEmpty = toUpstream.position() == 0;
+        int read = clientChannel.read(toUpstream);
+        if (read == -1) {
+            close();
+            return;
+        }
+        Metrics.bytesIn(read);
+        if (wasEmpty && read > 0) {
+            requestStartedAt = System.nanoTime();
+            activity = ConnectionTracker.Activity.REQUEST;
+        }
+        try {
+            if (parser.parse(toUpstream.position()) == HTTPRequestParser.Result.INCOMPLETE) {
+                if (!toUpstream.hasRemaining()) {
+                    growRequestBuffer();
+                }
+                return;
+            }
+        } catch (HTTPRequestParser.HeadTooLargeException e) {
+            Logger.logError("Request header too large from: " + clientAddress + ": " + e.getMessage());
+            reject(ClientHandler.headerTooLargeResponse());
+            return;
+        } catch (HTTPRequestParser.ParseException e) {
+            Logger.logError("Malformed request from: " + clientAddress + ": " + e.getMessage());
+            reject();
+            return;
+        }
+
+        parsedAt = System.nanoTime();
+        Metrics.PARSE.record(parsedAt - requestStartedAt);
+        String fullRequest = parser.headString();
+        HTTPRequestParser request = parser;
+        parser = null;
+        Logger.logInfo("Request received: " + fullRequest);
+
+        if (!clientLimiter.tryRequest(clientAddress)) {
+            Logger.logError("Request rate limit reached for client: " + clientAddress);
+            Metrics.error(Metrics.Error.RATE_LIMITED);
+            toClient.put(MainServer.limitResponse(ClientLimiter.Admission.CLIENT_LIMIT).getBytes(StandardCharsets.UTF_8));
+            state = State.CLOSING;
+            return;
+        }
+        if (request.isMethod("CONNECT")) {
+            String target = request.target();
+            // Anything after the head is the client's first tunnel bytes.
+            toUpstream.flip();
+            toUpstream.position(request.headEnd());
+            toUpstream.compact();
+            startTunnel(target);
+        } else {
+            startHTTP(request);
+        }
+    }
+
+    /**
+     * Doubles toUpstream for a head still incomplete when it is full, up to one byte more than MaxHeaderSize so
+     * the parser is the one to reject a head over the limit. The head is parsed again from the start on the next read.
+     * */
+    private void growRequestBuffer() throws IOException {
+        int limit = config.getIntConfig("MaxHeaderSize", 16 * 1024) + 1;
+        if (toUpstream.capacity() >= limit) {
+            Logger.logError("Request header too large from: " + clientAddress);
+            reject(ClientHandler.headerTooLargeResponse());
+            return;
+        }
+        ByteBuffer grown = ByteBuffer.allocate(Math.min(toUpstream.capacity() * 2, limit));
+        toUpstream.flip();
+        grown.put(toUpstream);
+        toUpstream = grown;
+        parser.reset(toUpstream, 0);
+    }
+
+    private void startTunnel(String target) throws IOException {
+        ClientHandler.ParsedData parsedData = ClientHandler.parseConnectTarget(target);
+        if (parsedData == null || !DataVerification.isParseValid(parsedData)) {
+            Logger.logError("Malformed CONNECT target from: " + clientAddress);
+            reject();
+            return;
+        }
+        if (!DestinationFilter.getInstance(config).isHostAllowed(parsedData.host())) {
+            forbid(parsedData.host());
+            return;
+        }
+        Logger.logInfo("Handling HTTPS request");
+        activity = ConnectionTracker.Activity.TUNNEL;
+        isTunnel = true;
+        SocketPolicy.getInstance(config).options(SocketPolicy.ConnectionClass.TUNNEL).configure(clientChannel);
+        connect(parsedData.host(), parsedData.port());
+    }
+
+    private void startHTTP(HTTPRequestParser request) throws IOException {
+        ClientHandler.ParsedData parsedData = null;
+        try {
+            parsedData = ClientHandler.parseTarget(request.target());
+        } catch (URISyntaxException e) {
+            Logger.logError("URL syntax error from client " + clientAddress + ": " + e.getMessage());
+        }
+
+        if (parsedData == null || !DataVerification.isParseValid(parsedData)) {
+            reject();
+            return;
+        }
+        if (parsedData.port() != 80) {
+            Logger.logError("Unsupported port: " + parsedData.port() + " from: " + clientAddress);
+            reject();
+            return;
+        }
+        if (!DestinationFilter.getInstance(config).isHostAllowed(parsedData.host())) {
+            forbid(parsedData.host());
+            return;
+        }
+
+        Logger.logInfo("Handling HTTP request for host: " + parsedData.host());
+
+        // The rewritten head goes out before any body bytes that arrived with it.
+        int bodyBytes = toUpstream.position() - request.headEnd();
+        ByteBuffer outgoing = ByteBuffer.allocate(Math.max(BUFFER_SIZE,
+                HeaderRewriter.capacityFor(request) + CONNECTION_CLOSE.length + bodyBytes));
+        try {
+            long bodyLength = request.bodyLength();
+            if (bodyLength == HTTPRequestParser.CHUNKED) {
+                chunkedBody = new ChunkedFraming();
+            } else {
+                bodyRemaining = bodyLength;
+            }
+            HeaderRewriter.forConfig(config).closing().rewrite(request, clientAddress, outgoing);
+        } catch (HTTPRequestParser.ParseException e) {
+            Logger.logError("Malformed request from: " + clientAddress + ": " + e.getMessage());
+            reject();
+            return;
+        }
+        int bodyStart = outgoing.position();
+        toUpstream.flip();
+        toUpstream.position(request.headEnd());
+        outgoing.put(toUpstream);
+        toUpstream = outgoing;
+        heldFrom = 0;
+        isHeadRequest = request.isMethod("HEAD");
+        if (!endBody(bodyStart)) {
+            return;
+        }
+        connect(parsedData.host(), parsedData.port());
+    }
+
+    // Resolves off the loop thread, then connects back on it.
+    private void connect(String host, int port) {
+        state = State.CONNECTING;
+        long resolveStartedAt = System.nanoTime();
+        int connectTimeoutMillis = SocketPolicy.getInstance(config).options(upstreamClass()).connectTimeoutMillis();
+        connectDeadline = deadlineAfter(connectTimeoutMillis > 0 ? connectTimeoutMillis
+                : DEFAULT_CONNECT_TIMEOUT_MILLIS);
+        DNSResolver.getInstance(config).resolveAsync(host).whenComplete((addresses, error) -> loop.execute(() -> {
+            // The connection may have timed out or closed while the name was resolved.
+            if (state != State.CONNECTING) {
+                return;
+            }
+            try {
+                if (error != null) {
+                    Logger.logError("Connection to target failed: could not resolve " + host);
+                    Metrics.error(Metrics.Error.DNS);
+                    badGateway();
+                    progress();
+                    return;
+                }
+                Metrics.DNS.recordSince(resolveStartedAt);
+                List<InetAddress> permitted;
+                try {
+                    permitted = DestinationFilter.getInstance(config).permitted(host, Arrays.asList(addresses));
+                } catch (DestinationFilter.DeniedException e) {
+                    forbid(host);
+                    progress();
+                    return;
+                }
+                targetAddresses = DNSResolver.interleaveFamilies(permitted.toArray(new InetAddress[0]));
+                targetPort = port;
+                stageStartedAt = System.nanoTime();
+                startNextAttempt();
+                progress();
+            } catch (IOException e) {
+                Logger.logError("I/O error with client " + clientAddress + ": " + e.getMessage());
+                close();
+            }
+        }));
+    }
+
+    // Starts connecting to the next address that can be tried. Answers 502 once every address has failed.
+    private void startNextAttempt() {
+        nextAttemptAt = Long.MAX_VALUE;
+        while (nextTarget < targetAddresses.size()) {
+            InetSocketAddress target = new InetSocketAddress(targetAddresses.get(nextTarget++), targetPort);
+            SocketChannel channel = null;
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                SocketPolicy.getInstance(config).options(upstreamClass()).configure(channel);
+                boolean connected = channel.connect(target);
+                ConnectAttempt attempt = new ConnectAttempt(channel);
+                attempts.add(attempt);
+                if (connected) {
+                    connected(attempt);
+                } else if (nextTarget < targetAddresses.size()) {
+                    nextAttemptAt = deadlineAfter(config.getIntConfig("DNSConnectAttemptDelay", 250));
+                }
+                return;
+            } catch (IOException e) {
+                closeQuietly(channel);
+                lastConnectError = e;
+            }
+        }
+        if (attempts.isEmpty()) {
+            connectFailed(lastConnectError != null ? lastConnectError
+                    : new IOException("No address to connect to"));
+        }
+    }
+
+    // The winning attempt's channel becomes the upstream channel; the others are given up.
+    private void connected(ConnectAttempt winner) {
+        attempts.remove(winner);
+        abandonAttempts();
+        upstreamChannel = winner.channel;
+        upstreamKey = winner.key;
+        upstreamKey.attach(upstreamHandler);
+        onConnected();
+    }
+
+    private void attemptFailed(ConnectAttempt attempt, IOException e) {
+        attempts.remove(attempt);
+        closeQuietly(attempt.channel);
+        lastConnectError = e;
+        startNextAttempt();
+    }
+
+    private void abandonAttempts() {
+        for (ConnectAttempt attempt : attempts) {
+            closeQuietly(attempt.channel);
+        }
+        attempts.clear();
+        nextAttemptAt = Long.MAX_VALUE;
+    }
+
+    private void onConnected() {
+        state = State.RELAYING;
+        isConnected = true;
+        long now = System.nanoTime();
+        Metrics.CONNECT.record(now - stageStartedAt);
+        // From here stageStartedAt times the wait for the target's first byte.
+        stageStartedAt = now;
+        SocketPolicy socketPolicy = SocketPolicy.getInstance(config);
+        SocketPolicy.ConnectionClass clientClass = isTunnel ? SocketPolicy.ConnectionClass.TUNNEL
+                : SocketPolicy.ConnectionClass.CLIENT;
+        toClientBulk = socketPolicy.watch(upstreamChannel.socket(), upstreamClass(), clientChannel.socket(),
+                clientClass);
+        if (isTunnel) {
+            toUpstreamBulk = socketPolicy.watch(clientChannel.socket(), clientClass, upstreamChannel.socket(),
+                    upstreamClass());
+            Metrics.tunnelOpened();
+            toClient.put(TUNNEL_ESTABLISHED);
+        }
+    }
+
+    private void connectFailed(IOException e) {
+        Metrics.error(Metrics.Error.CONNECT);
+        Logger.logError((isTunnel ? "Error establishing HTTPS tunnel: " : "Connection to target failed: ")
+                + e.getMessage());
+        badGateway();
+    }
+
+    // Answers 502, as nothing has been sent to the client yet when the target cannot be reached.
+    private void badGateway() {
+        closeQuietly(upstreamChannel);
+        abandonAttempts();
+        upstreamKey = null;
+        heldFrom = -1;
+        toClient.clear();
+        toClient.put(BAD_GATEWAY);
+        state = State.CLOSING;
+    }
+
+    /**
+     * Counts the request body in the bytes of toUpstream from index from. Once the body is complete, anything
+     * after it is dropped and the client's input is no longer read. Returns false if the framing was malformed,
+     * in which case the connection is closed.
+     * */
+    private boolean endBody(int from) {
+        int end = toUpstream.position();
+        int bodyEnd;
+        if (chunkedBody != null) {
+            try {
+                bodyEnd = chunkedBody.scan(toUpstream, from, end);
+            } catch (HTTPRequestParser.ParseException e) {
+                Metrics.error(Metrics.Error.MALFORMED_REQUEST);
+                Logger.logError("Malformed chunked body from: " + clientAddress + ": " + e.getMessage());
+                close();
+                return false;
+            }
+        } else {
+            long count = Math.min(bodyRemaining, end - from);
+            bodyRemaining -= count;
+            bodyEnd = bodyRemaining == 0 ? from + (int) count : -1;
+        }
+        if (bodyEnd >= 0) {
+            toUpstream.position(bodyEnd);
+            isRequestSent = true;
+        }
+        return true;
+    }
+
+    /**
+     * Reads from the target while a response head is held, then looks for the head's end. Interim 1xx heads
+     * are passed on; the final head has its Connection and Keep-Alive headers replaced by Connection: close.
+     * Room for that header is kept free in toClient, and a head that does not fit in the buffer fails the connection.
+     * Any of the body read with the head is counted towards the end of the response.
+     * */
+    private int readHead() throws IOException {
+        toClient.limit(toClient.capacity() - CONNECTION_CLOSE.length);
+        int read;
+        try {
+            read = upstreamChannel.read(toClient);
+        } finally {
+            toClient.limit(toClient.capacity());
+        }
+        int end = toClient.position();
+        for (int i = scanFrom; i < end; i++) {
+            if (toClient.get(i) != '\n') {
+                continue;
+            }
+            int next = i + 1;
+            if (next < end && toClient.get(next) == '\r') {
+                next++;
+            }
+            if (next >= end) {
+                scanFrom = i;
+                return read;
+            }
+            if (toClient.get(next) != '\n') {
+                continue;
+            }
+            // An empty line from i + 1 to next ends the head that started at heldFrom.
+            if (isInterim(heldFrom)) {
+                heldFrom = next + 1;
+                i = next;
+                continue;
+            }
+            frameResponse(heldFrom, i + 1);
+            int removed = dropConnectionHeaders(heldFrom, i + 1, end);
+            i -= removed;
+            next -= removed;
+            end -= removed;
+            byte[] bytes = toClient.array();
+            System.arraycopy(bytes, i + 1, bytes, i + 1 + CONNECTION_CLOSE.length, end - i - 1);
+            System.arraycopy(CONNECTION_CLOSE, 0, bytes, i + 1, CONNECTION_CLOSE.length);
+            toClient.position(end + CONNECTION_CLOSE.length);
+            heldFrom = -1;
+            endResponse(next + 1 + CONNECTION_CLOSE.length);
+            return read;
+        }
+        scanFrom = end;
+        if (end - heldFrom >= toClient.capacity() - CONNECTION_CLOSE.length) {
+            throw new IOException("Response head from target is too large.");
+        }
+        return read;
+    }
+
+    /**
+     * Removes the Connection and Keep-Alive lines, with any lines folded onto them, from the head in toClient that
+     * runs from index start to headEnd, where its empty line starts. The bytes up to end move up to close the gap.
+     * Returns the number of bytes removed.
+     * */
+    private int dropConnectionHeaders(int start, int headEnd, int end) {
+        byte[] bytes = toClient.array();
+        int lineStart = start;
+        while (bytes[lineStart] != '\n') {
+            lineStart++;
+        }
+        lineStart++;
+        int removed = 0;
+        boolean isDropping = false;
+        while (lineStart < headEnd - removed) {
+            int lineEnd = lineStart;
+            while (bytes[lineEnd] != '\n') {
+                lineEnd++;
+            }
+            boolean isFolded = bytes[lineStart] == ' ' || bytes[lineStart] == '\t';
+            if (!isFolded) {
+                isDropping = isNamed(bytes, lineStart, "connection:") || isNamed(bytes, lineStart, "keep-alive:");
+            }
+            if (isDropping) {
+                System.arraycopy(bytes, lineEnd + 1, bytes, lineStart, end - removed - lineEnd - 1);
+                removed += lineEnd + 1 - lineStart;
+            } else {
+                lineStart = lineEnd + 1;
+            }
+        }
+        return removed;
+    }
+
+    // Whether the header line at from starts with prefix, a lower-case name and its colon, ignoring case.
+    private static boolean isNamed(byte[] bytes, int from, String prefix) {
+        for (int i = 0; i < prefix.length(); i++) {
+            if (Character.toLowerCase((char) bytes[from + i]) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Reads how the body of the final response head, from index start to end, is framed.
+    private void frameResponse(int start, int end) {
+        String[] lines = new String(toClient.array(), start, end - start, StandardCharsets.ISO_8859_1).split("\n");
+        String[] statusLine = lines[0].trim().split(" ");
+        String status = statusLine.length > 1 ? statusLine[1] : "";
+        if (isHeadRequest || status.equals("204") || status.equals("304")) {
+            responseRemaining = 0;
+            return;
+        }
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon <= 0) {
+                continue;
+            }
+            String name = lines[i].substring(0, colon).trim();
+            String value = lines[i].substring(colon + 1).trim();
+            if (name.equalsIgnoreCase("Transfer-Encoding")) {
+                // Transfer-Encoding overrides any Content-Length; a body not ending in chunked ends with the connection.
+                responseRemaining = -1;
+                chunkedResponse = value.toLowerCase(Locale.ROOT).endsWith("chunked") ? new ChunkedFraming() : null;
+                return;
+            }
+            if (name.equalsIgnoreCase("Content-Length")) {
+                try {
+                    responseRemaining = Long.parseLong(value);
+                } catch (NumberFormatException e) {
+                    responseRemaining = -1;
+                }
+            }
+        }
+    }
+
+    // Counts the response body in the bytes of toClient from index from. Once it is complete, the target is done.
+    private void endResponse(int from) throws HTTPRequestParser.ParseException {
+        int end = toClient.position();
+        int bodyEnd;
+        if (chunkedResponse != null) {
+            bodyEnd = chunkedResponse.scan(toClient, from, end);
+        } else if (responseRemaining >= 0) {
+            long count = Math.min(responseRemaining, end - from);
+            responseRemaining -= count;
+            bodyEnd = responseRemaining == 0 ? from + (int) count : -1;
+        } else {
+            return;
+        }
+        if (bodyEnd >= 0) {
+            toClient.position(bodyEnd);
+            upstreamFinished = true;
+        }
+    }
+
+    // Whether the status line starting at index start is a 1xx other than 101, which the final response follows.
+    private boolean isInterim(int start) {
+        int status = start + "HTTP/1.1 ".length();
+        return toClient.position() > status + 2 && toClient.get(status) == '1'
+                && !(toClient.get(status + 1) == '0' && toClient.get(status + 2) == '1');
+    }
+
+    private SocketPolicy.ConnectionClass upstreamClass() {
+        return isTunnel ? SocketPolicy.ConnectionClass.TUNNEL : SocketPolicy.ConnectionClass.ORIGIN;
+    }
+
+    private void reject() {
+        reject(ClientHandler.badRequestResponse());
+    }
+
+    private void reject(String response) {
+        Metrics.error(Metrics.Error.MALFORMED_REQUEST);
+        toClient.put(response.getBytes(StandardCharsets.UTF_8));
+        state = State.CLOSING;
+    }
+
+    private void forbid(String host) {
+        Metrics.error(Metrics.Error.DENIED);
+        Logger.logError("Denied destination " + host + " for client " + clientAddress);
+        toClient.put(ClientHandler.forbiddenResponse().getBytes(StandardCharsets.UTF_8));
+        state = State.CLOSING;
+    }
+
+    // Moves half-closes along and recomputes what each channel is interested in.
+    private void progress() throws IOException {
+        if (state == State.CLOSED) {
+            return;
+        }
+        // Tunnels have no read timeout, as in blocking mode: one direction may sit quietly while the other is busy.
+        idleDeadline = deadlineAfter(state != State.RELAYING ? clientTimeoutMillis
+                : isTunnel ? 0 : originTimeoutMillis);
+        if (state == State.CLOSING) {
+            if (toClient.position() == 0) {
+                close();
+            } else {
+                clientKey.interestOps(SelectionKey.OP_WRITE);
+            }
+            return;
+        }
+
+        if (state == State.RELAYING) {
+            if (clientFinished && toUpstream.position() == 0 && !upstreamOutputShut) {
+                upstreamChannel.shutdownOutput();
+                upstreamOutputShut = true;
+            }
+            if (upstreamFinished && toClient.position() == 0 && !clientOutputShut) {
+                // The target was asked to close after its response, so the client connection ends with it.
+                if (!isTunnel) {
+                    close();
+                    return;
+                }
+                clientChannel.shutdownOutput();
+                clientOutputShut = true;
+            }
+            if (upstreamOutputShut && clientOutputShut) {
+                close();
+                return;
+            }
+        }
+
+        int clientOps = 0;
+        if (state == State.READING_REQUEST
+                || (state == State.RELAYING && !clientFinished && !isRequestSent && toUpstream.hasRemaining())) {
+            clientOps |= SelectionKey.OP_READ;
+        }
+        if ((heldFrom >= 0 ? heldFrom : toClient.position()) > 0) {
+            clientOps |= SelectionKey.OP_WRITE;
+        }
+        clientKey.interestOps(clientOps);
+
+        if (upstreamKey != null && state == State.RELAYING) {
+            int upstreamOps = 0;
+            if (!upstreamFinished && toClient.position() < toClient.capacity() - CONNECTION_CLOSE.length) {
+                upstreamOps |= SelectionKey.OP_READ;
+            }
+            if (toUpstream.position() > 0) {
+                upstreamOps |= SelectionKey.OP_WRITE;
+            }
+            upstreamKey.interestOps(upstreamOps);
+        }
+    }
+
+    // Long.MAX_VALUE, which the EventLoop takes as no deadline, if timeoutMillis is 0.
+    private static long deadlineAfter(int timeoutMillis) {
+        return timeoutMillis > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis) : Long.MAX_VALUE;
+    }
+
+    // Returns the number of bytes written.
+    private static int writeTo(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        return writeTo(channel, buffer, buffer.position());
+    }
+
+    // Writes at most the first length bytes. Returns the number of bytes written.
+    private static int writeTo(SocketChannel channel, ByteBuffer buffer, int length) throws IOException {
+        int end = buffer.position();
+        buffer.position(0).limit(length);
+        int written = channel.write(buffer);
+        buffer.limit(end);
+        buffer.compact();
+        return written;
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        if (channel != null && channel.isOpen()) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Logger.logError("Channel could not be closed : " + e);
+            }
+        }
+    }
+
+    // One address being connected to while the target's addresses are raced.
+    private class ConnectAttempt implements EventLoop.Handler {
+
+        private final SocketChannel channel;
+        private final SelectionKey key;
+
+        ConnectAttempt(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            this.key = channel.register(loop.selector(), SelectionKey.OP_CONNECT, this);
+        }
+
+        @Override
+        public void handle(SelectionKey key) throws IOException {
+            if (key.isConnectable()) {
+                try {
+                    if (channel.finishConnect()) {
+                        connected(this);
+                    }
+                } catch (IOException e) {
+                    attemptFailed(this, e);
+                }
+            }
+            progress();
+        }
+
+        @Override
+        public void close() {
+            NIOConnection.this.close();
+        }
+    }
+
+    private class UpstreamHandler implements EventLoop.Handler {
+
+        @Override
+        public void handle(SelectionKey key) throws IOException {
+            if (key.isValid() && key.isWritable()) {
+                writeTo(upstreamChannel, toUpstream);
+            }
+            if (key.isValid() && key.isReadable()) {
+                int before = toClient.position();
+                boolean isHeadHeld = heldFrom >= 0;
+                int read = isHeadHeld ? readHead() : upstreamChannel.read(toClient);
+                if (read > 0 && !isTunnel && !isHeadHeld) {
+                    endResponse(before);
+                }
+                if (read == -1) {
+                    upstreamFinished = true;
+                    // A head the target never finished goes to the client as it is.
+                    heldFrom = -1;
+                } else if (read > 0) {
+                    toClientBulk.carried(read);
+                    if (!hasFirstByte) {
+                        hasFirstByte = true;
+                        (isTunnel ? Metrics.TUNNEL_FIRST_BYTE : Metrics.HTTP_FIRST_BYTE).recordSince(stageStartedAt);
+                    }
+                }
+            }
+            progress();
+        }
+
+        @Override
+        public void close() {
+            NIOConnection.this.close();
+        }
+    }
+
+    /**
+     * Follows a chunked body as it arrives, to find where it ends. Chunk extensions and trailers are
+     * passed over, and a bare LF is accepted where CRLF is expected.
+     * */
+    private static class ChunkedFraming {
+
+        private enum Step {SIZE, EXTENSION, SIZE_END, DATA, DATA_END, TRAILER_START, TRAILER, END}
+
+        private Step step = Step.SIZE;
+        private long size = 0;
+        private boolean hasDigits = false;
+        private long dataRemaining = 0;
+
+        // Returns the index just past the end of the body, or -1 if it does not end before index end.
+        int scan(ByteBuffer buffer, int from, int end) throws HTTPRequestParser.ParseException {
+            int i = from;
+            while (i < end) {
+                if (step == Step.DATA) {
+                    int count = (int) Math.min(dataRemaining, end - i);
+                    i += count;
+                    dataRemaining -= count;
+                    if (dataRemaining == 0) {
+                        step = Step.DATA_END;
+                    }
+                    continue;
+                }
+                byte b = buffer.get(i++);
+                switch (step) {
+                    case SIZE -> {
+                        int digit = Character.digit(b, 16);
+                        if (digit >= 0) {
+                            if (size > (Long.MAX_VALUE >> 4)) {
+                                throw new HTTPRequestParser.ParseException("Chunk size is too large.");
+                            }
+                            size = (size << 4) + digit;
+                            hasDigits = true;
+                        } else if (!hasDigits) {
+                            throw new HTTPRequestParser.ParseException("Chunk size is missing.");
+                        } else if (b == ';' || b == ' ' || b == '\t') {
+                            step = Step.EXTENSION;
+                        } else {
+                            step = sizeEnd(b);
+                        }
+                    }
+                    case EXTENSION -> {
+                        if (b == '\r' || b == '\n') {
+                            step = sizeEnd(b);
+                        }
+                    }
+                    case SIZE_END -> {
+                        expectLineFeed(b);
+                        step = startChunk();
+                    }
+                    case DATA_END -> {
+                        if (b == '\r') {
+                            step = Step.END;
+                        } else if (b == '\n') {
+                            step = Step.SIZE;
+                        } else {
+                            throw new HTTPRequestParser.ParseException("Chunk data is longer than its size.");
+                        }
+                    }
+                    case END -> {
+                        expectLineFeed(b);
+                        step = Step.SIZE;
+                    }
+                    case TRAILER_START -> {
+                        if (b == '\n') {
+                            return i;
+                        }
+                        if (b != '\r') {
+                            step = Step.TRAILER;
+                        }
+                    }
+                    case TRAILER -> {
+                        if (b == '\n') {
+                            step = Step.TRAILER_START;
+                        }
+                    }
+                    default -> throw new IllegalStateException();
+                }
+            }
+            return -1;
+        }
+
+        // The line holding the chunk size ends at b, so the chunk's data or the trailer follows.
+        private Step sizeEnd(byte b) throws HTTPRequestParser.ParseException {
+            if (b == '\n') {
+                return startChunk();
+            }
+            if (b == '\r') {
+                return Step.SIZE_END;
+            }
+            throw new HTTPRequestParser.ParseException("Malformed chunk size.");
+        }
+
+        private static void expectLineFeed(byte b) throws HTTPRequestParser.ParseException {
+            if (b != '\n') {
+                throw new HTTPRequestParser.ParseException("Expected a line feed in chunked body.");
+            }
+        }
+
+        private Step startChunk() {
+            dataRemaining = size;
+            Step next = size == 0 ? Step.TRAILER_START : Step.DATA;
+            size = 0;
+            hasDigits = false;
+            return next;
+        }
+    }
+}
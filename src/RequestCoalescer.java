@@ -0,0 +1,337 @@
+/**
+ * RequestCoalescer lets concurrent identical GET and HEAD requests share one upstream fetch (RequestCoalescing: 1
+ * in ServerConfig), whether or not the response could be cached.
+ * Requests are keyed by their request line and the headers that commonly vary a response; requests with a body,
+ * a Range or validators of their own always go to the target alone.
+ * The first request for a key starts a Flight: a thread of its own relays the response into a ring of buffers,
+ * CoalesceBufferKB in all, and every client on the key, the first included, copies it out at its own pace.
+ * The fetch keeps up with the fastest client, so a slow client never holds back the others. A client that falls
+ * a whole ring behind is lapped: its connection is closed, or if nothing had been sent to it yet, it fetches
+ * for itself. New clients can join while the start of the response is still in the ring; after that,
+ * the next request for the key starts a new Flight.
+ * If the fetch fails before any of the response arrives, the clients that joined fetch for themselves.
+ * The target sees the first client's request, forwarded headers included.
+ * */
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+public class RequestCoalescer {
+
+    // Sends the request to the target and relays the response to output. Returns whether the connection can be reused.
+    public interface Fetcher {
+        boolean fetch(OutputStream output) throws IOException;
+    }
+
+    private static final int SLOT_SIZE = 16 * 1024;
+    // Request headers that change which response a target sends, so requests differing in them are not shared.
+    private static final String[] VARY_HEADERS = {"Accept", "Accept-Encoding", "Accept-Language", "Authorization",
+            "Cookie"};
+    private static final String[] EXCLUDING_HEADERS = {"Content-Length", "Transfer-Encoding", "Range", "If-Range",
+            "If-None-Match", "If-Modified-Since", "If-Match", "If-Unmodified-Since"};
+
+    private static volatile RequestCoalescer instance;
+
+    // Thrown to a client that fell a whole ring behind the fastest.
+    private static final class LappedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final boolean hasSent;
+
+        private LappedException(long capacity, boolean hasSent) {
+            super("Client fell " + capacity + " bytes behind a coalesced response.");
+            this.hasSent = hasSent;
+        }
+    }
+
+    private final boolean isEnabled;
+    private final int slots;
+    private final Thread.Builder fetchThreads;
+    private final Map<String, Flight> flights = new ConcurrentHashMap<>();
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder fetches = new LongAdder();
+    private final LongAdder lapped = new LongAdder();
+
+    private RequestCoalescer(boolean isEnabled, int bufferBytes, Thread.Builder fetchThreads) {
+        this.isEnabled = isEnabled;
+        this.slots = Math.max(1, bufferBytes / SLOT_SIZE);
+        this.fetchThreads = fetchThreads;
+    }
+
+    public static RequestCoalescer getInstance(ConfigurationManager config) {
+        RequestCoalescer coalescer = instance;
+        return coalescer != null ? coalescer : createInstance(config);
+    }
+
+    private static synchronized RequestCoalescer createInstance(ConfigurationManager config) {
+        if (instance == null) {
+            RequestCoalescer coalescer = new RequestCoalescer("1".equals(config.getConfig("RequestCoalescing")),
+                    config.getIntConfig("CoalesceBufferKB", 1024) * 1024, MainServer.threadBuilder(config));
+            Metrics.register("proxy_coalescable_requests_total", "counter",
+                    "GET and HEAD requests eligible for coalescing.", coalescer.requests::sum);
+            Metrics.register("proxy_coalesced_requests_total", "counter",
+                    "Requests served from another request's upstream fetch.", coalescer.coalesced::sum);
+            Metrics.register("proxy_coalesced_fetches_total", "counter",
+                    "Upstream fetches started for coalescable requests.", coalescer.fetches::sum);
+            Metrics.register("proxy_coalesced_lapped_total", "counter",
+                    "Clients that fell a whole ring behind a coalesced response.", coalescer.lapped::sum);
+            instance = coalescer;
+        }
+        return instance;
+    }
+
+    public boolean isEnabled() {
+        return isEnabled;
+    }
+
+    public static boolean isCoalescable(HTTPRequestParser request) {
+        if (!request.isMethod("GET") && !request.isMethod("HEAD")) {
+            return false;
+        }
+        for (String header : EXCLUDING_HEADERS) {
+            if (request.findHeader(header) >= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Serves a coalescable request from a fetch shared with identical requests in flight, starting one if there is
+     * none to join. Returns whether the client connection can be reused.
+     * */
+    public boolean serve(HTTPRequestParser request, OutputStream clientOutput, Fetcher fetcher) throws IOException {
+        requests.increment();
+        String key = requestKey(request);
+        Flight flight = flights.get(key);
+        if (flight == null || !flight.join()) {
+            Flight started = new Flight(key);
+            flight = flights.putIfAbsent(key, started);
+            if (flight == null) {
+                fetches.increment();
+                fetchThreads.start(() -> started.fetch(fetcher));
+                return follow(started, clientOutput, fetcher, true);
+            }
+            if (!flight.join()) {
+                // Lost a race with a flight that is already too far along to join.
+                return fetcher.fetch(clientOutput);
+            }
+        }
+        return follow(flight, clientOutput, fetcher, false);
+    }
+
+    public String stats() {
+        long total = requests.sum();
+        double ratio = total == 0 ? 0 : (double) coalesced.sum() / total;
+        return String.format("Request coalescing: requests=%d coalesced=%d ratio=%.2f fetches=%d lapped=%d inFlight=%d",
+                total, coalesced.sum(), ratio, fetches.sum(), lapped.sum(), flights.size());
+    }
+
+    private boolean follow(Flight flight, OutputStream clientOutput, Fetcher fetcher, boolean isFirst)
+            throws IOException {
+        IOException failure;
+        try {
+            failure = flight.awaitStart();
+        } catch (IOException e) {
+            flight.leave();
+            throw e;
+        }
+        if (failure != null) {
+            flight.leave();
+            if (isFirst) {
+                throw failure;
+            }
+            return fetcher.fetch(clientOutput);
+        }
+        try {
+            boolean isReusable = flight.relayTo(clientOutput);
+            if (!isFirst) {
+                coalesced.increment();
+            }
+            return isReusable;
+        } catch (LappedException e) {
+            lapped.increment();
+            if (e.hasSent) {
+                throw e;
+            }
+            return fetcher.fetch(clientOutput);
+        }
+    }
+
+    private static String requestKey(HTTPRequestParser request) {
+        StringBuilder key = new StringBuilder(request.method()).append(' ').append(request.target())
+                .append(' ').append(request.version());
+        for (String name : VARY_HEADERS) {
+            int header = request.findHeader(name);
+            if (header >= 0) {
+                key.append('\n').append(name).append(':').append(request.headerValue(header));
+            }
+        }
+        return key.toString();
+    }
+
+    // One upstream fetch and the clients reading it. All fields are guarded by the Flight.
+    private final class Flight {
+
+        private final String key;
+        private final byte[][] ring = new byte[slots][];
+        private final long capacity = (long) slots * SLOT_SIZE;
+        private long written = 0;
+        // The furthest any client has read; the fetch waits rather than overwrite what it has not.
+        private long fastest = 0;
+        private int readers = 1;
+        private boolean isDone = false;
+        private boolean isReusable = false;
+        private IOException failure;
+
+        private Flight(String key) {
+            this.key = key;
+        }
+
+        // Adds a client, unless the start of the response has already been overwritten.
+        private synchronized boolean join() {
+            if (written > capacity) {
+                return false;
+            }
+            readers++;
+            return true;
+        }
+
+        private synchronized void leave() {
+            readers--;
+            notifyAll();
+        }
+
+        private void fetch(Fetcher fetcher) {
+            boolean isReusable = false;
+            IOException failure = null;
+            try {
+                isReusable = fetcher.fetch(new RingOutput());
+            } catch (IOException e) {
+                failure = e;
+            } catch (RuntimeException e) {
+                failure = new IOException("Coalesced fetch failed: " + e, e);
+            } finally {
+                flights.remove(key, this);
+                synchronized (this) {
+                    this.isDone = true;
+                    this.isReusable = isReusable;
+                    this.failure = failure;
+                    notifyAll();
+                }
+            }
+        }
+
+        // Waits for the response to begin. Returns the failure if the fetch ended before any of it arrived.
+        private synchronized IOException awaitStart() throws IOException {
+            while (written == 0 && !isDone) {
+                waitForChange();
+            }
+            return written == 0 ? failure : null;
+        }
+
+        // Copies the whole response to one client, then leaves. Returns whether the client connection can be reused.
+        // Writes to the client happen outside the lock, so a slow client holds up neither the others nor the fetch.
+        private boolean relayTo(OutputStream clientOutput) throws IOException {
+            byte[] chunk = new byte[SLOT_SIZE];
+            long position = 0;
+            boolean isReusable;
+            try {
+                while (true) {
+                    int length;
+                    boolean isCaughtUp;
+                    synchronized (this) {
+                        while (position == written && !isDone) {
+                            waitForChange();
+                        }
+                        if (position == written) {
+                            if (failure != null) {
+                                throw failure;
+                            }
+                            isReusable = this.isReusable;
+                            break;
+                        }
+                        if (written - position > capacity) {
+                            throw new LappedException(capacity, position > 0);
+                        }
+                        int offset = (int) (position % SLOT_SIZE);
+                        length = (int) Math.min(written - position, SLOT_SIZE - offset);
+                        System.arraycopy(ring[(int) (position / SLOT_SIZE % slots)], offset, chunk, 0, length);
+                        isCaughtUp = position + length == written;
+                    }
+                    clientOutput.write(chunk, 0, length);
+                    if (isCaughtUp) {
+                        clientOutput.flush();
+                    }
+                    position += length;
+                    synchronized (this) {
+                        if (position > fastest) {
+                            fastest = position;
+                            notifyAll();
+                        }
+                    }
+                }
+            } finally {
+                leave();
+            }
+            clientOutput.flush();
+            return isReusable;
+        }
+
+        private void waitForChange() throws InterruptedIOException {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a coalesced response.");
+            }
+        }
+
+        // Where the fetch writes the response, a slot at a time.
+        private final class RingOutput extends OutputStream {
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                boolean isStartOverwritten;
+                synchronized (Flight.this) {
+                    while (length > 0) {
+                        while (written - fastest >= capacity && readers > 0) {
+                            waitForChange();
+                        }
+                        if (readers == 0) {
+                            throw new IOException("Every client of the coalesced request has gone.");
+                        }
+                        int slot = (int) (written / SLOT_SIZE % slots);
+                        int slotOffset = (int) (written % SLOT_SIZE);
+                        int count = (int) Math.min(Math.min(length, SLOT_SIZE - slotOffset),
+                                capacity - (written - fastest));
+                        if (ring[slot] == null) {
+                            ring[slot] = new byte[SLOT_SIZE];
+                        }
+                        System.arraycopy(bytes, offset, ring[slot], slotOffset, count);
+                        written += count;
+                        offset += count;
+                        length -= count;
+                        Flight.this.notifyAll();
+                    }
+                    isStartOverwritten = written > capacity;
+                }
+                if (isStartOverwritten) {
+                    // The start of the response is gone, so later requests need a fetch of their own.
+                    flights.remove(key, Flight.this);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,733 @@
+/**
+ * ResponseCache is an optional shared cache for plain HTTP GET responses (ResponseCache: 1 in ServerConfig).
+ * Entries are keyed by URI and, when the origin sends Vary, by the request headers it names.
+ * Freshness follows Cache-Control (s-maxage, max-age, no-cache, no-store, private) and Expires.
+ * Stale entries with an ETag or Last-Modified are revalidated with a conditional request,
+ * and a 304 from the origin refreshes the entry instead of downloading it again.
+ * The memory tier is an LRU bounded by ResponseCacheSizeMB, holding responses up to ResponseCacheMaxEntryKB.
+ * Larger responses, up to DiskCacheMaxEntryMB, go to the DiskCache tier when DiskCache is 1.
+ * Concurrent misses for the same key wait for one upstream fetch instead of each going to the origin.
+ * */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+public class ResponseCache {
+
+    // Sends a request to the target and relays the response to output. Returns whether the connection can be reused.
+    public interface Fetcher {
+        boolean fetch(String request, OutputStream output) throws IOException;
+    }
+
+    private static final long COLLAPSE_WAIT_SECONDS = 30;
+
+    private static volatile ResponseCache instance;
+
+    private final boolean isEnabled;
+    private final long maxBytes;
+    private final int maxEntryBytes;
+    private final DiskCache diskCache;
+    private final long maxDiskEntryBytes;
+    private final LinkedHashMap<String, CachedResponse> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private final Map<String, CompletableFuture<CachedResponse>> inFlight = new ConcurrentHashMap<>();
+    private long totalBytes = 0;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder revalidations = new LongAdder();
+    private final LongAdder collapsed = new LongAdder();
+    private final LongAdder bytesSaved = new LongAdder();
+
+    private ResponseCache(boolean isEnabled, long maxBytes, int maxEntryBytes, DiskCache diskCache,
+                          long maxDiskEntryBytes) {
+        this.isEnabled = isEnabled;
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = maxEntryBytes;
+        this.diskCache = diskCache;
+        this.maxDiskEntryBytes = maxDiskEntryBytes;
+    }
+
+    public static ResponseCache getInstance(ConfigurationManager config) {
+        ResponseCache cache = instance;
+        return cache != null ? cache : createInstance(config);
+    }
+
+    private static synchronized ResponseCache createInstance(ConfigurationManager config) {
+        if (instance == null) {
+            boolean isEnabled = "1".equals(config.getConfig("ResponseCache"));
+            DiskCache diskCache = null;
+            if (isEnabled && "1".equals(config.getConfig("DiskCache"))) {
+                String directory = config.getConfig("DiskCacheDir");
+                try {
+                    diskCache = new DiskCache(Path.of(directory != null ? directory : "cache"),
+                            config.getIntConfig("DiskCacheSizeMB", 10240) * 1024L * 1024L);
+                } catch (IOException e) {
+                    System.out.println("Disk cache could not be opened. Continuing without it.");
+                    Logger.logError("Disk cache could not be opened: " + e.getMessage());
+                }
+            }
+            ResponseCache cache = new ResponseCache(isEnabled,
+                    config.getIntConfig("ResponseCacheSizeMB", 64) * 1024L * 1024L,
+                    config.getIntConfig("ResponseCacheMaxEntryKB", 1024) * 1024,
+                    diskCache, config.getIntConfig("DiskCacheMaxEntryMB", 4096) * 1024L * 1024L);
+            Metrics.register("proxy_cache_hits_total", "counter", "Requests answered from the response cache.",
+                    () -> cache.hits.sum() + cache.revalidations.sum() + cache.collapsed.sum());
+            Metrics.register("proxy_cache_misses_total", "counter", "Cacheable requests fetched from the target.",
+                    cache.misses::sum);
+            instance = cache;
+        }
+        return instance;
+    }
+
+    public boolean isEnabled() {
+        return isEnabled;
+    }
+
+    // Only plain GETs without credentials, ranges or the client's own validators go through the cache.
+    public static boolean isCacheableRequest(String request) {
+        if (!request.startsWith("GET ")) {
+            return false;
+        }
+        String cacheControl = headerValue(request, "Cache-Control");
+        return headerValue(request, "Authorization") == null && headerValue(request, "Range") == null
+                && headerValue(request, "If-None-Match") == null && headerValue(request, "If-Modified-Since") == null
+                && (cacheControl == null || !cacheControl.toLowerCase().contains("no-store"));
+    }
+
+    /**
+     * Answers a cacheable request from the cache, or fetches it and stores the response if allowed.
+     * clientChannel, when not null, lets disk hits go to the client without being copied through the heap.
+     * Returns whether the client connection can be reused.
+     * */
+    public boolean serve(String request, OutputStream clientOutput, WritableByteChannel clientChannel,
+                         Fetcher fetcher) throws IOException {
+        String key = requestKey(request);
+        boolean isNoCache = requestsRevalidation(request);
+        CachedResponse cached = lookup(key, request);
+        if (cached != null && !isNoCache && cached.isFresh(System.currentTimeMillis())
+                && writeCached(cached, clientOutput, clientChannel)) {
+            hits.increment();
+            return true;
+        }
+
+        CompletableFuture<CachedResponse> fetch = new CompletableFuture<>();
+        CompletableFuture<CachedResponse> leader = inFlight.putIfAbsent(key, fetch);
+        if (leader != null) {
+            CachedResponse shared = awaitLeader(leader);
+            // The shared response was fetched while this request waited, so it also satisfies no-cache.
+            if (shared != null && shared.matches(request) && writeCached(shared, clientOutput, clientChannel)) {
+                collapsed.increment();
+                return true;
+            }
+            misses.increment();
+            return fetcher.fetch(request, clientOutput);
+        }
+
+        CachedResponse stored = null;
+        try {
+            CaptureOutputStream capture;
+            boolean isReusable;
+            if (cached != null && cached.hasValidators()) {
+                capture = new CaptureOutputStream(clientOutput, true);
+                isReusable = fetcher.fetch(conditionalRequest(request, cached), capture);
+                if (capture.isNotModified()) {
+                    stored = cached.refresh(capture.head(), System.currentTimeMillis());
+                    put(key, stored);
+                    if (writeCached(stored, clientOutput, clientChannel)) {
+                        revalidations.increment();
+                        return isReusable;
+                    }
+                    // The body was evicted from disk after the lookup, so fetch it again.
+                    stored = null;
+                    capture = new CaptureOutputStream(clientOutput, false);
+                    isReusable = fetcher.fetch(request, capture);
+                }
+            } else {
+                capture = new CaptureOutputStream(clientOutput, false);
+                isReusable = fetcher.fetch(request, capture);
+            }
+            misses.increment();
+            stored = store(key, request, capture);
+            return isReusable;
+        } finally {
+            inFlight.remove(key);
+            fetch.complete(stored);
+        }
+    }
+
+    public String stats() {
+        long lookups = hits.sum() + misses.sum() + revalidations.sum() + collapsed.sum();
+        double hitRatio = lookups == 0 ? 0 : (double) (hits.sum() + revalidations.sum() + collapsed.sum()) / lookups;
+        String disk = diskCache == null ? "" :
+                " diskEntries=" + diskCache.entryCount() + " diskSize=" + diskCache.sizeBytes();
+        synchronized (this) {
+            return String.format("Response cache: hits=%d misses=%d revalidated=%d collapsed=%d hitRatio=%.2f " +
+                            "bytesSaved=%d entries=%d size=%d%s", hits.sum(), misses.sum(), revalidations.sum(),
+                    collapsed.sum(), hitRatio, bytesSaved.sum(), entries.size(), totalBytes, disk);
+        }
+    }
+
+    private static String conditionalRequest(String request, CachedResponse cached) {
+        StringBuilder conditional = new StringBuilder(request.substring(0, request.length() - 2));
+        if (cached.etag() != null) {
+            conditional.append("If-None-Match: ").append(cached.etag()).append("\r\n");
+        }
+        if (cached.lastModified() != null) {
+            conditional.append("If-Modified-Since: ").append(cached.lastModified()).append("\r\n");
+        }
+        return conditional.append("\r\n").toString();
+    }
+
+    private CachedResponse store(String key, String request, CaptureOutputStream capture) {
+        try {
+            if (!capture.isComplete()) {
+                return null;
+            }
+            CachedResponse response = CachedResponse.parse(request, capture.head(), System.currentTimeMillis());
+            if (response == null) {
+                return null;
+            }
+            if (capture.spillFile() == null) {
+                response = response.withBody(capture.body());
+            } else {
+                capture.closeSpill();
+                response = response.withDiskBody(diskCache.put(key, response.encodeMetadata(), capture.spillFile(),
+                        capture.bodyLength()));
+            }
+            put(key, response);
+            return response;
+        } catch (IOException e) {
+            Logger.logError("Response could not be cached: " + e.getMessage());
+            return null;
+        } finally {
+            capture.discardSpill();
+        }
+    }
+
+    /**
+     * Writes a cached response to the client. Returns false, without writing anything,
+     * if its body was on disk and has been evicted since it was looked up.
+     * */
+    private boolean writeCached(CachedResponse cached, OutputStream clientOutput, WritableByteChannel clientChannel)
+            throws IOException {
+        DiskCache.Entry diskBody = cached.diskBody();
+        if (diskBody != null && !diskCache.retain(diskBody)) {
+            return false;
+        }
+        try {
+            long age = cached.currentAge(System.currentTimeMillis()) / 1000;
+            clientOutput.write(cached.head(), 0, cached.head().length - 2);
+            clientOutput.write(("Age: " + age + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            if (diskBody == null) {
+                clientOutput.write(cached.body());
+                clientOutput.flush();
+            } else {
+                clientOutput.flush();
+                if (clientChannel != null) {
+                    // Going straight to the channel skips the client's counting stream.
+                    diskCache.transferBody(diskBody, clientChannel);
+                    Metrics.bytesOut(cached.bodyLength());
+                } else {
+                    diskCache.transferBody(diskBody, Channels.newChannel(clientOutput));
+                }
+            }
+            bytesSaved.add(cached.bodyLength());
+            return true;
+        } finally {
+            if (diskBody != null) {
+                diskCache.release(diskBody);
+            }
+        }
+    }
+
+    private CachedResponse awaitLeader(CompletableFuture<CachedResponse> leader) {
+        try {
+            return leader.get(COLLAPSE_WAIT_SECONDS, TimeUnit.SECONDS);
+        } catch (ExecutionException | TimeoutException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    private CachedResponse lookup(String key, String request) {
+        CachedResponse cached;
+        synchronized (this) {
+            cached = entries.get(key);
+        }
+        if (cached == null && diskCache != null) {
+            DiskCache.Entry entry = diskCache.get(key);
+            if (entry != null) {
+                try {
+                    cached = CachedResponse.decode(entry.metadata()).withDiskBody(entry);
+                } catch (IOException e) {
+                    Logger.logError("Unreadable disk cache entry for " + key + ": " + e.getMessage());
+                    diskCache.remove(key);
+                }
+            }
+        }
+        return cached != null && cached.matches(request) ? cached : null;
+    }
+
+    // Each key lives in exactly one tier: bodies on disk leave the memory tier and the other way round.
+    private void put(String key, CachedResponse response) {
+        if (response.diskBody() != null) {
+            diskCache.updateMetadata(response.diskBody(), response.encodeMetadata());
+            removeFromMemory(key);
+            return;
+        }
+        if (diskCache != null) {
+            diskCache.remove(key);
+        }
+        synchronized (this) {
+            CachedResponse previous = entries.put(key, response);
+            if (previous != null) {
+                totalBytes -= previous.size();
+            }
+            totalBytes += response.size();
+            Iterator<CachedResponse> eldest = entries.values().iterator();
+            while (totalBytes > maxBytes && eldest.hasNext()) {
+                totalBytes -= eldest.next().size();
+                eldest.remove();
+            }
+        }
+    }
+
+    private synchronized void removeFromMemory(String key) {
+        CachedResponse previous = entries.remove(key);
+        if (previous != null) {
+            totalBytes -= previous.size();
+        }
+    }
+
+    private static String requestKey(String request) {
+        int start = request.indexOf(' ') + 1;
+        return "GET " + request.substring(start, request.indexOf(' ', start));
+    }
+
+    private static boolean requestsRevalidation(String request) {
+        String cacheControl = headerValue(request, "Cache-Control");
+        String pragma = headerValue(request, "Pragma");
+        return (cacheControl != null && (cacheControl.contains("no-cache") || cacheControl.contains("max-age=0")))
+                || (pragma != null && pragma.contains("no-cache"));
+    }
+
+    // Returns the value of the first header with this name in a message head, or null.
+    static String headerValue(String head, String name) {
+        int lineStart = head.indexOf("\r\n") + 2;
+        while (lineStart > 1 && lineStart < head.length()) {
+            int lineEnd = head.indexOf("\r\n", lineStart);
+            if (lineEnd == -1 || lineEnd == lineStart) {
+                return null;
+            }
+            if (head.regionMatches(true, lineStart, name, 0, name.length())
+                    && head.charAt(lineStart + name.length()) == ':') {
+                return head.substring(lineStart + name.length() + 1, lineEnd).trim();
+            }
+            lineStart = lineEnd + 2;
+        }
+        return null;
+    }
+
+    private static Map<String, String> cacheDirectives(String cacheControl) {
+        Map<String, String> directives = new HashMap<>();
+        if (cacheControl != null) {
+            for (String directive : cacheControl.toLowerCase().split(",")) {
+                String[] parts = directive.trim().split("=", 2);
+                directives.put(parts[0], parts.length > 1 ? parts[1].replace("\"", "") : "");
+            }
+        }
+        return directives;
+    }
+
+    private static long parseDate(String date) {
+        if (date == null) {
+            return -1;
+        }
+        try {
+            return ZonedDateTime.parse(date, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    private static long parseSeconds(String seconds) {
+        try {
+            return Long.parseLong(seconds.trim()) * 1000;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * A stored response. head holds the status line and headers without Age or hop-by-hop headers.
+     * The body, exactly as the origin framed it, is held either in body or on disk in diskBody.
+     * */
+    private record CachedResponse(byte[] head, byte[] body, DiskCache.Entry diskBody, long responseTime,
+                                  long initialAge, long freshnessLifetime, boolean mustRevalidate, String etag,
+                                  String lastModified, String[] varyNames, String[] varyValues) {
+
+        // Returns an entry without a body yet, or null if the response may not be stored.
+        static CachedResponse parse(String request, String head, long now) {
+            if (!(head.startsWith("HTTP/1.1 200 ") || head.startsWith("HTTP/1.1 203 ")
+                    || head.startsWith("HTTP/1.1 301 ") || head.startsWith("HTTP/1.1 404 ")
+                    || head.startsWith("HTTP/1.1 410 "))) {
+                return null;
+            }
+            String transferEncoding = headerValue(head, "Transfer-Encoding");
+            boolean isFramed = headerValue(head, "Content-Length") != null
+                    || (transferEncoding != null && transferEncoding.toLowerCase().endsWith("chunked"));
+            Map<String, String> directives = cacheDirectives(headerValue(head, "Cache-Control"));
+            String vary = headerValue(head, "Vary");
+            if (!isFramed || directives.containsKey("no-store") || directives.containsKey("private")
+                    || headerValue(head, "Set-Cookie") != null || (vary != null && vary.contains("*"))) {
+                return null;
+            }
+
+            long freshnessLifetime = freshnessLifetime(head, directives);
+            String etag = headerValue(head, "ETag");
+            String lastModified = headerValue(head, "Last-Modified");
+            if (freshnessLifetime <= 0 && etag == null && lastModified == null) {
+                return null;
+            }
+
+            String[] varyNames = vary == null ? new String[0] : vary.split("\\s*,\\s*");
+            String[] varyValues = new String[varyNames.length];
+            for (int i = 0; i < varyNames.length; i++) {
+                varyValues[i] = headerValue(request, varyNames[i]);
+            }
+            String age = headerValue(head, "Age");
+            return new CachedResponse(stripHeaders(head).getBytes(StandardCharsets.ISO_8859_1), null, null, now,
+                    age == null ? 0 : parseSeconds(age), freshnessLifetime,
+                    directives.containsKey("no-cache") || directives.containsKey("must-revalidate"),
+                    etag, lastModified, varyNames, varyValues);
+        }
+
+        // Reads back the metadata written by encodeMetadata. The entry has no body yet.
+        static CachedResponse decode(byte[] metadata) throws IOException {
+            DataInputStream input = new DataInputStream(new ByteArrayInputStream(metadata));
+            byte[] head = input.readNBytes(input.readInt());
+            long responseTime = input.readLong();
+            long initialAge = input.readLong();
+            long freshnessLifetime = input.readLong();
+            boolean mustRevalidate = input.readBoolean();
+            String etag = readOptional(input);
+            String lastModified = readOptional(input);
+            String[] varyNames = new String[input.readInt()];
+            String[] varyValues = new String[varyNames.length];
+            for (int i = 0; i < varyNames.length; i++) {
+                varyNames[i] = input.readUTF();
+                varyValues[i] = readOptional(input);
+            }
+            return new CachedResponse(head, null, null, responseTime, initialAge, freshnessLifetime,
+                    mustRevalidate, etag, lastModified, varyNames, varyValues);
+        }
+
+        // Everything but the body, for the disk tier to store next to it.
+        byte[] encodeMetadata() {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(head.length + 128);
+            try (DataOutputStream output = new DataOutputStream(bytes)) {
+                output.writeInt(head.length);
+                output.write(head);
+                output.writeLong(responseTime);
+                output.writeLong(initialAge);
+                output.writeLong(freshnessLifetime);
+                output.writeBoolean(mustRevalidate);
+                writeOptional(output, etag);
+                writeOptional(output, lastModified);
+                output.writeInt(varyNames.length);
+                for (int i = 0; i < varyNames.length; i++) {
+                    output.writeUTF(varyNames[i]);
+                    writeOptional(output, varyValues[i]);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return bytes.toByteArray();
+        }
+
+        CachedResponse withBody(byte[] body) {
+            return new CachedResponse(head, body, null, responseTime, initialAge, freshnessLifetime,
+                    mustRevalidate, etag, lastModified, varyNames, varyValues);
+        }
+
+        CachedResponse withDiskBody(DiskCache.Entry diskBody) {
+            return new CachedResponse(head, null, diskBody, responseTime, initialAge, freshnessLifetime,
+                    mustRevalidate, etag, lastModified, varyNames, varyValues);
+        }
+
+        // Applies the headers of a 304 Not Modified to this entry.
+        CachedResponse refresh(String notModifiedHead, long now) {
+            Map<String, String> directives = cacheDirectives(headerValue(notModifiedHead, "Cache-Control"));
+            long lifetime = freshnessLifetime(notModifiedHead, directives);
+            String newEtag = headerValue(notModifiedHead, "ETag");
+            return new CachedResponse(head, body, diskBody, now, 0, lifetime >= 0 ? lifetime : freshnessLifetime,
+                    mustRevalidate, newEtag != null ? newEtag : etag, lastModified, varyNames, varyValues);
+        }
+
+        boolean isFresh(long now) {
+            return !mustRevalidate && currentAge(now) < freshnessLifetime;
+        }
+
+        long currentAge(long now) {
+            return initialAge + Math.max(0, now - responseTime);
+        }
+
+        boolean hasValidators() {
+            return etag != null || lastModified != null;
+        }
+
+        boolean matches(String request) {
+            for (int i = 0; i < varyNames.length; i++) {
+                String value = headerValue(request, varyNames[i]);
+                if (value == null ? varyValues[i] != null : !value.equals(varyValues[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        long bodyLength() {
+            return body != null ? body.length : diskBody.bodyLength();
+        }
+
+        // Heap held by the entry. Only memory tier entries count against ResponseCacheSizeMB.
+        long size() {
+            return head.length + (body != null ? body.length : 0);
+        }
+
+        private static void writeOptional(DataOutputStream output, String value) throws IOException {
+            output.writeBoolean(value != null);
+            if (value != null) {
+                output.writeUTF(value);
+            }
+        }
+
+        private static String readOptional(DataInputStream input) throws IOException {
+            return input.readBoolean() ? input.readUTF() : null;
+        }
+
+        // Returns -1 when the head gives no explicit freshness information.
+        private static long freshnessLifetime(String head, Map<String, String> directives) {
+            if (directives.containsKey("s-maxage")) {
+                return parseSeconds(directives.get("s-maxage"));
+            }
+            if (directives.containsKey("max-age")) {
+                return parseSeconds(directives.get("max-age"));
+            }
+            long expires = parseDate(headerValue(head, "Expires"));
+            if (expires == -1) {
+                return -1;
+            }
+            long date = parseDate(headerValue(head, "Date"));
+            return expires - (date == -1 ? System.currentTimeMillis() : date);
+        }
+
+        // Age is recomputed on every hit, and connection handling is per hop.
+        private static String stripHeaders(String head) {
+            StringBuilder stripped = new StringBuilder(head.length());
+            for (String line : head.split("\r\n")) {
+                int colon = line.indexOf(':');
+                String name = colon > 0 ? line.substring(0, colon).trim() : "";
+                if (name.equalsIgnoreCase("Age") || name.equalsIgnoreCase("Connection")
+                        || name.equalsIgnoreCase("Keep-Alive")) {
+                    continue;
+                }
+                stripped.append(line).append("\r\n");
+            }
+            return stripped.append("\r\n").toString();
+        }
+    }
+
+    /**
+     * Passes a response through to the client while keeping a copy of it.
+     * The body is kept on the heap up to ResponseCacheMaxEntryKB, then spilled to a DiskCache
+     * temp file up to DiskCacheMaxEntryMB, and given up on beyond that. A failed spill only
+     * stops the copy; the client still gets the whole response.
+     * When revalidating, the head is held back until it is complete so that a 304 meant
+     * for the proxy never reaches the client.
+     * */
+    private class CaptureOutputStream extends OutputStream {
+
+        private final OutputStream clientOutput;
+        private final ByteArrayOutputStream head = new ByteArrayOutputStream(1024);
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        private boolean isHoldingHead;
+        private boolean isHeadComplete = false;
+        // How much of the \r\n\r\n ending the head has been seen.
+        private int headMatched = 0;
+        private boolean isNotModified = false;
+        private boolean isOverflowed = false;
+        private long bodyLength = 0;
+        private Path spillFile = null;
+        private FileChannel spillChannel = null;
+
+        CaptureOutputStream(OutputStream clientOutput, boolean holdHead) {
+            this.clientOutput = clientOutput;
+            this.isHoldingHead = holdHead;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            int headLength = isHeadComplete ? 0 : captureHead(bytes, offset, length);
+            if (isHoldingHead) {
+                if (!isHeadComplete) {
+                    return;
+                }
+                isHoldingHead = false;
+                String headText = head();
+                isNotModified = headText.startsWith("HTTP/1.1 304") || headText.startsWith("HTTP/1.0 304");
+                if (!isNotModified) {
+                    clientOutput.write(head.toByteArray());
+                }
+            } else if (headLength > 0) {
+                clientOutput.write(bytes, offset, headLength);
+            }
+
+            int bodyBytes = length - headLength;
+            if (bodyBytes > 0 && !isNotModified) {
+                captureBody(bytes, offset + headLength, bodyBytes);
+                clientOutput.write(bytes, offset + headLength, bodyBytes);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (!isHoldingHead && !isNotModified) {
+                clientOutput.flush();
+            }
+        }
+
+        boolean isNotModified() {
+            return isNotModified;
+        }
+
+        boolean isComplete() {
+            return isHeadComplete && !isOverflowed && !isNotModified;
+        }
+
+        String head() {
+            return head.toString(StandardCharsets.ISO_8859_1);
+        }
+
+        byte[] body() {
+            return body.toByteArray();
+        }
+
+        long bodyLength() {
+            return bodyLength;
+        }
+
+        // The temp file holding the body, or null if it fit on the heap.
+        Path spillFile() {
+            return spillFile;
+        }
+
+        void closeSpill() throws IOException {
+            if (spillChannel != null) {
+                spillChannel.close();
+                spillChannel = null;
+            }
+        }
+
+        // Removes the temp file unless the disk tier has already taken it.
+        void discardSpill() {
+            try {
+                closeSpill();
+                if (spillFile != null) {
+                    Files.deleteIfExists(spillFile);
+                }
+            } catch (IOException e) {
+                Logger.logError("Cache temp file could not be removed: " + e.getMessage());
+            }
+        }
+
+        // Copies the head bytes at the start of bytes and returns how many there were.
+        private int captureHead(byte[] bytes, int offset, int length) {
+            int i = offset;
+            int end = offset + length;
+            while (i < end && !isHeadComplete) {
+                byte b = bytes[i++];
+                if (b == '\r') {
+                    headMatched = headMatched == 2 ? 3 : 1;
+                } else if (b == '\n' && (headMatched == 1 || headMatched == 3)) {
+                    headMatched++;
+                } else {
+                    headMatched = 0;
+                }
+                isHeadComplete = headMatched == 4;
+            }
+            head.write(bytes, offset, i - offset);
+            return i - offset;
+        }
+
+        private void captureBody(byte[] bytes, int offset, int length) {
+            if (isOverflowed) {
+                return;
+            }
+            bodyLength += length;
+            try {
+                if (spillFile == null && bodyLength <= maxEntryBytes) {
+                    body.write(bytes, offset, length);
+                } else if (diskCache != null && bodyLength <= maxDiskEntryBytes) {
+                    if (spillFile == null) {
+                        spillFile = diskCache.createTempFile();
+                        spillChannel = FileChannel.open(spillFile, StandardOpenOption.WRITE);
+                        writeSpill(ByteBuffer.wrap(body.toByteArray()));
+                        body.reset();
+                    }
+                    writeSpill(ByteBuffer.wrap(bytes, offset, length));
+                } else {
+                    overflow();
+                }
+            } catch (IOException e) {
+                Logger.logError("Response could not be spilled to the disk cache: " + e.getMessage());
+                overflow();
+            }
+        }
+
+        private void writeSpill(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                spillChannel.write(buffer);
+            }
+        }
+
+        private void overflow() {
+            isOverflowed = true;
+            body.reset();
+            discardSpill();
+        }
+    }
+}
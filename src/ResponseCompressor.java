@@ -0,0 +1,321 @@
+/**
+ * ResponseCompressor gzips responses on their way to clients that accept it (ResponseCompression: 1 in ServerConfig).
+ * A response is compressed when the origin has not encoded it, its Content-Type is one of CompressionTypes,
+ * it does not forbid it with Cache-Control: no-transform, and its body is not known to be under CompressionMinBytes.
+ * The compressed body goes to the client in chunks as the origin's body arrives, and is flushed whenever
+ * the origin pauses, so nothing waits for the whole response.
+ * Deflaters hold native memory and are slow to set up, so they are pooled like DirectBufferPool's buffers:
+ * at most CompressionPoolMax idle ones are kept, and extra ones are ended.
+ * */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+public class ResponseCompressor {
+
+    private static final int CHUNK_SIZE = 16 * 1024;
+    // A gzip member header: deflate, no flags, no modification time, unknown operating system (RFC 1952).
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final String DEFAULT_TYPES = "text/html,text/plain,text/css,text/javascript,text/xml," +
+            "application/json,application/javascript,application/xml,image/svg+xml";
+
+    private static volatile ResponseCompressor instance;
+
+    private final boolean isEnabled;
+    private final int level;
+    private final long minBytes;
+    private final String[] types;
+    private final int maxIdle;
+    private final Queue<Deflater> idleDeflaters = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    private final LongAdder compressed = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder deflatersCreated = new LongAdder();
+
+    // Package-private for CompressionBenchmark, which compares levels side by side.
+    ResponseCompressor(boolean isEnabled, int level, long minBytes, String types, int maxIdle) {
+        this.isEnabled = isEnabled;
+        this.level = level;
+        this.minBytes = minBytes;
+        this.types = types.toLowerCase(Locale.ROOT).split("\\s*,\\s*");
+        this.maxIdle = maxIdle;
+    }
+
+    public static ResponseCompressor getInstance(ConfigurationManager config) {
+        ResponseCompressor compressor = instance;
+        return compressor != null ? compressor : createInstance(config);
+    }
+
+    private static synchronized ResponseCompressor createInstance(ConfigurationManager config) {
+        if (instance == null) {
+            String types = config.getConfig("CompressionTypes");
+            ResponseCompressor compressor = new ResponseCompressor("1".equals(config.getConfig("ResponseCompression")),
+                    config.getIntConfig("CompressionLevel", 6), config.getIntConfig("CompressionMinBytes", 1024),
+                    types != null ? types : DEFAULT_TYPES, config.getIntConfig("CompressionPoolMax", 64));
+            Metrics.register("proxy_compressed_responses_total", "counter", "Responses gzipped for the client.",
+                    compressor.compressed::sum);
+            Metrics.register("proxy_compression_bytes_saved_total", "counter",
+                    "Body bytes saved by compressing responses.",
+                    () -> compressor.bytesIn.sum() - compressor.bytesOut.sum());
+            instance = compressor;
+        }
+        return instance;
+    }
+
+    // Whether responses to this request may be compressed: the client takes gzip, and a chunked body.
+    public boolean accepts(HTTPRequestParser request) {
+        if (!isEnabled || request.isMethod("HEAD") || !request.isVersion("HTTP/1.1")) {
+            return false;
+        }
+        int header = request.findHeader("Accept-Encoding");
+        return header >= 0 && acceptsGzip(request.headerValue(header));
+    }
+
+    // Whether the client's Accept-Encoding allows gzip, either by name or through *, with a non-zero quality.
+    static boolean acceptsGzip(String acceptEncoding) {
+        Boolean gzip = null;
+        Boolean wildcard = null;
+        for (String coding : acceptEncoding.toLowerCase(Locale.ROOT).split(",")) {
+            String[] parts = coding.split(";");
+            String name = parts[0].trim();
+            boolean isAccepted = true;
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        isAccepted = Double.parseDouble(parameter.substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        isAccepted = false;
+                    }
+                }
+            }
+            if (name.equals("gzip") || name.equals("x-gzip")) {
+                gzip = isAccepted;
+            } else if (name.equals("*")) {
+                wildcard = isAccepted;
+            }
+        }
+        return gzip != null ? gzip : wildcard != null && wildcard;
+    }
+
+    /**
+     * Whether a response with this status and these headers should be compressed. contentLength is -1 when
+     * the body is chunked or ends with the connection.
+     * */
+    public boolean shouldCompress(int status, String contentType, boolean isTransformable, long contentLength) {
+        if (status < 200 || status == 204 || status == 206 || status == 304 || !isTransformable
+                || contentType == null || (contentLength >= 0 && contentLength < minBytes)) {
+            return false;
+        }
+        int parameters = contentType.indexOf(';');
+        String mediaType = (parameters >= 0 ? contentType.substring(0, parameters) : contentType)
+                .trim().toLowerCase(Locale.ROOT);
+        for (String type : types) {
+            if (mediaType.equals(type) || (type.endsWith("/") && mediaType.startsWith(type))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Rewrites a response head for a gzipped, chunked body: the length and framing headers are replaced,
+     * a strong ETag is weakened since the bytes differ from the origin's, and Vary gains Accept-Encoding.
+     * Lines of the origin's head may end with a bare LF; the rewritten head always uses CRLF.
+     * */
+    public static byte[] compressedHead(String head) {
+        StringBuilder out = new StringBuilder(head.length() + 96);
+        boolean hasVary = false;
+        for (String line : head.split("\n")) {
+            if (line.endsWith("\r")) {
+                line = line.substring(0, line.length() - 1);
+            }
+            if (line.isEmpty()) {
+                continue;
+            }
+            int colon = line.indexOf(':');
+            String name = colon > 0 ? line.substring(0, colon).trim() : "";
+            String value = colon > 0 ? line.substring(colon + 1).trim() : "";
+            if (name.equalsIgnoreCase("Content-Length") || name.equalsIgnoreCase("Transfer-Encoding")) {
+                continue;
+            }
+            if (name.equalsIgnoreCase("ETag") && !value.startsWith("W/")) {
+                line = name + ": W/" + value;
+            } else if (name.equalsIgnoreCase("Vary")) {
+                hasVary = true;
+                String varies = value.toLowerCase(Locale.ROOT);
+                if (!varies.contains("accept-encoding") && !varies.equals("*")) {
+                    line = name + ": " + value + ", Accept-Encoding";
+                }
+            }
+            out.append(line).append("\r\n");
+        }
+        if (!hasVary) {
+            out.append("Vary: Accept-Encoding\r\n");
+        }
+        out.append("Content-Encoding: gzip\r\nTransfer-Encoding: chunked\r\n\r\n");
+        return out.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Returns a stream that gzips what is written to it into chunks on clientOutput. source is the origin's
+     * stream, checked so that output is flushed whenever the origin has nothing more ready.
+     * finish ends the body; close returns the Deflater to the pool, whether or not the body was finished.
+     * */
+    public GzipChunkedStream compress(OutputStream clientOutput, InputStream source) {
+        return new GzipChunkedStream(clientOutput, source, acquire());
+    }
+
+    private Deflater acquire() {
+        Deflater deflater = idleDeflaters.poll();
+        if (deflater != null) {
+            idleCount.decrementAndGet();
+            return deflater;
+        }
+        deflatersCreated.increment();
+        // Raw deflate, since the gzip header and trailer are written by the stream itself.
+        return new Deflater(level, true);
+    }
+
+    private void release(Deflater deflater) {
+        if (idleCount.incrementAndGet() > maxIdle) {
+            idleCount.decrementAndGet();
+            deflater.end();
+            return;
+        }
+        deflater.reset();
+        idleDeflaters.offer(deflater);
+    }
+
+    public String stats() {
+        long in = bytesIn.sum();
+        double ratio = in == 0 ? 0 : (double) bytesOut.sum() / in;
+        return String.format("Compression: responses=%d bytesIn=%d bytesOut=%d ratio=%.2f deflaters=%d idle=%d",
+                compressed.sum(), in, bytesOut.sum(), ratio, deflatersCreated.sum(), idleCount.get());
+    }
+
+    public final class GzipChunkedStream extends OutputStream {
+
+        private final OutputStream clientOutput;
+        private final InputStream source;
+        private final CRC32 crc = new CRC32();
+        private final byte[] chunk = new byte[CHUNK_SIZE];
+        private Deflater deflater;
+        private int chunkLength = 0;
+        private long inputLength = 0;
+        private long outputLength = 0;
+        private boolean hasUnflushed = false;
+
+        private GzipChunkedStream(OutputStream clientOutput, InputStream source, Deflater deflater) {
+            this.clientOutput = clientOutput;
+            this.source = source;
+            this.deflater = deflater;
+            System.arraycopy(GZIP_HEADER, 0, chunk, 0, GZIP_HEADER.length);
+            chunkLength = GZIP_HEADER.length;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) {
+                return;
+            }
+            crc.update(bytes, offset, length);
+            inputLength += length;
+            deflater.setInput(bytes, offset, length);
+            while (!deflater.needsInput()) {
+                deflate(Deflater.NO_FLUSH);
+            }
+            hasUnflushed = true;
+            if (source.available() == 0) {
+                // The origin has paused, so what it has sent so far should reach the client now.
+                flush();
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (!hasUnflushed) {
+                return;
+            }
+            // A sync flush ends on a byte boundary; it is complete when the output fit with room to spare.
+            while (deflate(Deflater.SYNC_FLUSH) == 0) {
+                // The chunk filled up and was sent; keep going.
+            }
+            writeChunk();
+            clientOutput.flush();
+            hasUnflushed = false;
+        }
+
+        // Ends the gzip member and the chunked body.
+        public void finish() throws IOException {
+            deflater.finish();
+            while (!deflater.finished()) {
+                deflate(Deflater.NO_FLUSH);
+            }
+            if (CHUNK_SIZE - chunkLength < 8) {
+                writeChunk();
+            }
+            writeIntLE((int) crc.getValue());
+            writeIntLE((int) inputLength);
+            writeChunk();
+            clientOutput.write(LAST_CHUNK);
+            clientOutput.flush();
+            compressed.increment();
+            bytesIn.add(inputLength);
+            bytesOut.add(outputLength);
+        }
+
+        @Override
+        public void close() {
+            if (deflater != null) {
+                release(deflater);
+                deflater = null;
+            }
+        }
+
+        // Deflates into the chunk, sending it when full. Returns the room that was left in the chunk after deflating.
+        private int deflate(int flush) throws IOException {
+            chunkLength += deflater.deflate(chunk, chunkLength, CHUNK_SIZE - chunkLength, flush);
+            int room = CHUNK_SIZE - chunkLength;
+            if (room == 0) {
+                writeChunk();
+            }
+            return room;
+        }
+
+        private void writeIntLE(int value) {
+            for (int i = 0; i < 4; i++) {
+                chunk[chunkLength++] = (byte) (value >>> (8 * i));
+            }
+        }
+
+        private void writeChunk() throws IOException {
+            if (chunkLength == 0) {
+                return;
+            }
+            clientOutput.write((Integer.toHexString(chunkLength) + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            clientOutput.write(chunk, 0, chunkLength);
+            clientOutput.write(CRLF);
+            outputLength += chunkLength;
+            chunkLength = 0;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/**
+ * ResponseRelay streams an HTTP/1.1 response from the target to the client.
+ * Each head is held until it has all arrived, then the body is piped through one fixed buffer,
+ * so memory use does not depend on the response size.
+ * A final head whose framing could be read two ways (RFC 9112 section 6.3), with Content-Length repeated or
+ * alongside Transfer-Encoding, raises MalformedResponseException before any of it reaches the client.
+ * The body is framed by Content-Length, chunked Transfer-Encoding, or the target closing.
+ * Blocking writes to the client give backpressure: nothing more is read until it has been sent.
+ * The wait for the first byte of each response is recorded in Metrics.
+ * Given a ResponseCompressor, the final head is rewritten if the body will be gzipped, and the body sent chunked.
+ * */
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+public class ResponseRelay extends HTTPMessageStream {
+
+    // Thrown for a response head that must not be relayed. Nothing of it has been sent, so it can be answered 502.
+    public static class MalformedResponseException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public MalformedResponseException(String message) {
+            super(message);
+        }
+    }
+
+    private final OutputStream clientOutput;
+    private final ResponseCompressor compressor;
+    private final ByteArrayOutputStream heldHead;
+    private boolean hasResponded = false;
+
+    public ResponseRelay(InputStream targetInput, OutputStream clientOutput) {
+        this(targetInput, clientOutput, null);
+    }
+
+    // compressor is null when the response must not be compressed, for instance as the client does not accept gzip.
+    public ResponseRelay(InputStream targetInput, OutputStream clientOutput, ResponseCompressor compressor) {
+        super(targetInput, "target");
+        this.clientOutput = clientOutput;
+        this.compressor = compressor;
+        this.heldHead = new ByteArrayOutputStream(512);
+    }
+
+    /**
+     * Relays one response. Returns true if the response was framed by its headers and the
+     * target did not ask to close, so both the target and client connections can be reused.
+     * */
+    public boolean relay(boolean isHeadRequest) throws IOException {
+        long sentAt = System.nanoTime();
+        if (bufferStart == bufferEnd && !fill()) {
+            throw new EOFException("target closed before responding.");
+        }
+        hasResponded = true;
+        Metrics.HTTP_FIRST_BYTE.recordSince(sentAt);
+        ResponseHead head = relayHead(heldHead);
+        while (head.status() >= 100 && head.status() < 200 && head.status() != 101) {
+            // Interim responses are passed on and followed by the real one.
+            releaseHead();
+            head = relayHead(heldHead);
+        }
+        boolean hasBody = !isHeadRequest && head.status() != 204 && head.status() != 304;
+        if (hasBody && compressor != null && compressor.shouldCompress(head.status(), head.contentType(),
+                head.isTransformable(), head.isChunked() ? -1 : head.contentLength())) {
+            clientOutput.write(ResponseCompressor.compressedHead(heldHead.toString(StandardCharsets.ISO_8859_1)));
+            clientOutput.flush();
+            return relayCompressedBody(head);
+        }
+        releaseHead();
+        clientOutput.flush();
+
+        if (!hasBody) {
+            return head.isKeepAlive();
+        }
+        if (head.isChunked()) {
+            relayChunkedBody(clientOutput);
+            return head.isKeepAlive();
+        }
+        if (head.contentLength() >= 0) {
+            relayFixedBody(head.contentLength(), clientOutput);
+            return head.isKeepAlive();
+        }
+        relayUntilClose(clientOutput);
+        return false;
+    }
+
+    // Whether any of the response has arrived from the target. Until then nothing has been sent to the client.
+    public boolean hasResponded() {
+        return hasResponded;
+    }
+
+    private boolean relayCompressedBody(ResponseHead head) throws IOException {
+        try (ResponseCompressor.GzipChunkedStream gzip = compressor.compress(clientOutput, input)) {
+            if (head.isChunked()) {
+                relayChunkedBody(OutputStream.nullOutputStream(), gzip);
+            } else if (head.contentLength() >= 0) {
+                relayFixedBody(head.contentLength(), gzip);
+            } else {
+                relayUntilClose(gzip);
+                gzip.finish();
+                return false;
+            }
+            gzip.finish();
+            return head.isKeepAlive();
+        }
+    }
+
+    // Sends a head that was held back unchanged.
+    private void releaseHead() throws IOException {
+        heldHead.writeTo(clientOutput);
+        heldHead.reset();
+    }
+
+    private ResponseHead relayHead(OutputStream output) throws IOException {
+        String statusLine = relayLine(output);
+        int status = parseStatus(statusLine);
+        long contentLength = -1;
+        boolean isChunked = false;
+        boolean isKeepAlive = statusLine.startsWith("HTTP/1.1");
+        String contentType = null;
+        boolean isTransformable = true;
+        boolean hasTransferEncoding = false;
+
+        String line;
+        while (!(line = relayLine(output)).isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon <= 0) {
+                continue;
+            }
+            String name = line.substring(0, colon).trim();
+            String value = line.substring(colon + 1).trim();
+            if (name.equalsIgnoreCase("Transfer-Encoding")) {
+                hasTransferEncoding = true;
+                isChunked = value.toLowerCase().endsWith("chunked");
+            } else if (name.equalsIgnoreCase("Content-Length")) {
+                if (contentLength >= 0) {
+                    throw new MalformedResponseException("Repeated Content-Length from target.");
+                }
+                try {
+                    contentLength = parseContentLength(value);
+                } catch (IOException e) {
+                    throw new MalformedResponseException(e.getMessage());
+                }
+            } else if (name.equalsIgnoreCase("Connection")) {
+                isKeepAlive = applyConnectionHeader(isKeepAlive, value);
+            } else if (name.equalsIgnoreCase("Content-Type")) {
+                contentType = value;
+            } else if (name.equalsIgnoreCase("Content-Encoding")) {
+                isTransformable &= value.equalsIgnoreCase("identity");
+            } else if (name.equalsIgnoreCase("Content-Range")) {
+                isTransformable = false;
+            } else if (name.equalsIgnoreCase("Cache-Control")) {
+                isTransformable &= !value.toLowerCase().contains("no-transform");
+            }
+        }
+        if (hasTransferEncoding && contentLength >= 0) {
+            throw new MalformedResponseException("Both Transfer-Encoding and Content-Length from target.");
+        }
+        return new ResponseHead(status, contentLength, isChunked, isKeepAlive, contentType, isTransformable);
+    }
+
+    private static int parseStatus(String statusLine) throws IOException {
+        String[] parts = statusLine.split(" ");
+        if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+            throw new IOException("Malformed status line from target: " + statusLine);
+        }
+        try {
+            return Integer.parseInt(parts[1]);
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed status line from target: " + statusLine);
+        }
+    }
+
+    private record ResponseHead(int status, long contentLength, boolean isChunked, boolean isKeepAlive,
+                                String contentType, boolean isTransformable) {}
+}
@@ -0,0 +1,218 @@
+/**
+ * SocketPolicy sets the TCP options of every connection the proxy accepts or opens, by connection class:
+ * CLIENT for connections accepted from clients, ORIGIN for connections to HTTP targets,
+ * and TUNNEL for both ends of a CONNECT tunnel once it is established.
+ * For each class, <Class>NoDelay turns Nagle's algorithm off, <Class>KeepAlive turns TCP keepalive probes on,
+ * and <Class>BufferKB pins the send and receive buffers to that size; 0 leaves them to the OS, which on Linux
+ * grows them as a connection needs.
+ * Clients are read with a ClientIdleTimeout and origins with an OriginReadTimeout, both in seconds.
+ * Tunnels have none, since one direction of a tunnel may sit quietly while the other is busy.
+ * Connecting gives up after UpstreamConnectTimeout seconds for origins and TunnelConnectTimeout for tunnels.
+ * AcceptBacklog is how many connections the listening socket queues before they are accepted.
+ * Options are read from the config for each connection, so edits apply to new connections; the backlog
+ * is only set when the server starts.
+ * Pinned buffers keep the kernel memory of many idle connections small, but limit how much one connection
+ * can have in flight. A flow that turns out to be bulk, having carried BulkThresholdKB in one direction,
+ * is promoted: its pinned buffers on that direction's sockets are grown to BulkBufferKB.
+ * Buffers left to the OS are never touched, as setting a size stops the OS from tuning them.
+ * The OS caps the sizes asked for at its own limits, net.core.rmem_max and wmem_max on Linux.
+ * */
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.LongAdder;
+
+public class SocketPolicy {
+
+    public enum ConnectionClass {
+        CLIENT("Client"), ORIGIN("Origin"), TUNNEL("Tunnel");
+
+        private final String prefix;
+
+        ConnectionClass(String prefix) {
+            this.prefix = prefix;
+        }
+    }
+
+    /**
+     * The options for one class. bufferBytes is 0 when buffers are left to the OS,
+     * and the timeouts are 0 when there is none.
+     * */
+    public record Options(boolean noDelay, boolean keepAlive, int bufferBytes, int readTimeoutMillis,
+                          int connectTimeoutMillis) {
+
+        // Sets what should be in place before connecting: the receive buffer decides the window offered in the SYN.
+        public void configure(SocketChannel channel) throws IOException {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, noDelay);
+            channel.setOption(StandardSocketOptions.SO_KEEPALIVE, keepAlive);
+            if (bufferBytes > 0) {
+                channel.setOption(StandardSocketOptions.SO_RCVBUF, bufferBytes);
+                channel.setOption(StandardSocketOptions.SO_SNDBUF, bufferBytes);
+            }
+        }
+
+        // Sets the options of a connected socket, including its read timeout.
+        public void apply(Socket socket) throws SocketException {
+            socket.setTcpNoDelay(noDelay);
+            socket.setKeepAlive(keepAlive);
+            if (bufferBytes > 0) {
+                socket.setReceiveBufferSize(bufferBytes);
+                socket.setSendBufferSize(bufferBytes);
+            }
+            socket.setSoTimeout(readTimeoutMillis);
+        }
+    }
+
+    private static volatile SocketPolicy instance;
+
+    private final ConfigurationManager config;
+    private final LongAdder promotions = new LongAdder();
+
+    private SocketPolicy(ConfigurationManager config) {
+        this.config = config;
+    }
+
+    public static SocketPolicy getInstance(ConfigurationManager config) {
+        SocketPolicy policy = instance;
+        return policy != null ? policy : createInstance(config);
+    }
+
+    private static synchronized SocketPolicy createInstance(ConfigurationManager config) {
+        if (instance == null) {
+            SocketPolicy policy = new SocketPolicy(config);
+            Metrics.register("proxy_socket_bulk_promotions_total", "counter",
+                    "Flows whose socket buffers were grown for bulk transfer.", policy.promotions::sum);
+            instance = policy;
+        }
+        return instance;
+    }
+
+    public Options options(ConnectionClass connectionClass) {
+        String prefix = connectionClass.prefix;
+        int readTimeoutSeconds = switch (connectionClass) {
+            case CLIENT -> config.getIntConfig("ClientIdleTimeout", 15);
+            case ORIGIN -> config.getIntConfig("OriginReadTimeout", 120);
+            case TUNNEL -> 0;
+        };
+        int connectTimeoutSeconds = connectionClass == ConnectionClass.TUNNEL
+                ? config.getIntConfig("TunnelConnectTimeout", 10) : config.getIntConfig("UpstreamConnectTimeout", 10);
+        return new Options(config.getIntConfig(prefix + "NoDelay", 1) == 1,
+                config.getIntConfig(prefix + "KeepAlive", 1) == 1, config.getIntConfig(prefix + "BufferKB", 0) * 1024,
+                readTimeoutSeconds * 1000, connectTimeoutSeconds * 1000);
+    }
+
+    /**
+     * Sets the listening socket's options before it is bound. Accepted connections take their receive buffer
+     * from it, so a pinned client buffer is in place for their handshake. Returns the backlog to bind with.
+     * */
+    public int configureListener(ServerSocketChannel serverChannel) throws IOException {
+        int bufferBytes = options(ConnectionClass.CLIENT).bufferBytes();
+        if (bufferBytes > 0) {
+            serverChannel.setOption(StandardSocketOptions.SO_RCVBUF, bufferBytes);
+        }
+        return config.getIntConfig("AcceptBacklog", 1024);
+    }
+
+    /**
+     * Returns a watch over one direction of a flow, from source to destination, that promotes the pinned buffers
+     * of both sockets once it has carried BulkThresholdKB. destination may be null when the bytes do not go
+     * straight to a socket, as for an HTTP/2 stream.
+     * */
+    public BulkWatch watch(Socket source, ConnectionClass sourceClass, Socket destination,
+                           ConnectionClass destinationClass) {
+        int bulkBytes = config.getIntConfig("BulkBufferKB", 0) * 1024;
+        int sourceBytes = options(sourceClass).bufferBytes();
+        int destinationBytes = destination != null ? options(destinationClass).bufferBytes() : 0;
+        boolean isGrowable = bulkBytes > Math.min(sourceBytes > 0 ? sourceBytes : Integer.MAX_VALUE,
+                destinationBytes > 0 ? destinationBytes : Integer.MAX_VALUE);
+        long threshold = isGrowable ? config.getIntConfig("BulkThresholdKB", 1024) * 1024L : Long.MAX_VALUE;
+        return new BulkWatch(threshold, bulkBytes, sourceBytes > 0 ? source : null,
+                destinationBytes > 0 ? destination : null);
+    }
+
+    public String stats() {
+        return String.format("Sockets: backlog=%d client=%s origin=%s tunnel=%s bulkPromotions=%d",
+                config.getIntConfig("AcceptBacklog", 1024), describe(ConnectionClass.CLIENT),
+                describe(ConnectionClass.ORIGIN), describe(ConnectionClass.TUNNEL), promotions.sum());
+    }
+
+    private String describe(ConnectionClass connectionClass) {
+        Options options = options(connectionClass);
+        return (options.noDelay() ? "nodelay," : "") + (options.keepAlive() ? "keepalive," : "")
+                + (options.bufferBytes() > 0 ? "buffer=" + options.bufferBytes() / 1024 + "KB" : "buffer=os");
+    }
+
+    /**
+     * Counts the bytes of one direction of a flow. Used by one thread at a time, like the relay that owns it.
+     * The sockets are null where their buffers are left to the OS.
+     * */
+    public final class BulkWatch {
+
+        private final long threshold;
+        private final int bulkBytes;
+        private final Socket source;
+        private final Socket destination;
+        private long carried = 0;
+
+        private BulkWatch(long threshold, int bulkBytes, Socket source, Socket destination) {
+            this.threshold = threshold;
+            this.bulkBytes = bulkBytes;
+            this.source = source;
+            this.destination = destination;
+        }
+
+        public void carried(int bytes) {
+            if (carried < threshold && (carried += bytes) >= threshold) {
+                promote();
+            }
+        }
+
+        // Counts what is read through input, for relays that copy from a stream.
+        public InputStream count(InputStream input) {
+            if (threshold == Long.MAX_VALUE) {
+                return input;
+            }
+            return new FilterInputStream(input) {
+                @Override
+                public int read() throws IOException {
+                    int b = in.read();
+                    if (b != -1) {
+                        carried(1);
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] bytes, int offset, int length) throws IOException {
+                    int read = in.read(bytes, offset, length);
+                    if (read > 0) {
+                        carried(read);
+                    }
+                    return read;
+                }
+            };
+        }
+
+        // The source receives and the destination sends, so those are the buffers that limit this direction.
+        private void promote() {
+            try {
+                if (source != null && source.getReceiveBufferSize() < bulkBytes) {
+                    source.setReceiveBufferSize(bulkBytes);
+                }
+                if (destination != null && destination.getSendBufferSize() < bulkBytes) {
+                    destination.setSendBufferSize(bulkBytes);
+                }
+                promotions.increment();
+            } catch (SocketException e) {
+                // The flow carries on with the buffers it has; a socket already closed ends it anyway.
+                Logger.logError("Could not grow socket buffers: " + e.getMessage());
+            }
+        }
+    }
+}
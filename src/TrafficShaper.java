@@ -0,0 +1,465 @@
+/**
+ * TrafficShaper shapes the bytes the proxy sends to clients, from tunnels and HTTP responses alike, through
+ * three tiers of token buckets: one for the whole proxy (GlobalByteRateKB), one per client IP (ClientByteRateKB)
+ * and one per destination host (DestinationByteRateKB), each with a burst of its *ByteBurstKB.
+ * A rate of 0 leaves that tier unlimited, and every rate can be changed while running with the shape command.
+ * Each connection sends through a Flow, which takes tokens from all of its buckets before it writes.
+ * When a flow has to wait, it queues by start tag (start-time fair queuing): a flow's tag grows with the
+ * bytes it has sent, so a quiet interactive flow is served before bulk flows that have been sending, and
+ * bulk flows share what is left evenly. A flow held back only by its own client or destination bucket
+ * lets flows that do not share that bucket past it; one the global bucket cannot cover yet holds back every
+ * flow behind it.
+ * Buckets and the queue are guarded by one lock, which sends only take while some rate is set. Waiting flows
+ * wake when their buckets should have refilled, and whichever wakes hands tokens out in tag order.
+ * Buckets of clients and destinations with no open flows are forgotten once they have refilled.
+ * */
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class TrafficShaper {
+
+    public enum Tier {GLOBAL, CLIENT, DESTINATION}
+
+    // Writes larger than this are sent in pieces, so one large write cannot hold the link for long.
+    private static final int QUANTUM = 16 * 1024;
+    private static final long MIN_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    // Waiters also wake this often, so they notice limits changed or tokens freed by flows that left.
+    private static final long MAX_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long SWEEP_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    private static volatile TrafficShaper instance;
+
+    private record Limit(long bytesPerSecond, long burstBytes) {
+        private boolean isLimited() {
+            return bytesPerSecond > 0;
+        }
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<Tier, Limit> limits = new EnumMap<>(Tier.class);
+    private final Bucket global;
+    private final Map<String, Bucket> clients = new HashMap<>();
+    private final Map<String, Bucket> destinations = new HashMap<>();
+    private final NavigableSet<Waiter> waiting = new TreeSet<>(
+            Comparator.comparingDouble((Waiter waiter) -> waiter.startTag).thenComparingLong(waiter -> waiter.sequence));
+    // The start tag of the last send granted; new and returning flows start from here.
+    private double virtualTime = 0;
+    private long sequence = 0;
+    private long sweptAt = System.nanoTime();
+    private int openFlows = 0;
+    private volatile boolean isActive;
+
+    private final LongAdder shapedBytes = new LongAdder();
+    private final LongAdder delayedSends = new LongAdder();
+    private final LongAdder delayedNanos = new LongAdder();
+
+    private TrafficShaper(Map<Tier, Limit> limits) {
+        this.limits.putAll(limits);
+        this.global = new Bucket(Tier.GLOBAL, null);
+        this.isActive = isAnyLimited();
+    }
+
+    public static TrafficShaper getInstance(ConfigurationManager config) {
+        TrafficShaper shaper = instance;
+        return shaper != null ? shaper : createInstance(config);
+    }
+
+    private static synchronized TrafficShaper createInstance(ConfigurationManager config) {
+        if (instance == null) {
+            Map<Tier, Limit> limits = new EnumMap<>(Tier.class);
+            limits.put(Tier.GLOBAL, limit(config.getIntConfig("GlobalByteRateKB", 0),
+                    config.getIntConfig("GlobalByteBurstKB", 1024)));
+            limits.put(Tier.CLIENT, limit(config.getIntConfig("ClientByteRateKB", 0),
+                    config.getIntConfig("ClientByteBurstKB", 1024)));
+            limits.put(Tier.DESTINATION, limit(config.getIntConfig("DestinationByteRateKB", 0),
+                    config.getIntConfig("DestinationByteBurstKB", 1024)));
+            TrafficShaper shaper = new TrafficShaper(limits);
+            Metrics.register("proxy_shaping_delayed_sends_total", "counter",
+                    "Sends to clients that waited for bandwidth.", shaper.delayedSends::sum);
+            Metrics.register("proxy_shaping_waiting_flows", "gauge", "Flows waiting for bandwidth.",
+                    () -> {
+                        shaper.lock.lock();
+                        try {
+                            return shaper.waiting.size();
+                        } finally {
+                            shaper.lock.unlock();
+                        }
+                    });
+            instance = shaper;
+        }
+        return instance;
+    }
+
+    private static Limit limit(long rateKB, long burstKB) {
+        // A burst below one quantum would make every piece of a large write wait, so it is raised to one.
+        return new Limit(Math.max(0, rateKB) * 1024, Math.max(QUANTUM, burstKB * 1024));
+    }
+
+    // Whether any tier has a rate. While none has, sending through a flow costs nothing.
+    public boolean isActive() {
+        return isActive;
+    }
+
+    /**
+     * Sets a tier's rate and burst, in KB. A rate of 0 leaves the tier unlimited. The tier's buckets start
+     * again full, and waiting flows are reconsidered at once.
+     * */
+    public void setLimit(Tier tier, long rateKB, long burstKB) {
+        Limit limit = limit(rateKB, burstKB);
+        lock.lock();
+        try {
+            limits.put(tier, limit);
+            long now = System.nanoTime();
+            for (Bucket bucket : bucketsOf(tier)) {
+                bucket.tokens = limit.burstBytes;
+                bucket.refilledAt = now;
+            }
+            isActive = isAnyLimited();
+            if (!isActive) {
+                for (Waiter waiter : waiting) {
+                    waiter.grant();
+                }
+                waiting.clear();
+            } else {
+                dispatch(now);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Opens a flow for a connection from client. Its destination is set with routeTo once it is known.
+    public Flow open(String client) {
+        lock.lock();
+        try {
+            openFlows++;
+            sweep(System.nanoTime());
+            return new Flow(reference(clients, Tier.CLIENT, client));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Wraps a client's output so that everything written through it is sent through flow.
+    public static OutputStream shape(Flow flow, OutputStream output) {
+        return new FilterOutputStream(output) {
+            @Override
+            public void write(int b) throws IOException {
+                flow.send(1);
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                while (length > 0) {
+                    int piece = Math.min(length, QUANTUM);
+                    flow.send(piece);
+                    out.write(bytes, offset, piece);
+                    offset += piece;
+                    length -= piece;
+                }
+            }
+        };
+    }
+
+    public String stats() {
+        lock.lock();
+        try {
+            return String.format("Shaping: global=%s client=%s destination=%s flows=%d waiting=%d shapedBytes=%d " +
+                            "delayedSends=%d delayedMs=%d", describe(Tier.GLOBAL), describe(Tier.CLIENT),
+                    describe(Tier.DESTINATION), openFlows, waiting.size(), shapedBytes.sum(), delayedSends.sum(),
+                    TimeUnit.NANOSECONDS.toMillis(delayedNanos.sum()));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The tier named by a shape command, or null.
+    public static Tier parseTier(String name) {
+        try {
+            return Tier.valueOf(name.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private String describe(Tier tier) {
+        Limit limit = limits.get(tier);
+        return limit.isLimited()
+                ? limit.bytesPerSecond / 1024 + "KB/s(burst " + limit.burstBytes / 1024 + "KB)" : "unlimited";
+    }
+
+    private boolean isAnyLimited() {
+        for (Limit limit : limits.values()) {
+            if (limit.isLimited()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Iterable<Bucket> bucketsOf(Tier tier) {
+        return switch (tier) {
+            case GLOBAL -> List.of(global);
+            case CLIENT -> clients.values();
+            case DESTINATION -> destinations.values();
+        };
+    }
+
+    private Bucket reference(Map<String, Bucket> buckets, Tier tier, String key) {
+        Bucket bucket = buckets.computeIfAbsent(key, name -> new Bucket(tier, name));
+        bucket.references++;
+        return bucket;
+    }
+
+    // Forgets the buckets nobody uses once they are full again, since forgetting them then loses nothing.
+    private void sweep(long now) {
+        if (now - sweptAt < SWEEP_NANOS) {
+            return;
+        }
+        sweptAt = now;
+        clients.values().removeIf(bucket -> bucket.isForgettable(now));
+        destinations.values().removeIf(bucket -> bucket.isForgettable(now));
+    }
+
+    /**
+     * Grants waiting sends in start-tag order for as long as the global bucket allows. A send its own buckets
+     * cannot cover is passed over, and so is every later send sharing one of those buckets, so that smaller
+     * sends do not keep taking the tokens it is waiting for. Called with the lock held.
+     * */
+    private void dispatch(long now) {
+        global.refill(now);
+        List<Bucket> held = new ArrayList<>();
+        for (Iterator<Waiter> it = waiting.iterator(); it.hasNext(); ) {
+            Waiter waiter = it.next();
+            Flow flow = waiter.flow;
+            if (held.contains(flow.client) || (flow.destination != null && held.contains(flow.destination))) {
+                continue;
+            }
+            if (!flow.ownBucketsCover(waiter.bytes, now)) {
+                held.add(flow.client);
+                if (flow.destination != null) {
+                    held.add(flow.destination);
+                }
+                continue;
+            }
+            if (!global.covers(waiter.bytes)) {
+                break;
+            }
+            flow.take(waiter.bytes);
+            virtualTime = Math.max(virtualTime, waiter.startTag);
+            it.remove();
+            waiter.grant();
+        }
+    }
+
+    // A bucket of one tier; a refill credits the tokens earned since the last one at the tier's current rate.
+    private final class Bucket {
+
+        private final Tier tier;
+        private final String key;
+        private double tokens;
+        private long refilledAt = System.nanoTime();
+        private int references = 0;
+
+        private Bucket(Tier tier, String key) {
+            this.tier = tier;
+            this.key = key;
+            this.tokens = limits.get(tier).burstBytes;
+        }
+
+        private void refill(long now) {
+            Limit limit = limits.get(tier);
+            if (limit.isLimited()) {
+                tokens = Math.min(limit.burstBytes, tokens + (now - refilledAt) * limit.bytesPerSecond / 1e9);
+            }
+            refilledAt = now;
+        }
+
+        // Whether there are tokens for a send of this size; one larger than the burst needs a full bucket.
+        private boolean covers(long bytes) {
+            Limit limit = limits.get(tier);
+            return !limit.isLimited() || tokens >= Math.min(bytes, limit.burstBytes);
+        }
+
+        private void take(long bytes) {
+            if (limits.get(tier).isLimited()) {
+                tokens -= bytes;
+            }
+        }
+
+        // Nanoseconds until there are tokens for a send of this size, at the current rate.
+        private long nanosUntilCovers(long bytes) {
+            Limit limit = limits.get(tier);
+            if (!limit.isLimited()) {
+                return 0;
+            }
+            double deficit = Math.min(bytes, limit.burstBytes) - tokens;
+            return deficit <= 0 ? 0 : (long) (deficit * 1e9 / limit.bytesPerSecond);
+        }
+
+        private boolean isForgettable(long now) {
+            refill(now);
+            return references == 0 && tokens >= limits.get(tier).burstBytes;
+        }
+    }
+
+    // A send waiting for tokens. Guarded by the shaper's lock.
+    private final class Waiter {
+
+        private final Flow flow;
+        private final long bytes;
+        private final double startTag;
+        private final long sequence;
+        private final Condition granted = lock.newCondition();
+        private boolean isGranted = false;
+
+        private Waiter(Flow flow, long bytes, double startTag, long sequence) {
+            this.flow = flow;
+            this.bytes = bytes;
+            this.startTag = startTag;
+            this.sequence = sequence;
+        }
+
+        private void grant() {
+            isGranted = true;
+            granted.signal();
+        }
+    }
+
+    /**
+     * One connection's bytes to its client. A flow is used by one thread at a time, like the stream
+     * it shapes, and must be closed when the connection is.
+     * */
+    public final class Flow implements AutoCloseable {
+
+        private final Bucket client;
+        private Bucket destination;
+        // Where the flow's last send ended in virtual time.
+        private double finishTag = 0;
+        private boolean isClosed = false;
+
+        private Flow(Bucket client) {
+            this.client = client;
+        }
+
+        // Points the flow at the destination it now carries bytes from. host may be null when there is none.
+        public void routeTo(String host) {
+            String key = host != null ? host.toLowerCase(Locale.ROOT) : null;
+            if (destination == null ? key == null : destination.key.equals(key)) {
+                return;
+            }
+            lock.lock();
+            try {
+                if (destination != null) {
+                    destination.references--;
+                }
+                destination = key != null ? reference(destinations, Tier.DESTINATION, key) : null;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Waits until the flow may send this many bytes, taking them from its buckets.
+         * Throws InterruptedIOException if the thread is interrupted while waiting.
+         * */
+        public void send(long bytes) throws InterruptedIOException {
+            if (!isActive) {
+                return;
+            }
+            lock.lock();
+            try {
+                long now = System.nanoTime();
+                double startTag = Math.max(virtualTime, finishTag);
+                finishTag = startTag + bytes;
+                shapedBytes.add(bytes);
+                global.refill(now);
+                if (waiting.isEmpty() && ownBucketsCover(bytes, now) && global.covers(bytes)) {
+                    take(bytes);
+                    virtualTime = Math.max(virtualTime, startTag);
+                    return;
+                }
+                Waiter waiter = new Waiter(this, bytes, startTag, sequence++);
+                waiting.add(waiter);
+                dispatch(now);
+                long queuedAt = now;
+                while (!waiter.isGranted) {
+                    long wait = Math.max(client.nanosUntilCovers(bytes), global.nanosUntilCovers(bytes));
+                    if (destination != null) {
+                        wait = Math.max(wait, destination.nanosUntilCovers(bytes));
+                    }
+                    try {
+                        waiter.granted.awaitNanos(Math.min(MAX_WAIT_NANOS, Math.max(MIN_WAIT_NANOS, wait)));
+                    } catch (InterruptedException e) {
+                        if (!waiter.isGranted) {
+                            waiting.remove(waiter);
+                        }
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for bandwidth.");
+                    }
+                    if (!waiter.isGranted) {
+                        dispatch(System.nanoTime());
+                    }
+                }
+                delayedSends.increment();
+                delayedNanos.add(System.nanoTime() - queuedAt);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void close() {
+            lock.lock();
+            try {
+                if (isClosed) {
+                    return;
+                }
+                isClosed = true;
+                openFlows--;
+                client.references--;
+                if (destination != null) {
+                    destination.references--;
+                    destination = null;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Refills the flow's client and destination buckets and checks both. Called with the lock held.
+        private boolean ownBucketsCover(long bytes, long now) {
+            client.refill(now);
+            if (destination != null) {
+                destination.refill(now);
+            }
+            return client.covers(bytes) && (destination == null || destination.covers(bytes));
+        }
+
+        private void take(long bytes) {
+            global.take(bytes);
+            client.take(bytes);
+            if (destination != null) {
+                destination.take(bytes);
+            }
+        }
+    }
+}
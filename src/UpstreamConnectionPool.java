@@ -0,0 +1,214 @@
+/**
+ * UpstreamConnectionPool keeps idle keep-alive connections to target servers, keyed by host:port.
+ * HTTPConnectionHandler leases a connection with acquire and hands it back with release once
+ * the response has been fully framed, so the next request to that origin skips the TCP handshake.
+ * Idle connections are capped per host and in total, evicted after UpstreamPoolIdleTimeout seconds,
+ * and checked on checkout so a connection the target has closed is never handed out.
+ * Setting UpstreamPoolMaxIdlePerHost to 0 turns pooling off.
+ * New connections take SocketPolicy's ORIGIN options, and keep any buffers a bulk response grew while pooled.
+ * */
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+public class UpstreamConnectionPool {
+
+    private static volatile UpstreamConnectionPool instance;
+
+    private final Map<String, Deque<IdleConnection>> idleConnections = new ConcurrentHashMap<>();
+    private final AtomicInteger totalIdle = new AtomicInteger();
+    private final int maxIdlePerHost;
+    private final int maxIdle;
+    private final long idleTimeoutNanos;
+    private final DNSResolver resolver;
+    private final SocketPolicy socketPolicy;
+    private final ScheduledExecutorService evictor;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private UpstreamConnectionPool(int maxIdlePerHost, int maxIdle, int idleTimeoutSeconds, DNSResolver resolver,
+                                   SocketPolicy socketPolicy) {
+        this.maxIdlePerHost = maxIdlePerHost;
+        this.maxIdle = maxIdle;
+        this.idleTimeoutNanos = TimeUnit.SECONDS.toNanos(idleTimeoutSeconds);
+        this.resolver = resolver;
+        this.socketPolicy = socketPolicy;
+        this.evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "upstream-pool-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1, idleTimeoutSeconds / 2);
+        evictor.scheduleWithFixedDelay(this::evictExpired, period, period, TimeUnit.SECONDS);
+    }
+
+    public static UpstreamConnectionPool getInstance(ConfigurationManager config) {
+        UpstreamConnectionPool pool = instance;
+        return pool != null ? pool : createInstance(config);
+    }
+
+    private static synchronized UpstreamConnectionPool createInstance(ConfigurationManager config) {
+        if (instance == null) {
+            UpstreamConnectionPool pool = new UpstreamConnectionPool(
+                    config.getIntConfig("UpstreamPoolMaxIdlePerHost", 8),
+                    config.getIntConfig("UpstreamPoolMaxIdle", 256),
+                    config.getIntConfig("UpstreamPoolIdleTimeout", 30),
+                    DNSResolver.getInstance(config),
+                    SocketPolicy.getInstance(config));
+            Metrics.register("proxy_upstream_pool_hits_total", "counter", "Requests sent on a pooled connection.",
+                    pool::hits);
+            Metrics.register("proxy_upstream_pool_misses_total", "counter", "Requests that opened a new connection.",
+                    pool::misses);
+            Metrics.register("proxy_upstream_pool_evictions_total", "counter",
+                    "Pooled target connections closed as expired, dead or over the idle caps.", pool::evictions);
+            Metrics.register("proxy_upstream_pool_idle", "gauge", "Idle pooled target connections.",
+                    pool::idleCount);
+            instance = pool;
+        }
+        return instance;
+    }
+
+    public Socket acquire(String host, int port) throws IOException {
+        Socket socket = acquireIdle(host, port);
+        return socket != null ? socket : connect(host, port);
+    }
+
+    // Returns a pooled connection to host:port, or null if there is none.
+    public Socket acquireIdle(String host, int port) {
+        Deque<IdleConnection> idle = idleConnections.get(key(host, port));
+        if (idle != null) {
+            IdleConnection connection;
+            while ((connection = idle.pollFirst()) != null) {
+                totalIdle.decrementAndGet();
+                if (!isExpired(connection, System.nanoTime()) && isHealthy(connection.channel())) {
+                    hits.increment();
+                    return connection.channel().socket();
+                }
+                evict(connection);
+            }
+        }
+        return null;
+    }
+
+    // Opens a new connection to host:port, for when there is no pooled one or it has failed.
+    public Socket connect(String host, int port) throws IOException {
+        misses.increment();
+        SocketPolicy.Options options = socketPolicy.options(SocketPolicy.ConnectionClass.ORIGIN);
+        Socket socket = resolver.connect(host, port, options).socket();
+        socket.setSoTimeout(options.readTimeoutMillis());
+        return socket;
+    }
+
+    // Only call once the response on this connection has been fully read.
+    public void release(String host, int port, Socket socket) {
+        SocketChannel channel = socket.getChannel();
+        if (channel == null || maxIdlePerHost <= 0 || socket.isClosed()) {
+            closeQuietly(socket);
+            return;
+        }
+        Deque<IdleConnection> idle = idleConnections.computeIfAbsent(key(host, port),
+                k -> new ConcurrentLinkedDeque<>());
+        if (idle.size() >= maxIdlePerHost) {
+            evictions.increment();
+            closeQuietly(socket);
+            return;
+        }
+        if (totalIdle.incrementAndGet() > maxIdle) {
+            totalIdle.decrementAndGet();
+            evictions.increment();
+            closeQuietly(socket);
+            return;
+        }
+        // Most recently used first, so the oldest connections are the ones that expire.
+        idle.offerFirst(new IdleConnection(channel, System.nanoTime()));
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    public int idleCount() {
+        return totalIdle.get();
+    }
+
+    public String stats() {
+        return "Upstream pool: hits=" + hits() + " misses=" + misses() + " evictions=" + evictions() +
+                " idle=" + idleCount();
+    }
+
+    private void evictExpired() {
+        long now = System.nanoTime();
+        for (Deque<IdleConnection> idle : idleConnections.values()) {
+            Iterator<IdleConnection> iterator = idle.descendingIterator();
+            while (iterator.hasNext()) {
+                IdleConnection connection = iterator.next();
+                if (isExpired(connection, now) && idle.removeLastOccurrence(connection)) {
+                    totalIdle.decrementAndGet();
+                    evict(connection);
+                }
+            }
+        }
+    }
+
+    private boolean isExpired(IdleConnection connection, long now) {
+        return now - connection.idleSince() > idleTimeoutNanos;
+    }
+
+    // An idle connection must have nothing to read. End of stream or stray bytes both mean it can't be reused.
+    private static boolean isHealthy(SocketChannel channel) {
+        if (!channel.isOpen()) {
+            return false;
+        }
+        try {
+            channel.configureBlocking(false);
+            int read = channel.read(ByteBuffer.allocate(1));
+            channel.configureBlocking(true);
+            return read == 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void evict(IdleConnection connection) {
+        evictions.increment();
+        closeQuietly(connection.channel().socket());
+    }
+
+    private static String key(String host, int port) {
+        return host.toLowerCase() + ":" + port;
+    }
+
+    private static void closeQuietly(Socket socket) {
+        if (!socket.isClosed()) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                Logger.logError("Socket could not be closed : " + e);
+            }
+        }
+    }
+
+    private record IdleConnection(SocketChannel channel, long idleSince) {}
+}